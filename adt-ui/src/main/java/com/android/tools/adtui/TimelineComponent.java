@@ -752,7 +752,26 @@ public final class TimelineComponent extends AnimatedComponent {
       updateStreams();
 
       start = mData.getStartTime();
-      mSize = mData.size();
+      // Calculate begin and end times in seconds.
+      mEndTime = mData.getEndTime() - mBufferTime;
+      mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
+
+      // Only the visible samples are copied, plus one on each side so the lines continue past the edges. When there are
+      // more samples than pixels, they are taken from the coarsest downsampled level which still has a couple of
+      // buckets per pixel.
+      int level = 0;
+      int from = 0;
+      int to = 0;
+      int maxSamples = Math.max(2 * (mRight - LEFT_MARGIN), 2);
+      while (true) {
+        from = Math.max(mData.findLevelIndex(level, mBeginTime) - 1, 0);
+        to = Math.min(mData.findLevelIndex(level, mEndTime) + 1, mData.getLevelSize(level));
+        if (level + 1 >= mData.getLevelCount() || (to - from) / TimelineData.LEVEL_FACTOR < maxSamples) {
+          break;
+        }
+        level++;
+      }
+      mSize = to - from;
       float lastUpdatedTime = mTimes != null ? mTimes[mTimes.length - 1] : 0;
       if (mTimes == null || mTimes.length < mSize) {
         int alloc = Math.max(mSize, mTimes == null ? 64 : mTimes.length * 2);
@@ -764,9 +783,8 @@ public final class TimelineComponent extends AnimatedComponent {
       }
 
       for (int i = 0; i < mSize; ++i) {
-        TimelineData.SampleInfo info = mData.getSampleInfo(i);
-        mTimes[i] = info.time;
-        mTypes[i] = info.type;
+        mTimes[i] = mData.getLevelTime(level, from + i);
+        mTypes[i] = mData.getLevelType(level, from + i);
       }
 
       float cappedMax = 0;
@@ -777,7 +795,18 @@ public final class TimelineComponent extends AnimatedComponent {
         StreamComponent streamComponent = mStreamComponents.get(streamIndex);
         TimelineData.Stream streamFromData = mData.getStream(streamIndex);
         for (int i = 0; i < mSize; ++i) {
-          float value = streamFromData.get(i);
+          float value;
+          if (level == 0) {
+            value = streamFromData.get(from + i);
+          }
+          else if (streamComponent.isMirrored) {
+            // Keep the peak furthest from the axis.
+            value = Math.max(Math.abs(mData.getLevelMin(level, streamIndex, from + i)),
+                             Math.abs(mData.getLevelMax(level, streamIndex, from + i)));
+          }
+          else {
+            value = mData.getLevelMax(level, streamIndex, from + i);
+          }
           if (streamComponent.isMirrored) {
             value = -Math.abs(value);
           }
@@ -795,8 +824,8 @@ public final class TimelineComponent extends AnimatedComponent {
             cappedMin = Math.min(cappedMin, value);
           }
         }
-        if (mSize > 0) {
-          streamComponent.currentValue = streamFromData.get(mSize - 1);
+        if (mData.size() > 0) {
+          streamComponent.currentValue = streamFromData.get(mData.size() - 1);
         }
         if (streamComponent.isMirrored) {
           lastStreamForMirroredStack = streamComponent;
@@ -806,9 +835,6 @@ public final class TimelineComponent extends AnimatedComponent {
         }
       }
 
-      // Calculate begin and end times in seconds.
-      mEndTime = mData.getEndTime() - mBufferTime;
-      mBeginTime = mEndTime - (mRight - LEFT_MARGIN) / X_SCALE;
       // Animate the current maximum towards the real one.
       cappedMax = Math.min(mAbsoluteMax, Math.max(mCurrentMax, cappedMax));
       cappedMin = Math.max(-mAbsoluteMax, Math.min(mCurrentMin, cappedMin));
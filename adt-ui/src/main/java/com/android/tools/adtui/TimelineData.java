@@ -20,7 +20,6 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -28,11 +27,19 @@ import java.util.logging.Logger;
  * A group of streams of data sampled over time. This object is thread safe as it can be
  * read/modified from any thread. It uses itself as the mutex object so it is possible to
  * synchronize on it if modifications from other threads want to be prevented.
+ * <p>
+ * The data is stored in columns: the sample times and types, and the values of each stream, are kept in primitive ring
+ * buffers, so adding a sample does not allocate. On top of the raw samples, a pyramid of downsampled levels keeps the
+ * minimum and maximum value of each stream over buckets of {@link #LEVEL_FACTOR}<sup>level</sup> samples, so that long
+ * sessions can be drawn at a cost proportional to the number of pixels rather than the number of samples.
  */
 public class TimelineData {
 
   public static final Logger LOG = Logger.getLogger(TimelineData.class.getName());
 
+  /** The number of buckets of a level which are combined into a single bucket of the next level. */
+  public static final int LEVEL_FACTOR = 4;
+
   @GuardedBy("this")
   private final SampleTransform mTransform;
 
@@ -42,8 +49,17 @@ public class TimelineData {
   // Streams' id and values.
   public final List<Stream> mStreams;
 
-  // Information related to sampling, for example sample time, sample type.
-  private final List<SampleInfo> mSampleInfos;
+  // Information related to sampling: the sample times (in seconds since the start) and types.
+  private final float[] mTimes;
+  private final int[] mTypes;
+  private int mSampleStart;
+  private int mSampleSize;
+
+  /** The number of samples added since the data was last cleared, including the ones that have been overwritten. */
+  private long mTotalSamples;
+
+  /** The downsampled levels, where mLevels[i] is level i + 1 (level 0 being the samples themselves). */
+  private final Level[] mLevels;
 
   private final int mCapacity;
 
@@ -54,7 +70,14 @@ public class TimelineData {
 
   public TimelineData(int streams, int capacity, @NotNull SampleTransform transform) {
     mCapacity = capacity;
-    mSampleInfos = new CircularArrayList<SampleInfo>(capacity);
+    mTimes = new float[capacity];
+    mTypes = new int[capacity];
+    List<Level> levels = new ArrayList<Level>();
+    for (long bucketSize = LEVEL_FACTOR; bucketSize <= capacity; bucketSize *= LEVEL_FACTOR) {
+      // One extra bucket for the partially filled bucket at each end.
+      levels.add(new Level((int)bucketSize, (int)(capacity / bucketSize) + 2));
+    }
+    mLevels = levels.toArray(new Level[levels.size()]);
     mTransform = transform;
     mTransform.init(streams);
     mStreams = new ArrayList<Stream>();
@@ -80,8 +103,94 @@ public class TimelineData {
     return mStreams.get(index);
   }
 
+  /**
+   * @deprecated Use {@link #getSampleTime(int)} and {@link #getSampleType(int)}, which do not allocate.
+   */
+  @Deprecated
   public SampleInfo getSampleInfo(int index) {
-    return mSampleInfos.get(index);
+    return new SampleInfo(getSampleTime(index), getSampleType(index));
+  }
+
+  /** Returns the time of the given sample, in seconds since the start. */
+  public float getSampleTime(int index) {
+    return mTimes[sampleSlot(index)];
+  }
+
+  public int getSampleType(int index) {
+    return mTypes[sampleSlot(index)];
+  }
+
+  private int sampleSlot(int index) {
+    if (index < 0 || index >= mSampleSize) {
+      throw new IndexOutOfBoundsException(String.format("Index %1$d out of sample bound %2$d", index, mSampleSize));
+    }
+    return (mSampleStart + index) % mCapacity;
+  }
+
+  /**
+   * Returns the number of levels of detail, including level 0 (the samples themselves). Each bucket of level
+   * {@code n} covers {@link #LEVEL_FACTOR}<sup>n</sup> consecutive samples.
+   */
+  public int getLevelCount() {
+    return mLevels.length + 1;
+  }
+
+  /** Returns the number of buckets available at the given level. */
+  public int getLevelSize(int level) {
+    return level == 0 ? mSampleSize : mLevels[level - 1].mSize;
+  }
+
+  /** Returns the time of the first sample of the given bucket. */
+  public float getLevelTime(int level, int index) {
+    if (level == 0) {
+      return getSampleTime(index);
+    }
+    Level l = mLevels[level - 1];
+    return l.mTimes[l.slot(index)];
+  }
+
+  /** Returns the type of the first sample of the given bucket. */
+  public int getLevelType(int level, int index) {
+    if (level == 0) {
+      return getSampleType(index);
+    }
+    Level l = mLevels[level - 1];
+    return l.mTypes[l.slot(index)];
+  }
+
+  /** Returns the smallest value of the given stream within the given bucket. */
+  public float getLevelMin(int level, int stream, int index) {
+    if (level == 0) {
+      return mStreams.get(stream).get(index);
+    }
+    return mStreams.get(stream).mLevelMin[level - 1][mLevels[level - 1].slot(index)];
+  }
+
+  /** Returns the largest value of the given stream within the given bucket. */
+  public float getLevelMax(int level, int stream, int index) {
+    if (level == 0) {
+      return mStreams.get(stream).get(index);
+    }
+    return mStreams.get(stream).mLevelMax[level - 1][mLevels[level - 1].slot(index)];
+  }
+
+  /**
+   * Returns the index of the first bucket of the given level which starts at or after the given time,
+   * or {@link #getLevelSize} if there is none.
+   */
+  public int findLevelIndex(int level, float time) {
+    int low = 0;
+    int high = getLevelSize(level);
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getLevelTime(level, mid) < time) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
   }
 
   /**
@@ -90,17 +199,14 @@ public class TimelineData {
    */
   public synchronized void add(long timeMills, int type, float... values) {
     float timeFromStart = (timeMills - mStart) / 1000.f;
-    for (Sample sample : mTransform.transform(this, timeFromStart, type, values)) {
-      add(sample);
-    }
+    mTransform.transform(this, timeFromStart, type, values);
   }
 
   public synchronized void addStream(@NotNull String id) {
     for (Stream stream : mStreams) {
       assert !id.equals(stream.getId()) : String.format("Attempt to add duplicate stream of id %1$s", id);
     }
-    int startSize = mSampleInfos.size();
-    Stream stream = new Stream(id, mCapacity, startSize);
+    Stream stream = new Stream(id, mCapacity, mSampleSize, mLevels);
     mStreams.add(stream);
     mTransform.add(mStreams.size() - 1);
   }
@@ -139,17 +245,44 @@ public class TimelineData {
     }
   }
 
-  private void add(Sample sample) {
-    float[] values = sample.values;
+  /**
+   * Adds a sample of all the streams, updating the downsampled levels. Called by the {@link SampleTransform}.
+   */
+  void addSample(float time, int type, float[] values) {
     assert values.length == mStreams.size();
+    int slot;
+    if (mSampleSize == mCapacity) {
+      slot = mSampleStart;
+      mSampleStart = (mSampleStart + 1) % mCapacity;
+    }
+    else {
+      slot = (mSampleStart + mSampleSize) % mCapacity;
+      mSampleSize++;
+    }
+    mTimes[slot] = time;
+    mTypes[slot] = type;
     for (int i = 0; i < mStreams.size(); i++) {
       mStreams.get(i).add(values[i]);
     }
-    mSampleInfos.add(new SampleInfo(sample.time, sample.type));
+
+    for (int level = 0; level < mLevels.length; level++) {
+      Level l = mLevels[level];
+      boolean newBucket = mTotalSamples % l.mBucketSize == 0;
+      int bucketSlot = newBucket ? l.push(time, type) : l.slot(l.mSize - 1);
+      for (int i = 0; i < mStreams.size(); i++) {
+        mStreams.get(i).addToBucket(level, bucketSlot, newBucket, values[i]);
+      }
+    }
+    mTotalSamples++;
   }
 
   public synchronized void clear() {
-    mSampleInfos.clear();
+    mSampleStart = 0;
+    mSampleSize = 0;
+    mTotalSamples = 0;
+    for (Level level : mLevels) {
+      level.reset();
+    }
     mTransform.reset();
     for (Stream stream : mStreams) {
       stream.reset();
@@ -158,7 +291,7 @@ public class TimelineData {
   }
 
   public int size() {
-    return mSampleInfos.size();
+    return mSampleSize;
   }
 
   /**
@@ -166,12 +299,11 @@ public class TimelineData {
    */
   @Deprecated
   public Sample get(int index) {
-    SampleInfo info = mSampleInfos.get(index);
     float[] values = new float[mStreams.size()];
     for (int i = 0; i < mStreams.size(); i++) {
       values[i] = mStreams.get(i).get(index);
     }
-    return new Sample(info.time, info.type, values);
+    return new Sample(getSampleTime(index), getSampleType(index), values);
   }
 
   public synchronized float getEndTime() {
@@ -188,11 +320,26 @@ public class TimelineData {
 
     private int mValueSize;
 
+    // The minimum and maximum values per bucket of each downsampled level, indexed like TimelineData.mLevels.
+    private final float[][] mLevelMin;
+    private final float[][] mLevelMax;
+
     public Stream(@NotNull String id, int maxValueSize, int startSize) {
+      this(id, maxValueSize, startSize, new Level[0]);
+    }
+
+    private Stream(@NotNull String id, int maxValueSize, int startSize, @NotNull Level[] levels) {
       mId = id;
       mCircularValues = new float[maxValueSize];
       mStartIndex = 0;
       mValueSize = startSize;
+      // A stream added later reads as zero for the existing samples, so all-zero buckets are consistent with that.
+      mLevelMin = new float[levels.length][];
+      mLevelMax = new float[levels.length][];
+      for (int i = 0; i < levels.length; i++) {
+        mLevelMin[i] = new float[levels[i].mCapacity];
+        mLevelMax[i] = new float[levels[i].mCapacity];
+      }
     }
 
     public int getValueSize() {
@@ -214,6 +361,20 @@ public class TimelineData {
       return mId;
     }
 
+    private void addToBucket(int level, int slot, boolean newBucket, float value) {
+      if (level >= mLevelMin.length) {
+        return;
+      }
+      if (newBucket) {
+        mLevelMin[level][slot] = value;
+        mLevelMax[level][slot] = value;
+      }
+      else {
+        mLevelMin[level][slot] = Math.min(mLevelMin[level][slot], value);
+        mLevelMax[level][slot] = Math.max(mLevelMax[level][slot], value);
+      }
+    }
+
     public float get(int index) {
       assert index >= 0 && index < mValueSize : String.format("Index %1$d out of value length bound %2$d", index, mValueSize);
       return mCircularValues[(mStartIndex + index) % mValueSize];
@@ -225,6 +386,54 @@ public class TimelineData {
     }
   }
 
+  /**
+   * The buckets of one downsampled level, in a ring buffer. The values of each stream are kept by the stream itself;
+   * this holds the time and type of the first sample of each bucket.
+   */
+  private static final class Level {
+    private final int mBucketSize;
+    private final int mCapacity;
+    private final float[] mTimes;
+    private final int[] mTypes;
+    private int mStart;
+    private int mSize;
+
+    Level(int bucketSize, int capacity) {
+      mBucketSize = bucketSize;
+      mCapacity = capacity;
+      mTimes = new float[capacity];
+      mTypes = new int[capacity];
+    }
+
+    int slot(int index) {
+      if (index < 0 || index >= mSize) {
+        throw new IndexOutOfBoundsException(String.format("Index %1$d out of level bound %2$d", index, mSize));
+      }
+      return (mStart + index) % mCapacity;
+    }
+
+    /** Starts a new bucket, evicting the oldest one if full, and returns its slot. */
+    int push(float time, int type) {
+      int slot;
+      if (mSize == mCapacity) {
+        slot = mStart;
+        mStart = (mStart + 1) % mCapacity;
+      }
+      else {
+        slot = (mStart + mSize) % mCapacity;
+        mSize++;
+      }
+      mTimes[slot] = time;
+      mTypes[slot] = type;
+      return slot;
+    }
+
+    void reset() {
+      mStart = 0;
+      mSize = 0;
+    }
+  }
+
   public static class SampleInfo {
 
     public final float time;
@@ -280,7 +489,10 @@ public class TimelineData {
     void reset() {
     }
 
-    abstract List<Sample> transform(TimelineData data, float time, int type, float... values);
+    /**
+     * Converts the given input values into samples, adding them with {@link TimelineData#addSample}.
+     */
+    abstract void transform(TimelineData data, float time, int type, float[] values);
 
     void add(int streamIndex) {
     }
@@ -294,9 +506,8 @@ public class TimelineData {
    */
   public static final class DirectTransform extends SampleTransform {
     @Override
-    public List<Sample> transform(TimelineData data, float time, int type, float... values) {
-      Sample sample = new Sample(time, type, values);
-      return Collections.singletonList(sample);
+    void transform(TimelineData data, float time, int type, float[] values) {
+      data.addSample(time, type, values);
     }
   }
 
@@ -315,10 +526,18 @@ public class TimelineData {
     private float[] mAreaSums;
     private float[] mLastValues;
 
+    // Scratch arrays reused across samples, so that transforming does not allocate.
+    private float[] mArea;
+    private float[] mNonZeroIntervals;
+    private float[] mEndValues;
+    private float[] mAscendingIntervals;
+    private float[] mSampleValues;
+
     @Override
     void init(int streams) {
       mAreaSums = new float[streams];
       mLastValues = new float[streams];
+      allocateScratch(streams);
     }
 
     @Override
@@ -336,12 +555,22 @@ public class TimelineData {
       }
       mAreaSums = Arrays.copyOf(mAreaSums, streamIndex + 1);
       mLastValues = Arrays.copyOf(mLastValues, streamIndex + 1);
+      allocateScratch(mAreaSums.length);
     }
 
     @Override
     void remove(int streamIndex) {
       mAreaSums = removeAndShrinkArray(mAreaSums, streamIndex);
       mLastValues = removeAndShrinkArray(mLastValues, streamIndex);
+      allocateScratch(mAreaSums.length);
+    }
+
+    private void allocateScratch(int streams) {
+      mArea = new float[streams];
+      mNonZeroIntervals = new float[streams];
+      mEndValues = new float[streams];
+      mAscendingIntervals = new float[streams];
+      mSampleValues = new float[streams];
     }
 
     private static float[] removeAndShrinkArray(float[] src, int removeIndex) {
@@ -351,20 +580,15 @@ public class TimelineData {
     }
 
     @Override
-    public List<Sample> transform(TimelineData data, float time, int type, float... areaSums) {
+    void transform(TimelineData data, float time, int type, float[] areaSums) {
       assert mAreaSums.length == areaSums.length;
-      float[] area = new float[mAreaSums.length];
       for (int i = 0; i < areaSums.length; i++) {
-        area[i] = areaSums[i] - mAreaSums[i];
+        mArea[i] = areaSums[i] - mAreaSums[i];
         mAreaSums[i] = areaSums[i];
       }
 
-      float lastSampleTime = data.size() > 0 ? data.getSampleInfo(data.size() - 1).time : 0.f;
-      List<Sample> samples = convertAreasToSamples(time, type, area, lastSampleTime);
-
-      float[] lastValues = samples.get(samples.size() - 1).values;
-      System.arraycopy(lastValues, 0, mLastValues, 0, lastValues.length);
-      return samples;
+      float lastSampleTime = data.size() > 0 ? data.getSampleTime(data.size() - 1) : 0.f;
+      convertAreasToSamples(data, time, type, mArea, lastSampleTime);
     }
 
     /**
@@ -373,20 +597,21 @@ public class TimelineData {
      * correct. For example, every stream flow is a triangle when not stacked with each other; it need four time points for all streams,
      * one triangle is split into four parts at every time point, each part's shape may be changed while the area size is the same.
      *
-     * <p>Because both the sample time and stream values are needed to return, Sample class is kept to be used in the return value
-     * until that class is removed. </p>
+     * <p>The samples are added to the data as they are computed, and the values of the last one become the starting values of the
+     * next conversion.</p>
      *
+     * @param data     The timeline data the samples are added to.
      * @param time     The current time in seconds from the start timestamp.
      * @param type     The timeline data type.
      * @param area     The area array of all streams.
      * @param lastTime The time in seconds of the latest existing sample.
      */
-    private List<Sample> convertAreasToSamples(float time, int type, float[] area, float lastTime) {
+    private void convertAreasToSamples(TimelineData data, float time, int type, float[] area, float lastTime) {
       float maxInterval = time - lastTime;
       int streamSize = area.length;
       // Computes how long every stream's value is non-zero and the ending value at last.
-      float[] nonZeroIntervalsForStreams = new float[streamSize];
-      float[] endValuesForStreams = new float[streamSize];
+      float[] nonZeroIntervalsForStreams = mNonZeroIntervals;
+      float[] endValuesForStreams = mEndValues;
       for (int i = 0; i < streamSize; i++) {
         if (Math.abs(mLastValues[i]) * maxInterval / 2 < Math.abs(area[i])) {
           nonZeroIntervalsForStreams[i] = maxInterval;
@@ -404,11 +629,12 @@ public class TimelineData {
       }
 
       // Sorts the intervals, every different interval should be a sample.
-      float[] ascendingIntervals = Arrays.copyOf(nonZeroIntervalsForStreams, streamSize);
+      float[] ascendingIntervals = mAscendingIntervals;
+      System.arraycopy(nonZeroIntervalsForStreams, 0, ascendingIntervals, 0, streamSize);
       Arrays.sort(ascendingIntervals);
-      List<Sample> sampleList = new ArrayList<Sample>();
+      float[] sampleValues = mSampleValues;
+      boolean endsAtZero = ascendingIntervals[streamSize - 1] < maxInterval;
       for (float interval : ascendingIntervals) {
-        float[] sampleValues = new float[streamSize];
         for (int j = 0; j < streamSize; j++) {
           if (nonZeroIntervalsForStreams[j] < interval || nonZeroIntervalsForStreams[j] == 0.f) {
             sampleValues[j] = 0.f;
@@ -418,16 +644,17 @@ public class TimelineData {
               mLastValues[j] - (mLastValues[j] - endValuesForStreams[j]) * interval / nonZeroIntervalsForStreams[j];
           }
         }
-        sampleList.add(new Sample(interval + lastTime, type, sampleValues));
+        data.addSample(interval + lastTime, type, sampleValues);
         if (interval == maxInterval) {
           break;
         }
       }
-      if (ascendingIntervals[streamSize - 1] < maxInterval) {
+      if (endsAtZero) {
         // Adds the ending sample that all stream values are zero.
-        sampleList.add(new Sample(time, type, new float[streamSize]));
+        Arrays.fill(sampleValues, 0.f);
+        data.addSample(time, type, sampleValues);
       }
-      return sampleList;
+      System.arraycopy(sampleValues, 0, mLastValues, 0, streamSize);
     }
   }
 }
@@ -204,4 +204,38 @@ public class TimelineDataTest extends TestCase {
     assertEquals(2f, sample1.time);
     assertEquals(200f, sample1.values[0]);
   }
+
+  public void testLevels() {
+    mData = new TimelineData(1, 20);
+    long start = mData.getStartTime();
+    assertEquals(3, mData.getLevelCount());
+
+    for (int i = 0; i < 30; i++) {
+      mData.add(start + i * 1000, TYPE_DATA, i % 2 == 0 ? i : -i);
+    }
+    assertEquals(20, mData.size());
+    assertEquals(10f, mData.getSampleTime(0));
+
+    // Level 1 buckets hold 4 samples each: 20 / 4 + 2 buckets are kept, and the last one is only half full.
+    assertEquals(7, mData.getLevelSize(1));
+    assertEquals(4f, mData.getLevelTime(1, 0));
+    assertEquals(-7f, mData.getLevelMin(1, 0, 0));
+    assertEquals(6f, mData.getLevelMax(1, 0, 0));
+    assertEquals(28f, mData.getLevelTime(1, 6));
+    assertEquals(-29f, mData.getLevelMin(1, 0, 6));
+    assertEquals(28f, mData.getLevelMax(1, 0, 6));
+
+    // Level 2 buckets hold 16 samples each.
+    assertEquals(2, mData.getLevelSize(2));
+    assertEquals(-15f, mData.getLevelMin(2, 0, 0));
+    assertEquals(14f, mData.getLevelMax(2, 0, 0));
+
+    assertEquals(0, mData.findLevelIndex(1, 0f));
+    assertEquals(2, mData.findLevelIndex(1, 10f));
+    assertEquals(7, mData.findLevelIndex(1, 100f));
+
+    mData.clear();
+    assertEquals(0, mData.getLevelSize(1));
+    assertEquals(0, mData.getLevelSize(2));
+  }
 }
@@ -50,6 +50,10 @@ public interface ApkEntry {
   @NotNull
   VirtualFile getFile();
 
+  default boolean isDirectory() {
+    return getFile().isDirectory();
+  }
+
   @NotNull
   String getPath();
 
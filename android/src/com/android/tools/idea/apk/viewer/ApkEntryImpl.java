@@ -15,21 +15,51 @@
  */
 package com.android.tools.idea.apk.viewer;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * An entry of the APK tree. Entries created from a {@link ZipTree} only look up their {@link VirtualFile} when it is
+ * first asked for, so that building the tree does not go through the VFS, and nested zip files are only extracted
+ * once one of their entries is opened.
+ */
 final class ApkEntryImpl implements ApkEntry {
-  private final VirtualFile myFile;
-  @Nullable private final String myOriginalName; // original name if different from myFile.getName()
+  /** The root of the APK, for entries which are directly in the APK. */
+  @Nullable private final VirtualFile myApkRoot;
+  /** The nested zip file this entry is in, if any. */
+  @Nullable private final ApkEntryImpl myArchive;
+  /** The path within the APK or nested zip file, empty for the root. */
+  @NotNull private final String myRelativePath;
+  @NotNull private final String myName;
+  private final boolean myDirectory;
+  /** Whether this is a nested zip file, whose file is the root of its extracted contents. */
+  private final boolean myNestedArchive;
   private final long mySize;
 
+  private volatile VirtualFile myFile;
   private long myCompressedSize = -1;
 
   ApkEntryImpl(@NotNull VirtualFile file, @Nullable String originalName, long size) {
-    this.myFile = file;
-    this.myOriginalName = originalName;
-    this.mySize = size;
+    myApkRoot = null;
+    myArchive = null;
+    myRelativePath = ApkFileSystem.getInstance().getRelativePath(file);
+    myName = originalName != null ? originalName : file.getName();
+    myDirectory = file.isDirectory();
+    myNestedArchive = originalName != null;
+    mySize = size;
+    myFile = file;
+  }
+
+  ApkEntryImpl(@NotNull VirtualFile apkRoot, @Nullable ApkEntryImpl archive, @NotNull ZipTree.Node node) {
+    myApkRoot = archive == null ? apkRoot : null;
+    myArchive = archive;
+    myRelativePath = node.myPath;
+    myName = node.myName;
+    myDirectory = node.myDirectory;
+    myNestedArchive = node.myArchive;
+    mySize = node.mySize;
   }
 
   @Override
@@ -50,19 +80,61 @@ final class ApkEntryImpl implements ApkEntry {
   @NotNull
   @Override
   public String getName() {
-    return myOriginalName != null ? myOriginalName : myFile.getName();
+    return myName;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return myDirectory;
   }
 
   @NotNull
   @Override
   public VirtualFile getFile() {
-    return myFile;
+    VirtualFile file = myFile;
+    if (file == null) {
+      file = findFile();
+      myFile = file;
+    }
+    return file;
+  }
+
+  @NotNull
+  private VirtualFile findFile() {
+    VirtualFile root = myArchive != null ? myArchive.getFile() : myApkRoot;
+    assert root != null;
+    VirtualFile file = myRelativePath.isEmpty() ? root : root.findFileByRelativePath(myRelativePath);
+    if (file == null) {
+      Logger.getInstance(ApkEntryImpl.class).warn("Unable to find " + getPath());
+      return root;
+    }
+    if (myNestedArchive) {
+      VirtualFile contentRoot = ApkFileSystem.getInstance().extractAndGetContentRoot(file);
+      if (contentRoot != null) {
+        return contentRoot;
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Returns the path of this entry within the APK, or null if it is inside a nested zip file.
+   */
+  @Nullable
+  String getPathInApk() {
+    return myArchive == null ? myRelativePath : null;
   }
 
   @NotNull
   @Override
   public String getPath() {
-    return myFile.getPath();
+    if (myArchive != null) {
+      return myArchive.getPath() + "/" + myRelativePath;
+    }
+    if (myApkRoot != null) {
+      return myApkRoot.getPath() + myRelativePath;
+    }
+    return getFile().getPath();
   }
 
   @Override
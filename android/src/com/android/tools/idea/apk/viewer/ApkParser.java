@@ -18,6 +18,8 @@ package com.android.tools.idea.apk.viewer;
 import com.android.SdkConstants;
 import com.android.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -30,14 +32,13 @@ import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 import java.io.*;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.zip.*;
 
 public class ApkParser {
@@ -50,6 +51,7 @@ public class ApkParser {
   private ListenableFuture<DefaultMutableTreeNode> myTreeStructureWithCompressedSizes;
 
   private ListenableFuture<AndroidApplicationInfo> myApplicationInfo;
+  private ListenableFuture<DownloadSizeEstimator> myDownloadSizeEstimate;
   private ListenableFuture<Long> myCompressedFullApkSize;
 
   public ApkParser(@NotNull VirtualFile baseFile, @NotNull VirtualFile apkRoot) {
@@ -74,13 +76,15 @@ public class ApkParser {
   public synchronized ListenableFuture<DefaultMutableTreeNode> constructTreeStructureWithCompressedSizes() {
     if (myTreeStructureWithCompressedSizes == null) {
       myTreeStructureWithCompressedSizes = ourExecutorService.submit(() -> {
-        // first obtain the compressed apk
-        File compressedApk = getZipCompressedApk(myApk);
-
-        // then update the existing tree structure with info about size of each file in the apk when it is compressed
-        try (ZipFile zip = new ZipFile(compressedApk)) {
-          return updateTreeStructure(constructTreeStructure().get(), zip);
-        }
+        // first obtain the size of each file in the apk when it is compressed
+        DownloadSizeEstimator estimate = getDownloadSizeEstimate().get();
+        Map<String, Long> compressedSizes =
+          estimate != null ? estimate.getCompressedSizes() : readCompressedSizes(getZipCompressedApk(myApk));
+
+        // then update the existing tree structure with that info
+        DefaultMutableTreeNode treeNode = constructTreeStructure().get();
+        updateTreeStructure(treeNode, compressedSizes);
+        return treeNode;
       });
     }
 
@@ -109,15 +113,73 @@ public class ApkParser {
   @NotNull
   public synchronized ListenableFuture<Long> getCompressedFullApkSize() {
     if (myCompressedFullApkSize == null) {
-      myCompressedFullApkSize = ourExecutorService.submit(() -> getApkServedByPlay(myApk).length());
+      myCompressedFullApkSize = ourExecutorService.submit(() -> {
+        DownloadSizeEstimator estimate = getDownloadSizeEstimate().get();
+        return estimate != null ? estimate.getDownloadSize() : getApkServedByPlaySize(myApk);
+      });
     }
 
     return myCompressedFullApkSize;
   }
 
+  /**
+   * Returns the estimate of the download size of the APK and of each of its files, or null if the APK cannot be read
+   * by {@link DownloadSizeEstimator}.
+   */
+  @NotNull
+  private synchronized ListenableFuture<DownloadSizeEstimator> getDownloadSizeEstimate() {
+    if (myDownloadSizeEstimate == null) {
+      myDownloadSizeEstimate = ourExecutorService.submit(() -> {
+        try {
+          return DownloadSizeEstimator.estimate(myApk);
+        }
+        catch (IOException e) {
+          Logger.getInstance(ApkParser.class).warn(e);
+          return null;
+        }
+      });
+    }
+
+    return myDownloadSizeEstimate;
+  }
+
   @VisibleForTesting
   @NotNull
-  static DefaultMutableTreeNode createTreeNode(@NotNull VirtualFile file) {
+  static DefaultMutableTreeNode createTreeNode(@NotNull VirtualFile apkRoot) {
+    VirtualFile localFile = ApkFileSystem.getInstance().getLocalByEntry(apkRoot);
+    if (localFile != null) {
+      try {
+        ZipTree.Node tree = ZipTree.read(VfsUtilCore.virtualToIoFile(localFile));
+        if (tree != null) {
+          return createTreeNode(apkRoot, null, tree);
+        }
+      }
+      catch (IOException e) {
+        Logger.getInstance(ApkParser.class).warn("Unable to read " + localFile.getPath(), e);
+      }
+    }
+    return createTreeNodeFromVfs(apkRoot);
+  }
+
+  @NotNull
+  private static DefaultMutableTreeNode createTreeNode(@NotNull VirtualFile apkRoot,
+                                                      @Nullable ApkEntryImpl archive,
+                                                      @NotNull ZipTree.Node node) {
+    ApkEntryImpl entry = new ApkEntryImpl(apkRoot, archive, node);
+    DefaultMutableTreeNode treeNode = new DefaultMutableTreeNode(entry);
+    // The children of a nested zip file are relative to that file.
+    ApkEntryImpl childArchive = node.myArchive ? entry : archive;
+    for (ZipTree.Node child : node.myChildren) {
+      treeNode.add(createTreeNode(apkRoot, childArchive, child));
+    }
+    return treeNode;
+  }
+
+  /**
+   * Creates the tree by walking the VFS, for the APKs {@link ZipTree} cannot read.
+   */
+  @NotNull
+  private static DefaultMutableTreeNode createTreeNodeFromVfs(@NotNull VirtualFile file) {
     String originalName = null;
     DefaultMutableTreeNode node = new DefaultMutableTreeNode();
 
@@ -134,7 +196,7 @@ public class ApkParser {
     if (file.isDirectory()) {
       //noinspection UnsafeVfsRecursion (no symlinks inside an APK)
       for (VirtualFile child : file.getChildren()) {
-        DefaultMutableTreeNode childNode = createTreeNode(child);
+        DefaultMutableTreeNode childNode = createTreeNodeFromVfs(child);
         node.add(childNode);
 
         size += ((ApkEntry)childNode.getUserObject()).getSize();
@@ -157,34 +219,50 @@ public class ApkParser {
   }
 
   /**
-   * Updates and returns the given tree structure with info about the compressed size of each node.
+   * Updates the given tree structure with info about the compressed size of each node, given the compressed size of each
+   * entry of the compressed APK.
    */
-  @NotNull
-  private static DefaultMutableTreeNode updateTreeStructure(@NotNull DefaultMutableTreeNode treeNode, @NotNull ZipFile compressedApk) {
-    long compressedSize = 0;
-
+  private static void updateTreeStructure(@NotNull DefaultMutableTreeNode treeNode, @NotNull Map<String, Long> compressedSizes) {
     ApkEntry entry = ApkEntry.fromNode(treeNode);
     assert entry != null;
 
-    if (treeNode.getChildCount() > 0) {
+    String path = entry instanceof ApkEntryImpl ? ((ApkEntryImpl)entry).getPathInApk() : null;
+    Long zipEntrySize = path != null ? compressedSizes.get(path) : null;
+    long compressedSize;
+    if (zipEntrySize != null) {
+      // A file, or a nested zip file which is compressed as a whole
+      compressedSize = zipEntrySize;
+    }
+    else if (treeNode.getChildCount() > 0) {
+      compressedSize = 0;
       for (int i = 0; i < treeNode.getChildCount(); i++) {
-        DefaultMutableTreeNode childNode = updateTreeStructure((DefaultMutableTreeNode)treeNode.getChildAt(i), compressedApk);
-        compressedSize += ((ApkEntry)childNode.getUserObject()).getCompressedSize();
+        DefaultMutableTreeNode childNode = (DefaultMutableTreeNode)treeNode.getChildAt(i);
+        updateTreeStructure(childNode, compressedSizes);
+        ApkEntry childEntry = ApkEntry.fromNode(childNode);
+        if (childEntry != null && childEntry.isCompressedSizeKnown()) {
+          compressedSize += childEntry.getCompressedSize();
+        }
       }
     }
     else {
-      ZipEntry ze = compressedApk.getEntry(ApkFileSystem.getInstance().getRelativePath(entry.getFile()));
-      if (ze == null) {
-        // happens if such a relative path is not present inside the apk (e.g. zip files such as instant-run.zip are unzipped to a tempfile)
-        compressedSize = -1;
-      }
-      else {
-        compressedSize = ze.getCompressedSize();
-      }
+      // happens if such a relative path is not present inside the apk (e.g. entries of nested zip files such as instant-run.zip)
+      compressedSize = -1;
     }
 
     entry.setCompressedSize(compressedSize);
-    return treeNode;
+  }
+
+  @NotNull
+  private static Map<String, Long> readCompressedSizes(@NotNull File zip) throws IOException {
+    Map<String, Long> sizes = new HashMap<>();
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        sizes.put(entry.getName(), entry.getCompressedSize());
+      }
+    }
+    return sizes;
   }
 
   public static void sort(@NotNull DefaultMutableTreeNode node) {
@@ -230,33 +308,23 @@ public class ApkParser {
   }
 
   /**
-   * @return the input file compressed using "gzip -9" and saved in a temporary location
+   * @return the size of the input file compressed using "gzip -9", for the APKs {@link DownloadSizeEstimator} cannot read
    */
-  private static File getApkServedByPlay(@NotNull File apk) {
-    File compressedFile;
-    try {
-      compressedFile =
-        FileUtil.createTempFile("compressed", SdkConstants.DOT_ANDROID_PACKAGE, true);
-    }
-    catch (IOException e) {
-      Logger.getInstance(ApkParser.class).warn(e);
-      return apk;
-    }
-
+  private static long getApkServedByPlaySize(@NotNull File apk) {
     // There is a difference between uncompressing the apk, and then compressing again using gzip -9, versus just compressing the apk
     // itself using gzip -9. But the difference seems to be negligible, and we are only aiming at an estimate of what Play provides, so
     // this should suffice. This also seems to be the same approach taken by https://github.com/googlesamples/apk-patch-size-estimator
 
-    try (GZIPOutputStream zos = new MaxGzipOutputStream(new FileOutputStream(compressedFile))) {
+    CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+    try (GZIPOutputStream zos = new MaxGzipOutputStream(counter)) {
       Files.copy(apk.toPath(), zos);
-      zos.flush();
     }
     catch (IOException e) {
       Logger.getInstance(ApkParser.class).warn(e);
-      return apk;
+      return apk.length();
     }
 
-    return compressedFile;
+    return counter.getCount();
   }
 
   /**
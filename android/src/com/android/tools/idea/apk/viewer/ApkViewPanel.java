@@ -24,8 +24,8 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.icons.AllIcons;
 import com.intellij.ide.ui.search.SearchUtil;
+import com.intellij.openapi.fileTypes.FileTypeManager;
 import com.intellij.openapi.util.Disposer;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.*;
 import com.intellij.ui.treeStructure.Tree;
 import com.intellij.util.Function;
@@ -321,8 +321,8 @@ public class ApkViewPanel implements TreeSelectionListener {
         return;
       }
 
-      VirtualFile file = entry.getFile();
-      setIcon(getIconFor(file));
+      // The file of an entry is looked up lazily, so do not ask for it just to pick an icon.
+      setIcon(getIconFor(entry.getName(), entry.isDirectory()));
 
       SimpleTextAttributes attr = SimpleTextAttributes.REGULAR_ATTRIBUTES;
       SearchUtil.appendFragments(mySpeedSearch.getEnteredPrefix(), entry.getName(), attr.getStyle(), attr.getFgColor(),
@@ -330,17 +330,15 @@ public class ApkViewPanel implements TreeSelectionListener {
     }
 
     @NotNull
-    private static Icon getIconFor(@NotNull VirtualFile file) {
-      String fileName = file.getName();
-
-      if (!file.isDirectory()) {
-        if (fileName == SdkConstants.FN_ANDROID_MANIFEST_XML) {
+    private static Icon getIconFor(@NotNull String fileName, boolean isDirectory) {
+      if (!isDirectory) {
+        if (fileName.equals(SdkConstants.FN_ANDROID_MANIFEST_XML)) {
           return AndroidIcons.ManifestFile;
         }
         else if (fileName.endsWith(SdkConstants.DOT_DEX)) {
           return AllIcons.FileTypes.JavaClass;
         }
-        Icon ftIcon = file.getFileType().getIcon();
+        Icon ftIcon = FileTypeManager.getInstance().getFileTypeByFileName(fileName).getIcon();
         return ftIcon == null ? AllIcons.FileTypes.Any_type : ftIcon;
       }
       else {
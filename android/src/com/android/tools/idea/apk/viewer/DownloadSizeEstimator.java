@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.apk.viewer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Estimates how large an APK is to download, without writing any compressed data to disk.
+ * <p>
+ * Google Play currently serves APKs compressed with "gzip -9". The APK is split into parts of consecutive entries, with
+ * their local headers and data as stored in the APK, and the parts are compressed in parallel. Since gzip only looks
+ * back {@link #WINDOW_SIZE} bytes for matches, each part is compressed with the bytes preceding it in the APK as a
+ * preset dictionary, so that it finds the same matches as when the whole file is compressed, including those with the
+ * entries before it. The sizes only differ by the block boundaries at the end of each part, which is why parts are at
+ * least {@link #PART_SIZE} bytes long.
+ * <p>
+ * For the size of each file, the entries are also deflated from their uncompressed contents at the default level, as
+ * rezipping the APK would.
+ * <p>
+ * Compressed data only goes to a scratch buffer, of which only the length is kept. Estimates are cached by the CRC and
+ * sizes of the entries, so that analyzing another build of the same app only compresses the entries which changed, and
+ * those which follow them.
+ */
+final class DownloadSizeEstimator {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** How far back gzip looks for matches. */
+  private static final int WINDOW_SIZE = 32 * 1024;
+  /** The size from which a part of the APK is compressed on its own. */
+  private static final int PART_SIZE = 256 * 1024;
+  /** Size of the gzip header and trailer. */
+  private static final int GZIP_OVERHEAD = 18;
+
+  private static final Cache<PartKey, Long> ourDownloadSizes = CacheBuilder.newBuilder().maximumSize(100000).build();
+  private static final Cache<EntryKey, Long> ourCompressedSizes = CacheBuilder.newBuilder().maximumSize(100000).build();
+
+  private final long myDownloadSize;
+  @NotNull private final Map<String, Long> myCompressedSizes;
+
+  private DownloadSizeEstimator(long downloadSize, @NotNull Map<String, Long> compressedSizes) {
+    myDownloadSize = downloadSize;
+    myCompressedSizes = compressedSizes;
+  }
+
+  /**
+   * Returns the estimated size of the APK served by Play, that is, compressed with "gzip -9".
+   */
+  long getDownloadSize() {
+    return myDownloadSize;
+  }
+
+  /**
+   * Returns the size of each entry of the APK when compressed at the default level, by entry name.
+   */
+  @NotNull
+  Map<String, Long> getCompressedSizes() {
+    return myCompressedSizes;
+  }
+
+  /**
+   * Estimates the sizes of the given APK, or returns null if it is not a zip file {@link ZipTree} can read.
+   */
+  @Nullable
+  static DownloadSizeEstimator estimate(@NotNull File apk) throws IOException, InterruptedException {
+    ByteBuffer zip = ZipTree.map(apk);
+    List<ZipTree.Entry> zipEntries = zip != null ? ZipTree.readEntries(zip) : null;
+    if (zipEntries == null) {
+      return null;
+    }
+    List<ZipTree.Entry> entries = new ArrayList<>(zipEntries);
+    Collections.sort(entries, (o1, o2) -> Integer.compare(o1.myDataOffset, o2.myDataOffset));
+
+    // Consecutive entries are grouped into parts of at least PART_SIZE bytes, as each part ends a deflate block. What
+    // follows the last entry, the central directory, is compressed by the calling thread while the workers compress the
+    // other parts and the entries.
+    List<Part> parts = new ArrayList<>();
+    int position = 0;
+    int first = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      ZipTree.Entry entry = entries.get(i);
+      int end = Math.max(position, (int)(entry.myDataOffset + entry.myCompressedSize));
+      int start = parts.isEmpty() ? 0 : parts.get(parts.size() - 1).myEnd;
+      if (end - start >= PART_SIZE || i == entries.size() - 1) {
+        parts.add(new Part(zip, entries.subList(first, i + 1), start, end));
+        first = i + 1;
+      }
+      position = end;
+    }
+
+    Long[] downloadSizes = new Long[parts.size()];
+    Long[] compressedSizes = new Long[entries.size()];
+    List<EntryKey> entryKeys = new ArrayList<>(entries.size());
+    List<Integer> missingParts = new ArrayList<>();
+    List<Integer> missingEntries = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      downloadSizes[i] = ourDownloadSizes.getIfPresent(parts.get(i).myKey);
+      if (downloadSizes[i] == null) {
+        missingParts.add(i);
+      }
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      EntryKey key = new EntryKey(entries.get(i));
+      entryKeys.add(key);
+      compressedSizes[i] = ourCompressedSizes.getIfPresent(key);
+      if (compressedSizes[i] == null) {
+        missingEntries.add(i);
+      }
+    }
+
+    int taskCount = missingParts.size() + missingEntries.size();
+    int workerCount = Math.min(taskCount, Runtime.getRuntime().availableProcessors());
+    AtomicInteger next = new AtomicInteger();
+    List<Future<?>> workers = new ArrayList<>(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(PooledThreadExecutor.INSTANCE.submit(() -> {
+        Compressor compressor = new Compressor();
+        try {
+          int index;
+          while ((index = next.getAndIncrement()) < taskCount && !Thread.currentThread().isInterrupted()) {
+            if (index < missingParts.size()) {
+              Part part = parts.get(missingParts.get(index));
+              downloadSizes[missingParts.get(index)] = compressor.compressPart(zip, part.myStart, part.myEnd);
+            }
+            else {
+              int entry = missingEntries.get(index - missingParts.size());
+              compressedSizes[entry] = compressor.compressContents(zip, entries.get(entry));
+            }
+          }
+        }
+        finally {
+          compressor.end();
+        }
+        return null;
+      }));
+    }
+
+    long downloadSize;
+    Compressor compressor = new Compressor();
+    try {
+      downloadSize = GZIP_OVERHEAD + compressor.compressPart(zip, position, zip.limit());
+    }
+    finally {
+      compressor.end();
+    }
+    try {
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    }
+    catch (InterruptedException e) {
+      for (Future<?> worker : workers) {
+        worker.cancel(true);
+      }
+      throw e;
+    }
+    catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+
+    for (int i = 0; i < parts.size(); i++) {
+      ourDownloadSizes.put(parts.get(i).myKey, downloadSizes[i]);
+      downloadSize += downloadSizes[i];
+    }
+    Map<String, Long> sizes = new HashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (compressedSizes[i] == null) {
+        // Entries which cannot be decompressed (unknown method or corrupt data) are left out.
+        continue;
+      }
+      ourCompressedSizes.put(entryKeys.get(i), compressedSizes[i]);
+      sizes.put(entries.get(i).myName, compressedSizes[i]);
+    }
+    return new DownloadSizeEstimator(downloadSize, sizes);
+  }
+
+  @NotNull
+  private static ByteBuffer slice(@NotNull ByteBuffer zip, int start, int end) {
+    ByteBuffer slice = zip.duplicate();
+    slice.position(Math.min(start, end));
+    slice.limit(end);
+    return slice;
+  }
+
+  /**
+   * Counts the bytes a {@link Deflater} produces, throwing the compressed data away.
+   */
+  private static final class Compressor {
+    private final Deflater myGzipDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Deflater myZipDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater myInflater = new Inflater(true);
+    private final byte[] myDictionary = new byte[WINDOW_SIZE];
+    private final byte[] myInput = new byte[BUFFER_SIZE];
+    private final byte[] myInflated = new byte[BUFFER_SIZE];
+    private final byte[] myOutput = new byte[BUFFER_SIZE];
+
+    /**
+     * Returns the size of the bytes from {@code start} to {@code end} when compressed at level 9, as part of the whole
+     * zip file.
+     */
+    long compressPart(@NotNull ByteBuffer zip, int start, int end) {
+      myGzipDeflater.reset();
+      int dictionaryStart = Math.max(0, start - WINDOW_SIZE);
+      if (dictionaryStart < start) {
+        slice(zip, dictionaryStart, start).get(myDictionary, 0, start - dictionaryStart);
+        myGzipDeflater.setDictionary(myDictionary, 0, start - dictionaryStart);
+      }
+      long count = add(myGzipDeflater, slice(zip, start, end));
+      return count + finish(myGzipDeflater);
+    }
+
+    /**
+     * Returns the size of the uncompressed contents of an entry when compressed at the default level, or null if the
+     * entry cannot be decompressed.
+     */
+    @Nullable
+    Long compressContents(@NotNull ByteBuffer zip, @NotNull ZipTree.Entry entry) {
+      ByteBuffer data = ZipTree.getRawData(zip, entry);
+      myZipDeflater.reset();
+      if (entry.myMethod == ZipEntry.STORED) {
+        long count = add(myZipDeflater, data);
+        return count + finish(myZipDeflater);
+      }
+      if (entry.myMethod != ZipEntry.DEFLATED) {
+        return null;
+      }
+
+      myInflater.reset();
+      long count = 0;
+      try {
+        while (!myInflater.finished()) {
+          if (myInflater.needsInput()) {
+            if (!data.hasRemaining()) {
+              return null;
+            }
+            int length = Math.min(myInput.length, data.remaining());
+            data.get(myInput, 0, length);
+            myInflater.setInput(myInput, 0, length);
+          }
+          int inflated = myInflater.inflate(myInflated);
+          if (inflated == 0 && myInflater.needsDictionary()) {
+            return null;
+          }
+          count += deflate(myZipDeflater, myInflated, inflated);
+        }
+      }
+      catch (DataFormatException e) {
+        return null;
+      }
+      return count + finish(myZipDeflater);
+    }
+
+    private long add(@NotNull Deflater deflater, @NotNull ByteBuffer data) {
+      long count = 0;
+      while (data.hasRemaining()) {
+        int length = Math.min(myInput.length, data.remaining());
+        data.get(myInput, 0, length);
+        count += deflate(deflater, myInput, length);
+      }
+      return count;
+    }
+
+    private long deflate(@NotNull Deflater deflater, @NotNull byte[] input, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      long count = 0;
+      deflater.setInput(input, 0, length);
+      while (!deflater.needsInput()) {
+        count += deflater.deflate(myOutput);
+      }
+      return count;
+    }
+
+    private long finish(@NotNull Deflater deflater) {
+      long count = 0;
+      deflater.finish();
+      while (!deflater.finished()) {
+        count += deflater.deflate(myOutput);
+      }
+      return count;
+    }
+
+    void end() {
+      myGzipDeflater.end();
+      myZipDeflater.end();
+      myInflater.end();
+    }
+  }
+
+  /**
+   * Identifies the contents of an entry. The compressed size is included because the data gzip sees for a deflated
+   * entry depends on how it was deflated.
+   */
+  private static final class EntryKey {
+    private final long myCrc;
+    private final long mySize;
+    private final long myCompressedSize;
+    private final int myMethod;
+
+    private EntryKey(@NotNull ZipTree.Entry entry) {
+      myCrc = entry.myCrc;
+      mySize = entry.mySize;
+      myCompressedSize = entry.myCompressedSize;
+      myMethod = entry.myMethod;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof EntryKey)) {
+        return false;
+      }
+      EntryKey key = (EntryKey)o;
+      return myCrc == key.myCrc && mySize == key.mySize && myCompressedSize == key.myCompressedSize && myMethod == key.myMethod;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myCrc, mySize, myCompressedSize, myMethod);
+    }
+  }
+
+  /**
+   * A range of the zip file made of consecutive entries, with the headers before each of them.
+   */
+  private static final class Part {
+    private final int myStart;
+    private final int myEnd;
+    @NotNull private final PartKey myKey;
+
+    private Part(@NotNull ByteBuffer zip, @NotNull List<ZipTree.Entry> entries, int start, int end) {
+      myStart = start;
+      myEnd = end;
+      myKey = new PartKey(zip, entries, start);
+    }
+  }
+
+  /**
+   * Identifies the contents of a part, and the bytes gzip looks back at when compressing it.
+   */
+  private static final class PartKey {
+    @NotNull private final List<EntryKey> myEntries = new ArrayList<>();
+    private final long myHeadersCrc;
+    private final long myContextCrc;
+    private final int myContextLength;
+
+    private PartKey(@NotNull ByteBuffer zip, @NotNull List<ZipTree.Entry> entries, int start) {
+      CRC32 headers = new CRC32();
+      int position = start;
+      for (ZipTree.Entry entry : entries) {
+        myEntries.add(new EntryKey(entry));
+        headers.update(slice(zip, position, Math.max(position, entry.myDataOffset)));
+        position = Math.max(position, (int)(entry.myDataOffset + entry.myCompressedSize));
+      }
+      myHeadersCrc = headers.getValue();
+      myContextLength = Math.min(start, WINDOW_SIZE);
+      CRC32 context = new CRC32();
+      context.update(slice(zip, start - myContextLength, start));
+      myContextCrc = context.getValue();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof PartKey)) {
+        return false;
+      }
+      PartKey key = (PartKey)o;
+      return myEntries.equals(key.myEntries) && myHeadersCrc == key.myHeadersCrc && myContextCrc == key.myContextCrc &&
+             myContextLength == key.myContextLength;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(myEntries, myHeadersCrc, myContextCrc, myContextLength);
+    }
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.apk.viewer;
+
+import com.android.SdkConstants;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.intellij.openapi.util.io.FileUtilRt;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * The entries of a zip file (typically an APK) and of the zip files nested in it, arranged as a tree of {@link Node}s.
+ * <p>
+ * The tree is built in a single pass over the central directory of the memory mapped file, without going through the
+ * VFS. Nested zip files are read in place from their offset in the outer file when they are stored, and inflated in
+ * memory otherwise; they are never extracted to disk. Trees are cached by a hash of the central directory (which holds
+ * the CRC of every entry), so opening the same APK again does not read it again.
+ */
+final class ZipTree {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  /** Value of the 16 and 32 bit fields of the end record when the real value is in the zip64 end record. */
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  private static final Cache<HashCode, Node> ourTrees = CacheBuilder.newBuilder().maximumSize(8).softValues().build();
+
+  private ZipTree() {
+  }
+
+  /**
+   * Returns the tree of the entries of the given zip file, or null if it is not a zip file this class can read (for
+   * example a zip64 file), in which case the caller should fall back to the VFS. The root node is named after the file.
+   */
+  @Nullable
+  static Node read(@NotNull File zip) throws IOException {
+    ByteBuffer buffer = map(zip);
+    ByteBuffer directory = buffer != null ? getCentralDirectory(buffer) : null;
+    if (directory == null) {
+      return null;
+    }
+
+    HashCode key = hash(directory, buffer.limit());
+    Node tree = ourTrees.getIfPresent(key);
+    if (tree == null) {
+      Builder root = new Builder(zip.getName(), "", true);
+      if (!addEntries(buffer, directory, root)) {
+        return null;
+      }
+      tree = root.build(buffer.limit());
+      ourTrees.put(key, tree);
+    }
+    return tree.myName.equals(zip.getName()) ? tree : tree.withName(zip.getName());
+  }
+
+  /**
+   * Maps the given file into memory, or returns null if it is too large to be mapped as a single buffer.
+   */
+  @Nullable
+  static ByteBuffer map(@NotNull File zip) throws IOException {
+    try (FileChannel channel = FileChannel.open(zip.toPath(), StandardOpenOption.READ)) {
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE) {
+        return null;
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Returns the entries of the given (mapped) zip file in central directory order, or null if it cannot be read.
+   */
+  @Nullable
+  static List<Entry> readEntries(@NotNull ByteBuffer zip) {
+    ByteBuffer directory = getCentralDirectory(zip);
+    return directory != null ? readEntries(zip, directory) : null;
+  }
+
+  /**
+   * Returns the central directory of the given zip file, as a buffer positioned at its first record, or null if there
+   * is no (supported) end of central directory record.
+   */
+  @Nullable
+  private static ByteBuffer getCentralDirectory(@NotNull ByteBuffer zip) {
+    int limit = zip.limit();
+    int lowest = Math.max(0, limit - END_SIZE - MAX_COMMENT_SIZE);
+    for (int end = limit - END_SIZE; end >= lowest; end--) {
+      if (zip.getInt(end) != END_SIGNATURE) {
+        continue;
+      }
+      long size = getUnsignedInt(zip, end + 12);
+      long offset = getUnsignedInt(zip, end + 16);
+      if (size == ZIP64_MARKER || offset == ZIP64_MARKER || offset + size > end) {
+        return null;
+      }
+      ByteBuffer directory = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      directory.position((int)offset);
+      directory.limit((int)(offset + size));
+      return directory;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static List<Entry> readEntries(@NotNull ByteBuffer zip, @NotNull ByteBuffer directory) {
+    List<Entry> entries = new ArrayList<>();
+    directory = directory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    while (directory.remaining() >= CENTRAL_HEADER_SIZE) {
+      int start = directory.position();
+      if (directory.getInt(start) != CENTRAL_HEADER_SIGNATURE) {
+        return null;
+      }
+      String name = getName(directory, start);
+      int method = getUnsignedShort(directory, start + 10);
+      long crc = getUnsignedInt(directory, start + 16);
+      long compressedSize = getUnsignedInt(directory, start + 20);
+      long size = getUnsignedInt(directory, start + 24);
+      long localHeaderOffset = getUnsignedInt(directory, start + 42);
+      if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER || localHeaderOffset == ZIP64_MARKER ||
+          localHeaderOffset + LOCAL_HEADER_SIZE > zip.limit() || zip.getInt((int)localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+        return null;
+      }
+      int offset = (int)localHeaderOffset;
+      long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE + getUnsignedShort(zip, offset + 26) + getUnsignedShort(zip, offset + 28);
+      if (dataOffset + compressedSize > zip.limit()) {
+        return null;
+      }
+      entries.add(new Entry(name, method, crc, compressedSize, size, (int)dataOffset));
+      directory.position(start + getRecordSize(directory, start));
+    }
+    return entries;
+  }
+
+  private static boolean addEntries(@NotNull ByteBuffer zip, @NotNull ByteBuffer directory, @NotNull Builder root) {
+    List<Entry> entries = readEntries(zip, directory);
+    if (entries == null) {
+      return false;
+    }
+    for (Entry entry : entries) {
+      String name = entry.myName;
+      if (name.endsWith("/")) {
+        root.getDirectory(name.substring(0, name.length() - 1));
+        continue;
+      }
+      int separator = name.lastIndexOf('/');
+      Builder parent = separator < 0 ? root : root.getDirectory(name.substring(0, separator));
+      Builder file = parent.getChild(name.substring(separator + 1), name, false);
+      file.mySize = entry.mySize;
+
+      if (SdkConstants.EXT_ZIP.equals(FileUtilRt.getExtension(name))) {
+        // The nested archive is shown as a directory of its entries; if it cannot be read, it is shown as a plain file.
+        ByteBuffer nested = getData(zip, entry);
+        ByteBuffer nestedDirectory = nested != null ? getCentralDirectory(nested) : null;
+        if (nestedDirectory != null) {
+          Builder nestedRoot = new Builder(file.myName, "", true);
+          if (addEntries(nested, nestedDirectory, nestedRoot)) {
+            file.myArchive = nestedRoot;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the contents of an entry as they are stored in the zip file, that is, compressed if the entry is.
+   */
+  @NotNull
+  static ByteBuffer getRawData(@NotNull ByteBuffer zip, @NotNull Entry entry) {
+    ByteBuffer data = zip.duplicate();
+    data.position(entry.myDataOffset);
+    data.limit((int)(entry.myDataOffset + entry.myCompressedSize));
+    return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the uncompressed contents of an entry, or null if they cannot be read.
+   */
+  @Nullable
+  private static ByteBuffer getData(@NotNull ByteBuffer zip, @NotNull Entry entry) {
+    ByteBuffer data = getRawData(zip, entry);
+    if (entry.myMethod == ZipEntry.STORED) {
+      return data;
+    }
+    if (entry.myMethod != ZipEntry.DEFLATED || entry.mySize > Integer.MAX_VALUE) {
+      return null;
+    }
+
+    byte[] input = new byte[data.remaining()];
+    data.get(input);
+    byte[] output = new byte[(int)entry.mySize];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(input);
+      int length = 0;
+      while (length < output.length && !inflater.finished()) {
+        int inflated = inflater.inflate(output, length, output.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += inflated;
+      }
+      return length == output.length ? ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN) : null;
+    }
+    catch (DataFormatException e) {
+      return null;
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  @NotNull
+  private static HashCode hash(@NotNull ByteBuffer directory, long length) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putLong(length);
+    ByteBuffer bytes = directory.duplicate();
+    byte[] chunk = new byte[8192];
+    while (bytes.hasRemaining()) {
+      int count = Math.min(chunk.length, bytes.remaining());
+      bytes.get(chunk, 0, count);
+      hasher.putBytes(chunk, 0, count);
+    }
+    return hasher.hash();
+  }
+
+  @NotNull
+  private static String getName(@NotNull ByteBuffer directory, int record) {
+    int length = getUnsignedShort(directory, record + 28);
+    byte[] name = new byte[length];
+    ByteBuffer bytes = directory.duplicate();
+    bytes.position(record + CENTRAL_HEADER_SIZE);
+    bytes.get(name);
+    return new String(name, StandardCharsets.UTF_8);
+  }
+
+  private static int getRecordSize(@NotNull ByteBuffer directory, int record) {
+    return CENTRAL_HEADER_SIZE +
+           getUnsignedShort(directory, record + 28) +
+           getUnsignedShort(directory, record + 30) +
+           getUnsignedShort(directory, record + 32);
+  }
+
+  private static int getUnsignedShort(@NotNull ByteBuffer buffer, int index) {
+    return buffer.getShort(index) & 0xffff;
+  }
+
+  private static long getUnsignedInt(@NotNull ByteBuffer buffer, int index) {
+    return buffer.getInt(index) & 0xffffffffL;
+  }
+
+  /**
+   * A record of the central directory.
+   */
+  static final class Entry {
+    @NotNull final String myName;
+    final int myMethod;
+    final long myCrc;
+    final long myCompressedSize;
+    final long mySize;
+    /** The offset of the entry's data, after its local header. */
+    final int myDataOffset;
+
+    private Entry(@NotNull String name, int method, long crc, long compressedSize, long size, int dataOffset) {
+      myName = name;
+      myMethod = method;
+      myCrc = crc;
+      myCompressedSize = compressedSize;
+      mySize = size;
+      myDataOffset = dataOffset;
+    }
+  }
+
+  /**
+   * An entry of the tree. Nodes are immutable, since trees are shared through the cache.
+   */
+  static final class Node {
+    @NotNull final String myName;
+    /** The path of the entry within its archive (the APK, or the nested zip file it is in), without a trailing '/'. */
+    @NotNull final String myPath;
+    final long mySize;
+    final boolean myDirectory;
+    /** Whether this is a nested zip file, whose entries are the children of this node. */
+    final boolean myArchive;
+    /** The children, largest first. */
+    @NotNull final Node[] myChildren;
+
+    private Node(@NotNull String name, @NotNull String path, long size, boolean directory, boolean archive, @NotNull Node[] children) {
+      myName = name;
+      myPath = path;
+      mySize = size;
+      myDirectory = directory;
+      myArchive = archive;
+      myChildren = children;
+    }
+
+    @NotNull
+    private Node withName(@NotNull String name) {
+      return new Node(name, myPath, mySize, myDirectory, myArchive, myChildren);
+    }
+  }
+
+  private static final class Builder {
+    @NotNull private final String myName;
+    @NotNull private final String myPath;
+    private final boolean myDirectory;
+    private final Map<String, Builder> myChildren = new LinkedHashMap<>();
+    private long mySize;
+    @Nullable private Builder myArchive;
+
+    private Builder(@NotNull String name, @NotNull String path, boolean directory) {
+      myName = name;
+      myPath = path;
+      myDirectory = directory;
+    }
+
+    @NotNull
+    private Builder getDirectory(@NotNull String path) {
+      Builder directory = this;
+      int start = 0;
+      while (start < path.length()) {
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+          end = path.length();
+        }
+        directory = directory.getChild(path.substring(start, end), path.substring(0, end), true);
+        start = end + 1;
+      }
+      return directory;
+    }
+
+    @NotNull
+    private Builder getChild(@NotNull String name, @NotNull String path, boolean directory) {
+      Builder child = myChildren.get(name);
+      if (child == null) {
+        child = new Builder(name, path, directory);
+        myChildren.put(name, child);
+      }
+      return child;
+    }
+
+    /**
+     * Builds the node. Directories are as large as their contents, while archives (the root and nested zip files) are as
+     * large as the zip file, given by {@code archiveSize}.
+     */
+    @NotNull
+    private Node build(long archiveSize) {
+      if (myArchive != null) {
+        Node contents = myArchive.build(archiveSize);
+        return new Node(myName, myPath, mySize, true, true, contents.myChildren);
+      }
+
+      Node[] children = new Node[myChildren.size()];
+      long size = 0;
+      int i = 0;
+      for (Builder child : myChildren.values()) {
+        children[i] = child.build(child.mySize);
+        size += children[i].mySize;
+        i++;
+      }
+      Arrays.sort(children, (o1, o2) -> Long.compare(o2.mySize, o1.mySize));
+      if (myPath.isEmpty() && archiveSize > 0) {
+        size = archiveSize;
+      }
+      return new Node(myName, myPath, myDirectory ? size : mySize, myDirectory, false, children);
+    }
+  }
+}
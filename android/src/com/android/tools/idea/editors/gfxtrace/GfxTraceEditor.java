@@ -460,7 +460,7 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor {
     }
 
     try {
-      myClient = new ServiceClientCache(myGapisConnection.createServiceClient(myExecutor), myExecutor);
+      myClient = new ServiceClientCache(myGapisConnection.createServiceClient(myExecutor));
     }
     catch (IOException e) {
       LOG.error("Unable to create client from connection", e);
@@ -18,11 +18,11 @@ package com.android.tools.idea.editors.gfxtrace.controllers;
 import com.android.tools.idea.editors.gfxtrace.GfxTraceEditor;
 import com.android.tools.idea.editors.gfxtrace.GfxTraceUtil;
 import com.android.tools.idea.editors.gfxtrace.models.AtomStream;
+import com.android.tools.idea.editors.gfxtrace.models.FrameIndex;
 import com.android.tools.idea.editors.gfxtrace.service.Context;
 import com.android.tools.idea.editors.gfxtrace.service.RenderSettings;
 import com.android.tools.idea.editors.gfxtrace.service.ServiceClient;
 import com.android.tools.idea.editors.gfxtrace.service.ServiceProtos.WireframeMode;
-import com.android.tools.idea.editors.gfxtrace.service.atom.AtomList;
 import com.android.tools.idea.editors.gfxtrace.service.atom.Range;
 import com.android.tools.idea.editors.gfxtrace.service.path.*;
 import com.android.tools.idea.editors.gfxtrace.widgets.CellList;
@@ -101,21 +101,26 @@ public class ScrubberController extends ImageCellController<ScrubberController.D
 
 
   @Nullable
-  public List<Data> prepareData(@NotNull AtomsPath path, @NotNull AtomList atoms, @NotNull Context context) {
+  public List<Data> prepareData(@NotNull AtomsPath path, @NotNull AtomStream atoms, @NotNull Context context) {
     List<Data> generatedList = new ArrayList<>();
+    FrameIndex frames = atoms.getFrameIndex();
     int frameCount = 0;
     long frameStart = -1;
-    for (Range contextRange : context.getRanges(atoms)) {
-      for (long index = contextRange.getStart(); index < contextRange.getEnd(); index++) {
-        if (frameStart < 0) {
-          frameStart = index;
-        }
-        if (atoms.get(index).isEndOfFrame()) {
-          Range frameRange = new Range().setStart(frameStart).setEnd(index + 1);
-          Data frameData = new Data(path.index(index), frameRange, Integer.toString(frameCount++));
-          generatedList.add(frameData);
-          frameStart = -1;
-        }
+    for (Range contextRange : context.getRanges(atoms.getAtoms())) {
+      if (contextRange.getStart() >= contextRange.getEnd()) {
+        continue;
+      }
+      if (frameStart < 0) {
+        frameStart = contextRange.getStart();
+      }
+      // Jump from one end of frame to the next, rather than scanning the atoms of the range.
+      for (int frame = frames.findFrame(contextRange.getStart());
+           frame < frames.getFrameCount() && frames.getFrameEnd(frame) < contextRange.getEnd(); frame++) {
+        long index = frames.getFrameEnd(frame);
+        Range frameRange = new Range().setStart(frameStart).setEnd(index + 1);
+        Data frameData = new Data(path.index(index), frameRange, Integer.toString(frameCount++));
+        generatedList.add(frameData);
+        frameStart = index + 1 < contextRange.getEnd() ? index + 1 : -1;
       }
     }
     return generatedList;
@@ -166,7 +171,7 @@ public class ScrubberController extends ImageCellController<ScrubberController.D
 
   private void update(AtomStream atoms, boolean expectAtomsAreLoaded) {
     if (atoms.isLoaded()) {
-      final List<Data> cells = prepareData(atoms.getPath(), atoms.getAtoms(), mySelectedContext);
+      final List<Data> cells = prepareData(atoms.getPath(), atoms, mySelectedContext);
       myList.setData(cells);
     } else if (expectAtomsAreLoaded) {
       ((ImageCellList<?>)myList).setEmptyText("Failed to load capture");
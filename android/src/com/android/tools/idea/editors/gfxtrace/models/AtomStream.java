@@ -49,6 +49,7 @@ public class AtomStream implements PathListener {
   private final Listeners myListeners = new Listeners();
 
   private AtomList myAtomList;
+  private FrameIndex myFrameIndex = FrameIndex.EMPTY;
   private HierarchyList myHierarchies; // TODO: this probably doesn't belong here.
   private ContextList myContexts; // TODO: this probably doesn't belong here.
 
@@ -71,7 +72,9 @@ public class AtomStream implements PathListener {
         protected ResultOrError<LoadData, Void> onRpcThread(Rpc.Result<List<BinaryObject>> result) {
           try {
             List<BinaryObject> list = result.get();
-            return success(new LoadData((AtomList)list.get(0), (ContextList)list.get(1), (HierarchyList)list.get(2)));
+            AtomList atoms = (AtomList)list.get(0);
+            // Index the frames here, rather than on the UI thread, as captures can have millions of atoms.
+            return success(new LoadData(atoms, FrameIndex.build(atoms.getAtoms()), (ContextList)list.get(1), (HierarchyList)list.get(2)));
           }
           catch (RpcException e) {
             LOG.error(e);
@@ -85,12 +88,12 @@ public class AtomStream implements PathListener {
 
         @Override
         protected void onUiThreadSuccess(LoadData data) {
-          update(data.myAtoms, data.myContexts, data.myHierarchies);
+          update(data.myAtoms, data.myFrames, data.myContexts, data.myHierarchies);
         }
 
         @Override
         protected void onUiThreadError(Void error) {
-          update(null, null, null);
+          update(null, FrameIndex.EMPTY, null, null);
         }
       });
     }
@@ -129,18 +132,21 @@ public class AtomStream implements PathListener {
   /** The structure to hold the results of the RPC loads */
   private class LoadData {
     public final AtomList myAtoms;
+    public final FrameIndex myFrames;
     public final ContextList myContexts;
     public final HierarchyList myHierarchies;
 
-    public LoadData(AtomList atoms, ContextList contexts, HierarchyList hierarchies) {
+    public LoadData(AtomList atoms, FrameIndex frames, ContextList contexts, HierarchyList hierarchies) {
       myAtoms = atoms;
+      myFrames = frames;
       myContexts = contexts;
       myHierarchies = hierarchies;
     }
   }
 
-  private void update(AtomList atomList, ContextList contexts, HierarchyList hierarchies) {
+  private void update(AtomList atomList, FrameIndex frames, ContextList contexts, HierarchyList hierarchies) {
     myAtomList = atomList;
+    myFrameIndex = frames;
     myContexts = contexts;
     myHierarchies = hierarchies;
     myListeners.onAtomLoadingComplete(this);
@@ -163,23 +169,15 @@ public class AtomStream implements PathListener {
   }
 
   public int getStartOfFrame(long index) {
-    Atom[] atoms = myAtomList.getAtoms();
-    for (int i = (int)index; i > 0; i--) {
-      if (atoms[i - 1].isEndOfFrame()) {
-        return i;
-      }
-    }
-    return 0;
+    return myFrameIndex.getStartOfFrame(index);
   }
 
   public int getEndOfFrame(long index) {
-    Atom[] atoms = myAtomList.getAtoms();
-    for (int i = (int)index; i < atoms.length; i++) {
-      if (atoms[i].isEndOfFrame()) {
-        return i;
-      }
-    }
-    return atoms.length - 1;
+    return myFrameIndex.getEndOfFrame(index);
+  }
+
+  public FrameIndex getFrameIndex() {
+    return myFrameIndex;
   }
 
   public AtomList getAtoms() {
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.models;
+
+import com.android.tools.idea.editors.gfxtrace.service.atom.Atom;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The positions of the end of frame atoms of a capture, so that frame boundaries can be found without scanning the
+ * atoms. Frame {@code i} spans from the atom after the end of frame {@code i - 1} to the end of frame atom {@code i}.
+ * Atoms after the last end of frame do not belong to any frame.
+ */
+public final class FrameIndex {
+  public static final FrameIndex EMPTY = new FrameIndex(new int[0], 0);
+
+  private final int[] myFrameEnds;
+  private final int myAtomCount;
+
+  private FrameIndex(@NotNull int[] frameEnds, int atomCount) {
+    myFrameEnds = frameEnds;
+    myAtomCount = atomCount;
+  }
+
+  @NotNull
+  public static FrameIndex build(@NotNull Atom[] atoms) {
+    int[] ends = new int[16];
+    int count = 0;
+    for (int i = 0; i < atoms.length; i++) {
+      if (atoms[i].isEndOfFrame()) {
+        if (count == ends.length) {
+          ends = Arrays.copyOf(ends, count * 2);
+        }
+        ends[count++] = i;
+      }
+    }
+    return new FrameIndex(Arrays.copyOf(ends, count), atoms.length);
+  }
+
+  public int getFrameCount() {
+    return myFrameEnds.length;
+  }
+
+  /**
+   * @return the index of the first atom of the given frame. For {@link #getFrameCount()}, this is the first atom after the
+   * last end of frame.
+   */
+  public int getFrameStart(int frame) {
+    return frame == 0 ? 0 : myFrameEnds[frame - 1] + 1;
+  }
+
+  /**
+   * @return the index of the end of frame atom of the given frame.
+   */
+  public int getFrameEnd(int frame) {
+    return myFrameEnds[frame];
+  }
+
+  /**
+   * @return the frame the given atom belongs to, or {@link #getFrameCount()} if it is after the last end of frame.
+   */
+  public int findFrame(long atomIndex) {
+    int low = 0, high = myFrameEnds.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (myFrameEnds[mid] < atomIndex) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the index of the first atom of the frame containing the given atom.
+   */
+  public int getStartOfFrame(long atomIndex) {
+    return getFrameStart(findFrame(atomIndex));
+  }
+
+  /**
+   * @return the index of the last atom of the frame containing the given atom, which is the last atom of the capture
+   * if there is no end of frame after it.
+   */
+  public int getEndOfFrame(long atomIndex) {
+    int frame = findFrame(atomIndex);
+    return frame < myFrameEnds.length ? myFrameEnds[frame] : myAtomCount - 1;
+  }
+}
@@ -15,35 +15,56 @@
  */
 package com.android.tools.idea.editors.gfxtrace.service;
 
+import com.android.tools.idea.editors.gfxtrace.service.atom.AtomList;
+import com.android.tools.idea.editors.gfxtrace.service.image.ImageInfo;
 import com.android.tools.idea.editors.gfxtrace.service.path.Path;
+import com.android.tools.idea.editors.gfxtrace.service.vertex.VertexStreamData;
 import com.android.tools.rpclib.schema.Message;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.util.concurrent.AsyncFunction;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.*;
 import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.concurrent.Callable;
+import java.lang.reflect.Array;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A {@link ServiceClient} which caches the results of {@link #get(Path)} and {@link #follow(Path)}.
+ * <p>
+ * Concurrent requests for the same path share a single RPC. Results are kept in LRU caches bounded by an estimate of
+ * their size in bytes: image data (blobs and image infos) and everything else have separate budgets, so that scrubbing
+ * through framebuffers does not evict the state, and the other way around. Atom lists, of which there is one per
+ * capture and which are only useful whole, are kept in a cache of their own bounded by their count.
+ */
 public class ServiceClientCache extends ServiceClientWrapper {
   private static final Logger LOG = Logger.getInstance(ServiceClientCache.class);
 
+  private static final long IMAGE_CACHE_BYTES = 256 * 1024 * 1024;
+  private static final long METADATA_CACHE_BYTES = 64 * 1024 * 1024;
+  private static final int ATOM_LIST_CACHE_SIZE = 4;
+  /** The weight of values of which we cannot tell the size. */
+  private static final int DEFAULT_WEIGHT = 256;
+  private static final int STATS_LOG_INTERVAL = 1000;
+
   private ListenableFuture<Message> mySchema;
   private final Object mySchemaLock = new Object();
   private final RpcCache<Path, Object> myPathCache;
   private final RpcCache<Path, Path> myFollowCache;
 
-  public ServiceClientCache(final ServiceClient client, ListeningExecutorService executorService) {
+  public ServiceClientCache(final ServiceClient client) {
     super(client);
-    myPathCache = new RpcCache<Path, Object>(executorService) {
+    myPathCache = new RpcCache<Path, Object>("get") {
       @Override
       protected ListenableFuture<Object> fetch(Path key) {
         return client.get(key);
       }
     };
-    myFollowCache = new RpcCache<Path, Path>(executorService) {
+    myFollowCache = new RpcCache<Path, Path>("follow") {
       @Override
       protected ListenableFuture<Path> fetch(Path key) {
         return client.follow(key);
@@ -73,37 +94,190 @@ public class ServiceClientCache extends ServiceClientWrapper {
     return myPathCache.get(p);
   }
 
+  /**
+   * Returns the hit, miss and duplicate counts of the {@link #get(Path)} cache.
+   */
+  @NotNull
+  public Stats getStats() {
+    return myPathCache.getStats();
+  }
+
+  /**
+   * Returns the hit, miss and duplicate counts of the {@link #follow(Path)} cache.
+   */
+  @NotNull
+  public Stats getFollowStats() {
+    return myFollowCache.getStats();
+  }
+
+  private static boolean isImage(Object value) {
+    return value instanceof byte[] || value instanceof ImageInfo;
+  }
+
+  /**
+   * Estimates the memory used by a result. Only the large payloads are counted, the rest is a rough guess.
+   */
+  private static int weigh(Object value) {
+    long weight = DEFAULT_WEIGHT;
+    if (value instanceof byte[]) {
+      weight += ((byte[])value).length;
+    }
+    else if (value instanceof MemoryInfo) {
+      byte[] data = ((MemoryInfo)value).getData();
+      weight += data == null ? 0 : data.length;
+    }
+    else if (value instanceof VertexStreamData) {
+      Object data = ((VertexStreamData)value).getData();
+      // The streams are arrays of primitives, most of them 4 bytes wide.
+      weight += data != null && data.getClass().isArray() ? 4L * Array.getLength(data) : 0;
+    }
+    return (int)Math.min(weight, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Request counts of one of the caches.
+   */
+  public static final class Stats {
+    private final long myHitCount;
+    private final long myMissCount;
+    private final long myDuplicateCount;
+
+    private Stats(long hitCount, long missCount, long duplicateCount) {
+      myHitCount = hitCount;
+      myMissCount = missCount;
+      myDuplicateCount = duplicateCount;
+    }
+
+    /** Requests answered from the cache. */
+    public long getHitCount() {
+      return myHitCount;
+    }
+
+    /** Requests which caused an RPC. */
+    public long getMissCount() {
+      return myMissCount;
+    }
+
+    /** Requests which joined an RPC already in flight for the same key. */
+    public long getDuplicateCount() {
+      return myDuplicateCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%1$d hits, %2$d misses, %3$d duplicates suppressed", myHitCount, myMissCount, myDuplicateCount);
+    }
+  }
+
   private abstract static class RpcCache<K, V> {
-    private final Cache<K, V> myCache = CacheBuilder.newBuilder().softValues().build();
-    private final ListeningExecutorService myExecutorService;
+    private static final Weigher<Object, Object> WEIGHER = new Weigher<Object, Object>() {
+      @Override
+      public int weigh(@NotNull Object key, @NotNull Object value) {
+        return ServiceClientCache.weigh(value);
+      }
+    };
 
-    public RpcCache(ListeningExecutorService executorService) {
-      myExecutorService = executorService;
+    private final String myName;
+    // A concurrency level of 1 keeps the caches in a single segment, so that a value may use the whole budget. The
+    // budget is otherwise split between the segments, and a large value would be evicted as soon as it is added.
+    private final Cache<K, V> myImages =
+      CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(IMAGE_CACHE_BYTES).weigher(WEIGHER).build();
+    private final Cache<K, V> myMetadata =
+      CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(METADATA_CACHE_BYTES).weigher(WEIGHER).build();
+    private final Cache<K, V> myAtomLists = CacheBuilder.newBuilder().maximumSize(ATOM_LIST_CACHE_SIZE).build();
+    /** The RPCs in flight, by key. A future is removed only after its value has been added to the cache. */
+    private final ConcurrentMap<K, SettableFuture<V>> myPending = new ConcurrentHashMap<K, SettableFuture<V>>();
+    private final AtomicLong myHitCount = new AtomicLong();
+    private final AtomicLong myMissCount = new AtomicLong();
+    private final AtomicLong myDuplicateCount = new AtomicLong();
+
+    public RpcCache(String name) {
+      myName = name;
     }
 
     public ListenableFuture<V> get(final K key) {
-      // Look up the value in the cache using the executor.
-      ListenableFuture<V> cacheLookUp = myExecutorService.submit(new Callable<V>() {
+      V cached = getIfPresent(key);
+      if (cached != null) {
+        countRequest(myHitCount);
+        return Futures.immediateFuture(cached);
+      }
+
+      final SettableFuture<V> result = SettableFuture.create();
+      SettableFuture<V> pending = myPending.putIfAbsent(key, result);
+      if (pending != null) {
+        countRequest(myDuplicateCount);
+        // Don't let a caller which gives up cancel the RPC for the others.
+        return Futures.nonCancellationPropagating(pending);
+      }
+
+      // The RPC may have completed between the look up and becoming the pending request.
+      cached = getIfPresent(key);
+      if (cached != null) {
+        countRequest(myHitCount);
+        result.set(cached);
+        myPending.remove(key, result);
+        return Futures.nonCancellationPropagating(result);
+      }
+
+      countRequest(myMissCount);
+      ListenableFuture<V> fetch;
+      try {
+        fetch = fetch(key);
+      }
+      catch (RuntimeException e) {
+        fetch = Futures.immediateFailedFuture(e);
+      }
+      Futures.addCallback(fetch, new FutureCallback<V>() {
         @Override
-        public V call() throws Exception {
-          return myCache.getIfPresent(key);
+        public void onSuccess(@Nullable V value) {
+          if (value != null) {
+            getCache(value).put(key, value);
+          }
+          myPending.remove(key, result);
+          result.set(value);
         }
-      });
-      return Futures.transform(cacheLookUp, new AsyncFunction<V, V>() {
-        private boolean alreadyFetching = false;
 
         @Override
-        public ListenableFuture<V> apply(V result) throws Exception {
-          // If we found it in the cache or already tried to fetch it, return it, ...
-          if (result != null || alreadyFetching) {
-            myCache.put(key, result);
-            return Futures.immediateFuture(result);
-          }
-          // ... otherwise go ahead and try to fetch it.
-          alreadyFetching = true;
-          return Futures.transform(fetch(key), this);
+        public void onFailure(@NotNull Throwable t) {
+          // Failures are not cached, the next request tries again.
+          myPending.remove(key, result);
+          result.setException(t);
         }
       });
+      return Futures.nonCancellationPropagating(result);
+    }
+
+    @NotNull
+    public Stats getStats() {
+      return new Stats(myHitCount.get(), myMissCount.get(), myDuplicateCount.get());
+    }
+
+    @NotNull
+    private Cache<K, V> getCache(@NotNull V value) {
+      if (value instanceof AtomList) {
+        return myAtomLists;
+      }
+      return isImage(value) ? myImages : myMetadata;
+    }
+
+    @Nullable
+    private V getIfPresent(K key) {
+      V value = myMetadata.getIfPresent(key);
+      if (value == null) {
+        value = myAtomLists.getIfPresent(key);
+      }
+      return value != null ? value : myImages.getIfPresent(key);
+    }
+
+    private void countRequest(@NotNull AtomicLong counter) {
+      counter.incrementAndGet();
+      if (LOG.isDebugEnabled()) {
+        Stats stats = getStats();
+        if ((stats.myHitCount + stats.myMissCount + stats.myDuplicateCount) % STATS_LOG_INTERVAL == 0) {
+          LOG.debug(String.format("Cache of %1$s: %2$s, %3$d image, %4$d metadata and %5$d atom list entries", myName, stats,
+                                  myImages.size(), myMetadata.size(), myAtomLists.size()));
+        }
+      }
     }
 
     protected abstract ListenableFuture<V> fetch(K key);
@@ -22,16 +22,37 @@ import com.android.tools.idea.editors.gfxtrace.service.gfxapi.Texture2D;
 import com.android.tools.idea.editors.gfxtrace.service.path.ImageInfoPath;
 import com.android.tools.idea.editors.gfxtrace.service.path.Path;
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.jetbrains.annotations.NotNull;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
 import java.util.List;
 
 public class FetchedImage implements MultiLevelImage {
+  /** The maximum number of bytes of decoded levels kept in {@link #ourLevelCache}. */
+  private static final long LEVEL_CACHE_BYTES = 128 * 1024 * 1024;
+
+  /**
+   * The decoded levels, keyed by the paths of their data. A single segment, as Guava would otherwise give each segment a
+   * part of {@link #LEVEL_CACHE_BYTES}, and a level larger than that part would never be kept.
+   */
+  private static final Cache<Object, BufferedImage> ourLevelCache = CacheBuilder.newBuilder()
+    .concurrencyLevel(1)
+    .maximumWeight(LEVEL_CACHE_BYTES)
+    .weigher(new Weigher<Object, BufferedImage>() {
+      @Override
+      public int weigh(@NotNull Object key, @NotNull BufferedImage image) {
+        return image.getWidth() * image.getHeight() * 4;
+      }
+    })
+    .build();
+
   @NotNull private final Level[] myLevels;
 
   public static ListenableFuture<FetchedImage> load(final ServiceClient client, ListenableFuture<ImageInfoPath> imageInfo) {
@@ -92,6 +113,15 @@ public class FetchedImage implements MultiLevelImage {
            Futures.<BufferedImage>immediateFailedFuture(new IllegalArgumentException("Invalid image level")) : myLevels[index].get();
   }
 
+  /**
+   * Returns a scaled down copy of the level which is quicker to show than the level itself, or a future of null if the
+   * level is small enough to be shown as is.
+   */
+  @Override
+  public ListenableFuture<BufferedImage> getLevelPreview(int index) {
+    return (index < 0 || index >= myLevels.length) ? Futures.<BufferedImage>immediateFuture(null) : myLevels[index].getPreview();
+  }
+
   public static ListenableFuture<BufferedImage> loadLevel(ListenableFuture<FetchedImage> futureImage, final int level) {
     return Futures.transform(futureImage, new AsyncFunction<FetchedImage, BufferedImage>() {
       @Override
@@ -101,89 +131,48 @@ public class FetchedImage implements MultiLevelImage {
     });
   }
 
-  private abstract static class Level implements Function<BufferedImage, BufferedImage> {
-    public static final Level EMPTY = new Level() {
-      @Override
-      public ListenableFuture<BufferedImage> get() {
-        return Futures.immediateFuture(EMPTY_LEVEL);
-      }
-
-      @Override
-      protected ListenableFuture<BufferedImage> doLoad() {
-        return null;
-      }
-    };
+  private abstract static class Level {
+    /** The key of the level in {@link #ourLevelCache}. */
+    private final Object myKey;
 
-    private BufferedImage image;
+    protected Level(Object key) {
+      myKey = key;
+    }
 
     public ListenableFuture<BufferedImage> get() {
-      BufferedImage result;
-      synchronized (this) {
-        result = image;
+      BufferedImage cached = ourLevelCache.getIfPresent(myKey);
+      if (cached != null) {
+        return Futures.immediateFuture(cached);
       }
-      return (result == null) ? Futures.transform(doLoad(), this) : Futures.immediateFuture(image);
+      return Futures.transform(loadFaces(), new AsyncFunction<ImageDecoder.Face[], BufferedImage>() {
+        @Override
+        public ListenableFuture<BufferedImage> apply(ImageDecoder.Face[] faces) throws Exception {
+          BufferedImage image = ImageDecoder.decode(getWidth(), getHeight(), faces);
+          ourLevelCache.put(myKey, image);
+          return Futures.immediateFuture(image);
+        }
+      });
     }
 
-    @Override
-    public BufferedImage apply(BufferedImage input) {
-      synchronized (this) {
-        image = input;
+    public ListenableFuture<BufferedImage> getPreview() {
+      if (ourLevelCache.getIfPresent(myKey) != null ||
+          Math.max(getWidth(), getHeight()) <= ImageDecoder.PREVIEW_SIZE) {
+        return Futures.immediateFuture(null);
       }
-      return input;
+      // The data is fetched again for the full level, but the requests are merged by the ServiceClientCache.
+      return Futures.transform(loadFaces(), new Function<ImageDecoder.Face[], BufferedImage>() {
+        @Override
+        public BufferedImage apply(ImageDecoder.Face[] faces) {
+          return ImageDecoder.decodePreview(getWidth(), getHeight(), faces);
+        }
+      });
     }
 
-    protected abstract ListenableFuture<BufferedImage> doLoad();
+    protected abstract ListenableFuture<ImageDecoder.Face[]> loadFaces();
 
-    protected static BufferedImage convertImage(@NotNull ImageInfo imageInfo, @NotNull byte[] data) {
-      assert (imageInfo.getFormat() instanceof FmtRGBA);
-      //noinspection UndesirableClassUsage
-      BufferedImage image = new BufferedImage(imageInfo.getWidth(), imageInfo.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-      updateImageData(image, data, 0, 0, imageInfo.getWidth(), imageInfo.getHeight());
-      return image;
-    }
+    protected abstract int getWidth();
 
-    protected static BufferedImage convertImage(@NotNull ImageInfo[] imageInfos, @NotNull byte[][] data) {
-      assert (imageInfos.length == data.length && imageInfos.length == 6);
-      // Typically these are all the same, but let's be safe.
-      int width = Math.max(Math.max(
-        Math.max(Math.max(Math.max(imageInfos[0].getWidth(), imageInfos[1].getWidth()), imageInfos[2].getWidth()),
-                 imageInfos[3].getWidth()), imageInfos[4].getWidth()), imageInfos[5].getWidth());
-      int height = Math.max(Math.max(
-        Math.max(Math.max(Math.max(imageInfos[0].getHeight(), imageInfos[1].getHeight()), imageInfos[2].getHeight()),
-                 imageInfos[3].getHeight()), imageInfos[4].getHeight()), imageInfos[5].getHeight());
-      //noinspection UndesirableClassUsage
-      BufferedImage image = new BufferedImage(4 * width, 3 * height, BufferedImage.TYPE_4BYTE_ABGR);
-
-      // +----+----+----+----+
-      // |    | -Y |    |    |
-      // +----+----+----+----+
-      // | -X | +Z | +X | -Z |
-      // +----+----+----+----+
-      // |    | +Y |    |    |
-      // +----+----+----+----+
-      updateImageData(image, data[0], 0 * width, 1 * height, imageInfos[0].getWidth(), imageInfos[0].getHeight()); // Negative X
-      updateImageData(image, data[1], 2 * width, 1 * height, imageInfos[1].getWidth(), imageInfos[1].getHeight()); // Positive X
-      updateImageData(image, data[2], 1 * width, 0 * height, imageInfos[2].getWidth(), imageInfos[2].getHeight()); // Negative Y
-      updateImageData(image, data[3], 1 * width, 2 * height, imageInfos[3].getWidth(), imageInfos[3].getHeight()); // Positive Y
-      updateImageData(image, data[4], 3 * width, 1 * height, imageInfos[4].getWidth(), imageInfos[4].getHeight()); // Negative Z
-      updateImageData(image, data[5], 1 * width, 1 * height, imageInfos[5].getWidth(), imageInfos[5].getHeight()); // Positive Z
-      return image;
-    }
-
-    private static void updateImageData(BufferedImage image, byte[] data, int x, int y, int w, int h) {
-      assert (x + w <= image.getWidth() && y + h <= image.getHeight());
-      byte[] destination = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
-      int imageWidth = image.getWidth();
-      // Convert between top-left and bottom-left formats.
-      for (int row = 0, from = 0, to = ((y + h - 1) * imageWidth + x) * 4; row < h; row++, from += w * 4, to -= imageWidth * 4) {
-        for (int col = 0, i = to, j = from; col < w; col++, i += 4, j += 4) {
-          destination[i + 0] = data[j + 3];
-          destination[i + 1] = data[j + 2];
-          destination[i + 2] = data[j + 1];
-          destination[i + 3] = data[j + 0];
-        }
-      }
-    }
+    protected abstract int getHeight();
   }
 
   private static class SingleFacedLevel extends Level {
@@ -191,44 +180,107 @@ public class FetchedImage implements MultiLevelImage {
     private final ImageInfo imageInfo;
 
     public SingleFacedLevel(ServiceClient client, ImageInfo imageInfo) {
+      super(imageInfo.getData());
       this.client = client;
       this.imageInfo = imageInfo;
     }
 
     @Override
-    protected ListenableFuture<BufferedImage> doLoad() {
-      return Futures.transform(client.get(imageInfo.getData()), new Function<byte[], BufferedImage>() {
+    protected ListenableFuture<ImageDecoder.Face[]> loadFaces() {
+      assert (imageInfo.getFormat() instanceof FmtRGBA);
+      return Futures.transform(client.get(imageInfo.getData()), new Function<byte[], ImageDecoder.Face[]>() {
         @Override
-        public BufferedImage apply(byte[] data) {
-          return convertImage(imageInfo, data);
+        public ImageDecoder.Face[] apply(byte[] data) {
+          return new ImageDecoder.Face[]{new ImageDecoder.Face(data, 0, 0, imageInfo.getWidth(), imageInfo.getHeight())};
         }
       });
     }
+
+    @Override
+    protected int getWidth() {
+      return imageInfo.getWidth();
+    }
+
+    @Override
+    protected int getHeight() {
+      return imageInfo.getHeight();
+    }
   }
 
   private static class SixFacedLevel extends Level {
     private final ServiceClient client;
     private final ImageInfo[] imageInfos;
+    private final int faceWidth, faceHeight;
 
     public SixFacedLevel(ServiceClient client, CubemapLevel level) {
-      this.client = client;
-      this.imageInfos = new ImageInfo[] {
+      this(client, new ImageInfo[] {
         level.getNegativeX(), level.getPositiveX(), level.getNegativeY(), level.getPositiveY(), level.getNegativeZ(), level.getPositiveZ()
-      };
+      });
+    }
+
+    private SixFacedLevel(ServiceClient client, ImageInfo[] imageInfos) {
+      super(getKey(imageInfos));
+      this.client = client;
+      this.imageInfos = imageInfos;
+      // Typically these are all the same, but let's be safe.
+      int width = 0, height = 0;
+      for (ImageInfo info : imageInfos) {
+        width = Math.max(width, info.getWidth());
+        height = Math.max(height, info.getHeight());
+      }
+      this.faceWidth = width;
+      this.faceHeight = height;
+    }
+
+    private static Object getKey(ImageInfo[] imageInfos) {
+      List<Path> key = new ArrayList<Path>(imageInfos.length);
+      for (ImageInfo info : imageInfos) {
+        key.add(info.getData());
+      }
+      return key;
     }
 
     @Override
-    protected ListenableFuture<BufferedImage> doLoad() {
+    protected ListenableFuture<ImageDecoder.Face[]> loadFaces() {
       ListenableFuture<byte[]>[] futures = new ListenableFuture[imageInfos.length];
       for (int i = 0; i < imageInfos.length; i++) {
         futures[i] = client.get(imageInfos[i].getData());
       }
-      return Futures.transform(Futures.allAsList(futures), new Function<List<byte[]>, BufferedImage>() {
+      return Futures.transform(Futures.allAsList(futures), new Function<List<byte[]>, ImageDecoder.Face[]>() {
         @Override
-        public BufferedImage apply(List<byte[]> data) {
-          return convertImage(imageInfos, data.toArray(new byte[data.size()][]));
+        public ImageDecoder.Face[] apply(List<byte[]> data) {
+          // +----+----+----+----+
+          // |    | -Y |    |    |
+          // +----+----+----+----+
+          // | -X | +Z | +X | -Z |
+          // +----+----+----+----+
+          // |    | +Y |    |    |
+          // +----+----+----+----+
+          return new ImageDecoder.Face[]{
+            face(data, 0, 0, 1), // Negative X
+            face(data, 1, 2, 1), // Positive X
+            face(data, 2, 1, 0), // Negative Y
+            face(data, 3, 1, 2), // Positive Y
+            face(data, 4, 3, 1), // Negative Z
+            face(data, 5, 1, 1), // Positive Z
+          };
         }
       });
     }
+
+    private ImageDecoder.Face face(List<byte[]> data, int index, int column, int row) {
+      ImageInfo info = imageInfos[index];
+      return new ImageDecoder.Face(data.get(index), column * faceWidth, row * faceHeight, info.getWidth(), info.getHeight());
+    }
+
+    @Override
+    protected int getWidth() {
+      return 4 * faceWidth;
+    }
+
+    @Override
+    protected int getHeight() {
+      return 3 * faceHeight;
+    }
   }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.service.image;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts RGBA images, as returned by the server, to {@link BufferedImage}s.
+ * <p>
+ * The server's images have their origin at the bottom left, so rows are flipped. Each pixel is read as a big endian int
+ * (RGBA) and rotated into an ARGB int of a {@link BufferedImage#TYPE_INT_ARGB} image, rather than copying each byte.
+ * Large images are split into bands of rows which are converted in parallel.
+ */
+final class ImageDecoder {
+  /** The number of pixels of a band converted by one thread. */
+  private static final int TILE_PIXELS = 256 * 1024;
+  /** The maximum width and height of a preview. */
+  static final int PREVIEW_SIZE = 256;
+
+  /**
+   * An image to convert, and where to place it in the converted image.
+   */
+  static final class Face {
+    @NotNull private final byte[] myData;
+    private final int myX, myY, myWidth, myHeight;
+
+    Face(@NotNull byte[] data, int x, int y, int width, int height) {
+      assert data.length >= width * height * 4;
+      myData = data;
+      myX = x;
+      myY = y;
+      myWidth = width;
+      myHeight = height;
+    }
+  }
+
+  private ImageDecoder() {
+  }
+
+  /**
+   * Converts the faces into a single image of the given size.
+   */
+  @NotNull
+  static BufferedImage decode(int width, int height, @NotNull Face... faces) throws InterruptedException {
+    final BufferedImage image = createImage(width, height);
+    final int[] destination = getData(image);
+    final List<Tile> tiles = new ArrayList<Tile>();
+    for (Face face : faces) {
+      assert face.myX + face.myWidth <= width && face.myY + face.myHeight <= height;
+      int rows = Math.max(1, TILE_PIXELS / Math.max(1, face.myWidth));
+      for (int row = 0; row < face.myHeight; row += rows) {
+        tiles.add(new Tile(face, row, Math.min(face.myHeight, row + rows)));
+      }
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int index;
+        while ((index = next.getAndIncrement()) < tiles.size()) {
+          tiles.get(index).decode(destination, image.getWidth());
+        }
+      }
+    };
+    int workerCount = Math.min(tiles.size(), Runtime.getRuntime().availableProcessors()) - 1;
+    List<Future<?>> workers = new ArrayList<Future<?>>(Math.max(0, workerCount));
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(PooledThreadExecutor.INSTANCE.submit(worker));
+    }
+    // The calling thread does its share too, so small images don't go through the pool at all.
+    worker.run();
+    try {
+      for (Future<?> future : workers) {
+        future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      for (Future<?> future : workers) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    return image;
+  }
+
+  /**
+   * Returns a copy of the faces, as {@link #decode} would place them, scaled down so that it fits in
+   * {@link #PREVIEW_SIZE}, or null if the image is small enough to be decoded straight away.
+   */
+  @Nullable
+  static BufferedImage decodePreview(int width, int height, @NotNull Face... faces) {
+    int scale = (Math.max(width, height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+    if (scale <= 1) {
+      return null;
+    }
+    BufferedImage image = createImage((width + scale - 1) / scale, (height + scale - 1) / scale);
+    int[] destination = getData(image);
+    int previewWidth = image.getWidth();
+    for (Face face : faces) {
+      IntBuffer source = asIntBuffer(face.myData);
+      for (int y = (face.myY + scale - 1) / scale; y * scale < face.myY + face.myHeight; y++) {
+        int row = face.myHeight - 1 - (y * scale - face.myY);
+        for (int x = (face.myX + scale - 1) / scale; x * scale < face.myX + face.myWidth; x++) {
+          destination[y * previewWidth + x] = toArgb(source.get(row * face.myWidth + x * scale - face.myX));
+        }
+      }
+    }
+    return image;
+  }
+
+  @NotNull
+  private static BufferedImage createImage(int width, int height) {
+    //noinspection UndesirableClassUsage
+    return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+  }
+
+  @NotNull
+  private static int[] getData(@NotNull BufferedImage image) {
+    return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+  }
+
+  @NotNull
+  private static IntBuffer asIntBuffer(@NotNull byte[] data) {
+    return ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+  }
+
+  private static int toArgb(int rgba) {
+    return Integer.rotateRight(rgba, 8);
+  }
+
+  /**
+   * A band of rows of a face.
+   */
+  private static final class Tile {
+    @NotNull private final Face myFace;
+    private final int myStartRow, myEndRow;
+
+    private Tile(@NotNull Face face, int startRow, int endRow) {
+      myFace = face;
+      myStartRow = startRow;
+      myEndRow = endRow;
+    }
+
+    void decode(@NotNull int[] destination, int imageWidth) {
+      IntBuffer source = asIntBuffer(myFace.myData);
+      int width = myFace.myWidth;
+      for (int row = myStartRow; row < myEndRow; row++) {
+        // Convert between bottom-left and top-left origins.
+        int to = (myFace.myY + myFace.myHeight - 1 - row) * imageWidth + myFace.myX;
+        source.position(row * width);
+        source.get(destination, to, width);
+        for (int i = to; i < to + width; i++) {
+          destination[i] = toArgb(destination[i]);
+        }
+      }
+    }
+  }
+}
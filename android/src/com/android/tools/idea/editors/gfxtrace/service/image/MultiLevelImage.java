@@ -26,6 +26,14 @@ public interface MultiLevelImage {
 
   ListenableFuture<BufferedImage> getLevel(int index);
 
+  /**
+   * Returns a scaled down copy of the given level to show until the level is loaded, or a future of null if there is
+   * none.
+   */
+  default ListenableFuture<BufferedImage> getLevelPreview(int index) {
+    return Futures.immediateFuture(null);
+  }
+
   BufferedImage EMPTY_LEVEL = UIUtil.createImage(1, 1, BufferedImage.TYPE_4BYTE_ABGR);
 
   MultiLevelImage EMPTY_IMAGE = new MultiLevelImage() {
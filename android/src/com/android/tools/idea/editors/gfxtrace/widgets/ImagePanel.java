@@ -140,6 +140,10 @@ public class ImagePanel extends JPanel {
     private MultiLevelImage image;
     private BufferedImage level = MultiLevelImage.EMPTY_LEVEL;
     private BufferedImage displayed = null;
+    /** Incremented for each level load, so that the previews of previous loads are ignored. */
+    private int levelRequest;
+    /** Whether the level of the current load has been shown, rather than its preview. */
+    private boolean levelLoaded;
     private double zoom;
     private boolean drawCheckerBoard = true;
     private boolean flipped = false;
@@ -379,7 +383,7 @@ public class ImagePanel extends JPanel {
     }
 
     public Pixel getPixel(int x, int y) {
-      if (this.image == MultiLevelImage.EMPTY_IMAGE || level == MultiLevelImage.EMPTY_LEVEL) {
+      if (this.image == MultiLevelImage.EMPTY_IMAGE || level == MultiLevelImage.EMPTY_LEVEL || !levelLoaded) {
         return Pixel.OUT_OF_BOUNDS;
       }
 
@@ -428,39 +432,12 @@ public class ImagePanel extends JPanel {
         ((Graphics2D)g).transform(new AffineTransform(1, 0, 0, -1, 0, getHeight() - 1));
       }
       if (displayed == null) {
-        Composite composite = null;
         if (channels[CHANNEL_RED] && channels[CHANNEL_GREEN] && channels[CHANNEL_BLUE] && channels[CHANNEL_ALPHA]) {
           // If all channels are enabled, just display the original image.
           displayed = level;
         }
         else {
-          // Use a custom color filtering composite otherwise.
-          composite = (srcColorModel, dstColorModel, hints) -> new CompositeContext() {
-            @Override
-            public void dispose() {
-            }
-
-            @Override
-            public void compose(Raster srcRaster, Raster dstIn, WritableRaster dstOut) {
-              byte[] dst = ((DataBufferByte)dstOut.getDataBuffer()).getData();
-              byte[] src = ((DataBufferByte)srcRaster.getDataBuffer()).getData();
-              for (int i = 0; i < dst.length; i += 4) {
-                dst[i + 0] = channels[CHANNEL_ALPHA] ? src[i + 0] : -1;
-                dst[i + 1] = channels[CHANNEL_BLUE] ? src[i + 1] : 0;
-                dst[i + 2] = channels[CHANNEL_GREEN] ? src[i + 2] : 0;
-                dst[i + 3] = channels[CHANNEL_RED] ? src[i + 3] : 0;
-              }
-            }
-          };
-        }
-
-        if (composite != null) {
-          //noinspection UndesirableClassUsage
-          displayed = new BufferedImage(level.getWidth(this), level.getHeight(this), BufferedImage.TYPE_4BYTE_ABGR);
-          Graphics2D displayedG = displayed.createGraphics();
-          displayedG.setComposite(composite);
-          displayedG.drawImage(level, 0, 0, this);
-          displayedG.dispose();
+          displayed = filterChannels(level);
         }
       }
       g.drawImage(displayed, x, y, w, h, this);
@@ -469,8 +446,55 @@ public class ImagePanel extends JPanel {
       BORDER.paintBorder(this, g, x - BORDER_SIZE, y - BORDER_SIZE, w + 2 * BORDER_SIZE, h + 2 * BORDER_SIZE);
     }
 
+    /**
+     * Returns a copy of the image with the disabled color channels set to 0, and the alpha set to opaque if it is disabled.
+     */
+    private BufferedImage filterChannels(BufferedImage image) {
+      int width = image.getWidth(), height = image.getHeight();
+      //noinspection UndesirableClassUsage
+      BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      int[] pixels = ((DataBufferInt)result.getRaster().getDataBuffer()).getData();
+      image.getRGB(0, 0, width, height, pixels, 0, width);
+      int mask = (channels[CHANNEL_ALPHA] ? 0xff000000 : 0) |
+                 (channels[CHANNEL_RED] ? 0x00ff0000 : 0) |
+                 (channels[CHANNEL_GREEN] ? 0x0000ff00 : 0) |
+                 (channels[CHANNEL_BLUE] ? 0x000000ff : 0);
+      int opaque = channels[CHANNEL_ALPHA] ? 0 : 0xff000000;
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = (pixels[i] & mask) | opaque;
+      }
+      return result;
+    }
+
     private void loadLevel(int index) {
       index = Math.min(image.getLevelCount() - 1, index);
+      final int request = ++levelRequest;
+      levelLoaded = false;
+      if (zoom == ZOOM_FIT) {
+        // Show a scaled down copy of large levels while they are being decoded. This is only done when zoomed to fit,
+        // since the size of the preview is not the size of the level.
+        Rpc.listen(image.getLevelPreview(index), LOG, new UiCallback<BufferedImage, BufferedImage>() {
+          @Override
+          protected BufferedImage onRpcThread(Rpc.Result<BufferedImage> result) {
+            try {
+              return result.get();
+            }
+            catch (RpcException | ExecutionException e) {
+              // Errors are reported by the load of the level itself.
+              return null;
+            }
+          }
+
+          @Override
+          protected void onUiThread(BufferedImage preview) {
+            if (preview != null && request == levelRequest && !levelLoaded && zoom == ZOOM_FIT) {
+              level = preview;
+              displayed = null;
+              repaint();
+            }
+          }
+        });
+      }
       Rpc.listen(
         image.getLevel(index),
         LOG,
@@ -489,6 +513,7 @@ public class ImagePanel extends JPanel {
 
           @Override
           protected void onUiThreadSuccess(BufferedImage image) {
+            levelLoaded = true;
             updateLevel(image);
           }
 
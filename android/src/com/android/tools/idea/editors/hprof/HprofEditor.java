@@ -16,10 +16,12 @@
 package com.android.tools.idea.editors.hprof;
 
 import com.android.tools.idea.ddms.EdtExecutor;
+import com.android.tools.idea.editors.hprof.analysis.DuplicatedStringsAnalyzer;
 import com.android.tools.idea.editors.hprof.views.HprofAnalysisContentsDelegate;
 import com.android.tools.idea.profiling.view.CaptureEditor;
 import com.android.tools.idea.profiling.view.CapturePanel;
 import com.android.tools.perflib.analyzer.AnalysisReport;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.analyzer.CaptureGroup;
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
@@ -29,6 +31,10 @@ import com.android.tools.perflib.heap.memoryanalyzer.DuplicatedStringsAnalyzerTa
 import com.android.tools.perflib.heap.memoryanalyzer.LeakedActivityAnalyzerTask;
 import com.android.tools.perflib.heap.memoryanalyzer.MemoryAnalyzer;
 import com.google.common.base.Throwables;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
 import com.intellij.designer.DesignerEditorPanelFacade;
 import com.intellij.ide.structureView.StructureViewBuilder;
@@ -37,31 +43,47 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileEditorLocation;
 import com.intellij.openapi.fileEditor.FileEditorState;
 import com.intellij.openapi.fileEditor.FileEditorStateLevel;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.wm.impl.status.InlineProgressIndicator;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
 
 public class HprofEditor extends CaptureEditor {
   @NotNull private static final Logger LOG = Logger.getInstance(HprofEditor.class);
+  @NotNull private final Project myProject;
   @Nullable private HprofView myView;
   private Snapshot mySnapshot;
+  @Nullable private HprofIndex myIndex;
   private boolean myIsValid = true;
+  // TODO change this back to PooledThreadExecutor.INSTANCE once multi-reader problem has been solved in Snapshot
+  @NotNull private final ExecutorService myAnalysisExecutor = new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, 1);
+  /** The last run of {@link #performAnalysis}. Only accessed on the EDT. */
+  @Nullable private AnalysisRun myAnalysisRun;
 
   public HprofEditor(@NotNull final Project project, @NotNull final VirtualFile file) {
+    myProject = project;
     AnalyzerTask[] tasks = new AnalyzerTask[]{new LeakedActivityAnalyzerTask(), new DuplicatedStringsAnalyzerTask()};
     myPanel = new CapturePanel(project, this, tasks, true);
 
@@ -77,7 +99,8 @@ public class HprofEditor extends CaptureEditor {
           updateIndicator(indicator, 0.01, "Parsing hprof file...");
           mySnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(hprofFile));
 
-          // Refresh the timer at 30fps (33ms/frame).
+          // Refresh the timer at 30fps (33ms/frame). Reading the index also goes through the first stages of the
+          // dominator computation.
           timer = new Timer(1000 / 30, new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
@@ -88,7 +111,22 @@ public class HprofEditor extends CaptureEditor {
             }
           });
           timer.start();
-          mySnapshot.computeDominators();
+
+          HashCode hash = null;
+          try {
+            hash = HprofIndex.hash(hprofFile);
+            myIndex = HprofIndex.read(hprofFile, hash, mySnapshot);
+          }
+          catch (IOException e) {
+            LOG.info("Unable to hash " + hprofFile, e);
+          }
+
+          if (myIndex == null) {
+            mySnapshot.computeDominators();
+            if (hash != null) {
+              myIndex = HprofIndex.write(hprofFile, hash, mySnapshot);
+            }
+          }
         }
         catch (Throwable throwable) {
           LOG.info(throwable);
@@ -119,6 +157,14 @@ public class HprofEditor extends CaptureEditor {
     });
   }
 
+  /**
+   * Returns the index of the capture, or null if the capture could not be indexed.
+   */
+  @Nullable
+  public HprofIndex getIndex() {
+    return myIndex;
+  }
+
   @Nullable
   public HprofView getView() {
     return myView;
@@ -203,6 +249,10 @@ public class HprofEditor extends CaptureEditor {
 
   @Override
   public void dispose() {
+    if (myAnalysisRun != null) {
+      myAnalysisRun.cancel();
+      myAnalysisRun = null;
+    }
     mySnapshot.dispose();
     mySnapshot = null;
     myPanel = null;
@@ -219,14 +269,164 @@ public class HprofEditor extends CaptureEditor {
   @Override
   public AnalysisReport performAnalysis(@NotNull Set<? extends AnalyzerTask> tasks, @NotNull Set<AnalysisReport.Listener> listeners) {
     assert mySnapshot != null;
+    ApplicationManager.getApplication().assertIsDispatchThread();
     CaptureGroup captureGroup = new CaptureGroup();
     captureGroup.addCapture(mySnapshot);
 
     MemoryAnalyzer memoryAnalyzer = new MemoryAnalyzer();
     assert memoryAnalyzer.accept(captureGroup);
 
-    // TODO change this back to PooledThreadExecutor.INSTANCE once multi-reader problem has been solved in Snapshot
-    return memoryAnalyzer.analyze(captureGroup, listeners, tasks, EdtExecutor.INSTANCE, Executors.newSingleThreadExecutor());
+    // Duplicated strings are found by our own analyzer, which does not turn every string of the heap into a String.
+    Set<AnalyzerTask> memoryTasks = new HashSet<AnalyzerTask>(tasks);
+    DuplicatedStringsAnalyzer duplicatedStringsAnalyzer = null;
+    for (AnalyzerTask task : tasks) {
+      if (task instanceof DuplicatedStringsAnalyzerTask) {
+        memoryTasks.remove(task);
+        duplicatedStringsAnalyzer = new DuplicatedStringsAnalyzer(mySnapshot);
+      }
+    }
+
+    // The results of a previous run must not be added to the results of this one.
+    if (myAnalysisRun != null) {
+      myAnalysisRun.cancel();
+    }
+    AnalysisReport report = new AnalysisReport();
+    report.addResultListeners(listeners);
+    AnalysisRun run = new AnalysisRun(report, memoryAnalyzer, duplicatedStringsAnalyzer);
+    myAnalysisRun = run;
+
+    memoryAnalyzer.analyze(captureGroup, Collections.<AnalysisReport.Listener>singleton(run), memoryTasks, EdtExecutor.INSTANCE,
+                           myAnalysisExecutor);
+    if (duplicatedStringsAnalyzer != null) {
+      run.findDuplicatedStrings();
+    }
+    return report;
+  }
+
+  /**
+   * One run of {@link #performAnalysis}. It adds the results of the {@link MemoryAnalyzer} and of the
+   * {@link DuplicatedStringsAnalyzer} to its report, which completes once both are done, and is cancelled as a whole.
+   * All of its methods run on the EDT.
+   */
+  private final class AnalysisRun implements AnalysisReport.Listener {
+    @NotNull private final AnalysisReport myReport;
+    @NotNull private final MemoryAnalyzer myMemoryAnalyzer;
+    @Nullable private final DuplicatedStringsAnalyzer myDuplicatedStringsAnalyzer;
+    @Nullable private Future<List<AnalysisResultEntry>> myDuplicatedStrings;
+    private int myPendingCount;
+    private boolean myFinished;
+
+    private AnalysisRun(@NotNull AnalysisReport report,
+                        @NotNull MemoryAnalyzer memoryAnalyzer,
+                        @Nullable DuplicatedStringsAnalyzer duplicatedStringsAnalyzer) {
+      myReport = report;
+      myMemoryAnalyzer = memoryAnalyzer;
+      myDuplicatedStringsAnalyzer = duplicatedStringsAnalyzer;
+      myPendingCount = duplicatedStringsAnalyzer != null ? 2 : 1;
+    }
+
+    @Override
+    public void onResultsAdded(@NotNull List<AnalysisResultEntry> entries) {
+      if (!myFinished && !entries.isEmpty()) {
+        myReport.addAnalysisResultEntries(entries);
+      }
+    }
+
+    @Override
+    public void onAnalysisComplete() {
+      if (!myFinished && --myPendingCount == 0) {
+        myFinished = true;
+        myReport.setCompleted();
+      }
+    }
+
+    @Override
+    public void onAnalysisCancelled() {
+      cancel();
+    }
+
+    public void cancel() {
+      if (myFinished) {
+        return;
+      }
+      myFinished = true;
+      myMemoryAnalyzer.cancel();
+      if (myDuplicatedStringsAnalyzer != null) {
+        myDuplicatedStringsAnalyzer.cancel();
+      }
+      if (myDuplicatedStrings != null) {
+        myDuplicatedStrings.cancel(true);
+      }
+      myReport.setCancelled();
+    }
+
+    /**
+     * Runs the {@link DuplicatedStringsAnalyzer} on the executor the other analyzers read the snapshot from, and shows its
+     * progress in the background tasks of the IDE.
+     */
+    private void findDuplicatedStrings() {
+      final DuplicatedStringsAnalyzer analyzer = myDuplicatedStringsAnalyzer;
+      assert analyzer != null;
+      final ListenableFutureTask<List<AnalysisResultEntry>> future =
+        ListenableFutureTask.create(new Callable<List<AnalysisResultEntry>>() {
+          @Override
+          public List<AnalysisResultEntry> call() throws Exception {
+            return analyzer.analyze();
+          }
+        });
+      myDuplicatedStrings = future;
+      Futures.addCallback(future, new FutureCallback<List<AnalysisResultEntry>>() {
+        @Override
+        public void onSuccess(@Nullable List<AnalysisResultEntry> result) {
+          if (result != null) {
+            onResultsAdded(result);
+          }
+          onAnalysisComplete();
+        }
+
+        @Override
+        public void onFailure(@NotNull Throwable t) {
+          if (!(t instanceof CancellationException)) {
+            LOG.warn("Unable to find duplicated strings", t);
+          }
+          cancel();
+        }
+      }, EdtExecutor.INSTANCE);
+      myAnalysisExecutor.execute(future);
+
+      ProgressManager.getInstance().run(new Task.Backgroundable(myProject, "Finding duplicated strings", true) {
+        @Override
+        public void run(@NotNull ProgressIndicator indicator) {
+          indicator.setIndeterminate(false);
+          while (!future.isDone()) {
+            if (indicator.isCanceled()) {
+              EdtExecutor.INSTANCE.execute(new Runnable() {
+                @Override
+                public void run() {
+                  AnalysisRun.this.cancel();
+                }
+              });
+              return;
+            }
+            ComputationProgress progress = analyzer.getProgress();
+            indicator.setText(progress.getMessage());
+            indicator.setFraction(progress.getProgress());
+            try {
+              future.get(100, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException ignored) {
+            }
+            catch (InterruptedException e) {
+              return;
+            }
+            catch (ExecutionException | CancellationException e) {
+              // Reported by the callback.
+              return;
+            }
+          }
+        }
+      });
+    }
   }
 
   private static void updateIndicator(@NotNull final InlineProgressIndicator indicator, final double fraction, @NotNull final String text) {
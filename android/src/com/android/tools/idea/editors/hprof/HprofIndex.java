@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.hprof;
+
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import gnu.trove.TByteArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TObjectProcedure;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The results of {@link Snapshot#computeDominators()} for a capture, saved in a sidecar file next to the capture so
+ * that reopening it doesn't compute them again.
+ * <p>
+ * The sidecar holds, for every instance of the snapshot, its immediate dominator, its distance to a GC root and its
+ * non zero retained sizes by heap, plus for each heap the classes shown in the class list with their retained sizes.
+ * It is keyed by a hash of the capture, and ignored if the capture changed. Instances are identified by their position in
+ * the snapshot's instances sorted by id, so reading the sidecar back only needs to go through the instances once.
+ */
+public final class HprofIndex {
+  private static final Logger LOG = Logger.getInstance(HprofIndex.class);
+
+  private static final int MAGIC = 0x48504958; // "HPIX"
+  private static final int VERSION = 1;
+  private static final int NO_DOMINATOR = -1;
+  private static final int SENTINEL_DOMINATOR = -2;
+
+  @NotNull private final Map<Heap, ClassEntry[]> myClasses;
+
+  private HprofIndex(@NotNull Map<Heap, ClassEntry[]> classes) {
+    myClasses = classes;
+  }
+
+  /**
+   * Returns the classes the class list shows for the heap: the classes allocated on it, plus the classes of the instances
+   * on it, with the retained size of those instances.
+   */
+  @Nullable
+  public ClassEntry[] getClasses(@NotNull Heap heap) {
+    return myClasses.get(heap);
+  }
+
+  @NotNull
+  public static File getIndexFile(@NotNull File hprofFile) {
+    return new File(hprofFile.getParentFile(), "." + hprofFile.getName() + ".index");
+  }
+
+  @NotNull
+  public static HashCode hash(@NotNull File hprofFile) throws IOException {
+    return Files.asByteSource(hprofFile).hash(Hashing.murmur3_128());
+  }
+
+  /**
+   * Reads the sidecar of the capture and, once all of it has been checked against the snapshot, applies its dominators
+   * and retained sizes to the snapshot. Returns null, leaving the snapshot untouched, if there is no sidecar or it does
+   * not match the capture.
+   * <p>
+   * Before the sidecar is applied, {@link Snapshot#prepareDominatorComputation()} builds the rest of the state
+   * {@link Snapshot#computeDominators()} would, such as the reverse references of the instances.
+   */
+  @Nullable
+  public static HprofIndex read(@NotNull File hprofFile, @NotNull HashCode hash, @NotNull Snapshot snapshot) {
+    File indexFile = getIndexFile(hprofFile);
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    try {
+      ByteBuffer buffer = map(indexFile);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return null;
+      }
+      byte[] storedHash = new byte[hash.bits() / 8];
+      buffer.get(storedHash);
+      if (!Arrays.equals(storedHash, hash.asBytes())) {
+        return null;
+      }
+      List<Heap> heaps = snapshot.getHeaps();
+      if (buffer.getInt() != heaps.size()) {
+        return null;
+      }
+      Instance[] instances = getSortedInstances(snapshot);
+      if (instances == null || buffer.getInt() != instances.length) {
+        return null;
+      }
+
+      // The whole sidecar is decoded and checked before the snapshot is changed, so that a damaged sidecar leaves it
+      // untouched for computeDominators().
+      int[] dominators = new int[instances.length];
+      int[] distances = new int[instances.length];
+      int[] sizeStarts = new int[instances.length + 1];
+      TByteArrayList sizeHeaps = new TByteArrayList();
+      TLongArrayList sizes = new TLongArrayList();
+      for (int i = 0; i < instances.length; i++) {
+        if (buffer.getLong() != instances[i].getId()) {
+          return null;
+        }
+        dominators[i] = buffer.getInt();
+        if (dominators[i] < SENTINEL_DOMINATOR || dominators[i] >= instances.length) {
+          return null;
+        }
+        distances[i] = buffer.getInt();
+        sizeStarts[i] = sizes.size();
+        for (int count = buffer.get() & 0xff; count > 0; count--) {
+          int heap = buffer.get() & 0xff;
+          if (heap >= heaps.size()) {
+            return null;
+          }
+          sizeHeaps.add((byte)heap);
+          sizes.add(buffer.getLong());
+        }
+      }
+      sizeStarts[instances.length] = sizes.size();
+
+      Map<Heap, ClassEntry[]> classes = new HashMap<Heap, ClassEntry[]>();
+      for (Heap heap : heaps) {
+        int count = buffer.getInt();
+        if (count < 0 || count > instances.length) {
+          return null;
+        }
+        ClassEntry[] entries = new ClassEntry[count];
+        for (int i = 0; i < entries.length; i++) {
+          int position = buffer.getInt();
+          if (position < 0 || position >= instances.length || !(instances[position] instanceof ClassObj)) {
+            return null;
+          }
+          entries[i] = new ClassEntry((ClassObj)instances[position], buffer.getLong());
+        }
+        classes.put(heap, entries);
+      }
+      if (buffer.hasRemaining()) {
+        return null;
+      }
+
+      snapshot.prepareDominatorComputation();
+      for (int i = 0; i < instances.length; i++) {
+        Instance instance = instances[i];
+        instance.setDistanceToGcRoot(distances[i]);
+        if (dominators[i] == SENTINEL_DOMINATOR) {
+          instance.setImmediateDominator(Snapshot.SENTINEL_ROOT);
+        }
+        else if (dominators[i] != NO_DOMINATOR) {
+          instance.setImmediateDominator(instances[dominators[i]]);
+        }
+        for (int j = sizeStarts[i]; j < sizeStarts[i + 1]; j++) {
+          instance.addRetainedSize(sizeHeaps.get(j) & 0xff, sizes.get(j));
+        }
+      }
+      return new HprofIndex(classes);
+    }
+    catch (IOException e) {
+      LOG.info("Unable to read " + indexFile, e);
+    }
+    catch (BufferUnderflowException | IllegalArgumentException e) {
+      LOG.info("Corrupt " + indexFile, e);
+    }
+    return null;
+  }
+
+  /**
+   * Builds the index of a snapshot of which the dominators have been computed, and saves it next to the capture. Failing
+   * to save the index is not an error, the dominators are just computed again next time.
+   */
+  @NotNull
+  public static HprofIndex write(@NotNull File hprofFile, @NotNull HashCode hash, @NotNull Snapshot snapshot) {
+    List<Heap> heaps = snapshot.getHeaps();
+    Map<Heap, ClassEntry[]> classes = computeClasses(heaps);
+    HprofIndex index = new HprofIndex(classes);
+    if (heaps.size() > 255) {
+      return index;
+    }
+
+    Instance[] instances = getSortedInstances(snapshot);
+    if (instances == null) {
+      LOG.info("Not indexing " + hprofFile + ", it has duplicate instance ids");
+      return index;
+    }
+    Map<Instance, Integer> positions = new IdentityHashMap<Instance, Integer>(instances.length);
+    for (int i = 0; i < instances.length; i++) {
+      positions.put(instances[i], i);
+    }
+
+    File indexFile = getIndexFile(hprofFile);
+    File tempFile = null;
+    try {
+      // A unique name, as another editor may be writing the index of the same capture.
+      tempFile = FileUtil.createTempFile(indexFile.getParentFile(), indexFile.getName(), ".tmp", true, false);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(hash.asBytes());
+        out.writeInt(heaps.size());
+        out.writeInt(instances.length);
+        for (Instance instance : instances) {
+          out.writeLong(instance.getId());
+          out.writeInt(getDominator(instance, positions));
+          out.writeInt(instance.getDistanceToGcRoot());
+          // Most instances only retain memory in their own heap, if any, so only the non zero sizes are written.
+          int sizes = 0;
+          for (int heap = 0; heap < heaps.size(); heap++) {
+            sizes += instance.getRetainedSize(heap) != 0 ? 1 : 0;
+          }
+          out.writeByte(sizes);
+          for (int heap = 0; heap < heaps.size(); heap++) {
+            long size = instance.getRetainedSize(heap);
+            if (size != 0) {
+              out.writeByte(heap);
+              out.writeLong(size);
+            }
+          }
+        }
+        for (Heap heap : heaps) {
+          ClassEntry[] entries = classes.get(heap);
+          out.writeInt(entries.length);
+          for (ClassEntry entry : entries) {
+            out.writeInt(getPosition(entry.getClassObj(), positions));
+            out.writeLong(entry.getRetainedSize());
+          }
+        }
+      }
+      finally {
+        out.close();
+      }
+      FileUtil.rename(tempFile, indexFile);
+    }
+    catch (IOException e) {
+      LOG.info("Unable to write " + indexFile, e);
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
+    }
+    return index;
+  }
+
+  private static int getDominator(@NotNull Instance instance, @NotNull Map<Instance, Integer> positions) throws IOException {
+    Instance dominator = instance.getImmediateDominator();
+    if (dominator == null) {
+      return NO_DOMINATOR;
+    }
+    if (dominator == Snapshot.SENTINEL_ROOT) {
+      return SENTINEL_DOMINATOR;
+    }
+    return getPosition(dominator, positions);
+  }
+
+  private static int getPosition(@NotNull Instance instance, @NotNull Map<Instance, Integer> positions) throws IOException {
+    Integer position = positions.get(instance);
+    if (position == null) {
+      throw new IOException(instance + " is not in the heaps of the snapshot");
+    }
+    return position;
+  }
+
+  /**
+   * Returns all the instances and classes of the snapshot sorted by id, or null if some have the same id.
+   */
+  @Nullable
+  private static Instance[] getSortedInstances(@NotNull Snapshot snapshot) {
+    final List<Instance> instances = new ArrayList<Instance>();
+    for (Heap heap : snapshot.getHeaps()) {
+      instances.addAll(heap.getClasses());
+      heap.forEachInstance(new TObjectProcedure<Instance>() {
+        @Override
+        public boolean execute(Instance instance) {
+          instances.add(instance);
+          return true;
+        }
+      });
+    }
+    Instance[] sorted = instances.toArray(new Instance[instances.size()]);
+    Arrays.sort(sorted, new Comparator<Instance>() {
+      @Override
+      public int compare(Instance o1, Instance o2) {
+        return Long.compare(o1.getId(), o2.getId());
+      }
+    });
+    for (int i = 1; i < sorted.length; i++) {
+      if (sorted[i - 1].getId() == sorted[i].getId()) {
+        return null;
+      }
+    }
+    return sorted;
+  }
+
+  /**
+   * Finds, for each heap, the same classes as the class list would, and sums the retained sizes of their instances.
+   */
+  @NotNull
+  private static Map<Heap, ClassEntry[]> computeClasses(@NotNull List<Heap> heaps) {
+    Map<Heap, ClassEntry[]> classes = new HashMap<Heap, ClassEntry[]>();
+    for (Heap heap : heaps) {
+      final Map<ClassObj, long[]> retainedSizes = new LinkedHashMap<ClassObj, long[]>();
+      for (ClassObj classObj : heap.getClasses()) {
+        retainedSizes.put(classObj, new long[1]);
+      }
+      heap.forEachInstance(new TObjectProcedure<Instance>() {
+        @Override
+        public boolean execute(Instance instance) {
+          long[] size = retainedSizes.get(instance.getClassObj());
+          if (size == null) {
+            size = new long[1];
+            retainedSizes.put(instance.getClassObj(), size);
+          }
+          size[0] += instance.getTotalRetainedSize();
+          return true;
+        }
+      });
+      ClassEntry[] entries = new ClassEntry[retainedSizes.size()];
+      int i = 0;
+      for (Map.Entry<ClassObj, long[]> entry : retainedSizes.entrySet()) {
+        entries[i++] = new ClassEntry(entry.getKey(), entry.getValue()[0]);
+      }
+      classes.put(heap, entries);
+    }
+    return classes;
+  }
+
+  @NotNull
+  private static MappedByteBuffer map(@NotNull File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      randomAccessFile.close();
+    }
+  }
+
+  /**
+   * A class of the class list of a heap, with the total retained size of its instances on that heap.
+   */
+  public static final class ClassEntry {
+    @NotNull private final ClassObj myClassObj;
+    private final long myRetainedSize;
+
+    private ClassEntry(@NotNull ClassObj classObj, long retainedSize) {
+      myClassObj = classObj;
+      myRetainedSize = retainedSize;
+    }
+
+    @NotNull
+    public ClassObj getClassObj() {
+      return myClassObj;
+    }
+
+    public long getRetainedSize() {
+      return myRetainedSize;
+    }
+  }
+}
@@ -107,7 +107,7 @@ public class HprofView implements Disposable {
     final InstancesTreeView instancesTreeView = new InstancesTreeView(project, mySelectionModel);
     Disposer.register(this, instancesTreeView);
 
-    final ClassesTreeView classesTreeView = new ClassesTreeView(project, group, mySelectionModel);
+    final ClassesTreeView classesTreeView = new ClassesTreeView(project, group, mySelectionModel, editor.getIndex());
     JBSplitter splitter = createNavigationSplitter(classesTreeView.getComponent(), instancesTreeView.getComponent());
     Disposer.register(this, classesTreeView);
 
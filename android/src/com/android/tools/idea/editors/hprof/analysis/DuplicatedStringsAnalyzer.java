@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.hprof.analysis;
+
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.*;
+import com.android.tools.perflib.heap.analysis.ComputationProgress;
+import gnu.trove.TLongIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Finds the {@link String} instances of a {@link Snapshot} which hold the same characters, without building a
+ * {@link String} for every instance.
+ * <p>
+ * The analysis reads the instances of each heap in one pass, keeping only a 64 bit hash of the characters of each
+ * reachable string, and counts the hashes in a primitive map. Only the strings whose hash was seen more than once are
+ * read again, to split hash collisions apart and to describe the duplicated value.
+ * <p>
+ * A {@link Snapshot} reads its instances from a single buffer, so the heaps are read one after the other by the calling
+ * thread, see {@link #getProgress()} to follow the analysis from another thread.
+ */
+public final class DuplicatedStringsAnalyzer {
+  private static final String STRING_CLASS_NAME = "java.lang.String";
+  /** Heaps holding the strings of the system image and of the zygote, which the app does not own. */
+  private static final Set<String> IGNORED_HEAPS = new HashSet<String>(Arrays.asList("image", "zygote"));
+
+  @NotNull private final Snapshot mySnapshot;
+  @NotNull private final ComputationProgress myProgress = new ComputationProgress("Finding duplicated strings...", 0);
+  private volatile boolean myCancelled;
+
+  public DuplicatedStringsAnalyzer(@NotNull Snapshot snapshot) {
+    mySnapshot = snapshot;
+  }
+
+  @NotNull
+  public ComputationProgress getProgress() {
+    return myProgress;
+  }
+
+  /**
+   * Stops the analysis, which then throws a {@link CancellationException}.
+   */
+  public void cancel() {
+    myCancelled = true;
+  }
+
+  /**
+   * Returns a {@link DuplicatedStringsEntry} for each value held by more than one string, the most duplicated first.
+   */
+  @NotNull
+  public List<AnalysisResultEntry> analyze() {
+    ClassObj stringClass = findStringClass();
+    if (stringClass == null) {
+      return Collections.emptyList();
+    }
+
+    List<HeapStrings> heaps = new ArrayList<HeapStrings>();
+    long total = 0;
+    for (Heap heap : mySnapshot.getHeaps()) {
+      if (!IGNORED_HEAPS.contains(heap.getName())) {
+        HeapStrings strings = new HeapStrings(stringClass.getHeapInstances(heap.getId()));
+        heaps.add(strings);
+        total += strings.myInstances.size();
+      }
+    }
+
+    // Hash the characters of each string, counting how many strings have each hash.
+    TLongIntHashMap counts = new TLongIntHashMap();
+    long done = 0;
+    for (HeapStrings strings : heaps) {
+      for (int i = 0; i < strings.myInstances.size(); i++) {
+        checkCancelled();
+        char[] chars = getChars(strings.myInstances.get(i));
+        if (chars != null) {
+          long hash = hash(chars);
+          strings.myHashes[i] = hash;
+          strings.myHashed[i] = true;
+          counts.adjustOrPutValue(hash, 1, 1);
+        }
+        if (++done % 1024 == 0) {
+          myProgress.setProgress(0.9 * done / total);
+        }
+      }
+    }
+
+    // Group the strings whose hash was seen more than once.
+    Map<Long, List<Instance>> candidates = new HashMap<Long, List<Instance>>();
+    for (HeapStrings strings : heaps) {
+      for (int i = 0; i < strings.myInstances.size(); i++) {
+        if (strings.myHashed[i] && counts.get(strings.myHashes[i]) > 1) {
+          List<Instance> group = candidates.get(strings.myHashes[i]);
+          if (group == null) {
+            group = new ArrayList<Instance>(counts.get(strings.myHashes[i]));
+            candidates.put(strings.myHashes[i], group);
+          }
+          group.add(strings.myInstances.get(i));
+        }
+      }
+    }
+
+    myProgress.setMessage("Comparing duplicated strings...");
+    List<DuplicatedStringsEntry> entries = new ArrayList<DuplicatedStringsEntry>();
+    int compared = 0;
+    for (List<Instance> group : candidates.values()) {
+      checkCancelled();
+      addEntries(group, entries);
+      myProgress.setProgress(0.9 + 0.1 * ++compared / candidates.size());
+    }
+
+    Collections.sort(entries, new Comparator<DuplicatedStringsEntry>() {
+      @Override
+      public int compare(DuplicatedStringsEntry o1, DuplicatedStringsEntry o2) {
+        return o2.getOffender().getOffenders().size() - o1.getOffender().getOffenders().size();
+      }
+    });
+    myProgress.setProgress(1);
+    return new ArrayList<AnalysisResultEntry>(entries);
+  }
+
+  /**
+   * Splits strings with the same hash by their actual characters, and adds an entry for each value held more than once.
+   */
+  private static void addEntries(@NotNull List<Instance> group, @NotNull List<DuplicatedStringsEntry> entries) {
+    List<Instance> remaining = group;
+    while (remaining.size() > 1) {
+      char[] value = getChars(remaining.get(0));
+      List<Instance> duplicates = new ArrayList<Instance>(remaining.size());
+      List<Instance> others = new ArrayList<Instance>();
+      for (Instance instance : remaining) {
+        if (Arrays.equals(value, getChars(instance))) {
+          duplicates.add(instance);
+        }
+        else {
+          others.add(instance);
+        }
+      }
+      if (value != null && duplicates.size() > 1) {
+        entries.add(new DuplicatedStringsEntry(new String(value), duplicates));
+      }
+      remaining = others;
+    }
+  }
+
+  @Nullable
+  private ClassObj findStringClass() {
+    for (Heap heap : mySnapshot.getHeaps()) {
+      for (ClassObj classObj : heap.getClasses()) {
+        if (STRING_CLASS_NAME.equals(classObj.getClassName())) {
+          return classObj;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the characters of a reachable string, or null for strings which can be garbage collected.
+   */
+  @Nullable
+  private static char[] getChars(@NotNull Instance instance) {
+    if (!(instance instanceof ClassInstance) || instance.getDistanceToGcRoot() == Integer.MAX_VALUE) {
+      return null;
+    }
+    return ((ClassInstance)instance).getStringChars(Integer.MAX_VALUE);
+  }
+
+  /**
+   * A 64 bit FNV-1a hash of the characters, so that collisions between different values are rare.
+   */
+  private static long hash(@NotNull char[] chars) {
+    long hash = 0xcbf29ce484222325L;
+    for (char c : chars) {
+      hash ^= c;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private void checkCancelled() {
+    if (myCancelled) {
+      throw new CancellationException();
+    }
+  }
+
+  /**
+   * The strings of one heap, with the hash of each string in parallel arrays.
+   */
+  private static final class HeapStrings {
+    @NotNull private final List<Instance> myInstances;
+    @NotNull private final long[] myHashes;
+    @NotNull private final boolean[] myHashed;
+
+    private HeapStrings(@NotNull List<Instance> instances) {
+      myInstances = instances;
+      myHashes = new long[instances.size()];
+      myHashed = new boolean[instances.size()];
+    }
+  }
+}
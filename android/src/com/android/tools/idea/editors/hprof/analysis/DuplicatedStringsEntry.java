@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.hprof.analysis;
+
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.memoryanalyzer.MemoryAnalysisResultEntry;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * A string value held by several {@link String} instances, found by {@link DuplicatedStringsAnalyzer}.
+ */
+public class DuplicatedStringsEntry extends MemoryAnalysisResultEntry {
+  DuplicatedStringsEntry(@NotNull String value, @NotNull List<Instance> duplicates) {
+    super(value, duplicates);
+  }
+
+  @NotNull
+  @Override
+  public String getWarningMessage() {
+    return String.format("%d instances: \"%s\"", getOffender().getOffenders().size(), getOffender().getOffendingDescription());
+  }
+
+  @NotNull
+  @Override
+  public String getCategory() {
+    return "Duplicated Strings";
+  }
+}
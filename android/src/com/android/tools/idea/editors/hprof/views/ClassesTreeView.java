@@ -18,6 +18,7 @@ package com.android.tools.idea.editors.hprof.views;
 import com.android.tools.adtui.common.ColumnTreeBuilder;
 import com.android.tools.idea.actions.EditMultipleSourcesAction;
 import com.android.tools.idea.actions.PsiFileAndLineNavigation;
+import com.android.tools.idea.editors.hprof.HprofIndex;
 import com.android.tools.idea.editors.hprof.views.nodedata.HeapClassObjNode;
 import com.android.tools.idea.editors.hprof.views.nodedata.HeapNode;
 import com.android.tools.idea.editors.hprof.views.nodedata.HeapPackageNode;
@@ -73,7 +74,8 @@ public final class ClassesTreeView implements DataProvider, Disposable {
 
   public ClassesTreeView(@NotNull Project project,
                          @NotNull DefaultActionGroup editorActionGroup,
-                         @NotNull final SelectionModel selectionModel) {
+                         @NotNull final SelectionModel selectionModel,
+                         @Nullable HprofIndex index) {
     myProject = project;
 
     myRoot = new HeapPackageNode(null, "");
@@ -130,7 +132,7 @@ public final class ClassesTreeView implements DataProvider, Disposable {
       }
     });
 
-    myListIndex = new ListIndex();
+    myListIndex = new ListIndex(index);
     myTreeIndex = new TreeIndex();
     selectionModel.addListener(myListIndex); // Add list index first, since that always updates; and tree index depends on it.
     selectionModel.addListener(myTreeIndex);
@@ -599,6 +601,11 @@ public final class ClassesTreeView implements DataProvider, Disposable {
   private static class ListIndex implements SelectionModel.SelectionListener {
     ArrayList<HeapClassObjNode> myClasses = new ArrayList<HeapClassObjNode>();
     private int myHeapId = -1;
+    @Nullable private final HprofIndex myIndex;
+
+    private ListIndex(@Nullable HprofIndex index) {
+      myIndex = index;
+    }
 
     @Override
     public void onHeapChanged(@NotNull Heap heap) {
@@ -606,6 +613,15 @@ public final class ClassesTreeView implements DataProvider, Disposable {
         myHeapId = heap.getId();
         myClasses.clear();
 
+        HprofIndex.ClassEntry[] entries = myIndex != null ? myIndex.getClasses(heap) : null;
+        if (entries != null) {
+          // The index already has the classes and their retained sizes, so the instances of the heap need not be scanned.
+          for (HprofIndex.ClassEntry entry : entries) {
+            myClasses.add(new HeapClassObjNode(entry.getClassObj(), myHeapId, entry.getRetainedSize()));
+          }
+          return;
+        }
+
         // Find the union of the classObjs this heap has instances of, plus the classObjs themselves that are allocated on this heap.
         final HashSet<ClassObj> entriesSet = new HashSet<ClassObj>(heap.getClasses().size() + heap.getInstancesCount());
         for (ClassObj classObj : heap.getClasses()) {
@@ -17,6 +17,7 @@ package com.android.tools.idea.editors.hprof.views;
 
 import com.android.tools.idea.editors.hprof.HprofEditor;
 import com.android.tools.idea.editors.hprof.HprofView;
+import com.android.tools.idea.editors.hprof.analysis.DuplicatedStringsEntry;
 import com.android.tools.idea.profiling.view.AnalysisContentsDelegate;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.heap.*;
@@ -38,7 +39,6 @@ import javax.swing.event.TreeSelectionListener;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreePath;
 
-import static com.android.tools.perflib.heap.memoryanalyzer.DuplicatedStringsAnalyzerTask.DuplicatedStringsEntry;
 import static com.android.tools.perflib.heap.memoryanalyzer.LeakedActivityAnalyzerTask.LeakedActivityEntry;
 
 public class HprofAnalysisContentsDelegate extends AnalysisContentsDelegate {
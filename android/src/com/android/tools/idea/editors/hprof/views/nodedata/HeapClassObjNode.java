@@ -31,10 +31,12 @@ public class HeapClassObjNode implements HeapNode {
   private String mySimpleName;
 
   public HeapClassObjNode(@NotNull ClassObj classObj, int heapId) {
+    this(classObj, heapId, computeRetainedSize(classObj, heapId));
+  }
+
+  public HeapClassObjNode(@NotNull ClassObj classObj, int heapId, long retainedSize) {
     myClassObj = classObj;
-    for (Instance instance : myClassObj.getHeapInstances(heapId)) {
-      myRetainedSize += instance.getTotalRetainedSize();
-    }
+    myRetainedSize = retainedSize;
 
     mySimpleName = myClassObj.getClassName();
     int index = mySimpleName.lastIndexOf('.');
@@ -43,6 +45,14 @@ public class HeapClassObjNode implements HeapNode {
     }
   }
 
+  private static long computeRetainedSize(@NotNull ClassObj classObj, int heapId) {
+    long retainedSize = 0;
+    for (Instance instance : classObj.getHeapInstances(heapId)) {
+      retainedSize += instance.getTotalRetainedSize();
+    }
+    return retainedSize;
+  }
+
   @NotNull
   public ClassObj getClassObj() {
     return myClassObj;
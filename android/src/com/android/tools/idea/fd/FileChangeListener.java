@@ -15,6 +15,7 @@
  */
 package com.android.tools.idea.fd;
 
+import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.GuardedBy;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.fileTypes.FileType;
@@ -34,7 +35,7 @@ import org.jetbrains.android.util.AndroidResourceUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
+import java.util.*;
 
 import static com.android.SdkConstants.*;
 
@@ -42,10 +43,20 @@ import static com.android.SdkConstants.*;
  * Gradle can optimize what it builds if it knows that only certain types of files have changed (for instance, only Java files, or only
  * resources). {@link FileChangeListener} listens to file change events in order to categorize them to specific type of file changes. This
  * information is then passed to Gradle while building the project.
+ * <p>
+ * File events add the changed source files to a journal, sorted by module and by kind of change, so that {@link #getChangesAndReset()}
+ * can tell which files of which module changed. Generated sources are not journaled, and the first change which is neither a Java nor a
+ * resource change of an app module stops the journal, as the build has to consider everything anyway.
  */
 public class FileChangeListener implements BulkFileListener {
+  /**
+   * Past this many changed files, the changes are not tracked anymore and are treated as non source changes, as after a VCS update.
+   */
+  private static final int MAX_JOURNAL_SIZE = 5000;
+
   private final Object myLock = new Object();
   private final Project myProject;
+  private final int myMaxJournalSize;
 
   /**
    * Whether, since the last build, we've seen changes to any files <b>other</b> than Java or XML files (since Java-only changes
@@ -54,37 +65,61 @@ public class FileChangeListener implements BulkFileListener {
   @GuardedBy("myLock")
   private boolean mySeenNonSourceChanges = true; // Initially true: on IDE start we don't know what you've done outside the IDE
 
+  /** The files changed since the last build, by module. */
   @GuardedBy("myLock")
-  private boolean mySeenLocalJavaChanges;
+  @NotNull private Map<Module, ModuleChanges> myJournal = new LinkedHashMap<>();
 
+  /** The number of files in {@link #myJournal}. */
   @GuardedBy("myLock")
-  private boolean mySeenLocalResourceChanges;
+  private int myJournalSize;
 
   /** File listener connection */
   @Nullable private MessageBusConnection myConnection;
 
   public FileChangeListener(@NotNull Project project) {
+    this(project, MAX_JOURNAL_SIZE);
+  }
+
+  @VisibleForTesting
+  FileChangeListener(@NotNull Project project, int maxJournalSize) {
     myProject = project;
+    myMaxJournalSize = maxJournalSize;
   }
 
   @NotNull
   public Changes getChangesAndReset() {
-    Changes changes;
+    boolean nonSourceChanges;
+    Map<Module, ModuleChanges> journal;
 
     synchronized (myLock) {
-      changes = new Changes(mySeenNonSourceChanges, mySeenLocalResourceChanges, mySeenLocalJavaChanges);
+      nonSourceChanges = mySeenNonSourceChanges;
+      journal = myJournal;
 
       mySeenNonSourceChanges = false;
-      mySeenLocalResourceChanges = false;
-      mySeenLocalJavaChanges = false;
+      myJournal = new LinkedHashMap<>();
+      myJournalSize = 0;
 
-      if (changes.nonSourceChanges) {
+      if (nonSourceChanges) {
         // listener was stopped as soon as we see the first non source change
         startFileListener();
       }
     }
 
-    return changes;
+    if (nonSourceChanges) {
+      // The build has to consider everything anyway.
+      return new Changes(true, Collections.emptyMap());
+    }
+    for (ModuleChanges changes : journal.values()) {
+      for (Set<VirtualFile> files : changes.myFiles.values()) {
+        for (VirtualFile file : files) {
+          if (!file.isValid()) {
+            // The file was deleted or moved since it changed, there is no telling what it was.
+            return new Changes(true, Collections.emptyMap());
+          }
+        }
+      }
+    }
+    return new Changes(false, journal);
   }
 
   public void setEnabled(boolean en) {
@@ -118,97 +153,136 @@ public class FileChangeListener implements BulkFileListener {
   public void before(@NotNull List<? extends VFileEvent> events) {
   }
 
-  @SuppressWarnings("IfStatementWithIdenticalBranches")
   @Override
   public void after(@NotNull List<? extends VFileEvent> events) {
     if (myProject.isDisposed()) {
       return;
     }
 
-    for (VFileEvent event : events) {
-      VirtualFile file = event.getFile();
-
-      // Determines whether changing the given file constitutes a "simple Java change" that Gradle
-      // can process without involving the full dex dependency chain. This is true for changes to
-      // Java files in an app module. It's also true for files <b>not</b> related to compilation.
-      // Similarly, it tracks local resource changes.
+    ProjectFileIndex projectIndex = ProjectFileIndex.SERVICE.getInstance(myProject);
+    Map<Module, AndroidFacet> facets = new HashMap<>();
+    synchronized (myLock) {
+      for (VFileEvent event : events) {
+        VirtualFile file = event.getFile();
 
-      if (file == null) {
-        continue;
-      }
+        // Determines whether changing the given file constitutes a "simple Java change" that Gradle
+        // can process without involving the full dex dependency chain. This is true for changes to
+        // Java files in an app module. It's also true for files <b>not</b> related to compilation.
+        // Similarly, it tracks local resource changes.
 
-      ProjectFileIndex projectIndex = ProjectFileIndex.SERVICE.getInstance(myProject);
-      if (!projectIndex.isInSource(file)) {
-        // Ignore common file events -- such as workspace.xml on Window focus loss etc
-        if (file.getName().endsWith(DOT_GRADLE)) {
-          // build.gradle at the root level is not part of the project
-          recordNonLocalChange();
-          return;
+        if (file == null) {
+          continue;
         }
-        continue;
-      }
-
-      // Make sure it's not something like for example
-      //    .AndroidStudioX.Y/config/options/statistics.application.usages.xml
-      Module module = projectIndex.getModuleForFile(file, false);
-      if (module == null) {
-        continue;
-      }
 
-      if (GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, myProject)) {
-        // This filters out edits like .dex files in build etc
-        continue;
-      }
-
-      // Make sure the editing is in an Android app module
-      AndroidFacet facet = AndroidFacet.getInstance(module);
-      if (facet != null && !facet.isLibraryProject()) {
-        FileType fileType = file.getFileType();
-        if (fileType == StdFileTypes.JAVA) {
-          recordSimpleJavaEdit();
+        if (!projectIndex.isInSource(file)) {
+          // Ignore common file events -- such as workspace.xml on Window focus loss etc
+          if (file.getName().endsWith(DOT_GRADLE)) {
+            // build.gradle at the root level is not part of the project
+            recordNonLocalChange();
+            return;
+          }
           continue;
         }
-        else if (fileType == StdFileTypes.XML &&
-                 !file.getName().equals(ANDROID_MANIFEST_XML) &&
-                 AndroidResourceUtil.isResourceFile(file, facet)) {
-          recordSimpleResourceEdit();
+
+        // Make sure it's not something like for example
+        //    .AndroidStudioX.Y/config/options/statistics.application.usages.xml
+        Module module = projectIndex.getModuleForFile(file, false);
+        if (module == null) {
           continue;
         }
-        else if (fileType.isBinary() &&
-                 fileType == FileTypeManager.getInstance().getFileTypeByExtension(EXT_PNG) &&
-                 AndroidResourceUtil.isResourceFile(file, facet)) {
-          // Drawable resource
-          recordSimpleResourceEdit();
+
+        if (GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, myProject)) {
+          // This filters out edits like .dex files in build etc
           continue;
-        } // else: It's possible that it's an edit to a resource of an arbitrary file type in res/raw*/ or other assets;
-        // for now, these will result in full incremental rebuilds.
-      } // else: edit in a non-Android module or a library: these require full incremental builds
+        }
 
-      recordNonLocalChange();
-      break;
-    }
-  }
+        AndroidFacet facet;
+        if (facets.containsKey(module)) {
+          facet = facets.get(module);
+        }
+        else {
+          facet = AndroidFacet.getInstance(module);
+          facets.put(module, facet);
+        }
 
-  /** Called when we've noticed an edit of a Java file that is in an app module */
-  private void recordSimpleJavaEdit() {
-    synchronized (myLock) {
-      mySeenLocalJavaChanges = true;
+        Kind kind = getKind(file, facet);
+        if (kind == Kind.OTHER) {
+          recordNonLocalChange();
+          return;
+        }
+
+        ModuleChanges moduleChanges = myJournal.get(module);
+        if (moduleChanges == null) {
+          moduleChanges = new ModuleChanges();
+          myJournal.put(module, moduleChanges);
+        }
+        Set<VirtualFile> files = moduleChanges.myFiles.get(kind);
+        if (!files.contains(file)) {
+          if (myJournalSize >= myMaxJournalSize) {
+            recordNonLocalChange();
+            return;
+          }
+          files.add(file);
+          myJournalSize++;
+        }
+      }
     }
   }
 
-  /** Called when we've noticed an edit of a resource file that is in an app module */
-  private void recordSimpleResourceEdit() {
-    synchronized (myLock) {
-      mySeenLocalResourceChanges = true;
-    }
+  @NotNull
+  private static Kind getKind(@NotNull VirtualFile file, @Nullable AndroidFacet facet) {
+    // Make sure the editing is in an Android app module
+    if (facet != null && !facet.isLibraryProject()) {
+      FileType fileType = file.getFileType();
+      if (fileType == StdFileTypes.JAVA) {
+        return Kind.JAVA;
+      }
+      else if (fileType == StdFileTypes.XML &&
+               !file.getName().equals(ANDROID_MANIFEST_XML) &&
+               AndroidResourceUtil.isResourceFile(file, facet)) {
+        return Kind.RESOURCE;
+      }
+      else if (fileType.isBinary() &&
+               fileType == FileTypeManager.getInstance().getFileTypeByExtension(EXT_PNG) &&
+               AndroidResourceUtil.isResourceFile(file, facet)) {
+        // Drawable resource
+        return Kind.RESOURCE;
+      } // else: It's possible that it's an edit to a resource of an arbitrary file type in res/raw*/ or other assets;
+      // for now, these will result in full incremental rebuilds.
+    } // else: edit in a non-Android module or a library: these require full incremental builds
+
+    return Kind.OTHER;
   }
 
-  /** Called when we've noticed an edit outside of an app module, or in something other than a resource file or a Java file */
+  /**
+   * Called with myLock held when we've noticed an edit outside of an app module, or in something other than a resource file or a
+   * Java file
+   */
   private void recordNonLocalChange() {
-    synchronized (myLock) {
-      mySeenNonSourceChanges = true;
-      // We no longer need to listen for changes to files while the user continues editing until the next build
-      stopFileListener();
+    mySeenNonSourceChanges = true;
+    myJournal.clear();
+    myJournalSize = 0;
+    // We no longer need to listen for changes to files while the user continues editing until the next build
+    stopFileListener();
+  }
+
+  /** How a changed file affects the build. */
+  public enum Kind {
+    /** A Java file in an app module. */
+    JAVA,
+    /** A resource file in an app module. */
+    RESOURCE,
+    /** Any other source file, which requires a full incremental build, so that no files are journaled until the next build. */
+    OTHER,
+  }
+
+  private static final class ModuleChanges {
+    @NotNull private final Map<Kind, Set<VirtualFile>> myFiles = new EnumMap<>(Kind.class);
+
+    private ModuleChanges() {
+      for (Kind kind : Kind.values()) {
+        myFiles.put(kind, new LinkedHashSet<>());
+      }
     }
   }
 
@@ -217,10 +291,76 @@ public class FileChangeListener implements BulkFileListener {
     public final boolean localResourceChanges;
     public final boolean localJavaChanges;
 
-    public Changes(boolean nonSourceChanges, boolean localResourceChanges, boolean localJavaChanges) {
+    /** The changed files of each module, unknown if {@link #nonSourceChanges} is set. */
+    @NotNull private final Map<Module, ModuleChanges> myModules;
+
+    private Changes(boolean nonSourceChanges, @NotNull Map<Module, ModuleChanges> modules) {
       this.nonSourceChanges = nonSourceChanges;
-      this.localResourceChanges = localResourceChanges;
-      this.localJavaChanges = localJavaChanges;
+      this.localResourceChanges = hasChanges(modules, Kind.RESOURCE);
+      this.localJavaChanges = hasChanges(modules, Kind.JAVA);
+      myModules = modules;
+    }
+
+    private static boolean hasChanges(@NotNull Map<Module, ModuleChanges> modules, @NotNull Kind kind) {
+      for (ModuleChanges changes : modules.values()) {
+        if (!changes.myFiles.get(kind).isEmpty()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns the modules with changed source files.
+     */
+    @NotNull
+    public Set<Module> getModules() {
+      return Collections.unmodifiableSet(myModules.keySet());
+    }
+
+    /**
+     * Returns the files of the given kind which changed in the module.
+     */
+    @NotNull
+    public Set<VirtualFile> getChangedFiles(@NotNull Module module, @NotNull Kind kind) {
+      ModuleChanges changes = myModules.get(module);
+      return changes != null ? Collections.unmodifiableSet(changes.myFiles.get(kind)) : Collections.emptySet();
+    }
+
+    /**
+     * Returns the number of changed source files of all modules.
+     */
+    public int getChangedFileCount() {
+      int count = 0;
+      for (ModuleChanges changes : myModules.values()) {
+        for (Set<VirtualFile> files : changes.myFiles.values()) {
+          count += files.size();
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      if (nonSourceChanges && myModules.isEmpty()) {
+        return "non source changes";
+      }
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<Module, ModuleChanges> entry : myModules.entrySet()) {
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(entry.getKey().getName()).append(":");
+        for (Map.Entry<Kind, Set<VirtualFile>> files : entry.getValue().myFiles.entrySet()) {
+          if (!files.getValue().isEmpty()) {
+            sb.append(' ').append(files.getValue().size()).append(' ').append(files.getKey().name().toLowerCase(Locale.US));
+          }
+        }
+      }
+      if (nonSourceChanges) {
+        sb.append(" and non source changes");
+      }
+      return sb.length() > 0 ? sb.toString() : "no changes";
     }
   }
 }
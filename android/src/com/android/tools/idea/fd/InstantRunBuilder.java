@@ -108,7 +108,11 @@ public class InstantRunBuilder implements BeforeRunBuilder {
     List<String> args = new ArrayList<>(commandLineArguments);
     args.addAll(myInstantRunContext.getCustomBuildArguments());
 
+    // The changes are only taken once the build selection saved all files, so that the last edits are part of them.
     FileChangeListener.Changes fileChanges = myInstantRunContext.getFileChangesAndReset();
+    if (fileChanges != null && buildSelection.mode == BuildMode.HOT) {
+      LOG.info(buildSelection.mode + ": " + fileChanges);
+    }
     args.addAll(getInstantRunArguments(buildSelection.mode, fileChanges));
     args.addAll(getFlightRecorderArguments());
 
@@ -33,7 +33,9 @@ import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -51,6 +53,12 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
    * as a prefix.
    */
   private final StringBuilder myMessageSoFar = new StringBuilder();
+  /** The same as {@link #myMessageSoFar}, for lines received as messages by {@link #processLine(LogCatMessage, boolean, LineConsumer)}. */
+  private final List<LogCatMessage> myLinesSoFar = new ArrayList<>();
+  /** The first line of the current message, if it was received. */
+  @Nullable private LogCatMessage myHeaderLine;
+  /** The number of lines in {@link #myLinesSoFar} which were matched against {@link #myCustomPattern}. */
+  private int myCustomMatchedLines;
 
   @Nullable private LogCatHeader myPrevHeader;
   @Nullable private LogCatTimestamp myRejectBeforeTime;
@@ -69,6 +77,9 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
 
   private final ImmutableList<AndroidLogLevelFilter> myLogLevelFilters;
 
+  /** The lines added to the console, so that replaying them after a filter change does not need to match them again. */
+  private final LogcatIndex myIndex = new LogcatIndex();
+
   public AndroidLogFilterModel() {
     ImmutableList.Builder<AndroidLogLevelFilter> builder = ImmutableList.builder();
     for (Log.LogLevel logLevel : Log.LogLevel.values()) {
@@ -218,12 +229,131 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
     }
   }
 
+  /**
+   * Returns the pids of the messages received by the console.
+   */
+  @NotNull
+  public final Set<Integer> getPids() {
+    return myIndex.getPids();
+  }
+
+  /**
+   * Forgets the indexed lines, when the console is cleared.
+   */
+  public final void clearIndex() {
+    myIndex.clear();
+  }
+
   @Override
   public void processingStarted() {
     myPrevHeader = null;
     myCustomApplicable = false;
     myConfiguredApplicable = false;
     myMessageSoFar.setLength(0);
+    myLinesSoFar.clear();
+    myHeaderLine = null;
+    myCustomMatchedLines = 0;
+  }
+
+  /**
+   * Receives the lines to show in the console.
+   */
+  interface LineConsumer {
+    /**
+     * @param continuation false if the line is the first line of its message
+     * @param outputType   the output type of the message, which decides how the line is shown
+     */
+    void accept(@NotNull LogCatMessage line, boolean continuation, @NotNull Key outputType);
+  }
+
+  /**
+   * Filters a line received by the console, like {@link #processLine(String)} does with the text of a line, and indexes
+   * it for replaying. The line is not formatted, except for its header when the custom pattern has to be matched
+   * against it, and that only once the message passes the other filters. If the message of the line passes the filters,
+   * calls {@code consumer} with the lines to show: those of the message which were held back, and this one.
+   *
+   * @param continuation false if the line is the first line of its message
+   */
+  public final void processLine(@NotNull LogCatMessage line, boolean continuation, @NotNull LineConsumer consumer) {
+    myIndex.add(line, continuation);
+
+    if (!continuation || myPrevHeader == null) {
+      myPrevHeader = line.getHeader();
+      myCustomApplicable = false;
+      myConfiguredApplicable = false;
+      myLinesSoFar.clear();
+      myHeaderLine = continuation ? null : line;
+      myCustomMatchedLines = 0;
+    }
+    myLinesSoFar.add(line);
+
+    boolean isApplicable = false;
+    LogFilter levelFilter = getSelectedLogLevelFilter();
+    if (levelFilter == null || levelFilter.isAcceptable(line.getMessage())) {
+      myConfiguredApplicable = myConfiguredApplicable || isApplicableByConfiguredFilter(line.getMessage());
+      if (myConfiguredApplicable) {
+        for (; !myCustomApplicable && myCustomMatchedLines < myLinesSoFar.size(); myCustomMatchedLines++) {
+          myCustomApplicable = isApplicableByCustomPattern(myLinesSoFar.get(myCustomMatchedLines));
+        }
+      }
+      isApplicable = myCustomApplicable && myConfiguredApplicable;
+    }
+    if (isApplicable && myRejectBeforeTime != null) {
+      isApplicable = !myPrevHeader.getTimestamp().isBefore(myRejectBeforeTime);
+    }
+
+    if (isApplicable) {
+      Key key = AndroidLogcatUtils.getProcessOutputType(myPrevHeader.getLogLevel());
+      for (LogCatMessage shown : myLinesSoFar) {
+        consumer.accept(shown, shown != myHeaderLine, key);
+      }
+      myLinesSoFar.clear();
+      myCustomMatchedLines = 0;
+    }
+  }
+
+  /**
+   * Matches the custom pattern against the whole text of a header line, or against the message of a continuation line,
+   * like {@link #processLine(String)} does.
+   */
+  private boolean isApplicableByCustomPattern(@NotNull LogCatMessage line) {
+    if (myCustomPattern == null) {
+      return true;
+    }
+    String text = line == myHeaderLine ? AndroidLogcatFormatter.formatMessageFull(line.getHeader(), line.getMessage()) : line.getMessage();
+    return myCustomPattern.matcher(text).find();
+  }
+
+  /**
+   * Replays the lines received by the console after a filter change, finding the messages which pass the current filters
+   * up front instead of matching every line again. Calls {@code consumer} with each line to show, oldest first, and
+   * leaves the state of the filter as if the lines had been received again.
+   */
+  public final void replay(@NotNull LineConsumer consumer) {
+    processingStarted();
+    LogFilter levelFilter = getSelectedLogLevelFilter();
+    Log.LogLevel minLevel = levelFilter instanceof AndroidLogLevelFilter ? ((AndroidLogLevelFilter)levelFilter).myLogLevel : null;
+    LogcatIndex.Replay replay = myIndex.select(minLevel, myCustomPattern, myConfiguredFilter, myRejectBeforeTime);
+    while (replay.next()) {
+      LogCatMessage line = replay.getLine();
+      boolean continuation = replay.isContinuation();
+      if (!continuation || line.getHeader() != myPrevHeader) {
+        myPrevHeader = line.getHeader();
+        myLinesSoFar.clear();
+        myHeaderLine = continuation ? null : line;
+      }
+      // Which of the filters rejected a message is not known; lines still to come are matched against both again.
+      boolean accepted = replay.isAccepted();
+      myCustomApplicable = accepted;
+      myConfiguredApplicable = accepted;
+      myCustomMatchedLines = 0;
+      if (accepted) {
+        consumer.accept(line, continuation, AndroidLogcatUtils.getProcessOutputType(myPrevHeader.getLogLevel()));
+      }
+      else {
+        myLinesSoFar.add(line);
+      }
+    }
   }
 
   @Override
@@ -26,7 +26,9 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -63,6 +65,25 @@ public final class AndroidLogcatFormatter extends DefaultLogFormatter {
 
   private static final String FULL_FORMAT = createCustomFormat(true, true, true, true);
 
+  private static final int SHOW_TIME = 1;
+  private static final int SHOW_PID = 2;
+  private static final int SHOW_PACKAGE = 4;
+  private static final int SHOW_TAG = 8;
+
+  /**
+   * The formats returned by {@link #createCustomFormat}, mapped to the parts of the header they show, so that lines can be
+   * formatted without going through {@link String#format}. Any other format string still works, just more slowly.
+   */
+  private static final Map<String, Integer> KNOWN_FORMATS = new HashMap<>();
+
+  static {
+    for (int flags = 0; flags < 16; flags++) {
+      String format = createCustomFormat((flags & SHOW_TIME) != 0, (flags & SHOW_PID) != 0, (flags & SHOW_PACKAGE) != 0,
+                                         (flags & SHOW_TAG) != 0);
+      KNOWN_FORMATS.put(format, flags);
+    }
+  }
+
   // Remember the length of the last header, which we will use to indent any continuation lines
   private int myLastHeaderLength = 0;
 
@@ -86,7 +107,7 @@ public final class AndroidLogcatFormatter extends DefaultLogFormatter {
    */
   @NotNull
   public static String formatContinuation(@NotNull String message) {
-    return String.format("+ %s", message);
+    return "+ " + message;
   }
 
   /**
@@ -131,6 +152,11 @@ public final class AndroidLogcatFormatter extends DefaultLogFormatter {
 
   @NotNull
   public static String formatMessage(@NotNull String format, @NotNull LogCatHeader header, @NotNull String message) {
+    Integer flags = KNOWN_FORMATS.get(format);
+    if (flags != null) {
+      return formatMessage(flags, header, message);
+    }
+
     String ids = String.format(Locale.US, "%s-%s", header.getPid(), header.getTid());
 
     // For parsing later, tags should not have spaces in them. Replace spaces with
@@ -146,6 +172,29 @@ public final class AndroidLogcatFormatter extends DefaultLogFormatter {
                          message);
   }
 
+  /**
+   * Equivalent to calling {@link String#format} with the result of {@link #createCustomFormat} for the given flags.
+   */
+  @NotNull
+  private static String formatMessage(int flags, @NotNull LogCatHeader header, @NotNull String message) {
+    StringBuilder builder = new StringBuilder(64 + message.length());
+    if ((flags & SHOW_TIME) != 0) {
+      builder.append(header.getTimestamp()).append(' ');
+    }
+    if ((flags & SHOW_PID) != 0) {
+      builder.append(header.getPid()).append('-').append(header.getTid()).append((flags & SHOW_PACKAGE) != 0 ? '/' : ' ');
+    }
+    if ((flags & SHOW_PACKAGE) != 0) {
+      builder.append(header.getAppName()).append(' ');
+    }
+    builder.append(header.getLogLevel().getPriorityLetter());
+    if ((flags & SHOW_TAG) != 0) {
+      // See formatMessage(String, LogCatHeader, String) for why spaces are replaced.
+      builder.append('/').append(header.getTag().replace(' ', '\u00A0'));
+    }
+    return builder.append(": ").append(message).toString();
+  }
+
   /**
    * Parse a message that was encoded using {@link #formatMessageFull(LogCatHeader, String)}
    */
@@ -233,4 +282,21 @@ public final class AndroidLogcatFormatter extends DefaultLogFormatter {
 
     return msg; // Unknown message format, return as is
   }
+
+  /**
+   * Formats a line of a message for display, like {@link #formatMessage(String)} does with its text.
+   *
+   * @param continuation false if the line is the first line of its message
+   */
+  @NotNull
+  public String formatLine(@NotNull LogCatMessage line, boolean continuation) {
+    if (continuation) {
+      return Strings.repeat(" ", myLastHeaderLength) + line.getMessage();
+    }
+
+    String format = myPreferences.LOGCAT_FORMAT_STRING;
+    String formatted = formatMessage(format.isEmpty() ? FULL_FORMAT : format, line.getHeader(), line.getMessage());
+    myLastHeaderLength = formatted.length() - line.getMessage().length();
+    return formatted;
+  }
 }
@@ -22,7 +22,6 @@ import com.android.ddmlib.logcat.LogCatHeader;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.logcat.LogCatTimestamp;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.intellij.execution.impl.ConsoleBuffer;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -31,12 +30,17 @@ import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.jetbrains.android.util.AndroidUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * {@link AndroidLogcatService} is the class that manages logs in all connected devices and emulators.
@@ -49,37 +53,97 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
     return Logger.getInstance(AndroidLogcatService.class);
   }
 
-  private static class LogcatBuffer {
-    private int myBufferSize;
-    private final LinkedList<LogCatMessage> myMessages = new LinkedList<>();
+  public interface LogLineListener {
+    void receiveLogLine(@NotNull LogCatMessage line);
+  }
+
+  /**
+   * The logs of one device: the buffer being filled by the current receiver, if any, and the listeners reading from it.
+   * The receiver thread only appends to the buffer and schedules a delivery; the lines are handed to the listeners on
+   * a pooled thread, so slow listeners (or replaying old logs to a new one) never hold up reading from the device.
+   */
+  private static final class DeviceLogs {
+    private volatile LogcatRingBuffer myBuffer;
+    private final List<ListenerCursor> myListeners = new CopyOnWriteArrayList<>();
+    /** The number of deliveries requested since the running delivery started; non-zero while one is running. */
+    private final AtomicInteger myPendingDeliveries = new AtomicInteger();
+
+    void addLine(@NotNull LogcatRingBuffer buffer, @NotNull LogCatMessage line) {
+      buffer.add(line);
+      scheduleDelivery();
+    }
+
+    void scheduleDelivery() {
+      if (myPendingDeliveries.getAndIncrement() == 0) {
+        PooledThreadExecutor.INSTANCE.execute(this::deliver);
+      }
+    }
 
-    public void addMessage(@NotNull LogCatMessage message) {
-      myMessages.add(message);
-      myBufferSize += message.getMessage().length();
-      if (ConsoleBuffer.useCycleBuffer()) {
-        while (myBufferSize > ConsoleBuffer.getCycleBufferSize()) {
-          myBufferSize -= myMessages.removeFirst().getMessage().length();
+    private void deliver() {
+      int pending = myPendingDeliveries.get();
+      do {
+        LogcatRingBuffer buffer = myBuffer;
+        for (ListenerCursor listener : myListeners) {
+          listener.deliver(buffer);
         }
+        pending = myPendingDeliveries.addAndGet(-pending);
       }
+      while (pending != 0);
     }
 
-    @NotNull
-    public List<LogCatMessage> getMessages() {
-      return myMessages;
+    @Nullable
+    ListenerCursor findListener(@NotNull LogLineListener listener) {
+      for (ListenerCursor cursor : myListeners) {
+        if (cursor.myListener == listener) {
+          return cursor;
+        }
+      }
+      return null;
     }
   }
 
-  public interface LogLineListener {
-    void receiveLogLine(@NotNull LogCatMessage line);
+  private static final class ListenerCursor {
+    private final LogLineListener myListener;
+    private volatile boolean myRemoved;
+    /** The read position, or null if the listener starts reading at the beginning of the next buffer. */
+    @Nullable private LogcatRingBuffer.Cursor myCursor;
+
+    ListenerCursor(@NotNull LogLineListener listener, @Nullable LogcatRingBuffer.Cursor cursor) {
+      myListener = listener;
+      myCursor = cursor;
+    }
+
+    /** Only called from {@link DeviceLogs#deliver()}, which never runs concurrently for the same device. */
+    void deliver(@Nullable LogcatRingBuffer buffer) {
+      if (myCursor != null) {
+        deliverRemaining();
+      }
+      if (buffer != null && (myCursor == null || myCursor.getBuffer() != buffer)) {
+        // Receiving (re)started, for example after clearing logcat; read the new buffer from the start.
+        myCursor = buffer.newCursor(true);
+        deliverRemaining();
+      }
+    }
+
+    private void deliverRemaining() {
+      assert myCursor != null;
+      LogCatMessage line;
+      // Checked before every line, so a removed listener gets at most the line it was already being handed.
+      while (!myRemoved && (line = myCursor.next()) != null) {
+        try {
+          myListener.receiveLogLine(line);
+        }
+        catch (RuntimeException e) {
+          getLog().error(e);
+        }
+      }
+    }
   }
 
   private final Object myLock = new Object();
 
   @GuardedBy("myLock")
-  private final Map<IDevice, List<LogLineListener>> myListeners = new HashMap<>();
-
-  @GuardedBy("myLock")
-  private final Map<IDevice, LogcatBuffer> myLogBuffers = new HashMap<>();
+  private final Map<IDevice, DeviceLogs> myDeviceLogs = new HashMap<>();
 
   @GuardedBy("myLock")
   private final Map<IDevice, AndroidLogcatReceiver> myLogReceivers = new HashMap<>();
@@ -107,9 +171,11 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
         return;
       }
       connect(device);
-      final AndroidLogcatReceiver receiver = createReceiver(device);
+      DeviceLogs logs = getDeviceLogs(device);
+      LogcatRingBuffer buffer = new LogcatRingBuffer();
+      logs.myBuffer = buffer;
+      final AndroidLogcatReceiver receiver = new AndroidLogcatReceiver(device, line -> logs.addLine(buffer, line));
       myLogReceivers.put(device, receiver);
-      myLogBuffers.put(device, new LogcatBuffer());
       ExecutorService executor = myExecutors.get(device);
       executor.submit((() -> {
         try {
@@ -126,24 +192,15 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
     }
   }
 
+  @GuardedBy("myLock")
   @NotNull
-  private AndroidLogcatReceiver createReceiver(@NotNull final IDevice device) {
-    final LogLineListener logLineListener = new LogLineListener() {
-      @Override
-      public void receiveLogLine(@NotNull LogCatMessage line) {
-        synchronized (myLock) {
-          if (myListeners.containsKey(device)) {
-            for (LogLineListener listener : myListeners.get(device)) {
-              listener.receiveLogLine(line);
-            }
-          }
-          if (myLogBuffers.containsKey(device)) {
-            myLogBuffers.get(device).addMessage(line);
-          }
-        }
-      }
-    };
-    return new AndroidLogcatReceiver(device, logLineListener);
+  private DeviceLogs getDeviceLogs(@NotNull IDevice device) {
+    DeviceLogs logs = myDeviceLogs.get(device);
+    if (logs == null) {
+      logs = new DeviceLogs();
+      myDeviceLogs.put(device, logs);
+    }
+    return logs;
   }
 
   private void connect(@NotNull IDevice device) {
@@ -168,7 +225,7 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
       if (myLogReceivers.containsKey(device)) {
         myLogReceivers.get(device).cancel();
         myLogReceivers.remove(device);
-        myLogBuffers.remove(device);
+        getDeviceLogs(device).myBuffer = null;
       }
     }
   }
@@ -201,21 +258,17 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
    * first: "Line1" with a header, second: "Line2" with the same header.
    * Listeners are invoked in a pooled thread, and they are triggered A LOT. You should be very careful if delegating this text
    * to a UI thread. For example, don't directly invoke a runnable on the UI thread per line, but consider batching many log lines first.
+   * The old logs are delivered in the same pooled thread, after this method returns, followed by the new lines in order.
    */
   public void addListener(@NotNull IDevice device, @NotNull LogLineListener listener, boolean addOldLogs) {
     synchronized (myLock) {
-      if (addOldLogs && myLogBuffers.containsKey(device)) {
-        for (LogCatMessage line : myLogBuffers.get(device).getMessages()) {
-          listener.receiveLogLine(line);
-        }
-      }
-
-      if (!myListeners.containsKey(device)) {
-        myListeners.put(device, new ArrayList<>());
+      DeviceLogs logs = getDeviceLogs(device);
+      LogcatRingBuffer buffer = logs.myBuffer;
+      logs.myListeners.add(new ListenerCursor(listener, buffer != null ? buffer.newCursor(addOldLogs) : null));
+      if (addOldLogs) {
+        logs.scheduleDelivery();
       }
 
-      myListeners.get(device).add(listener);
-
       if (device.isOnline()) {
         startReceiving(device);
       }
@@ -229,12 +282,24 @@ public final class AndroidLogcatService implements AndroidDebugBridge.IDeviceCha
     addListener(device, listener, false);
   }
 
+  /**
+   * Removes a listener added by {@link #addListener(IDevice, LogLineListener, boolean)}. Delivery checks that the
+   * listener is still registered before each line, so no new line is handed to it once this method returns. However,
+   * this does not wait for a delivery in progress on the pooled thread: a call to
+   * {@link LogLineListener#receiveLogLine} which has already started may still be running, or about to run, when this
+   * returns. Listeners which release resources when removed should therefore ignore lines received afterwards.
+   */
   public void removeListener(@NotNull IDevice device, @NotNull LogLineListener listener) {
     synchronized (myLock) {
-      if (myListeners.containsKey(device)) {
-        myListeners.get(device).remove(listener);
+      DeviceLogs logs = myDeviceLogs.get(device);
+      if (logs != null) {
+        ListenerCursor cursor = logs.findListener(listener);
+        if (cursor != null) {
+          cursor.myRemoved = true;
+          logs.myListeners.remove(cursor);
+        }
 
-        if (myListeners.get(device).isEmpty()) {
+        if (logs.myListeners.isEmpty()) {
           stopReceiving(device);
         }
       }
@@ -18,12 +18,14 @@ package com.android.tools.idea.logcat;
 import com.android.ddmlib.Client;
 import com.android.ddmlib.ClientData;
 import com.android.ddmlib.IDevice;
+import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.tools.idea.actions.BrowserHelpAction;
 import com.android.tools.idea.ddms.DeviceContext;
 import com.intellij.diagnostic.logging.LogConsoleBase;
-import com.intellij.diagnostic.logging.LogFormatter;
+import com.intellij.diagnostic.logging.LogFilter;
 import com.intellij.execution.impl.ConsoleViewImpl;
 import com.intellij.execution.ui.ConsoleView;
+import com.intellij.execution.ui.ConsoleViewContentType;
 import com.intellij.icons.AllIcons;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.*;
@@ -39,16 +41,19 @@ import com.intellij.psi.search.GlobalSearchScope;
 import com.intellij.ui.ColoredListCellRenderer;
 import com.intellij.ui.IdeBorderFactory;
 import com.intellij.ui.SideBorder;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.android.util.AndroidBundle;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static javax.swing.BoxLayout.X_AXIS;
 
@@ -70,7 +75,7 @@ public abstract class AndroidLogcatView implements Disposable {
 
   private volatile IDevice myDevice;
   private final AndroidLogConsole myLogConsole;
-  private final FormattedLogLineReceiver myFormattedLogLineReceiver;
+  private final StructuredLogLineReceiver myLogLineReceiver;
   private final AndroidLogFilterModel myLogFilterModel;
 
   private final IDevice myPreselectedDevice;
@@ -94,7 +99,7 @@ public abstract class AndroidLogcatView implements Disposable {
         }
         if (forceReconnect) {
           if (myDevice != null) {
-            AndroidLogcatService.getInstance().removeListener(myDevice, myFormattedLogLineReceiver);
+            AndroidLogcatService.getInstance().removeListener(myDevice, myLogLineReceiver);
           }
           myDevice = null;
         }
@@ -113,6 +118,11 @@ public abstract class AndroidLogcatView implements Disposable {
     return myLogConsole;
   }
 
+  @NotNull
+  final AndroidLogFilterModel getLogFilterModel() {
+    return myLogFilterModel;
+  }
+
   // TODO: Now that clearLogcat lives in AndroidLogcatService, this should go away using a listener
   // pattern.
   public final void clearLogcat(@Nullable IDevice device) {
@@ -127,6 +137,7 @@ public abstract class AndroidLogcatView implements Disposable {
     if (myLogConsole.getConsole() != null) {
       myLogConsole.clear();
     }
+    myLogFilterModel.clearIndex();
   }
 
   /**
@@ -169,10 +180,10 @@ public abstract class AndroidLogcatView implements Disposable {
 
     AndroidLogcatFormatter logFormatter = new AndroidLogcatFormatter(AndroidLogcatPreferences.getInstance(project));
     myLogConsole = new AndroidLogConsole(project, myLogFilterModel, logFormatter);
-    myFormattedLogLineReceiver = new FormattedLogLineReceiver() {
+    myLogLineReceiver = new StructuredLogLineReceiver() {
       @Override
-      protected void receiveFormattedLogLine(@NotNull String line) {
-        myLogConsole.addLogLine(line);
+      protected void receiveStructuredLogLine(@NotNull LogCatMessage line, boolean continuation) {
+        myLogConsole.addLogLine(line, continuation);
       }
     };
 
@@ -321,14 +332,15 @@ public abstract class AndroidLogcatView implements Disposable {
     if (myDevice != device) {
       AndroidLogcatService androidLogcatService = AndroidLogcatService.getInstance();
       if (myDevice != null) {
-        androidLogcatService.removeListener(myDevice, myFormattedLogLineReceiver);
+        androidLogcatService.removeListener(myDevice, myLogLineReceiver);
       }
       // We check for null, because myLogConsole.clear() depends on myLogConsole.getConsole() not being null
       if (myLogConsole.getConsole() != null) {
         myLogConsole.clear();
       }
+      myLogFilterModel.clearIndex();
       myDevice = device;
-      androidLogcatService.addListener(myDevice, myFormattedLogLineReceiver, true);
+      androidLogcatService.addListener(myDevice, myLogLineReceiver, true);
     }
   }
 
@@ -428,7 +440,7 @@ public abstract class AndroidLogcatView implements Disposable {
   @Override
   public final void dispose() {
     if (myDevice != null) {
-      AndroidLogcatService.getInstance().removeListener(myDevice, myFormattedLogLineReceiver);
+      AndroidLogcatService.getInstance().removeListener(myDevice, myLogLineReceiver);
     }
   }
 
@@ -462,9 +474,15 @@ public abstract class AndroidLogcatView implements Disposable {
   final class AndroidLogConsole extends LogConsoleBase{
     private final RegexFilterComponent myRegexFilterComponent = new RegexFilterComponent("LOG_FILTER_HISTORY", 5);
     private final AndroidLogcatPreferences myPreferences;
+    private final AndroidLogcatFormatter myFormatter;
+    /** Refilters off the EDT, one filter change at a time. */
+    private final Executor myRefilterExecutor = new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, 1);
+    /** Held while adding a line or refiltering, so that new lines are neither cleared nor shown among the replayed ones. */
+    private final Object myLock = new Object();
 
-    public AndroidLogConsole(Project project, AndroidLogFilterModel logFilterModel, LogFormatter logFormatter) {
+    public AndroidLogConsole(Project project, AndroidLogFilterModel logFilterModel, AndroidLogcatFormatter logFormatter) {
       super(project, null, "", false, logFilterModel, GlobalSearchScope.allScope(project), logFormatter);
+      myFormatter = logFormatter;
       ConsoleView console = getConsole();
       if (console instanceof ConsoleViewImpl) {
         ConsoleViewImpl c = ((ConsoleViewImpl)console);
@@ -502,8 +520,78 @@ public abstract class AndroidLogcatView implements Disposable {
       return myRegexFilterComponent;
     }
 
-    public void addLogLine(@NotNull String line) {
-      super.addMessage(line);
+    /**
+     * Adds a line to the console. Unlike {@link #addMessage}, which keeps the text of every line and matches it against
+     * the filters, the line is kept as is by the index of {@link AndroidLogFilterModel}, and only formatted if shown.
+     */
+    public void addLogLine(@NotNull LogCatMessage line, boolean continuation) {
+      ConsoleView console = getConsole();
+      if (console == null) {
+        return;
+      }
+      synchronized (myLock) {
+        LinePrinter printer = new LinePrinter(console);
+        myLogFilterModel.processLine(line, continuation, printer);
+        printer.flush();
+      }
+    }
+
+    @Override
+    public void onFilterStateChange(LogFilter filter) {
+      refilter();
+    }
+
+    @Override
+    public void onTextFilterChange() {
+      refilter();
+    }
+
+    /**
+     * Shows the lines which pass the current filters, as found by the index of {@link AndroidLogFilterModel}, instead of
+     * letting the base class match every line of its text again.
+     */
+    private void refilter() {
+      myRefilterExecutor.execute(() -> {
+        ConsoleView console = getConsole();
+        if (console == null) {
+          return;
+        }
+        synchronized (myLock) {
+          console.clear();
+          LinePrinter printer = new LinePrinter(console);
+          myLogFilterModel.replay(printer);
+          printer.flush();
+        }
+      });
+    }
+
+    /**
+     * Formats the lines to show and prints runs of lines of the same output type at once.
+     */
+    private final class LinePrinter implements AndroidLogFilterModel.LineConsumer {
+      private final ConsoleView myConsole;
+      private final StringBuilder myText = new StringBuilder();
+      private Key myOutputType;
+
+      private LinePrinter(@NotNull ConsoleView console) {
+        myConsole = console;
+      }
+
+      @Override
+      public void accept(@NotNull LogCatMessage line, boolean continuation, @NotNull Key outputType) {
+        if (outputType != myOutputType) {
+          flush();
+          myOutputType = outputType;
+        }
+        myText.append(myFormatter.formatLine(line, continuation)).append('\n');
+      }
+
+      void flush() {
+        if (myText.length() > 0) {
+          myConsole.print(myText.toString(), ConsoleViewContentType.getConsoleViewType(myOutputType));
+          myText.setLength(0);
+        }
+      }
     }
 
     /**
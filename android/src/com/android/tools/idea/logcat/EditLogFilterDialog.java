@@ -16,7 +16,6 @@
 package com.android.tools.idea.logcat;
 
 import com.android.ddmlib.Log;
-import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.tools.idea.logcat.PersistentAndroidLogFilters.FilterData;
 import com.google.common.collect.Lists;
 import com.intellij.CommonBundle;
@@ -279,17 +278,9 @@ final class EditLogFilterDialog extends DialogWrapper {
     }
     myExistingMessagesParsed = true;
 
-    final StringBuffer document = myView.getLogConsole().getOriginalDocument();
-    if (document == null) {
-      return;
-    }
-
     final Set<String> pidSet = new HashSet<String>();
-
-    final String[] lines = StringUtil.splitByLines(document.toString());
-    for (String line : lines) {
-      LogCatMessage message = AndroidLogcatFormatter.parseMessage(line);
-      pidSet.add(Integer.toString(message.getPid()));
+    for (int pid : myView.getLogFilterModel().getPids()) {
+      pidSet.add(Integer.toString(pid));
     }
 
     myUsedPids = Lists.newArrayList(pidSet);
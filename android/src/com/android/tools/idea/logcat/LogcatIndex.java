@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.logcat;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import com.intellij.execution.impl.ConsoleBuffer;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the lines received by a logcat console, so that the console can be refiltered without matching every line
+ * against the filter patterns again. The console keeps no other copy of its lines.
+ * <p>
+ * Lines are grouped into messages (a header line and its continuation lines), numbered in order. For each level, tag,
+ * package and pid, the index keeps the sorted list of the messages which have it, and for each trigram of line text
+ * (lower case), the messages containing it. {@link #select} intersects those lists to find the candidate messages of
+ * a filter, and only checks the candidates against the actual patterns. The text of a line, as matched by the custom
+ * pattern, is the header line as formatted by {@link AndroidLogcatFormatter#formatMessageFull}, or the message of a
+ * continuation line.
+ * <p>
+ * The index holds at most as many lines as {@link LogcatRingBuffer} does, and drops the oldest ones once they exceed
+ * the console cycle buffer size, if one is configured.
+ */
+final class LogcatIndex {
+  private static final Log.LogLevel[] LOG_LEVELS = Log.LogLevel.values();
+
+  /** Regular expression metacharacters; a pattern without any of these matches its own text literally. */
+  private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+  private final int myCapacity;
+
+  // The lines, indexed by line number modulo the capacity.
+  private final LogCatMessage[] myLines;
+  private final int[] myLineMessages;
+  /** The length of each line as text, for the cycle buffer. */
+  private final int[] myLineLengths;
+  private int myLineStart;
+  private int myLineEnd;
+  private long myCharCount;
+
+  // The messages, indexed by message number modulo the capacity.
+  private final LogCatHeader[] myHeaders;
+  private final int[] myFirstLines;
+  private int myMessageStart;
+  private int myMessageEnd;
+  /** Incremented when the index is cleared, which ends the replays in progress. */
+  private int myGeneration;
+
+  // Posting lists, of message numbers.
+  private final PostingList[] myLevels = new PostingList[LOG_LEVELS.length];
+  private final Map<String, PostingList> myTags = new HashMap<>();
+  private final Map<String, PostingList> myPackages = new HashMap<>();
+  private final TIntObjectHashMap<PostingList> myPids = new TIntObjectHashMap<>();
+  private final TIntObjectHashMap<PostingList> myTrigrams = new TIntObjectHashMap<>();
+
+  LogcatIndex() {
+    this(LogcatRingBuffer.CAPACITY);
+  }
+
+  LogcatIndex(int capacity) {
+    myCapacity = capacity;
+    myLines = new LogCatMessage[capacity];
+    myLineLengths = new int[capacity];
+    myLineMessages = new int[capacity];
+    myHeaders = new LogCatHeader[capacity];
+    myFirstLines = new int[capacity];
+    clear();
+  }
+
+  synchronized void clear() {
+    myGeneration++;
+    Arrays.fill(myLines, null);
+    Arrays.fill(myHeaders, null);
+    myLineStart = myLineEnd = 0;
+    myMessageStart = myMessageEnd = 0;
+    myCharCount = 0;
+    for (int i = 0; i < myLevels.length; i++) {
+      myLevels[i] = new PostingList();
+    }
+    myTags.clear();
+    myPackages.clear();
+    myPids.clear();
+    myTrigrams.clear();
+  }
+
+  /**
+   * Adds a line of a message.
+   *
+   * @param line         the line, with the header of its message
+   * @param continuation false if the line is the first line of a message
+   */
+  synchronized void add(@NotNull LogCatMessage line, boolean continuation) {
+    if (myLineEnd == Integer.MAX_VALUE) {
+      // Numbers are ints to keep the posting lists small; start over rather than wrap around.
+      clear();
+    }
+    if (myLineEnd - myLineStart == myCapacity) {
+      removeOldestLine();
+    }
+
+    String text = line.getMessage();
+    int length = text.length();
+    int key = 0;
+    boolean firstLine = !continuation || myMessageStart == myMessageEnd;
+    if (firstLine) {
+      int id = myMessageEnd++;
+      LogCatHeader header = line.getHeader();
+      myHeaders[id % myCapacity] = header;
+      myFirstLines[id % myCapacity] = myLineEnd;
+      myLevels[header.getLogLevel().ordinal()].add(id);
+      getList(myTags, header.getTag()).add(id);
+      getList(myPackages, header.getAppName()).add(id);
+      getList(myPids, header.getPid()).add(id);
+
+      // Index the trigrams of the header too, which the custom pattern is matched against; only the header of each
+      // message is built as text, once.
+      String headerText = AndroidLogcatFormatter.formatMessageFull(header, "");
+      key = addTrigrams(headerText, 0, 0, id);
+      length += headerText.length();
+    }
+
+    int messageId = myMessageEnd - 1;
+    int slot = myLineEnd % myCapacity;
+    myLines[slot] = line;
+    myLineMessages[slot] = messageId;
+    myLineLengths[slot] = length;
+    myLineEnd++;
+    myCharCount += length;
+    addTrigrams(text, key, firstLine ? 2 : 0, messageId);
+
+    if (ConsoleBuffer.useCycleBuffer()) {
+      int maxChars = ConsoleBuffer.getCycleBufferSize();
+      while (myCharCount > maxChars && myLineEnd - myLineStart > 1) {
+        removeOldestLine();
+      }
+    }
+  }
+
+  /**
+   * Adds the trigrams of the given text to the posting lists of the given message, following the trigram key of the text
+   * before it, if {@code length} (the number of characters in that key) is not 0. Returns the key of the last trigram.
+   */
+  private int addTrigrams(@NotNull String text, int key, int length, int id) {
+    for (int i = 0; i < text.length(); i++) {
+      key = trigramKey(key, text.charAt(i));
+      if (i + length >= 2) {
+        getList(myTrigrams, key).add(id);
+      }
+    }
+    return key;
+  }
+
+  private void removeOldestLine() {
+    int slot = myLineStart % myCapacity;
+    myCharCount -= myLineLengths[slot];
+    myLines[slot] = null;
+    myLineStart++;
+
+    int messageStart = myLineStart < myLineEnd ? myLineMessages[myLineStart % myCapacity] : myMessageEnd;
+    for (int id = myMessageStart; id < messageStart; id++) {
+      myHeaders[id % myCapacity] = null;
+    }
+    myMessageStart = messageStart;
+
+    // The posting lists drop stale entries as they grow; every so often, also drop the lists which are only stale.
+    if (myLineStart % myCapacity == 0) {
+      removeStaleLists(myTags.values());
+      removeStaleLists(myPackages.values());
+      removeStaleLists(myPids);
+      removeStaleLists(myTrigrams);
+    }
+  }
+
+  private void removeStaleLists(@NotNull Collection<PostingList> lists) {
+    Iterator<PostingList> iterator = lists.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getLast() < myMessageStart) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void removeStaleLists(@NotNull TIntObjectHashMap<PostingList> lists) {
+    lists.retainEntries((key, list) -> list.getLast() >= myMessageStart);
+  }
+
+  /**
+   * Returns the pids of the indexed messages.
+   */
+  @NotNull
+  synchronized Set<Integer> getPids() {
+    Set<Integer> pids = new HashSet<>();
+    myPids.forEachEntry((pid, list) -> {
+      if (list.getLast() >= myMessageStart) {
+        pids.add(pid);
+      }
+      return true;
+    });
+    return pids;
+  }
+
+  /**
+   * Finds the messages accepted by a console filter. A message is accepted if it is at least {@code minLevel}, is not
+   * older than {@code rejectBefore}, and one of its lines matches {@code customPattern} and one of its lines is
+   * accepted by {@code filter} (null parameters accept everything), which is how {@link AndroidLogFilterModel}
+   * filters lines as they come.
+   *
+   * @return the matching messages, positioned to replay their lines from the oldest one
+   */
+  @NotNull
+  synchronized Replay select(@Nullable Log.LogLevel minLevel,
+                             @Nullable Pattern customPattern,
+                             @Nullable AndroidLogcatFilter filter,
+                             @Nullable LogCatTimestamp rejectBefore) {
+    int base = myMessageStart;
+    int count = myMessageEnd - myMessageStart;
+    BitSet candidates = new BitSet(count);
+    candidates.set(0, count);
+
+    DefaultAndroidLogcatFilter defaultFilter = filter instanceof DefaultAndroidLogcatFilter ? (DefaultAndroidLogcatFilter)filter : null;
+    Log.LogLevel filterLevel = defaultFilter != null ? defaultFilter.getLogLevel() : null;
+    if (filterLevel != null && (minLevel == null || filterLevel.getPriority() > minLevel.getPriority())) {
+      minLevel = filterLevel;
+    }
+    if (minLevel != null) {
+      BitSet levels = new BitSet(count);
+      for (Log.LogLevel level : LOG_LEVELS) {
+        if (level.getPriority() >= minLevel.getPriority()) {
+          myLevels[level.ordinal()].addTo(levels, base, count);
+        }
+      }
+      candidates.and(levels);
+    }
+
+    if (defaultFilter != null) {
+      if (defaultFilter.getTagPattern() != null) {
+        candidates.and(select(myTags, defaultFilter.getTagPattern(), base, count));
+      }
+      if (defaultFilter.getPackagePattern() != null) {
+        candidates.and(select(myPackages, defaultFilter.getPackagePattern(), base, count));
+      }
+      String pid = defaultFilter.getPid();
+      if (pid != null && !pid.isEmpty()) {
+        BitSet pids = new BitSet(count);
+        try {
+          PostingList list = myPids.get(Integer.parseInt(pid));
+          if (list != null) {
+            list.addTo(pids, base, count);
+          }
+        }
+        catch (NumberFormatException ignored) {
+          // No pid matches.
+        }
+        candidates.and(pids);
+      }
+      if (defaultFilter.getMessagePattern() != null) {
+        narrowByLiteral(candidates, defaultFilter.getMessagePattern(), base, count);
+      }
+    }
+    if (customPattern != null) {
+      narrowByLiteral(candidates, customPattern, base, count);
+    }
+
+    // Check the remaining candidates against the actual patterns.
+    BitSet accepted = new BitSet(count);
+    for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+      int id = base + i;
+      LogCatHeader header = myHeaders[id % myCapacity];
+      if (rejectBefore != null && header.getTimestamp().isBefore(rejectBefore)) {
+        continue;
+      }
+      boolean customMatch = customPattern == null;
+      boolean filterMatch = filter == null;
+      int firstLine = Math.max(myFirstLines[id % myCapacity], myLineStart);
+      int endLine = id + 1 < myMessageEnd ? myFirstLines[(id + 1) % myCapacity] : myLineEnd;
+      for (int line = firstLine; line < endLine && !(customMatch && filterMatch); line++) {
+        String message = myLines[line % myCapacity].getMessage();
+        if (!customMatch) {
+          // Like AndroidLogFilterModel, match the whole header line, but only the body of a continuation line.
+          boolean headerLine = line == myFirstLines[id % myCapacity];
+          customMatch = customPattern.matcher(headerLine ? AndroidLogcatFormatter.formatMessageFull(header, message) : message).find();
+        }
+        if (!filterMatch) {
+          filterMatch = filter.isApplicable(message, header.getTag(), header.getAppName(), header.getPid(), header.getLogLevel());
+        }
+      }
+      if (customMatch && filterMatch) {
+        accepted.set(i);
+      }
+    }
+    return new Replay(base, count, myLineEnd, accepted);
+  }
+
+  @NotNull
+  private static BitSet select(@NotNull Map<String, PostingList> lists, @NotNull Pattern pattern, int base, int count) {
+    BitSet result = new BitSet(count);
+    for (Map.Entry<String, PostingList> entry : lists.entrySet()) {
+      if (pattern.matcher(entry.getKey()).find()) {
+        entry.getValue().addTo(result, base, count);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * If the pattern matches a literal string, removes the candidates which lack any of its trigrams.
+   */
+  private void narrowByLiteral(@NotNull BitSet candidates, @NotNull Pattern pattern, int base, int count) {
+    String literal = getLiteral(pattern);
+    if (literal == null || literal.length() < 3) {
+      return;
+    }
+    int key = 0;
+    for (int i = 0; i < literal.length(); i++) {
+      key = trigramKey(key, literal.charAt(i));
+      if (i >= 2) {
+        BitSet messages = new BitSet(count);
+        PostingList list = myTrigrams.get(key);
+        if (list != null) {
+          list.addTo(messages, base, count);
+        }
+        candidates.and(messages);
+      }
+    }
+  }
+
+  /**
+   * Returns the text the given pattern matches, if it only matches a literal string (as produced by
+   * {@link RegexFilterComponent#pattern} for plain text or a regular expression without metacharacters).
+   */
+  @Nullable
+  static String getLiteral(@NotNull Pattern pattern) {
+    String regex = pattern.pattern();
+    if (regex.startsWith("\\Q") && regex.endsWith("\\E") && regex.indexOf("\\E") == regex.length() - 2) {
+      return regex.substring(2, regex.length() - 2);
+    }
+    for (int i = 0; i < regex.length(); i++) {
+      if (REGEX_METACHARACTERS.indexOf(regex.charAt(i)) >= 0) {
+        return null;
+      }
+    }
+    return regex;
+  }
+
+  /**
+   * Shifts a character into a trigram key. Only 10 bits of each (lower case) character are kept, so distinct trigrams
+   * can share a key; that only makes the candidates a little less precise.
+   */
+  private static int trigramKey(int key, char c) {
+    return ((key << 10) | (Character.toLowerCase(c) & 0x3FF)) & 0x3FFFFFFF;
+  }
+
+  @NotNull
+  private static <K> PostingList getList(@NotNull Map<K, PostingList> lists, @NotNull K key) {
+    PostingList list = lists.get(key);
+    if (list == null) {
+      list = new PostingList();
+      lists.put(key, list);
+    }
+    return list;
+  }
+
+  @NotNull
+  private static PostingList getList(@NotNull TIntObjectHashMap<PostingList> lists, int key) {
+    PostingList list = lists.get(key);
+    if (list == null) {
+      list = new PostingList();
+      lists.put(key, list);
+    }
+    return list;
+  }
+
+  /**
+   * The result of {@link #select}, and a position in the index while the selected lines are replayed, oldest first.
+   * The position is a line number, so lines added after the selection was made are not replayed, lines dropped meanwhile
+   * are skipped, and clearing the index ends the replay.
+   */
+  final class Replay {
+    private final int myBase;
+    private final int myCount;
+    private final int myLineLimit;
+    private final int myGeneration;
+    private final BitSet myAccepted;
+    private int myNextLine;
+    private LogCatMessage myLine;
+    private boolean myIsContinuation;
+    private boolean myIsAccepted;
+
+    private Replay(int base, int count, int lineLimit, @NotNull BitSet accepted) {
+      myBase = base;
+      myCount = count;
+      myLineLimit = lineLimit;
+      myGeneration = LogcatIndex.this.myGeneration;
+      myAccepted = accepted;
+      myNextLine = myLineStart;
+    }
+
+    /**
+     * Moves to the next line of the selected messages. Returns false once all of them were replayed; otherwise
+     * {@link #getLine()}, {@link #isContinuation()} and {@link #isAccepted()} describe the line and its message.
+     */
+    boolean next() {
+      synchronized (LogcatIndex.this) {
+        if (myGeneration != LogcatIndex.this.myGeneration) {
+          return false;
+        }
+        myNextLine = Math.max(myNextLine, myLineStart);
+        while (myNextLine < myLineLimit) {
+          int slot = myNextLine % myCapacity;
+          int id = myLineMessages[slot];
+          int line = myNextLine++;
+          if (id >= myBase && id < myBase + myCount && myHeaders[id % myCapacity] != null) {
+            myLine = myLines[slot];
+            myIsContinuation = line != myFirstLines[id % myCapacity];
+            myIsAccepted = myAccepted.get(id - myBase);
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+
+    @NotNull
+    LogCatMessage getLine() {
+      return myLine;
+    }
+
+    boolean isContinuation() {
+      return myIsContinuation;
+    }
+
+    boolean isAccepted() {
+      return myIsAccepted;
+    }
+  }
+
+  /**
+   * An increasing list of message numbers. Numbers of dropped messages are removed lazily.
+   */
+  private static final class PostingList {
+    private int[] myIds = new int[4];
+    private int myStart;
+    private int myEnd;
+
+    void add(int id) {
+      if (myEnd > myStart && myIds[myEnd - 1] == id) {
+        return;
+      }
+      if (myEnd == myIds.length) {
+        if (myStart > myEnd / 2) {
+          System.arraycopy(myIds, myStart, myIds, 0, myEnd - myStart);
+        }
+        else {
+          myIds = Arrays.copyOf(myIds, myIds.length * 2);
+          System.arraycopy(myIds, myStart, myIds, 0, myEnd - myStart);
+        }
+        myEnd -= myStart;
+        myStart = 0;
+      }
+      myIds[myEnd++] = id;
+    }
+
+    int getLast() {
+      return myEnd > myStart ? myIds[myEnd - 1] : -1;
+    }
+
+    /** Sets the bits of the ids in [base, base + count), relative to base, and forgets the ids below base. */
+    void addTo(@NotNull BitSet bits, int base, int count) {
+      while (myStart < myEnd && myIds[myStart] < base) {
+        myStart++;
+      }
+      for (int i = myStart; i < myEnd && myIds[i] < base + count; i++) {
+        bits.set(myIds[i] - base);
+      }
+    }
+  }
+}
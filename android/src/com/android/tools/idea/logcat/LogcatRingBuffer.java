@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.logcat;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import com.intellij.execution.impl.ConsoleBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded buffer of the log lines received from one device.
+ * <p>
+ * Lines are appended by a single writer (the thread reading logcat from the device) and read by any number of
+ * {@link Cursor}s, without locking: every line gets a sequence number, and a cursor simply remembers the sequence
+ * number of the next line it wants. Lines are stored as small immutable records in a ring, with the tag and
+ * application name interned in a table, and are only turned back into {@link LogCatMessage}s when read. The buffer
+ * holds at most {@link #CAPACITY} lines, and also drops the oldest lines once they exceed the console cycle buffer
+ * size, if one is configured. A cursor which falls behind by more than that skips the lines it missed.
+ */
+final class LogcatRingBuffer {
+  static final int CAPACITY = 1 << 16;
+
+  private static final Log.LogLevel[] LOG_LEVELS = Log.LogLevel.values();
+
+  private final int myCapacity;
+  private final AtomicReferenceArray<Record> myRecords;
+
+  // Writer-only state.
+  private final Map<String, Integer> myStringIds = new HashMap<>();
+  private LogCatHeader myLastHeader;
+  private int myLastHeaderId;
+  private long myCharCount;
+
+  /** The interned strings, indexed by id. Replaced (never modified in place) when it needs to grow. */
+  private volatile String[] myStrings = new String[64];
+  private int myStringCount;
+
+  /** The sequence number of the oldest line still in the buffer. */
+  private volatile long myStart;
+
+  /** The sequence number the next line will get; all lines before it have been published. */
+  private volatile long myEnd;
+
+  LogcatRingBuffer() {
+    this(CAPACITY);
+  }
+
+  LogcatRingBuffer(int capacity) {
+    myCapacity = capacity;
+    myRecords = new AtomicReferenceArray<>(capacity);
+  }
+
+  /**
+   * Appends a line. Must only be called from one thread at a time.
+   */
+  void add(@NotNull LogCatMessage message) {
+    LogCatHeader header = message.getHeader();
+    if (header != myLastHeader) {
+      // Multi-line messages share their header, so lines can be grouped back under one header object when read.
+      myLastHeader = header;
+      myLastHeaderId++;
+    }
+
+    long sequence = myEnd;
+    int charCount = message.getMessage().length();
+    myCharCount += charCount;
+    // Move the start past the lines about to be dropped before overwriting any of them, so that a cursor reading a
+    // slot while it is overwritten notices from the sequence number of the record.
+    long start = myStart;
+    if (sequence - start == myCapacity) {
+      myCharCount -= myRecords.get(slot(start)).myMessage.length();
+      start++;
+    }
+    if (ConsoleBuffer.useCycleBuffer()) {
+      int maxChars = ConsoleBuffer.getCycleBufferSize();
+      while (myCharCount > maxChars && start < sequence) {
+        myCharCount -= myRecords.get(slot(start)).myMessage.length();
+        start++;
+      }
+    }
+    myStart = start;
+
+    myRecords.set(slot(sequence), new Record(sequence, myLastHeaderId, header, intern(header.getAppName()), intern(header.getTag()),
+                                             message.getMessage()));
+    myEnd = sequence + 1;
+  }
+
+  long getStart() {
+    return myStart;
+  }
+
+  long getEnd() {
+    return myEnd;
+  }
+
+  /**
+   * Returns a cursor positioned at the oldest line in the buffer if {@code fromStart} is true, or else after the
+   * newest line, so that it only sees lines added from now on.
+   */
+  @NotNull
+  Cursor newCursor(boolean fromStart) {
+    return new Cursor(fromStart ? myStart : myEnd);
+  }
+
+  private int slot(long sequence) {
+    return (int)(sequence % myCapacity);
+  }
+
+  private int intern(@NotNull String string) {
+    Integer id = myStringIds.get(string);
+    if (id != null) {
+      return id;
+    }
+    String[] strings = myStrings;
+    if (myStringCount == strings.length) {
+      String[] grown = new String[strings.length * 2];
+      System.arraycopy(strings, 0, grown, 0, strings.length);
+      strings = grown;
+    }
+    strings[myStringCount] = string;
+    // Publish (the new array, or the write into the existing one) before any record refers to the id.
+    myStrings = strings;
+    myStringIds.put(string, myStringCount);
+    return myStringCount++;
+  }
+
+  /** A line of the buffer. Records are immutable, so they can be read without locking. */
+  private static final class Record {
+    private final long mySequence;
+    private final int myHeaderId;
+    private final byte myLevel;
+    private final int myPid;
+    private final int myTid;
+    private final int myAppNameId;
+    private final int myTagId;
+    private final LogCatTimestamp myTimestamp;
+    private final String myMessage;
+
+    Record(long sequence, int headerId, @NotNull LogCatHeader header, int appNameId, int tagId, @NotNull String message) {
+      mySequence = sequence;
+      myHeaderId = headerId;
+      myLevel = (byte)header.getLogLevel().ordinal();
+      myPid = header.getPid();
+      myTid = header.getTid();
+      myAppNameId = appNameId;
+      myTagId = tagId;
+      myTimestamp = header.getTimestamp();
+      myMessage = message;
+    }
+  }
+
+  /**
+   * A read position in the buffer. A cursor may be used from any thread, but only from one thread at a time.
+   */
+  final class Cursor {
+    private long myNext;
+    private int myHeaderId = -1;
+    private LogCatHeader myHeader;
+
+    private Cursor(long next) {
+      myNext = next;
+    }
+
+    @NotNull
+    LogcatRingBuffer getBuffer() {
+      return LogcatRingBuffer.this;
+    }
+
+    /**
+     * Returns the next line, or null if the cursor has caught up with the writer.
+     */
+    @Nullable
+    LogCatMessage next() {
+      while (true) {
+        long next = myNext;
+        if (next >= myEnd) {
+          return null;
+        }
+        Record record = myRecords.get(slot(next));
+        long start = myStart;
+        if (next < start || record == null || record.mySequence != next) {
+          // The writer lapped this cursor; skip to the oldest line still available.
+          myNext = Math.max(start, next + 1);
+          continue;
+        }
+        myNext = next + 1;
+        if (record.myHeaderId != myHeaderId) {
+          String[] strings = myStrings;
+          myHeader = new LogCatHeader(LOG_LEVELS[record.myLevel], record.myPid, record.myTid, strings[record.myAppNameId],
+                                      strings[record.myTagId], record.myTimestamp);
+          myHeaderId = record.myHeaderId;
+        }
+        return new LogCatMessage(myHeader, record.myMessage);
+      }
+    }
+  }
+}
@@ -19,20 +19,23 @@ import com.android.ddmlib.logcat.LogCatHeader;
 import com.android.ddmlib.logcat.LogCatMessage;
 import org.jetbrains.annotations.NotNull;
 
-abstract class FormattedLogLineReceiver implements AndroidLogcatService.LogLineListener {
+/**
+ * Receives the lines of logcat messages, and tells the first line of each message from its continuation lines.
+ */
+abstract class StructuredLogLineReceiver implements AndroidLogcatService.LogLineListener {
   private LogCatHeader myActiveHeader;
 
   @Override
   public final void receiveLogLine(@NotNull LogCatMessage line) {
-    if (!line.getHeader().equals(myActiveHeader)) {
+    boolean continuation = line.getHeader().equals(myActiveHeader);
+    if (!continuation) {
       myActiveHeader = line.getHeader();
-      String message = AndroidLogcatFormatter.formatMessageFull(myActiveHeader, line.getMessage());
-      receiveFormattedLogLine(message);
-    } else {
-      String message = AndroidLogcatFormatter.formatContinuation(line.getMessage());
-      receiveFormattedLogLine(message);
     }
+    receiveStructuredLogLine(line, continuation);
   }
 
-  protected abstract void receiveFormattedLogLine(@NotNull String line);
+  /**
+   * Receives a line of a message. {@code continuation} is true if the line is not the first line of its message.
+   */
+  protected abstract void receiveStructuredLogLine(@NotNull LogCatMessage line, boolean continuation);
 }
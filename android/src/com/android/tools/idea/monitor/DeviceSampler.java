@@ -165,18 +165,15 @@ public abstract class DeviceSampler implements Runnable {
 
   @Override
   public void run() {
-    long timeToWait = mySampleFrequencyMs;
     while (myRunning) {
       try {
-        long start = System.currentTimeMillis();
+        // Ticks are aligned to the clock rather than to when the sampler started, so that samplers of the same frequency
+        // tick together and their shell reads share a batch of the device's DeviceSamplingSession.
+        long timeToWait = mySampleFrequencyMs - System.currentTimeMillis() % mySampleFrequencyMs;
         boolean acquired = myDataSemaphore.tryAcquire(timeToWait, TimeUnit.MILLISECONDS);
         if (myRunning && !myIsPaused) {
           sample(acquired);
         }
-        timeToWait -= System.currentTimeMillis() - start;
-        if (timeToWait <= 0) {
-          timeToWait = mySampleFrequencyMs;
-        }
 
         Client client = myClient; // needed because myClient is volatile
         if ((client == null) || !client.isValid()) {
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.*;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the shell reads of all the {@link DeviceSampler}s of a device as one shell command per tick.
+ * <p>
+ * Instead of every sampler opening its own adb shell for each sample, a sampler hands its commands to the session of
+ * its device. The first sampler to do so in a tick waits {@link #BATCH_WINDOW_MS} for the others, then runs all the
+ * commands collected so far in a single shell, separated by marker lines, and hands each command's share of the
+ * output to its receiver. The samplers align their ticks (see {@link DeviceSampler#run()}), so samplers running at
+ * the same frequency end up in the same batch.
+ * <p>
+ * The session also keeps latency and failure statistics for each sampler, see {@link #getStats()}.
+ */
+public final class DeviceSamplingSession {
+  private static final Logger LOG = Logger.getInstance(DeviceSamplingSession.class);
+
+  /**
+   * How long the first sampler of a tick waits for the other samplers before running the batch.
+   */
+  public static final long BATCH_WINDOW_MS = 20;
+
+  private static final int STATS_LOG_INTERVAL = 100;
+
+  private static final BatchWindow DEFAULT_WINDOW = new BatchWindow() {
+    @Override
+    public void await() throws InterruptedException {
+      Thread.sleep(BATCH_WINDOW_MS);
+    }
+  };
+
+  private static final Map<IDevice, DeviceSamplingSession> ourSessions = new WeakHashMap<IDevice, DeviceSamplingSession>();
+
+  @NotNull private final IDevice myDevice;
+  @NotNull private final String myMarker;
+  @NotNull private final BatchWindow myWindow;
+  private final Object myLock = new Object();
+  /** The batch samplers currently add their commands to, or null if no batch is waiting to run. Guarded by myLock. */
+  @Nullable private Batch myOpenBatch;
+  /** Guarded by myLock. */
+  @NotNull private final Map<String, Stats> myStats = new LinkedHashMap<String, Stats>();
+
+  @VisibleForTesting
+  DeviceSamplingSession(@NotNull IDevice device, @NotNull BatchWindow window) {
+    myDevice = device;
+    myWindow = window;
+    myMarker = "__sample_" + Long.toHexString(new Random().nextLong() & Long.MAX_VALUE) + "_";
+  }
+
+  @NotNull
+  public static DeviceSamplingSession getInstance(@NotNull IDevice device) {
+    synchronized (ourSessions) {
+      DeviceSamplingSession session = ourSessions.get(device);
+      if (session == null) {
+        session = new DeviceSamplingSession(device, DEFAULT_WINDOW);
+        ourSessions.put(device, session);
+      }
+      return session;
+    }
+  }
+
+  /**
+   * Runs a shell command as part of the next batch, and passes its output to {@code receiver}. This behaves like
+   * {@link IDevice#executeShellCommand(String, IShellOutputReceiver, long, TimeUnit)}, but returns only once the whole
+   * batch has run.
+   */
+  public void executeShellCommand(@NotNull String samplerName,
+                                  @NotNull String command,
+                                  @NotNull MultiLineReceiver receiver,
+                                  long maxTimeToOutputResponse,
+                                  @NotNull TimeUnit maxTimeUnits)
+    throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
+    executeShellCommands(samplerName, Collections.singletonList(Pair.create(command, receiver)), maxTimeToOutputResponse, maxTimeUnits);
+  }
+
+  /**
+   * Runs several shell commands as part of the same batch. If the batch fails part way, the receivers of the commands
+   * which completed before the failure have still been given their output.
+   */
+  public void executeShellCommands(@NotNull String samplerName,
+                                   @NotNull List<? extends Pair<String, ? extends MultiLineReceiver>> commands,
+                                   long maxTimeToOutputResponse,
+                                   @NotNull TimeUnit maxTimeUnits)
+    throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
+    long start = System.nanoTime();
+    List<Request> requests = new ArrayList<Request>(commands.size());
+    for (Pair<String, ? extends MultiLineReceiver> command : commands) {
+      requests.add(new Request(command.first, command.second));
+    }
+
+    Batch batch;
+    boolean leader;
+    synchronized (myLock) {
+      leader = myOpenBatch == null;
+      if (leader) {
+        myOpenBatch = new Batch();
+      }
+      batch = myOpenBatch;
+      batch.myRequests.addAll(requests);
+      batch.myTimeoutMs = Math.max(batch.myTimeoutMs, maxTimeUnits.toMillis(maxTimeToOutputResponse));
+    }
+
+    if (leader) {
+      runBatch(batch);
+    }
+    else {
+      try {
+        batch.myDone.await();
+      }
+      catch (InterruptedException e) {
+        for (Request request : requests) {
+          request.myCancelled = true;
+        }
+        throw e;
+      }
+    }
+
+    Exception failure = null;
+    for (Request request : requests) {
+      if (request.myFailure != null) {
+        failure = request.myFailure;
+        break;
+      }
+    }
+    recordStats(samplerName, System.nanoTime() - start, failure);
+    if (failure != null) {
+      rethrow(failure);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the statistics of each sampler which used this session.
+   */
+  @NotNull
+  public Map<String, Stats> getStats() {
+    synchronized (myLock) {
+      Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+      for (Map.Entry<String, Stats> entry : myStats.entrySet()) {
+        stats.put(entry.getKey(), new Stats(entry.getValue()));
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * Returns the number of commands of the batch which is waiting to run, or 0 if there is none.
+   */
+  @VisibleForTesting
+  int getOpenBatchSize() {
+    synchronized (myLock) {
+      return myOpenBatch != null ? myOpenBatch.myRequests.size() : 0;
+    }
+  }
+
+  private void runBatch(@NotNull Batch batch) {
+    boolean interrupted = false;
+    try {
+      // The other samplers have to be able to join even if this one is stopped meanwhile.
+      myWindow.await();
+    }
+    catch (InterruptedException e) {
+      interrupted = true;
+    }
+
+    List<Request> requests;
+    long timeoutMs;
+    synchronized (myLock) {
+      myOpenBatch = null;
+      requests = batch.myRequests;
+      timeoutMs = batch.myTimeoutMs;
+    }
+
+    try {
+      StringBuilder command = new StringBuilder();
+      for (int i = 0; i < requests.size(); i++) {
+        command.append(requests.get(i).myCommand).append("; echo ").append(myMarker).append(i).append("; ");
+      }
+      Exception failure = null;
+      try {
+        myDevice.executeShellCommand(command.toString(), new BatchReceiver(requests), timeoutMs, TimeUnit.MILLISECONDS);
+      }
+      catch (Exception e) {
+        failure = e;
+      }
+      for (Request request : requests) {
+        if (!request.myDelivered && request.myFailure == null) {
+          request.myFailure = failure != null ? failure : new ShellCommandUnresponsiveException();
+        }
+      }
+    }
+    finally {
+      batch.myDone.countDown();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void recordStats(@NotNull String samplerName, long latencyNs, @Nullable Exception failure) {
+    Stats stats;
+    synchronized (myLock) {
+      stats = myStats.get(samplerName);
+      if (stats == null) {
+        stats = new Stats();
+        myStats.put(samplerName, stats);
+      }
+      stats.mySampleCount++;
+      stats.myTotalLatencyNs += latencyNs;
+      stats.myMaxLatencyNs = Math.max(stats.myMaxLatencyNs, latencyNs);
+      if (failure instanceof TimeoutException || failure instanceof ShellCommandUnresponsiveException) {
+        stats.myTimeoutCount++;
+      }
+      else if (failure != null) {
+        stats.myFailureCount++;
+      }
+      if (stats.mySampleCount % STATS_LOG_INTERVAL != 0 || !LOG.isDebugEnabled()) {
+        return;
+      }
+      stats = new Stats(stats);
+    }
+    LOG.debug(String.format("%1$s on %2$s: %3$s", samplerName, myDevice.getSerialNumber(), stats));
+  }
+
+  private static void rethrow(@NotNull Exception e)
+    throws TimeoutException, AdbCommandRejectedException, ShellCommandUnresponsiveException, IOException, InterruptedException {
+    if (e instanceof TimeoutException) {
+      throw (TimeoutException)e;
+    }
+    if (e instanceof AdbCommandRejectedException) {
+      throw (AdbCommandRejectedException)e;
+    }
+    if (e instanceof ShellCommandUnresponsiveException) {
+      throw (ShellCommandUnresponsiveException)e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException)e;
+    }
+    if (e instanceof InterruptedException) {
+      throw (InterruptedException)e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException)e;
+    }
+    throw new IOException(e);
+  }
+
+  /**
+   * Latency and failure counts of one sampler. Latencies include the time spent waiting for the batch.
+   */
+  public static final class Stats {
+    private int mySampleCount;
+    private int myTimeoutCount;
+    private int myFailureCount;
+    private long myTotalLatencyNs;
+    private long myMaxLatencyNs;
+
+    private Stats() {
+    }
+
+    private Stats(@NotNull Stats stats) {
+      mySampleCount = stats.mySampleCount;
+      myTimeoutCount = stats.myTimeoutCount;
+      myFailureCount = stats.myFailureCount;
+      myTotalLatencyNs = stats.myTotalLatencyNs;
+      myMaxLatencyNs = stats.myMaxLatencyNs;
+    }
+
+    public int getSampleCount() {
+      return mySampleCount;
+    }
+
+    public int getTimeoutCount() {
+      return myTimeoutCount;
+    }
+
+    public int getFailureCount() {
+      return myFailureCount;
+    }
+
+    public double getAverageLatencyMs() {
+      return mySampleCount == 0 ? 0 : myTotalLatencyNs / (mySampleCount * 1e6);
+    }
+
+    public double getMaxLatencyMs() {
+      return myMaxLatencyNs / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%1$d samples, %2$.1f ms average, %3$.1f ms max, %4$d timeouts, %5$d failures", mySampleCount,
+                           getAverageLatencyMs(), getMaxLatencyMs(), myTimeoutCount, myFailureCount);
+    }
+  }
+
+  /**
+   * Decides how long the first sampler of a tick waits for the other samplers. This is {@link #BATCH_WINDOW_MS}, except
+   * in tests, which wait for the samplers they start rather than for a fixed time.
+   */
+  @VisibleForTesting
+  interface BatchWindow {
+    void await() throws InterruptedException;
+  }
+
+  private static final class Batch {
+    private final List<Request> myRequests = new ArrayList<Request>();
+    private final CountDownLatch myDone = new CountDownLatch(1);
+    private long myTimeoutMs;
+  }
+
+  private static final class Request {
+    @NotNull private final String myCommand;
+    @NotNull private final MultiLineReceiver myReceiver;
+    // Written by the thread running the batch before it counts down Batch.myDone.
+    private boolean myDelivered;
+    @Nullable private Exception myFailure;
+    private volatile boolean myCancelled;
+
+    private Request(@NotNull String command, @NotNull MultiLineReceiver receiver) {
+      myCommand = command;
+      myReceiver = receiver;
+    }
+  }
+
+  /**
+   * Splits the output of a batch at the marker lines, and passes each part to the receiver of its command.
+   */
+  private final class BatchReceiver extends MultiLineReceiver {
+    @NotNull private final List<Request> myRequests;
+    @NotNull private final List<String> myLines = new ArrayList<String>();
+    private int myNext;
+
+    private BatchReceiver(@NotNull List<Request> requests) {
+      myRequests = requests;
+    }
+
+    @Override
+    public void processNewLines(String[] lines) {
+      for (String line : lines) {
+        int marker = line.indexOf(myMarker);
+        if (marker < 0) {
+          myLines.add(line);
+          continue;
+        }
+        if (marker > 0) {
+          // The command's output did not end with a new line.
+          myLines.add(line.substring(0, marker));
+        }
+        if (myNext < myRequests.size()) {
+          deliver(myRequests.get(myNext++));
+        }
+        myLines.clear();
+      }
+    }
+
+    private void deliver(@NotNull Request request) {
+      request.myDelivered = true;
+      if (request.myCancelled) {
+        return;
+      }
+      try {
+        if (!myLines.isEmpty()) {
+          request.myReceiver.processNewLines(myLines.toArray(new String[myLines.size()]));
+        }
+        request.myReceiver.done();
+      }
+      catch (RuntimeException e) {
+        // Report parsing problems to the sampler which owns the receiver, rather than failing the whole batch.
+        request.myFailure = e;
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+}
@@ -17,12 +17,15 @@ package com.android.tools.idea.monitor.cpu;
 
 import com.android.ddmlib.*;
 import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.DeviceSamplingSession;
 import com.android.tools.adtui.TimelineData;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 public class CpuSampler extends DeviceSampler {
@@ -76,12 +79,12 @@ public class CpuSampler extends DeviceSampler {
       try {
         int pid = data.getPid();
         ProcessStatReceiver dumpsysReceiver = new ProcessStatReceiver(pid);
-        device.executeShellCommand("cat /proc/" + pid + "/stat", dumpsysReceiver, 1, TimeUnit.SECONDS);
+        SystemStatReceiver systemStatReceiver = new SystemStatReceiver();
+        DeviceSamplingSession.getInstance(device).executeShellCommands(
+          getName(), Arrays.asList(Pair.create("cat /proc/" + pid + "/stat", dumpsysReceiver), Pair.create("cat /proc/stat", systemStatReceiver)),
+          1, TimeUnit.SECONDS);
         kernelCpuUsage = dumpsysReceiver.getKernelCpuUsage();
         userCpuUsage = dumpsysReceiver.getUserCpuUsage();
-
-        SystemStatReceiver systemStatReceiver = new SystemStatReceiver();
-        device.executeShellCommand("cat /proc/stat", systemStatReceiver, 1, TimeUnit.SECONDS);
         totalUptime = systemStatReceiver.getTotalUptime();
       }
       catch (TimeoutException e) {
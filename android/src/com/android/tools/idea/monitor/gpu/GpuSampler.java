@@ -29,6 +29,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class GpuSampler extends DeviceSampler {
+  public static final String NAME = "GPU Sampler";
+
   private final GfxinfoHandler[] myGfxinfoHandlers = new GfxinfoHandler[]{new JHandler(), new LHandler(), new MHandler()};
   private GfxinfoHandler myCurrentGfxinfoHandler;
   private int myApiLevel = JHandler.MIN_API_LEVEL;
@@ -43,7 +45,7 @@ public class GpuSampler extends DeviceSampler {
   @NotNull
   @Override
   public String getName() {
-    return "GPU Sampler";
+    return NAME;
   }
 
   public int getApiLevel() {
@@ -116,6 +118,11 @@ public class GpuSampler extends DeviceSampler {
       catch (RuntimeException e) {
         throw new InterruptedException("Sample error, interrupting.");
       }
+      catch (InterruptedException e) {
+        // The sampler is being stopped while it waits for its batch, see DeviceSamplingSession.
+        Thread.currentThread().interrupt();
+        return;
+      }
       catch (Exception ignored) {
       }
     }
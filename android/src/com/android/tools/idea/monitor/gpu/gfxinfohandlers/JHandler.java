@@ -18,6 +18,7 @@ package com.android.tools.idea.monitor.gpu.gfxinfohandlers;
 import com.android.ddmlib.*;
 import com.android.tools.adtui.TimelineData;
 import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.DeviceSamplingSession;
 import com.android.tools.idea.monitor.gpu.GpuSampler;
 import com.intellij.util.ThreeState;
 import gnu.trove.TFloatArrayList;
@@ -63,7 +64,7 @@ public final class JHandler implements GfxinfoHandler {
     long currentTime = System.currentTimeMillis();
 
     myReceiver.resetSamples();
-    device.executeShellCommand("dumpsys gfxinfo " + pid, myReceiver, 1, TimeUnit.SECONDS);
+    DeviceSamplingSession.getInstance(device).executeShellCommand(GpuSampler.NAME, "dumpsys gfxinfo " + pid, myReceiver, 1, TimeUnit.SECONDS);
 
     long timeDelta = currentTime - myLastSampleTime;
     if (myReceiver.getLogSize() > 0) {
@@ -21,6 +21,7 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tools.adtui.TimelineData;
 import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.DeviceSamplingSession;
 import com.android.tools.idea.monitor.gpu.GpuSampler;
 import com.intellij.util.ThreeState;
 import gnu.trove.TFloatArrayList;
@@ -63,7 +64,7 @@ public final class LHandler implements GfxinfoHandler {
     long currentTime = System.currentTimeMillis();
 
     myReceiver.resetSamples();
-    device.executeShellCommand("dumpsys gfxinfo " + pid, myReceiver, 1, TimeUnit.SECONDS);
+    DeviceSamplingSession.getInstance(device).executeShellCommand(GpuSampler.NAME, "dumpsys gfxinfo " + pid, myReceiver, 1, TimeUnit.SECONDS);
 
     long timeDelta = currentTime - myLastSampleTime;
     if (myReceiver.getLogSize() > 0) {
@@ -21,6 +21,7 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tools.adtui.TimelineData;
 import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.DeviceSamplingSession;
 import com.android.tools.idea.monitor.gpu.GpuSampler;
 import com.intellij.util.ThreeState;
 import gnu.trove.TLongArrayList;
@@ -69,7 +70,8 @@ public final class MHandler implements GfxinfoHandler {
     int pid = data.getPid();
 
     myReceiver.resetSamples();
-    device.executeShellCommand("dumpsys gfxinfo " + pid + " framestats", myReceiver, 1, TimeUnit.SECONDS);
+    DeviceSamplingSession.getInstance(device)
+      .executeShellCommand(GpuSampler.NAME, "dumpsys gfxinfo " + pid + " framestats", myReceiver, 1, TimeUnit.SECONDS);
 
     if (myIgnoreInitialSamples) {
       synchronizeClocks(device);
@@ -18,6 +18,7 @@ package com.android.tools.idea.monitor.network;
 import com.android.ddmlib.*;
 import com.android.tools.adtui.TimelineData;
 import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.DeviceSamplingSession;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -105,7 +106,7 @@ public class NetworkSampler extends DeviceSampler {
 
     if (myUid < 0) {
       int pid = client.getClientData().getPid();
-      myUid = getUidFromPid(pid, device);
+      myUid = getUidFromPid(pid, device, getName());
       if (myUid < 0) {
         return;
       }
@@ -116,7 +117,7 @@ public class NetworkSampler extends DeviceSampler {
     String command = "cat " + NETWORK_STATS_FILE + " | grep " + receiver.getUid();
     int myDataType = TYPE_DATA;
     try {
-      device.executeShellCommand(command, receiver, MAX_TIMEOUT_SECOND, TimeUnit.SECONDS);
+      DeviceSamplingSession.getInstance(device).executeShellCommand(getName(), command, receiver, MAX_TIMEOUT_SECOND, TimeUnit.SECONDS);
     }
     catch (TimeoutException timeoutException) {
       myDataType = TYPE_TIMEOUT;
@@ -143,10 +144,11 @@ public class NetworkSampler extends DeviceSampler {
     }
   }
 
-  private static int getUidFromPid(int pid, IDevice device) {
+  private static int getUidFromPid(int pid, IDevice device, String samplerName) throws InterruptedException {
     UidReceiver uidReceiver = new UidReceiver();
     try {
-      device.executeShellCommand("cat /proc/" + pid + "/status", uidReceiver, MAX_TIMEOUT_SECOND, TimeUnit.SECONDS);
+      DeviceSamplingSession.getInstance(device)
+        .executeShellCommand(samplerName, "cat /proc/" + pid + "/status", uidReceiver, MAX_TIMEOUT_SECOND, TimeUnit.SECONDS);
     }
     catch (TimeoutException timeoutException) {
       LOG.warning(String.format("TimeoutException to get uid from pid %d", pid));
@@ -47,6 +47,12 @@ import java.util.Collection;
  * This way we avoid custom views breaking the rendering.
  */
 public class ClassConverter {
+  /**
+   * Version of the rewriting done by this class. This must be bumped whenever the output of {@link #rewriteClass} changes,
+   * since rewritten classes are cached on disk by {@link RewrittenClassCache}.
+   */
+  static final int REWRITE_VERSION = 1;
+
   private static final String ORIGINAL_SUFFIX = "_Original";
   private static final String ERROR_METHOD_DESCRIPTION;
   private static final Remapper TYPE_REMAPPER =
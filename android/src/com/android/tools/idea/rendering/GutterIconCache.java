@@ -15,42 +15,79 @@
  */
 package com.android.tools.idea.rendering;
 
+import com.android.annotations.VisibleForTesting;
 import com.android.ide.common.vectordrawable.VdPreview;
 import com.google.common.base.Charsets;
-import com.google.common.collect.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.Files;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.ui.Gray;
 import com.intellij.util.RetinaImage;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.ui.EmptyIcon;
 import com.intellij.util.ui.JBUI;
 import com.intellij.util.ui.UIUtil;
-import icons.AndroidIcons;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.android.SdkConstants.DOT_XML;
 
+/**
+ * Caches the icons shown in the gutter for drawable references.
+ * <p>
+ * Icons are decoded in the background by a small pool, while the gutter shows {@link #PLACEHOLDER}; the gutters of the open editors
+ * are repainted once icons are ready. The cache keeps at most {@link #MAX_ENTRIES} icons, and decodes an icon again when its file
+ * changes on disk or when the display switches between Retina and non-Retina. Files are only checked for changes by the pool,
+ * never by the painting thread.
+ */
 public class GutterIconCache {
   private static final Logger LOG = Logger.getInstance(GutterIconCache.class);
   private static final int MAX_WIDTH = JBUI.scale(16);
   private static final int MAX_HEIGHT = JBUI.scale(16);
-  private static final Icon NONE = AndroidIcons.Android; // placeholder
+
+  /** Shown while an icon is being decoded, with the size of the icons so that the gutter does not change width. */
+  public static final Icon PLACEHOLDER = EmptyIcon.create(MAX_WIDTH, MAX_HEIGHT);
+
+  private static final int MAX_ENTRIES = 500;
+  /** How often the timestamp of a cached icon's file is checked, at most. */
+  private static final long CHECK_INTERVAL_MS = 1000;
 
   private static final GutterIconCache ourInstance = new GutterIconCache();
-  // TODO: Timestamps?
-  private Map<String,Icon> myThumbnailCache = Maps.newHashMap();
-  private boolean myRetina;
-  private static boolean ourRetinaEnabled = true;
+  private final Cache<String, Entry> myThumbnailCache;
+  /** The paths of the icons being checked or decoded. */
+  private final Set<String> myPending = ConcurrentHashMap.newKeySet();
+  private final Executor myExecutor;
+  private final long myCheckIntervalMs;
+  private final AtomicBoolean myRepaintScheduled = new AtomicBoolean();
+  private volatile boolean myRetina;
+  private static volatile boolean ourRetinaEnabled = true;
 
   public GutterIconCache() {
+    this(MAX_ENTRIES, CHECK_INTERVAL_MS, new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, 2));
+  }
+
+  @VisibleForTesting
+  GutterIconCache(int maxEntries, long checkIntervalMs, @NotNull Executor executor) {
+    // A single segment, so that the cache holds maxEntries icons rather than its share per segment.
+    myThumbnailCache = CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(maxEntries).build();
+    myCheckIntervalMs = checkIntervalMs;
+    myExecutor = executor;
   }
 
   @NotNull
@@ -58,45 +95,120 @@ public class GutterIconCache {
     return ourInstance;
   }
 
+  /**
+   * Returns the icon of the given drawable, {@link #PLACEHOLDER} if it is not decoded yet, or null if it cannot be rendered.
+   */
   @Nullable
   public Icon getIcon(@NotNull String path) {
-    boolean isRetina = UIUtil.isRetina();
-    if (myRetina != isRetina) {
-      myRetina = isRetina;
-      myThumbnailCache.clear();
+    boolean retina = isRetina();
+    if (myRetina != retina) {
+      myRetina = retina;
+      myThumbnailCache.invalidateAll();
     }
-    Icon myIcon = myThumbnailCache.get(path);
-    if (myIcon == null) {
-      myIcon = createIcon(path);
 
-      if (myIcon == null) {
-        myIcon = NONE;
+    Entry entry = myThumbnailCache.getIfPresent(path);
+    if (entry == null || entry.myRetina != retina) {
+      // An entry of the other scale was decoded before the switch, but stored after it.
+      decode(path, null);
+      return PLACEHOLDER;
+    }
+
+    long now = System.currentTimeMillis();
+    if (now - entry.myChecked >= myCheckIntervalMs) {
+      entry.myChecked = now;
+      // Keep showing the previous icon until the pool has checked the file, and decoded it again if it changed.
+      decode(path, entry);
+    }
+    return entry.myIcon;
+  }
+
+  /**
+   * Decodes the icon of the given path in the background, unless its file has not changed since the given entry was decoded.
+   */
+  private void decode(@NotNull final String path, @Nullable final Entry previous) {
+    if (!myPending.add(path)) {
+      return;
+    }
+    final boolean retina = myRetina;
+    myExecutor.execute(() -> {
+      boolean changed;
+      try {
+        File file = new File(path);
+        long timestamp = file.lastModified();
+        long length = file.length();
+        changed = previous == null || previous.myTimestamp != timestamp || previous.myLength != length;
+        // Drop icons decoded for the scale in use before a switch; the repaint decodes them again.
+        if (changed && retina == myRetina) {
+          myThumbnailCache.put(path, new Entry(createIcon(path, retina), retina, timestamp, length));
+        }
+      }
+      finally {
+        myPending.remove(path);
+      }
+      if (changed || retina != myRetina) {
+        scheduleRepaint();
       }
+    });
+  }
+
+  @VisibleForTesting
+  boolean isRetina() {
+    return UIUtil.isRetina();
+  }
 
-      myThumbnailCache.put(path, myIcon);
+  /**
+   * Repaints the gutters of all editors, once for all the icons decoded meanwhile.
+   */
+  @VisibleForTesting
+  void scheduleRepaint() {
+    if (!myRepaintScheduled.compareAndSet(false, true)) {
+      return;
     }
+    ApplicationManager.getApplication().invokeLater(() -> {
+      myRepaintScheduled.set(false);
+      for (Editor editor : EditorFactory.getInstance().getAllEditors()) {
+        if (editor instanceof EditorEx) {
+          ((EditorEx)editor).getGutterComponentEx().repaint();
+        }
+      }
+    });
+  }
 
-    return myIcon != NONE ? myIcon : null;
+  private static final class Entry {
+    /** The icon, or null if the file could not be rendered. */
+    @Nullable private final Icon myIcon;
+    /** Whether the icon was decoded for a Retina display. */
+    private final boolean myRetina;
+    private final long myTimestamp;
+    private final long myLength;
+    private volatile long myChecked = System.currentTimeMillis();
+
+    private Entry(@Nullable Icon icon, boolean retina, long timestamp, long length) {
+      myIcon = icon;
+      myRetina = retina;
+      myTimestamp = timestamp;
+      myLength = length;
+    }
   }
 
   @Nullable
-  private static Icon createIcon(@NotNull String path) {
+  private static Icon createIcon(@NotNull String path, boolean retina) {
     if (path.endsWith(DOT_XML)) {
-      return createXmlIcon(path);
+      return createXmlIcon(path, retina);
     } else {
-      return createBitmapIcon(path);
+      return createBitmapIcon(path, retina);
     }
   }
 
   @Nullable
-  private static Icon createXmlIcon(@NotNull String path) {
+  private static Icon createXmlIcon(@NotNull String path, boolean retina) {
     try {
       String xml = Files.toString(new File(path), Charsets.UTF_8);
       // See if this drawable is a vector; we can't render other drawables yet.
       // TODO: Consider resolving selectors to render for example the default image!
       if (xml.contains("<vector")) {
         StringBuilder builder = new StringBuilder();
-        boolean isRetina = ourRetinaEnabled && UIUtil.isRetina();
+        boolean isRetina = ourRetinaEnabled && retina;
         VdPreview.TargetSize imageTargetSize = VdPreview.TargetSize.createSizeFromWidth(isRetina ? 2 * MAX_WIDTH : MAX_WIDTH);
         BufferedImage image = VdPreview.getPreviewFromVectorXml(imageTargetSize, xml, builder);
         if (builder.length() > 0) {
@@ -131,13 +243,13 @@ public class GutterIconCache {
   }
 
   @Nullable
-  private static Icon createBitmapIcon(@NotNull String path) {
+  private static Icon createBitmapIcon(@NotNull String path, boolean retina) {
     try {
       BufferedImage image = ImageIO.read(new File(path));
       if (image != null) {
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
-        if (ourRetinaEnabled && UIUtil.isRetina()) {
+        if (ourRetinaEnabled && retina) {
           BufferedImage scaled = image;
           if (imageWidth > 2 * MAX_WIDTH || imageHeight > 2 * MAX_HEIGHT) {
             double scale = 2 * Math.min(MAX_WIDTH / (double)imageWidth, MAX_HEIGHT / (double)imageHeight);
@@ -36,7 +36,6 @@ import java.io.File;
 public class GutterIconRenderer extends com.intellij.openapi.editor.markup.GutterIconRenderer implements DumbAware {
   private final PsiElement myElement;
   private final File myFile;
-  private Icon myIcon;
 
   public GutterIconRenderer(@NotNull PsiElement element, @NotNull File file) {
     myElement = element;
@@ -46,14 +45,9 @@ public class GutterIconRenderer extends com.intellij.openapi.editor.markup.Gutte
   @NotNull
   @Override
   public Icon getIcon() {
-    if (myIcon == null) {
-      myIcon = GutterIconCache.getInstance().getIcon(myFile.getPath());
-      if (myIcon == null) {
-        myIcon = AllIcons.General.Error;
-      }
-    }
-
-    return myIcon;
+    // Not kept here: the cache returns a placeholder until the icon is decoded, and decodes it again when the file changes.
+    Icon icon = GutterIconCache.getInstance().getIcon(myFile.getPath());
+    return icon != null ? icon : AllIcons.General.Error;
   }
 
   @Nullable
@@ -148,7 +148,7 @@ public abstract class RenderClassLoader extends ClassLoader {
 
   @NotNull
   protected byte[] convertClass(@NotNull byte[] data) {
-    return ClassConverter.rewriteClass(data, myLayoutlibApiLevel);
+    return RewrittenClassCache.getInstance().rewriteClass(data, myLayoutlibApiLevel);
   }
 
   @NotNull
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.List;
+
+/**
+ * A pool of the images a {@link RenderTask} renders into.
+ * <p>
+ * Drawing into an image which is still shown causes flicker (see http://b.android.com/208984): the image of the previous
+ * {@link RenderResult} may still be painted, or be about to be, while the next render draws into it. An image handed out
+ * by the pool is therefore owned by the {@link RenderResult results} which show it, see {@link #addOwner}, and is only
+ * drawn into again once each of them is disposed, or was replaced and garbage collected. An image which no result took,
+ * because its render failed, is free again as soon as the next render asks for an image.
+ * <p>
+ * Free images are reused as long as the requested size matches, and are cleared before being handed out again. They are
+ * only softly referenced, so idle tasks do not pin their images under memory pressure.
+ */
+public class RenderImagePool {
+  /** How many free images are kept, enough for the images of the previous render and of the one before it. */
+  private static final int MAX_FREE_IMAGES = 2;
+
+  /** The images which can be drawn into, most recently freed last. */
+  private final List<SoftReference<BufferedImage>> myFreeImages = new ArrayList<>();
+  /** The images handed out by {@link #getImage} which no result owns yet. */
+  private final List<BufferedImage> myPendingImages = new ArrayList<>();
+  /** The images owned by results, with their owners. */
+  private final Map<BufferedImage, List<WeakReference<Object>>> myOwnedImages = new IdentityHashMap<>();
+
+  /**
+   * Returns an image of the given size to render into. The image is fully transparent, and is not used by any result.
+   */
+  @SuppressWarnings("UndesirableClassUsage") // Don't need Retina for layoutlib rendering; will scale down anyway
+  @NotNull
+  public synchronized BufferedImage getImage(int width, int height) {
+    // The render which asked for the pending images is over, and no result took them.
+    for (BufferedImage image : myPendingImages) {
+      free(image);
+    }
+    myPendingImages.clear();
+    for (Iterator<Map.Entry<BufferedImage, List<WeakReference<Object>>>> it = myOwnedImages.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<BufferedImage, List<WeakReference<Object>>> entry = it.next();
+      removeOwner(entry.getValue(), null);
+      if (entry.getValue().isEmpty()) {
+        it.remove();
+        free(entry.getKey());
+      }
+    }
+
+    BufferedImage image = takeFreeImage(width, height);
+    if (image != null) {
+      Graphics2D g = image.createGraphics();
+      try {
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, width, height);
+      }
+      finally {
+        g.dispose();
+      }
+    }
+    else {
+      image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+    myPendingImages.add(image);
+    return image;
+  }
+
+  /**
+   * Records that the given image, if it was handed out by this pool, is shown by the given result. It is not drawn into
+   * again until each of its owners {@link #release released} it or was garbage collected.
+   */
+  public synchronized void addOwner(@NotNull BufferedImage image, @NotNull Object owner) {
+    List<WeakReference<Object>> owners = myOwnedImages.get(image);
+    if (owners == null) {
+      if (!myPendingImages.remove(image)) {
+        return;
+      }
+      owners = new ArrayList<>();
+      myOwnedImages.put(image, owners);
+    }
+    owners.add(new WeakReference<>(owner));
+  }
+
+  /**
+   * Records that the given owner does not show the given image anymore. The image is returned to the pool once no
+   * owner is left.
+   */
+  public synchronized void release(@NotNull BufferedImage image, @NotNull Object owner) {
+    List<WeakReference<Object>> owners = myOwnedImages.get(image);
+    if (owners != null) {
+      removeOwner(owners, owner);
+      if (owners.isEmpty()) {
+        myOwnedImages.remove(image);
+        free(image);
+      }
+    }
+  }
+
+  /** Releases the pooled images. The images owned by results are left to them. */
+  public synchronized void dispose() {
+    myFreeImages.clear();
+    myPendingImages.clear();
+    myOwnedImages.clear();
+  }
+
+  /**
+   * Removes the given owner, and the owners which were garbage collected.
+   */
+  private static void removeOwner(@NotNull List<WeakReference<Object>> owners, @Nullable Object owner) {
+    for (Iterator<WeakReference<Object>> it = owners.iterator(); it.hasNext(); ) {
+      Object o = it.next().get();
+      if (o == null || o == owner) {
+        it.remove();
+      }
+    }
+  }
+
+  private void free(@NotNull BufferedImage image) {
+    myFreeImages.add(new SoftReference<>(image));
+    if (myFreeImages.size() > MAX_FREE_IMAGES) {
+      myFreeImages.remove(0);
+    }
+  }
+
+  @Nullable
+  private BufferedImage takeFreeImage(int width, int height) {
+    for (Iterator<SoftReference<BufferedImage>> it = myFreeImages.iterator(); it.hasNext(); ) {
+      BufferedImage image = it.next().get();
+      if (image == null) {
+        it.remove();
+      }
+      else if (image.getWidth() == width && image.getHeight() == height) {
+        it.remove();
+        return image;
+      }
+    }
+    return null;
+  }
+}
@@ -77,6 +77,10 @@ public class RenderResult {
       }
       // image might be null if we only inflated the layout but we didn't call render
       myImage = image != null ? new RenderedImage(configuration, image, alphaChannelImage, shadowType) : null;
+      if (image != null) {
+        // The task does not render into the image again while this result shows it.
+        renderTask.getImagePool().addOwner(image, this);
+      }
       Map<Object, PropertiesMap> defaultProperties = session.getDefaultProperties();
       myDefaultProperties = defaultProperties != null ? defaultProperties : Collections.emptyMap();
     } else {
@@ -103,6 +107,16 @@ public class RenderResult {
     return new RenderResult(null, null, file, logger != null ? logger : new RenderLogger(null, module));
   }
 
+  /**
+   * Gives the rendered image back to the task which rendered it, to render into it again. The image must not be used
+   * after this call. Results which are not disposed give their image back once they are garbage collected.
+   */
+  public void dispose() {
+    if (myRenderTask != null && myImage != null) {
+      myRenderTask.getImagePool().release(myImage.getOriginalImage(), this);
+    }
+  }
+
   @NotNull
   public Result getRenderResult() {
     return myRenderResult;
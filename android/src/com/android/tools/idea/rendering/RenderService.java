@@ -16,6 +16,7 @@
 package com.android.tools.idea.rendering;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
 import com.android.ide.common.rendering.LayoutLibrary;
 import com.android.ide.common.rendering.api.Features;
 import com.android.ide.common.rendering.api.MergeCookie;
@@ -49,6 +50,7 @@ import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.maven.AndroidMavenUtil;
 import org.jetbrains.android.sdk.AndroidPlatform;
 import org.jetbrains.android.sdk.AndroidSdkUtils;
+import org.jetbrains.android.uipreview.ModuleClassLoader;
 import org.jetbrains.android.util.AndroidBundle;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -57,6 +59,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.android.SdkConstants.TAG_PREFERENCE_SCREEN;
@@ -73,21 +76,32 @@ public class RenderService {
   /** Number of ms that we will wait for the rendering thread to return before timing out */
   private static final int DEFAULT_RENDER_THREAD_TIMEOUT_MS = Integer.getInteger("layoutlib.thread.timeout", 6000);
 
-  private static final AtomicReference<Thread> ourRenderingThread = new AtomicReference<>();
-  private static final ExecutorService ourRenderingExecutor = Executors.newSingleThreadExecutor((Runnable r) -> {
-    Thread renderingThread = new Thread(null, r, "Layoutlib Render Thread");
-    renderingThread.setDaemon(true);
-    ourRenderingThread.set(renderingThread);
+  /** Number of render worker threads */
+  private static final int RENDER_THREAD_COUNT =
+    Math.max(1, Integer.getInteger("layoutlib.thread.count", Math.min(2, Runtime.getRuntime().availableProcessors())));
 
-    return renderingThread;
-  });
-  private static final AtomicInteger ourTimeoutExceptionCounter = new AtomicInteger(0);
+  /**
+   * Priority of a render action. Each worker runs its queued actions by priority, so for example the layout shown in
+   * the visible editor is rendered before queued palette icons or drawable previews.
+   */
+  public enum RenderPriority {
+    HIGH,
+    NORMAL,
+    LOW
+  }
+
+  private static final RenderWorker[] ourRenderWorkers = new RenderWorker[RENDER_THREAD_COUNT];
 
   static {
-    // Register the executor to be shutdown on close
+    for (int i = 0; i < ourRenderWorkers.length; i++) {
+      ourRenderWorkers[i] = new RenderWorker(ourRenderWorkers.length == 1 ? "Layoutlib Render Thread"
+                                                                         : "Layoutlib Render Thread " + (i + 1));
+    }
+    // Register the executors to be shutdown on close
     ShutDownTracker.getInstance().registerShutdownTask(() -> {
-      ourRenderingExecutor.shutdownNow();
-      ourRenderingThread.set(null);
+      for (RenderWorker worker : ourRenderWorkers) {
+        worker.shutdown();
+      }
     });
   }
 
@@ -381,42 +395,121 @@ public class RenderService {
   }
 
   /**
-   * Runs a action that requires the rendering lock. Layoutlib is not thread safe so any rendering actions should be called using this
-   * method.
+   * Runs a action that requires the rendering lock, on the render worker assigned to the given affinity key.
+   * <p>
+   * Layoutlib is not thread safe: the framework state it sets up for a session (the current context, the
+   * {@link ModuleClassLoader} loaded views and so on) must only be touched from one thread at a time. All the actions
+   * for a given key (normally the {@link Module}, which has its own {@link ModuleClassLoader}) are therefore always run
+   * on the same worker, in priority order, so the sessions of a module never race with each other.
+   * <p>
+   * Actions of different modules may run on different workers, but this does not make their renders parallel:
+   * layoutlib still takes its global render lock around every inflate and render call. Only the work an action
+   * does outside of those calls overlaps, and an action queued behind another module's work on a different worker
+   * does not have to wait for that queue to drain.
+   *
+   * @param callable the action to run
+   * @param affinity the key selecting the worker
+   * @param priority the priority of the action within its worker queue
    */
-  public static void runRenderAction(@NotNull final Runnable runnable) throws Exception {
-    runRenderAction(Executors.callable(runnable));
+  public static <T> T runRenderAction(@NotNull Callable<T> callable, @NotNull Object affinity, @NotNull RenderPriority priority)
+    throws Exception {
+    RenderWorker worker = ourRenderWorkers[Math.abs(affinity.hashCode() % ourRenderWorkers.length)];
+    return worker.run(callable, priority);
   }
 
   /**
-   * Runs a action that requires the rendering lock. Layoutlib is not thread safe so any rendering actions should be called using this
-   * method.
+   * A single render thread with its own priority queue and timeout accounting. Queued actions run by priority, and in
+   * submission order within a priority.
+   * <p>
+   * A caller waiting for an action gets a {@link TimeoutException} after the timeout, but the action itself is not
+   * cancelled, since it may be disposing a session. Note that a render hanging inside layoutlib (e.g. a custom view with
+   * an infinite loop) holds layoutlib's global lock, so it stalls the other workers too as soon as they call into
+   * layoutlib; they time out in the same way.
    */
-  public static <T> T runRenderAction(@NotNull Callable<T> callable) throws Exception {
-    try {
-      // If the number of timeouts exceeds a certain threshold, stop waiting so the caller doesn't block. We try to submit a task that
-      // clean-up the timeout counter instead. If it goes through, it means the queue is free.
-      if (ourTimeoutExceptionCounter.get() > 3) {
-        ourRenderingExecutor.submit(() -> ourTimeoutExceptionCounter.set(0)).get(50, TimeUnit.MILLISECONDS);
-      }
+  @VisibleForTesting
+  static class RenderWorker {
+    private final AtomicReference<Thread> myThread = new AtomicReference<>();
+    private final AtomicInteger myTimeoutExceptionCounter = new AtomicInteger(0);
+    private final AtomicLong mySequence = new AtomicLong();
+    private final ThreadPoolExecutor myExecutor;
+    private final int myTimeoutMs;
+
+    RenderWorker(@NotNull String name) {
+      this(name, DEFAULT_RENDER_THREAD_TIMEOUT_MS);
+    }
 
-      T result = ourRenderingExecutor.submit(callable).get(DEFAULT_RENDER_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-      // The executor seems to be taking tasks so reset the counter
-      ourTimeoutExceptionCounter.set(0);
+    @VisibleForTesting
+    RenderWorker(@NotNull String name, int timeoutMs) {
+      myTimeoutMs = timeoutMs;
+      myExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), (Runnable r) -> {
+        Thread renderingThread = new Thread(null, r, name);
+        renderingThread.setDaemon(true);
+        myThread.set(renderingThread);
 
-      return result;
+        return renderingThread;
+      });
     }
-    catch (TimeoutException e) {
-      ourTimeoutExceptionCounter.incrementAndGet();
-
-      Thread renderingThread = ourRenderingThread.get();
-      TimeoutException timeoutException = new TimeoutException("Preview timed out while rendering the layout.\n" +
-                                                               "This typically happens when there is an infinite loop or unbounded recursion in one of the custom views.");
-      if (renderingThread != null) {
-        timeoutException.setStackTrace(renderingThread.getStackTrace());
+
+    @NotNull
+    @VisibleForTesting
+    <T> Future<T> submit(@NotNull Callable<T> callable, @NotNull RenderPriority priority) {
+      PrioritizedTask<T> task = new PrioritizedTask<>(callable, priority, mySequence.getAndIncrement());
+      myExecutor.execute(task);
+      return task;
+    }
+
+    <T> T run(@NotNull Callable<T> callable, @NotNull RenderPriority priority) throws Exception {
+      try {
+        // If the number of timeouts exceeds a certain threshold, stop waiting so the caller doesn't block. We try to submit a task that
+        // clean-up the timeout counter instead. If it goes through, it means the queue is free.
+        if (myTimeoutExceptionCounter.get() > 3) {
+          submit(() -> {
+            myTimeoutExceptionCounter.set(0);
+            return null;
+          }, RenderPriority.HIGH).get(50, TimeUnit.MILLISECONDS);
+        }
+
+        T result = submit(callable, priority).get(myTimeoutMs, TimeUnit.MILLISECONDS);
+        // The executor seems to be taking tasks so reset the counter
+        myTimeoutExceptionCounter.set(0);
+
+        return result;
       }
+      catch (TimeoutException e) {
+        myTimeoutExceptionCounter.incrementAndGet();
+
+        Thread renderingThread = myThread.get();
+        TimeoutException timeoutException = new TimeoutException("Preview timed out while rendering the layout.\n" +
+                                                                 "This typically happens when there is an infinite loop or unbounded recursion in one of the custom views.");
+        if (renderingThread != null) {
+          timeoutException.setStackTrace(renderingThread.getStackTrace());
+        }
+
+        throw timeoutException;
+      }
+    }
+
+    void shutdown() {
+      myExecutor.shutdownNow();
+      myThread.set(null);
+    }
+  }
+
+  /** A render action ordered by priority, and then by submission order. */
+  private static class PrioritizedTask<T> extends FutureTask<T> implements Comparable<PrioritizedTask<?>> {
+    private final RenderPriority myPriority;
+    private final long mySequence;
+
+    PrioritizedTask(@NotNull Callable<T> callable, @NotNull RenderPriority priority, long sequence) {
+      super(callable);
+      myPriority = priority;
+      mySequence = sequence;
+    }
 
-      throw timeoutException;
+    @Override
+    public int compareTo(@NotNull PrioritizedTask<?> other) {
+      int result = myPriority.compareTo(other.myPriority);
+      return result != 0 ? result : Long.compare(mySequence, other.mySequence);
     }
   }
 
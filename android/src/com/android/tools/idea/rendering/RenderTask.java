@@ -50,7 +50,6 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.psi.xml.XmlTag;
-import com.intellij.reference.SoftReference;
 import org.intellij.lang.annotations.MagicConstant;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.sdk.AndroidPlatform;
@@ -66,6 +65,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.SdkConstants.*;
@@ -117,6 +117,9 @@ public class RenderTask implements IImageFactory {
 
   private long myTimeout;
 
+  @NotNull
+  private RenderService.RenderPriority myPriority = RenderService.RenderPriority.NORMAL;
+
   @Nullable
   private Set<XmlTag> myExpandNodes;
 
@@ -134,8 +137,8 @@ public class RenderTask implements IImageFactory {
   private final FakeImageFactory myFakeImageFactory = new FakeImageFactory();
   private RenderSession myRenderSession;
   private IImageFactory myImageFactoryDelegate;
-  /** Cached {@link BufferedImage} that will be returned when direct rendering is not used. See {@link #render(Graphics2D)} */
-  private SoftReference<BufferedImage> myCachedImageReference;
+  /** Images that will be returned when direct rendering is not used. See {@link #render(Graphics2D)} */
+  private final RenderImagePool myImagePool = new RenderImagePool();
 
   /**
    * Don't create this task directly; obtain via {@link com.android.tools.idea.rendering.RenderService}
@@ -247,13 +250,14 @@ public class RenderTask implements IImageFactory {
              !ApplicationManager.getApplication().isReadAccessAllowed() : "Do not hold read lock during dispose!";
 
       try {
-        RenderService.runRenderAction(myRenderSession::dispose);
+        runRenderAction(myRenderSession::dispose);
         myRenderSession = null;
       }
       catch (Exception ignored) {
       }
     }
     myImageFactoryDelegate = null;
+    myImagePool.dispose();
   }
 
   /**
@@ -313,6 +317,24 @@ public class RenderTask implements IImageFactory {
     return this;
   }
 
+  /**
+   * Sets the priority of this task's render actions relative to other queued render actions. Background renders,
+   * such as thumbnails, should use a lower priority than the layout shown in the editor.
+   */
+  public RenderTask setPriority(@NotNull RenderService.RenderPriority priority) {
+    myPriority = priority;
+    return this;
+  }
+
+  /** Runs a render action on the render worker for this task's module (see {@link RenderService#runRenderAction}). */
+  private <T> T runRenderAction(@NotNull Callable<T> callable) throws Exception {
+    return RenderService.runRenderAction(callable, myRenderService.getModule(), myPriority);
+  }
+
+  private void runRenderAction(@NotNull Runnable runnable) throws Exception {
+    runRenderAction(Executors.callable(runnable));
+  }
+
   /**
    * Sets the overriding background color to be used, if any. The color should be a
    * bitmask of AARRGGBB. The default is null.
@@ -656,7 +678,7 @@ public class RenderTask implements IImageFactory {
     }
 
     try {
-      return RenderService.runRenderAction(() -> createRenderSession((width, height) -> {
+      return runRenderAction(() -> createRenderSession((width, height) -> {
         if (myImageFactoryDelegate != null) {
           return myImageFactoryDelegate.getImage(width, height);
         }
@@ -694,7 +716,7 @@ public class RenderTask implements IImageFactory {
     assert myPsiFile != null;
 
     try {
-      return RenderService.runRenderAction(() -> {
+      return runRenderAction(() -> {
         myRenderSession.render();
         return new RenderResult(this, myRenderSession, myPsiFile, myLogger);
       });
@@ -792,7 +814,7 @@ public class RenderTask implements IImageFactory {
     params.setAssetRepository(myAssetRepository);
 
     try {
-      Result result = RenderService.runRenderAction(new Callable<Result>() {
+      Result result = runRenderAction(new Callable<Result>() {
         @Override
         public Result call() throws Exception {
           return myLayoutLib.renderDrawable(params);
@@ -841,7 +863,7 @@ public class RenderTask implements IImageFactory {
     }
 
     try {
-      Result result = RenderService.runRenderAction(new Callable<Result>() {
+      Result result = runRenderAction(new Callable<Result>() {
         @Override
         public Result call() throws Exception {
           return myLayoutLib.renderDrawable(params);
@@ -899,22 +921,15 @@ public class RenderTask implements IImageFactory {
 
   // ---- Implements IImageFactory ----
 
-  @SuppressWarnings("UndesirableClassUsage") // Don't need Retina for layoutlib rendering; will scale down anyway
   @Override
   public BufferedImage getImage(int width, int height) {
-    BufferedImage cached = myCachedImageReference != null ? myCachedImageReference.get() : null;
-
-    // This can cause flicker; see steps listed in http://b.android.com/208984
-    // Temporarily disable image cache.
-    // TODO: Reenable!
-    cached = null;
-
-    if (cached == null || cached.getWidth() != width || cached.getHeight() != height) {
-      cached = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-      myCachedImageReference = new SoftReference<>(cached);
-    }
+    return myImagePool.getImage(width, height);
+  }
 
-    return cached;
+  /** Returns the pool of the images this task renders into. */
+  @NotNull
+  RenderImagePool getImagePool() {
+    return myImagePool;
   }
 
   /**
@@ -977,7 +992,7 @@ public class RenderTask implements IImageFactory {
     Map<XmlTag, ViewInfo> map = Maps.newHashMap();
     RenderSession session = null;
     try {
-      session = RenderService.runRenderAction(() -> measure(modelParser));
+      session = runRenderAction(() -> measure(modelParser));
     }
     catch (Exception ignored) {
     }
@@ -1000,7 +1015,7 @@ public class RenderTask implements IImageFactory {
         return map;
       } finally {
         try {
-          RenderService.runRenderAction(session::dispose);
+          runRenderAction(session::dispose);
         }
         catch (Exception ignored) {
         }
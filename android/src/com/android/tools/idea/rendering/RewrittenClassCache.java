@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.intellij.ide.caches.CachesInvalidator;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A content-addressed, on-disk cache of the classes rewritten by {@link ClassConverter}, shared by all
+ * {@link RenderClassLoader}s. Rewriting a class with ASM is repeated for every class layoutlib touches each time a
+ * module class loader is recreated (e.g. after every build), even though most classes have not changed.
+ * <p>
+ * Entries are keyed by a hash of the original class bytes, the layoutlib API level and the target class file version,
+ * and stored under a directory for the current {@link ClassConverter#REWRITE_VERSION}. Since an entry is fully
+ * determined by its key, entries are written once and never updated; directories of older rewrite versions are
+ * deleted the first time the cache is used.
+ * <p>
+ * The size of the cache is checked once per session, in the background: if it is over {@link #MAX_CACHE_SIZE}, the
+ * least recently used entries are deleted. An entry's timestamp is its last use, updated at most once per
+ * {@link #TOUCH_INTERVAL_MS} so that most hits don't write to the disk.
+ */
+public class RewrittenClassCache {
+  private static final Logger LOG = Logger.getInstance(RewrittenClassCache.class);
+
+  private static final String CACHE_DIRECTORY = "layoutlib_class_cache";
+
+  /** Size above which the least recently used entries are deleted. */
+  private static final long MAX_CACHE_SIZE = 128 * 1024 * 1024;
+
+  /** How stale the timestamp of an entry may get before a hit updates it. */
+  private static final long TOUCH_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+  private static final AtomicLong ourHits = new AtomicLong();
+  private static final AtomicLong ourMisses = new AtomicLong();
+
+  private static RewrittenClassCache ourInstance;
+
+  private final File myRootDir;
+  private final File myVersionDir;
+  private final long myMaxSize;
+
+  @VisibleForTesting
+  RewrittenClassCache(@NotNull File rootDirParent) {
+    this(rootDirParent, MAX_CACHE_SIZE);
+  }
+
+  @VisibleForTesting
+  RewrittenClassCache(@NotNull File rootDirParent, long maxSize) {
+    myRootDir = new File(rootDirParent, CACHE_DIRECTORY);
+    myVersionDir = new File(myRootDir, "v" + ClassConverter.REWRITE_VERSION);
+    myMaxSize = maxSize;
+  }
+
+  @NotNull
+  public static synchronized RewrittenClassCache getInstance() {
+    if (ourInstance == null) {
+      ourInstance = new RewrittenClassCache(new File(PathManager.getSystemPath()));
+      ourInstance.deleteObsoleteVersions();
+      PooledThreadExecutor.INSTANCE.execute(ourInstance::prune);
+    }
+    return ourInstance;
+  }
+
+  /**
+   * Returns the given class rewritten for the current JDK (see {@link ClassConverter#rewriteClass(byte[], int)}),
+   * from the cache if possible.
+   */
+  @NotNull
+  public byte[] rewriteClass(@NotNull byte[] classData, int layoutlibApi) {
+    int targetVersion = ClassConverter.getCurrentClassVersion();
+    File entry = getEntryFile(classData, layoutlibApi, targetVersion);
+    byte[] rewritten = read(entry);
+    if (rewritten != null) {
+      ourHits.incrementAndGet();
+      touch(entry);
+      return rewritten;
+    }
+    ourMisses.incrementAndGet();
+    rewritten = ClassConverter.rewriteClass(classData, targetVersion, 0, layoutlibApi);
+    write(entry, rewritten);
+    return rewritten;
+  }
+
+  /** Returns the number of classes found in the cache. */
+  public static long getHitCount() {
+    return ourHits.get();
+  }
+
+  /** Returns the number of classes that had to be rewritten. */
+  public static long getMissCount() {
+    return ourMisses.get();
+  }
+
+  public void invalidate() {
+    FileUtil.delete(myRootDir);
+  }
+
+  @VisibleForTesting
+  @NotNull
+  File getEntryFile(@NotNull byte[] classData, int layoutlibApi, int targetVersion) {
+    String hash = Hashing.murmur3_128().hashBytes(classData).toString();
+    // Spread the entries over subdirectories to keep the directories small.
+    File dir = new File(myVersionDir, hash.substring(0, 2));
+    return new File(dir, hash + '-' + classData.length + '-' + layoutlibApi + '-' + targetVersion + ".class");
+  }
+
+  @Nullable
+  private static byte[] read(@NotNull File entry) {
+    try {
+      RandomAccessFile file = new RandomAccessFile(entry, "r");
+      try {
+        byte[] data = new byte[(int)file.length()];
+        file.readFully(data);
+        return ClassConverter.isValidClassFile(data) ? data : null;
+      }
+      finally {
+        file.close();
+      }
+    }
+    catch (IOException e) {
+      // Not cached (or not readable); rewrite instead
+      return null;
+    }
+  }
+
+  private static void write(@NotNull File entry, @NotNull byte[] rewritten) {
+    try {
+      FileUtil.ensureExists(entry.getParentFile());
+      // Write to a temporary file first, so concurrent readers (possibly in another IDE instance) never see a partial entry.
+      File tempFile = FileUtil.createTempFile(entry.getParentFile(), entry.getName(), ".tmp", true, false);
+      FileOutputStream out = new FileOutputStream(tempFile);
+      try {
+        out.write(rewritten);
+      }
+      finally {
+        out.close();
+      }
+      if (!tempFile.renameTo(entry)) {
+        // Most likely written concurrently by someone else.
+        FileUtil.delete(tempFile);
+      }
+    }
+    catch (IOException e) {
+      LOG.debug("Could not cache rewritten class " + entry, e);
+    }
+  }
+
+  private static void touch(@NotNull File entry) {
+    long now = System.currentTimeMillis();
+    if (now - entry.lastModified() > TOUCH_INTERVAL_MS) {
+      //noinspection ResultOfMethodCallIgnored
+      entry.setLastModified(now);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries of the current version if the cache is larger than its limit. Deletes down
+   * to 3/4 of the limit, so that the next sessions don't have to prune again right away.
+   */
+  @VisibleForTesting
+  void prune() {
+    File[] dirs = myVersionDir.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    List<File> entries = new ArrayList<>();
+    for (File dir : dirs) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        Collections.addAll(entries, files);
+      }
+    }
+    long[] lastModified = new long[entries.size()];
+    long[] lengths = new long[entries.size()];
+    Integer[] order = new Integer[entries.size()];
+    long total = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      File entry = entries.get(i);
+      lastModified[i] = entry.lastModified();
+      lengths[i] = entry.length();
+      order[i] = i;
+      total += lengths[i];
+    }
+    if (total <= myMaxSize) {
+      return;
+    }
+    Arrays.sort(order, (i1, i2) -> Long.compare(lastModified[i1], lastModified[i2]));
+    long target = myMaxSize / 4 * 3;
+    int deleted = 0;
+    for (int i = 0; i < order.length && total > target; i++) {
+      // May fail for an entry that is being read on Windows; it will be deleted next time.
+      if (FileUtil.delete(entries.get(order[i]))) {
+        total -= lengths[order[i]];
+        deleted++;
+      }
+    }
+    LOG.info("Deleted " + deleted + " least recently used entries from " + myVersionDir);
+  }
+
+  private void deleteObsoleteVersions() {
+    File[] versions = myRootDir.listFiles();
+    if (versions == null) {
+      return;
+    }
+    for (File version : versions) {
+      if (!FileUtil.filesEqual(version, myVersionDir)) {
+        FileUtil.asyncDelete(version);
+      }
+    }
+  }
+
+  public static class CacheInvalidator extends CachesInvalidator {
+    @Override
+    public void invalidateCaches() {
+      getInstance().invalidate();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.res;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ide.common.res2.ResourceFile;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.intellij.ide.caches.CachesInvalidator;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.android.SdkConstants.FD_RES_VALUES;
+
+/**
+ * An application-wide, on-disk store of {@link ResourceFolderRepositorySnapshot}s for the res/ folders of
+ * exploded AARs, so that libraries such as appcompat are parsed once rather than once per project and IDE session.
+ * <p>
+ * Snapshots are keyed by the res/ folder path plus a fingerprint of its contents (the relative path, length and
+ * timestamp of every file, and the contents of the values files). A snapshot is therefore never rewritten in place:
+ * if the AAR is re-extracted with different contents, a new snapshot is written and the stale one is deleted. This
+ * is what makes it safe to memory-map the snapshots when loading them.
+ */
+final class AarResourceSnapshotStore {
+  private static final Logger LOG = Logger.getInstance(AarResourceSnapshotStore.class);
+
+  private static final String CACHE_DIRECTORY = "aar_resource_cache";
+  private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+  private static AarResourceSnapshotStore ourInstance;
+
+  private final File myRootDir;
+
+  @VisibleForTesting
+  AarResourceSnapshotStore(@NotNull File rootDirParent) {
+    myRootDir = new File(rootDirParent, CACHE_DIRECTORY);
+  }
+
+  @NotNull
+  static synchronized AarResourceSnapshotStore getInstance() {
+    if (ourInstance == null) {
+      ourInstance = new AarResourceSnapshotStore(new File(PathManager.getSystemPath()));
+    }
+    return ourInstance;
+  }
+
+  @VisibleForTesting
+  static synchronized void setInstance(@Nullable AarResourceSnapshotStore store) {
+    ourInstance = store;
+  }
+
+  /**
+   * Computes the fingerprint of the given res/ folder. Besides the directory listing, this hashes the contents of
+   * the values files: AARs built with fixed zip timestamps can change a value without changing the length or
+   * timestamp of its file. The snapshot does not hold the contents of the other files, so their listing is enough.
+   * This is still cheap compared to parsing the folder.
+   *
+   * @return the fingerprint, or null if the folder cannot be listed or a values file cannot be read
+   */
+  @Nullable
+  static String computeFingerprint(@NotNull File resourceDir) {
+    File[] folders = resourceDir.listFiles();
+    if (folders == null) {
+      return null;
+    }
+    Arrays.sort(folders);
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (File folder : folders) {
+      File[] files = folder.listFiles();
+      if (files == null) {
+        continue;
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        hasher.putString(folder.getName(), Charsets.UTF_8);
+        hasher.putChar('/');
+        hasher.putString(file.getName(), Charsets.UTF_8);
+        hasher.putLong(file.length());
+        hasher.putLong(file.lastModified());
+        if (folder.getName().startsWith(FD_RES_VALUES)) {
+          try {
+            hasher.putLong(Files.hash(file, Hashing.murmur3_128()).asLong());
+          }
+          catch (IOException e) {
+            return null;
+          }
+        }
+      }
+    }
+    return Long.toHexString(hasher.hash().asLong());
+  }
+
+  /**
+   * Returns the stored snapshot for the given res/ folder and fingerprint, or null if there is none. A snapshot which
+   * cannot be decoded is deleted, so that it is written again once the folder has been parsed.
+   */
+  @Nullable
+  ResourceFolderRepositorySnapshot load(@NotNull File resourceDir, @NotNull String fingerprint, @Nullable String libraryName) {
+    File snapshotFile = getSnapshotFile(resourceDir, fingerprint);
+    ResourceFolderRepositorySnapshot snapshot = ResourceFolderRepositorySnapshot.load(snapshotFile, resourceDir, libraryName, true);
+    if (snapshot == null && snapshotFile.exists()) {
+      FileUtil.delete(snapshotFile);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Stores a snapshot of the given files under the given fingerprint, and deletes any snapshots of the same
+   * res/ folder stored under other fingerprints.
+   */
+  void save(@NotNull File resourceDir, @NotNull String fingerprint,
+            @NotNull Map<ResourceFolderRepositorySnapshot.FileInfo, ResourceFile> files) {
+    File snapshotFile = getSnapshotFile(resourceDir, fingerprint);
+    if (snapshotFile.exists()) {
+      // Another project stored the same contents in the meantime.
+      return;
+    }
+    try {
+      ResourceFolderRepositorySnapshot.write(snapshotFile, resourceDir, files);
+    }
+    catch (IOException e) {
+      LOG.warn("Failed to store resource snapshot for " + resourceDir, e);
+      return;
+    }
+
+    deleteSnapshots(resourceDir, snapshotFile);
+  }
+
+  /**
+   * Deletes the snapshots of the given res/ folder, after one of them turned out to be damaged while decoding its items.
+   */
+  void delete(@NotNull File resourceDir) {
+    deleteSnapshots(resourceDir, null);
+  }
+
+  private void deleteSnapshots(@NotNull File resourceDir, @Nullable File keep) {
+    String prefix = getSnapshotPrefix(resourceDir);
+    File[] snapshots = myRootDir.listFiles();
+    if (snapshots != null) {
+      for (File snapshot : snapshots) {
+        if (snapshot.getName().startsWith(prefix) && (keep == null || !FileUtil.filesEqual(snapshot, keep))) {
+          FileUtil.delete(snapshot);
+        }
+      }
+    }
+  }
+
+  void invalidate() {
+    FileUtil.delete(myRootDir);
+  }
+
+  @NotNull
+  private File getSnapshotFile(@NotNull File resourceDir, @NotNull String fingerprint) {
+    return new File(myRootDir, getSnapshotPrefix(resourceDir) + fingerprint + SNAPSHOT_EXTENSION);
+  }
+
+  /**
+   * Returns the file name prefix shared by all snapshots of the given res/ folder: the (sanitized) name of the
+   * exploded AAR directory, for readability, followed by a hash of the full path.
+   */
+  @NotNull
+  private static String getSnapshotPrefix(@NotNull File resourceDir) {
+    File aarDir = resourceDir.getParentFile();
+    String name = aarDir != null ? FileUtil.sanitizeFileName(aarDir.getName()) : "";
+    long pathHash = Hashing.murmur3_128().hashString(resourceDir.getPath(), Charsets.UTF_8).asLong();
+    return name + "-" + Long.toHexString(pathHash) + "-";
+  }
+
+  /**
+   * The metadata recorded for a file of an AAR. Files are never checked by content, since the snapshot is already
+   * keyed by the fingerprint of the folder.
+   */
+  static final class AarFileInfo implements ResourceFolderRepositorySnapshot.FileInfo {
+    private final String myRelativePath;
+    private final long myTimestamp;
+    private final long myLength;
+
+    AarFileInfo(@NotNull String relativePath, @NotNull File file) {
+      myRelativePath = relativePath;
+      myTimestamp = file.lastModified();
+      myLength = file.length();
+    }
+
+    @NotNull
+    @Override
+    public String getRelativePath() {
+      return myRelativePath;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return myTimestamp;
+    }
+
+    @Override
+    public long getLength() {
+      return myLength;
+    }
+
+    @Override
+    public long getContentHash() {
+      return 0;
+    }
+  }
+
+  public static class CacheInvalidator extends CachesInvalidator {
+    @Override
+    public void invalidateCaches() {
+      getInstance().invalidate();
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.android.tools.idea.res;
 import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
 import com.android.ide.common.res2.*;
+import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.ResourceType;
 import com.android.tools.idea.gradle.AndroidGradleModel;
 import com.android.tools.idea.rendering.LogWrapper;
@@ -25,9 +26,12 @@ import com.android.utils.ILogger;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.containers.SoftValueHashMap;
@@ -36,6 +40,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,6 +52,9 @@ import static com.android.SdkConstants.FN_RESOURCE_TEXT;
  * in output folders such as build, where Studio will not create PsiDirectories, and
  * as a result cannot use the normal {@link ResourceFolderRepository}. This is the case
  * for example for the expanded {@code .aar} directories.
+ * <p>
+ * Repositories are shared across projects. For expanded {@code .aar} directories the parsed items are also
+ * stored in an {@link AarResourceSnapshotStore}, so a library is only parsed again when its contents change.
  */
 public class FileResourceRepository extends LocalResourceRepository {
   private static final Logger LOG = Logger.getInstance(FileResourceRepository.class);
@@ -62,6 +71,8 @@ public class FileResourceRepository extends LocalResourceRepository {
   private final File myFile;
   /** R.txt file associated with the repository. This is only available for aars. */
   @Nullable private File myResourceTextFile;
+  /** Snapshot restored from the {@link AarResourceSnapshotStore}, while some of its types are still to be decoded. */
+  @Nullable private volatile ResourceFolderRepositorySnapshot mySnapshot;
 
   private final static SoftValueHashMap<File, FileResourceRepository> ourCache = new SoftValueHashMap<>();
 
@@ -72,10 +83,21 @@ public class FileResourceRepository extends LocalResourceRepository {
 
   @NotNull
   static FileResourceRepository get(@NotNull final File file, @Nullable String libraryName) {
-    FileResourceRepository repository = ourCache.get(file);
+    FileResourceRepository repository;
+    synchronized (ourCache) {
+      repository = ourCache.get(file);
+    }
     if (repository == null) {
-      repository = create(file, libraryName);
-      ourCache.put(file, repository);
+      // Create outside the lock so that different libraries can be loaded in parallel; if two projects race on
+      // the same library, the first one wins and everybody shares its instance.
+      FileResourceRepository created = create(file, libraryName);
+      synchronized (ourCache) {
+        repository = ourCache.get(file);
+        if (repository == null) {
+          repository = created;
+          ourCache.put(file, repository);
+        }
+      }
     }
 
     return repository;
@@ -84,20 +106,30 @@ public class FileResourceRepository extends LocalResourceRepository {
   @Nullable
   @VisibleForTesting
   static FileResourceRepository getCached(@NotNull final File file) {
-    return ourCache.get(file);
+    synchronized (ourCache) {
+      return ourCache.get(file);
+    }
   }
 
   @NotNull
   private static FileResourceRepository create(@NotNull final File file, @Nullable String libraryName) {
     final FileResourceRepository repository = new FileResourceRepository(file);
-    try {
-      ResourceMerger resourceMerger = createResourceMerger(file, libraryName);
-      resourceMerger.mergeData(repository.createMergeConsumer(), true);
-    }
-    catch (Exception e) {
-      LOG.error("Failed to initialize resources", e);
+    boolean isAar = file.getPath().contains(AndroidGradleModel.EXPLODED_AAR);
+    AarResourceSnapshotStore store = isAar ? AarResourceSnapshotStore.getInstance() : null;
+    String fingerprint = store != null ? AarResourceSnapshotStore.computeFingerprint(file) : null;
+    if (fingerprint == null || !repository.restoreSnapshot(store.load(file, fingerprint, libraryName))) {
+      try {
+        ResourceMerger resourceMerger = createResourceMerger(file, libraryName);
+        resourceMerger.mergeData(repository.createMergeConsumer(), true);
+        if (fingerprint != null) {
+          store.save(file, fingerprint, repository.getSnapshotFiles());
+        }
+      }
+      catch (Exception e) {
+        LOG.error("Failed to initialize resources", e);
+      }
     }
-    if (file.getPath().contains(AndroidGradleModel.EXPLODED_AAR)) {
+    if (isAar) {
       File rDotTxt = new File(file.getParentFile(), FN_RESOURCE_TEXT);
       if (rDotTxt.exists()) {
         repository.myResourceTextFile = rDotTxt;
@@ -108,13 +140,95 @@ public class FileResourceRepository extends LocalResourceRepository {
     return repository;
   }
 
+  /**
+   * Restores the files of the given snapshot. Their items are decoded per {@link ResourceType}, the first time
+   * each type is requested.
+   *
+   * @return true if the snapshot was restored, false if the directory must be parsed instead
+   */
+  private boolean restoreSnapshot(@Nullable ResourceFolderRepositorySnapshot snapshot) {
+    if (snapshot == null) {
+      return false;
+    }
+    List<ResourceFolderRepositorySnapshot.FileEntry> entries = snapshot.getFiles();
+    List<ResourceFile> resourceFiles = Lists.newArrayListWithCapacity(entries.size());
+    for (ResourceFolderRepositorySnapshot.FileEntry entry : entries) {
+      File file = new File(myFile, FileUtil.toSystemDependentName(entry.relativePath));
+      String folderName = file.getParentFile().getName();
+      FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(folderName);
+      if (folderConfiguration == null) {
+        return false;
+      }
+      resourceFiles.add(new ResourceFile(file, Collections.<ResourceItem>emptyList(),
+                                         ResourceFolderRepository.getQualifiers(folderName), folderConfiguration));
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      entries.get(i).resourceFile = resourceFiles.get(i);
+    }
+    if (snapshot.hasPendingTypes()) {
+      mySnapshot = snapshot;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the files backing the items of this repository, in the form expected by
+   * {@link AarResourceSnapshotStore#save}.
+   */
+  @NotNull
+  private Map<ResourceFolderRepositorySnapshot.FileInfo, ResourceFile> getSnapshotFiles() {
+    Map<ResourceFolderRepositorySnapshot.FileInfo, ResourceFile> files = Maps.newHashMap();
+    Set<ResourceFile> seen = Sets.newIdentityHashSet();
+    for (ListMultimap<String, ResourceItem> multimap : myItems.values()) {
+      for (ResourceItem item : multimap.values()) {
+        ResourceFile source = item.getSource();
+        if (source == null || !seen.add(source)) {
+          continue;
+        }
+        File file = source.getFile();
+        String relativePath = FileUtil.getRelativePath(myFile, file);
+        if (relativePath != null) {
+          files.put(new AarResourceSnapshotStore.AarFileInfo(FileUtil.toSystemIndependentName(relativePath), file), source);
+        }
+      }
+    }
+    return files;
+  }
+
+  private void loadSnapshotType(@NotNull ResourceType type) {
+    ResourceFolderRepositorySnapshot snapshot = mySnapshot;
+    if (snapshot == null) {
+      return;
+    }
+    synchronized (snapshot) {
+      boolean loaded = snapshot.loadType(type, item -> getMapWithoutSnapshot(type).put(item.getName(), item));
+      if (!snapshot.hasPendingTypes()) {
+        mySnapshot = null;
+      }
+      if (!loaded) {
+        // The stored snapshot is damaged; drop it, and what was restored from it, and parse the directory instead.
+        AarResourceSnapshotStore.getInstance().delete(myFile);
+        myItems.clear();
+        try {
+          createResourceMerger(myFile, snapshot.getLibraryName()).mergeData(createMergeConsumer(), true);
+        }
+        catch (Exception e) {
+          LOG.error("Failed to initialize resources", e);
+        }
+        invalidateItemCaches();
+      }
+    }
+  }
+
   @Nullable
   File getResourceTextFile() {
     return myResourceTextFile;
   }
 
   public static void reset() {
-    ourCache.clear();
+    synchronized (ourCache) {
+      ourCache.clear();
+    }
   }
 
   public File getResourceDirectory() {
@@ -145,14 +259,26 @@ public class FileResourceRepository extends LocalResourceRepository {
   @Override
   @NonNull
   protected Map<ResourceType, ListMultimap<String, ResourceItem>> getMap() {
+    ResourceFolderRepositorySnapshot snapshot = mySnapshot;
+    if (snapshot != null) {
+      for (ResourceType type : snapshot.getPendingTypes()) {
+        loadSnapshotType(type);
+      }
+    }
     return myItems;
   }
 
   @Override
   @Nullable
   protected ListMultimap<String, ResourceItem> getMap(ResourceType type, boolean create) {
+    loadSnapshotType(type);
+    return create ? getMapWithoutSnapshot(type) : myItems.get(type);
+  }
+
+  @NotNull
+  private ListMultimap<String, ResourceItem> getMapWithoutSnapshot(@NotNull ResourceType type) {
     ListMultimap<String, ResourceItem> multimap = myItems.get(type);
-    if (multimap == null && create) {
+    if (multimap == null) {
       multimap = ArrayListMultimap.create();
       myItems.put(type, multimap);
     }
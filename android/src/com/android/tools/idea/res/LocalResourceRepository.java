@@ -45,6 +45,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -197,6 +198,18 @@ public abstract class LocalResourceRepository extends AbstractResourceRepository
     }
   }
 
+  /**
+   * Like {@link #invalidateItemCaches(ResourceType...)}, but for the case where only the items with the given names
+   * were added or removed. Parents then only need to re-merge those names rather than the whole type.
+   */
+  protected void invalidateItemCaches(@NotNull ResourceType type, @NotNull Collection<String> names) {
+    if (myParents != null) {
+      for (MultiResourceRepository parent : myParents) {
+        parent.invalidateCache(this, type, names);
+      }
+    }
+  }
+
   /** If this repository has not already been visited, merge its items of the given type into result. */
   protected final void merge(@NotNull Set<LocalResourceRepository> visited,
                              @NotNull ResourceType type,
@@ -218,15 +231,52 @@ public abstract class LocalResourceRepository extends AbstractResourceRepository
       return;
     }
     for (ResourceItem item : items.values()) {
-      String name = item.getName();
-      String qualifiers = item.getQualifiers();
-      if (!result.containsKey(name) || type == ResourceType.ID || !seenQualifiers.containsEntry(name, qualifiers)) {
-        // We only add a duplicate item if there isn't an item with the same qualifiers (and it's
-        // not an id; id's are allowed to be defined in multiple places even with the same
-        // qualifiers)
-        result.put(name, item);
-        seenQualifiers.put(name, qualifiers);
-      }
+      mergeItem(item, type, seenQualifiers, result);
+    }
+  }
+
+  /**
+   * If this repository has not already been visited, merge its items of the given type and name into result.
+   * Merging every name this way gives the same result as {@link #merge} for the whole type.
+   */
+  protected final void mergeName(@NotNull Set<LocalResourceRepository> visited,
+                                 @NotNull ResourceType type,
+                                 @NotNull String name,
+                                 @NotNull SetMultimap<String, String> seenQualifiers,
+                                 @NotNull ListMultimap<String, ResourceItem> result) {
+    if (visited.contains(this)) {
+      return;
+    }
+    visited.add(this);
+    doMergeName(visited, type, name, seenQualifiers, result);
+  }
+
+  protected void doMergeName(@NotNull Set<LocalResourceRepository> visited,
+                             @NotNull ResourceType type,
+                             @NotNull String name,
+                             @NotNull SetMultimap<String, String> seenQualifiers,
+                             @NotNull ListMultimap<String, ResourceItem> result) {
+    ListMultimap<String, ResourceItem> items = getMap(type, false);
+    if (items == null) {
+      return;
+    }
+    for (ResourceItem item : items.get(name)) {
+      mergeItem(item, type, seenQualifiers, result);
+    }
+  }
+
+  private static void mergeItem(@NotNull ResourceItem item,
+                                @NotNull ResourceType type,
+                                @NotNull SetMultimap<String, String> seenQualifiers,
+                                @NotNull ListMultimap<String, ResourceItem> result) {
+    String name = item.getName();
+    String qualifiers = item.getQualifiers();
+    if (!result.containsKey(name) || type == ResourceType.ID || !seenQualifiers.containsEntry(name, qualifiers)) {
+      // We only add a duplicate item if there isn't an item with the same qualifiers (and it's
+      // not an id; id's are allowed to be defined in multiple places even with the same
+      // qualifiers)
+      result.put(name, item);
+      seenQualifiers.put(name, qualifiers);
     }
   }
 
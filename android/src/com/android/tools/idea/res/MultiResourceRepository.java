@@ -27,6 +27,7 @@ import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -213,6 +214,17 @@ public abstract class MultiResourceRepository extends LocalResourceRepository {
     }
   }
 
+  @Override
+  protected void doMergeName(@NotNull Set<LocalResourceRepository> visited,
+                             @NotNull ResourceType type,
+                             @NotNull String name,
+                             @NotNull SetMultimap<String, String> seenQualifiers,
+                             @NotNull ListMultimap<String, ResourceItem> result) {
+    for (int i = myChildren.size() - 1; i >= 0; i--) {
+      myChildren.get(i).mergeName(visited, type, name, seenQualifiers, result);
+    }
+  }
+
   @Override
   public boolean hasResourcesOfType(@NotNull ResourceType type) {
     if (myChildren.size() == 1) {
@@ -280,6 +292,32 @@ public abstract class MultiResourceRepository extends LocalResourceRepository {
     invalidateItemCaches(types);
   }
 
+  /**
+   * Notifies this delegating repository that the given dependent repository has added or removed
+   * items of the given type, but only with the given names. If the merged map of the type is cached,
+   * the entries for these names are re-merged in place, in the same child order as a full merge so
+   * overrides are preserved. The other entries of the map are left as they are.
+   */
+  public void invalidateCache(@NotNull LocalResourceRepository repository, @NotNull ResourceType type, @NotNull Collection<String> names) {
+    assert myChildren.contains(repository) : repository;
+
+    synchronized (this) {
+      ListMultimap<String, ResourceItem> cached = myCachedTypeMaps.get(type);
+      if (cached != null) {
+        for (String name : names) {
+          cached.removeAll(name);
+          Set<LocalResourceRepository> visited = Sets.newHashSet();
+          SetMultimap<String, String> seenQualifiers = HashMultimap.create();
+          doMergeName(visited, type, name, seenQualifiers, cached);
+        }
+      }
+      myCachedHasResourcesOfType.remove(type);
+    }
+    myGeneration = ourModificationCounter.incrementAndGet();
+
+    invalidateItemCaches(type, names);
+  }
+
   @Override
   @VisibleForTesting
   public boolean isScanPending(@NonNull PsiFile psiFile) {
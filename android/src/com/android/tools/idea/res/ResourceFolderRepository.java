@@ -30,7 +30,9 @@ import com.android.tools.idea.model.MergedManifest;
 import com.android.tools.idea.rendering.LogWrapper;
 import com.android.tools.lint.detector.api.LintUtils;
 import com.android.utils.ILogger;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -49,6 +51,7 @@ import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.psi.xml.*;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.android.sdk.AndroidTargetData;
@@ -56,10 +59,13 @@ import org.jetbrains.android.util.AndroidResourceUtil;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import static com.android.SdkConstants.*;
 import static com.android.resources.ResourceFolderType.*;
@@ -91,10 +97,18 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   private final Object SCAN_LOCK = new Object();
   private Set<PsiFile> myPendingScans;
   private InitialScanState myInitialScanState;
+  // Snapshot whose items have not all been decoded yet; null once everything has been loaded.
+  private volatile ResourceFolderRepositorySnapshot mySnapshot;
 
   @VisibleForTesting
   static int ourFullRescans;
 
+  // Runs the per-folder scans of the initial scan. It is static because PopulateCachesTask may already be creating
+  // several repositories at once; with one executor per repository, their folder scans would multiply the threads
+  // used. The cap follows ResourceFolderRegistry#executeParallel.
+  private static final BoundedTaskExecutor ourFolderScanExecutor =
+    new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
   private ResourceFolderRepository(@NotNull AndroidFacet facet, @NotNull VirtualFile resourceDir, @Nullable String libraryName) {
     super(resourceDir.getName());
     myFacet = facet;
@@ -103,15 +117,15 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     myResourceDir = resourceDir;
     myLibraryName = libraryName;
 
-    ResourceMerger merger = loadPreviousStateIfExists();
-    myInitialScanState = new InitialScanState(merger, VfsUtilCore.virtualToIoFile(myResourceDir));
+    myInitialScanState = new InitialScanState(VfsUtilCore.virtualToIoFile(myResourceDir));
+    loadPreviousStateIfExists();
     scanRemainingFiles();
     Application app = ApplicationManager.getApplication();
     // For now, automatically save the state. We may want to move this out to a separate task.
     if (!hasFreshFileCache() && !app.isUnitTestMode()) {
       saveStateToFile();
     }
-    // Clear some unneeded state (myInitialScanState's resource merger holds a second map of items).
+    // Clear some unneeded state (myInitialScanState holds the queues of files scanned as Psi).
     // Skip for unit tests, which may need to test saving separately (saving is normally skipped for unit tests).
     if (!app.isUnitTestMode()) {
       myInitialScanState = null;
@@ -134,114 +148,241 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   }
 
   /**
-   * Saves the non-Psi XML state as a single blob for faster loading the second time
+   * Saves the non-Psi XML state as a binary snapshot for faster loading the second time
    * by {@link #loadPreviousStateIfExists}.
    */
   void saveStateToFile() {
-    File blobRoot = ResourceFolderRepositoryFileCacheService.get().getResourceDir(myModule.getProject(), myResourceDir);
-    if (blobRoot == null) {
+    File cacheDir = ResourceFolderRepositoryFileCacheService.get().getResourceDir(myModule.getProject(), myResourceDir);
+    if (cacheDir == null) {
       // The cache is invalid, do nothing
       return;
     }
 
-    try {
-      ResourcePreprocessor preprocessor = new NoOpResourcePreprocessor();
-      File tempDirectory = FileUtil.createTempDirectory("resource", "tmp", false);
-      try {
-        MergeConsumer<ResourceItem> consumer = MergedResourceWriter.createWriterWithoutPngCruncher(
-          blobRoot, null, null, preprocessor, tempDirectory);
-        myInitialScanState.myResourceMerger.writeBlobToWithTimestamps(blobRoot, consumer);
-      } finally {
-        FileUtil.delete(tempDirectory);
+    loadAllSnapshotTypes();
+    Map<ResourceFolderRepositorySnapshot.FileInfo, ResourceFile> files = Maps.newHashMap();
+    for (Map.Entry<VirtualFile, ResourceFile> entry : myResourceFiles.entrySet()) {
+      VirtualFile file = entry.getKey();
+      ResourceFile resourceFile = entry.getValue();
+      if (isSnapshotCandidate(file, resourceFile)) {
+        files.put(new SnapshotFileInfo(file), resourceFile);
       }
     }
-    catch (MergingException|IOException e) {
+    try {
+      ResourceFolderRepositorySnapshot.write(new File(cacheDir, ResourceFolderRepositorySnapshot.SNAPSHOT_FILE_NAME),
+                                             VfsUtilCore.virtualToIoFile(myResourceDir), files);
+    }
+    catch (IOException e) {
       LOG.error("Failed to saveStateToFile", e);
-      // Delete the blob root just in case it's in an inconsistent state.
-      FileUtil.delete(blobRoot);
+      // Delete the cache dir just in case it's in an inconsistent state.
+      FileUtil.delete(cacheDir);
     }
   }
 
   /**
-   * Reloads ResourceFile and ResourceItems which have not changed since the last {@link #saveStateToFile}.
-   * Some Resource file and items may not be covered, so {@link #scanRemainingFiles} should be run
-   * to load the rest of the items.
-   *
-   * @return the loaded ResourceMerger -- this can be used to save state again, if the cache isn't fresh
+   * Returns true if the items of the given file can be stored in the snapshot. Psi-based files are never cached,
+   * and neither are files with items that are marked to be ignored (single-file items like images, which are easily
+   * derived from the file path, and density-based XML resources).
    */
-  private ResourceMerger loadPreviousStateIfExists() {
-    File blobRoot = ResourceFolderRepositoryFileCacheService.get().getResourceDir(
-      myModule.getProject(), myResourceDir);
-    if (blobRoot == null || !blobRoot.exists()) {
-      return createFreshResourceMerger();
-    }
-    ResourceMerger merger = new ResourceMerger(0 /* minSdk */);
-    // This load may fail if the data is in an inconsistent state or the xml contains illegal
-    // resource names, which the Psi parser would otherwise allow, so load failures are not
-    // strictly an error.
-    // loadFromBlob will check timestamps for stale data and skip.
-    try {
-      if (!merger.loadFromBlob(blobRoot, false)) {
-        LOG.warn("failed to loadPreviousStateIfExists " + blobRoot);
-        return createFreshResourceMerger();
+  private boolean isSnapshotCandidate(@NotNull VirtualFile file, @NotNull ResourceFile resourceFile) {
+    if (resourceFile instanceof PsiResourceFile || !file.isValid() || file.getFileType() != StdFileTypes.XML) {
+      return false;
+    }
+    for (ResourceItem item : resourceFile.getItems()) {
+      if (item.isIgnoredFromDiskMerge()) {
+        return false;
       }
     }
-    catch (MergingException e) {
-      LOG.warn("failed to loadPreviousStateIfExists " + blobRoot, e);
-      return createFreshResourceMerger();
+    return VfsUtilCore.getRelativePath(file, myResourceDir) != null;
+  }
+
+  private final class SnapshotFileInfo implements ResourceFolderRepositorySnapshot.FileInfo {
+    private final VirtualFile myFile;
+
+    SnapshotFileInfo(@NotNull VirtualFile file) {
+      myFile = file;
+    }
+
+    @NotNull
+    @Override
+    public String getRelativePath() {
+      String path = VfsUtilCore.getRelativePath(myFile, myResourceDir);
+      assert path != null;
+      return path;
     }
-    // This temp resourceFiles set is just to avoid calling VfsUtil#findFileByIoFile a ton.
-    Set<ResourceFile> resourceFiles = Sets.newHashSet();
-    List<ResourceSet> resourceSets = merger.getDataSets();
-    if (resourceSets.size() != 1) {
-      LOG.error("Expecting exactly one resource set, but found " + resourceSets.size());
-      return createFreshResourceMerger();
+
+    @Override
+    public long getTimestamp() {
+      return myFile.getTimeStamp();
     }
-    ResourceSet dataSet = resourceSets.get(0);
-    List<File> sourceFiles = dataSet.getSourceFiles();
-    if (sourceFiles.size() != 1) {
-      LOG.error("Expecting exactly source files (res/ directories), but found " + sourceFiles.size());
-      return createFreshResourceMerger();
+
+    @Override
+    public long getLength() {
+      return myFile.getLength();
+    }
+
+    @Override
+    public long getContentHash() throws IOException {
+      return ResourceFolderRepositorySnapshot.hashContents(myFile.contentsToByteArray());
+    }
+  }
+
+  /**
+   * Restores the ResourceFiles which have not changed since the last {@link #saveStateToFile}.
+   * Only the snapshot's file table is read here; the items themselves are decoded per {@link ResourceType}
+   * the first time that type is requested (see {@link #getMap(ResourceType, boolean)}).
+   * Files which are not covered by the snapshot are picked up by {@link #scanRemainingFiles}.
+   */
+  private void loadPreviousStateIfExists() {
+    File cacheDir = ResourceFolderRepositoryFileCacheService.get().getResourceDir(myModule.getProject(), myResourceDir);
+    if (cacheDir == null) {
+      return;
     }
     File myResourceDirFile = VfsUtilCore.virtualToIoFile(myResourceDir);
-    // Check that the dataSet we're loading actually corresponds to this resource directory.
-    // This could happen if there's a hash collision in naming the cache directory.
-    if (!FileUtil.filesEqual(sourceFiles.get(0), myResourceDirFile)) {
-      LOG.warn(String.format("source file %1$s, does not match resource dir %2$s",
-                             sourceFiles.get(0), myResourceDirFile));
-      return createFreshResourceMerger();
-    }
-    for (Map.Entry<String, ResourceItem> entry : dataSet.getDataMap().entries()) {
-      ResourceItem item = entry.getValue();
-      ResourceFile file = item.getSource();
-      if (file != null) {
-        if (!resourceFiles.contains(file)) {
-          VirtualFile vFile = VfsUtil.findFileByIoFile(file.getFile(), false);
-          if (vFile == null) {
-            // Cannot handle this item, mark it ignored to that it doesn't persist.
-            item.setIgnoredFromDiskMerge(true);
-            continue;
-          }
-          resourceFiles.add(file);
-          myResourceFiles.put(vFile, file);
+    ResourceFolderRepositorySnapshot snapshot = ResourceFolderRepositorySnapshot.load(
+      new File(cacheDir, ResourceFolderRepositorySnapshot.SNAPSHOT_FILE_NAME), myResourceDirFile, myLibraryName, false);
+    if (snapshot == null) {
+      return;
+    }
+    int restored = 0;
+    for (ResourceFolderRepositorySnapshot.FileEntry entry : snapshot.getFiles()) {
+      VirtualFile file = myResourceDir.findFileByRelativePath(entry.relativePath);
+      if (file == null || !isUnchanged(file, entry)) {
+        myInitialScanState.numSnapshotFilesDiscarded++;
+        continue;
+      }
+      VirtualFile folder = file.getParent();
+      FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(folder.getName());
+      if (folderConfiguration == null) {
+        myInitialScanState.numSnapshotFilesDiscarded++;
+        continue;
+      }
+      ResourceFile resourceFile = new ResourceFile(VfsUtilCore.virtualToIoFile(file), Collections.<ResourceItem>emptyList(),
+                                                   getQualifiers(folder.getName()), folderConfiguration);
+      entry.resourceFile = resourceFile;
+      myResourceFiles.put(file, resourceFile);
+      restored++;
+    }
+    myInitialScanState.numSnapshotFilesRestored = restored;
+    if (restored > 0) {
+      mySnapshot = snapshot;
+    }
+  }
+
+  /**
+   * Checks whether a file recorded in the snapshot is unchanged on disk. The timestamp and length are checked first;
+   * if only the timestamp differs (e.g. after a checkout that rewrote identical content) the content hash decides.
+   */
+  private static boolean isUnchanged(@NotNull VirtualFile file, @NotNull ResourceFolderRepositorySnapshot.FileEntry entry) {
+    if (file.getLength() != entry.length) {
+      return false;
+    }
+    if (file.getTimeStamp() == entry.timestamp) {
+      return true;
+    }
+    try {
+      return ResourceFolderRepositorySnapshot.hashContents(file.contentsToByteArray()) == entry.hash;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Decodes the snapshot items of the given type, if any are still pending.
+   */
+  private void loadSnapshotType(@NotNull ResourceType type) {
+    ResourceFolderRepositorySnapshot snapshot = mySnapshot;
+    if (snapshot == null) {
+      return;
+    }
+    synchronized (snapshot) {
+      boolean loaded = snapshot.loadType(type, item -> getMapWithoutSnapshot(type).put(item.getName(), item));
+      if (!snapshot.hasPendingTypes()) {
+        mySnapshot = null;
+      }
+      if (!loaded) {
+        rescanSnapshotFiles(snapshot);
+      }
+    }
+  }
+
+  /**
+   * Parses the files restored from a damaged snapshot again. Their items of the types decoded so far are removed
+   * first, so each file ends up with the same items as if it had never been restored.
+   */
+  private void rescanSnapshotFiles(@NotNull ResourceFolderRepositorySnapshot snapshot) {
+    Set<ResourceFile> restored = Sets.newIdentityHashSet();
+    for (ResourceFolderRepositorySnapshot.FileEntry entry : snapshot.getFiles()) {
+      if (entry.resourceFile != null) {
+        restored.add(entry.resourceFile);
+      }
+    }
+    Map<VirtualFile, FolderScan> scans = Maps.newLinkedHashMap();
+    for (Iterator<Map.Entry<VirtualFile, ResourceFile>> iterator = myResourceFiles.entrySet().iterator(); iterator.hasNext(); ) {
+      Map.Entry<VirtualFile, ResourceFile> entry = iterator.next();
+      if (!restored.contains(entry.getValue())) {
+        continue;
+      }
+      removeItemsFromFile(entry.getValue());
+      iterator.remove();
+      VirtualFile file = entry.getKey();
+      VirtualFile folder = file.getParent();
+      if (!file.isValid() || folder == null) {
+        continue;
+      }
+      FolderScan scan = scans.get(folder);
+      if (scan == null) {
+        ResourceFolderType folderType = getFolderType(folder.getName());
+        FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(folder.getName());
+        if (folderType == null || folderConfiguration == null) {
+          continue;
         }
-        ListMultimap<String, ResourceItem> map = getMap(item.getType(), true);
-        map.put(item.getName(), item);
-      } else {
-        // Cannot handle this item, mark it ignored to that it doesn't persist.
-        item.setIgnoredFromDiskMerge(true);
+        scan = new FolderScan(folder, folderType, getQualifiers(folder.getName()), folderConfiguration);
+        scans.put(folder, scan);
       }
+      scan.myRescannedFiles.add(file);
     }
-    return merger;
+    for (FolderScan scan : scans.values()) {
+      scan.run();
+      for (Map.Entry<ResourceType, ListMultimap<String, ResourceItem>> entry : scan.myItems.entrySet()) {
+        getMapWithoutSnapshot(entry.getKey()).putAll(entry.getValue());
+      }
+      myResourceFiles.putAll(scan.myResourceFiles);
+      if (!scan.myPsiFileResourceQueue.isEmpty() || !scan.myPsiValueResourceQueue.isEmpty()) {
+        ApplicationManager.getApplication().runReadAction(() -> scanPsiResources(scan.myPsiFileResourceQueue,
+                                                                                 scan.myPsiValueResourceQueue));
+      }
+    }
+    myGeneration = ourModificationCounter.incrementAndGet();
+    invalidateItemCaches();
   }
 
-  private ResourceMerger createFreshResourceMerger() {
-    ResourceMerger merger = new ResourceMerger(0 /* minSdk */);
-    ResourceSet myData = new ResourceSet(myResourceDir.getName(), myLibraryName, false /* validateEnabled */);
-    File resourceDir = VfsUtilCore.virtualToIoFile(myResourceDir);
-    myData.addSource(resourceDir);
-    merger.addDataSet(myData);
-    return merger;
+  /**
+   * Decodes all pending snapshot items. This must be called before the items or files of this repository are
+   * modified, since incremental updates assume every item of a file is present in {@link #myItems}.
+   */
+  private void loadAllSnapshotTypes() {
+    ResourceFolderRepositorySnapshot snapshot = mySnapshot;
+    if (snapshot == null) {
+      return;
+    }
+    for (ResourceType type : snapshot.getPendingTypes()) {
+      loadSnapshotType(type);
+    }
+  }
+
+  /**
+   * Creates a resource set for parsing files of this repository without Psi. Loading a file records it in the set,
+   * so each concurrent scan needs its own set.
+   */
+  @NotNull
+  private ResourceSet createResourceSet() {
+    ResourceSet resourceSet = new ResourceSet(myResourceDir.getName(), myLibraryName, false /* validateEnabled */);
+    resourceSet.addSource(VfsUtilCore.virtualToIoFile(myResourceDir));
+    resourceSet.setShouldParseResourceIds(true);
+    resourceSet.setDontNormalizeQualifiers(true);
+    resourceSet.setTrackSourcePositions(false);
+    return resourceSet;
   }
 
   /**
@@ -258,7 +399,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   InitialScanState getInitialScanState() { return myInitialScanState; }
 
   /**
-   * Tracks state used by the initial scan, which may be used to save the state to a cache.
+   * Tracks state used by the initial scan.
    *
    * This also tracks how fresh the repo file-cache is by tracking how many xml file were reparsed during scan.
    * The file cache omits non-XML single-file items, since those are easily derived from the file path.
@@ -266,53 +407,18 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   static class InitialScanState {
     int numXml; // Doesn't count files that are explicitly skipped
     int numXmlReparsed;
+    int numSnapshotFilesRestored; // Files restored from the snapshot, i.e. cache hits
+    int numSnapshotFilesDiscarded; // Files in the snapshot which changed or disappeared since it was written
 
-    final ResourceMerger myResourceMerger;
-    final ResourceSet myResourceSet;
     final ILogger myILogger;
     final File myResourceDir;
     final Collection<PsiFileResourceQueueEntry> myPsiFileResourceQueue = new ArrayList<>();
     final Collection<PsiValueResourceQueueEntry> myPsiValueResourceQueue = new ArrayList<>();
 
-    public InitialScanState(ResourceMerger merger, File resourceDir) {
-      myResourceMerger = merger;
-      assert myResourceMerger.getDataSets().size() == 1;
-      myResourceSet = myResourceMerger.getDataSets().get(0);
-      myResourceSet.setShouldParseResourceIds(true);
-      myResourceSet.setDontNormalizeQualifiers(true);
-      myResourceSet.setTrackSourcePositions(false);
+    public InitialScanState(File resourceDir) {
       myILogger = new LogWrapper(LOG);
       myResourceDir = resourceDir;
     }
-
-    public void countCacheHit() {
-      ++numXml;
-    }
-
-    public void countCacheMiss() {
-      ++numXml;
-      ++numXmlReparsed;
-    }
-
-    /**
-     * Load a ResourceFile into the resource merger's resource set and return it.
-     *
-     * @param file a resource XML file to load and parse
-     * @return the resulting ResourceFile, if there is no parse error.
-     * @throws MergingException
-     */
-    @Nullable
-    ResourceFile loadFile(File file) throws MergingException {
-      return myResourceSet.loadFile(myResourceDir, file, myILogger);
-    }
-
-    public void queuePsiFileResourceScan(PsiFileResourceQueueEntry data) {
-      myPsiFileResourceQueue.add(data);
-    }
-
-    public void queuePsiValueResourceScan(PsiValueResourceQueueEntry data) {
-      myPsiValueResourceQueue.add(data);
-    }
   }
 
   /**
@@ -377,14 +483,19 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
    * For resource files that failed when scanning with a VirtualFile, retry with PsiFile.
    */
   private void scanQueuedPsiResources() {
+    scanPsiResources(myInitialScanState.myPsiFileResourceQueue, myInitialScanState.myPsiValueResourceQueue);
+  }
+
+  private void scanPsiResources(@NotNull Collection<PsiFileResourceQueueEntry> fileResources,
+                                @NotNull Collection<PsiValueResourceQueueEntry> valueResources) {
     PsiManager psiManager = PsiManager.getInstance(myModule.getProject());
-    for (PsiValueResourceQueueEntry valueResource : myInitialScanState.myPsiValueResourceQueue) {
+    for (PsiValueResourceQueueEntry valueResource : valueResources) {
       PsiFile file = psiManager.findFile(valueResource.file);
       if (file != null) {
         scanValueFileAsPsi(valueResource.qualifiers, file, valueResource.folderConfiguration);
       }
     }
-    for (PsiFileResourceQueueEntry fileResource : myInitialScanState.myPsiFileResourceQueue) {
+    for (PsiFileResourceQueueEntry fileResource : fileResources) {
       PsiFile file = psiManager.findFile(fileResource.file);
       if (file != null) {
         List<ResourceType> resourceTypes = FolderTypeRelationship.getRelatedResourceTypes(fileResource.folderType);
@@ -414,7 +525,13 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     return null;
   }
 
+  /**
+   * Scans the resource folders of the given res/ directory. Each folder (values, values-fr, layout, drawable-hdpi, ...) is
+   * scanned into its own {@link FolderScan}, in parallel when there is more than one folder, and the results are then
+   * merged into this repository in directory order, so the result is the same as for a serial scan.
+   */
   private void scanResFolder(@NotNull VirtualFile resDir) {
+    List<FolderScan> scans = Lists.newArrayList();
     for (VirtualFile subDir : resDir.getChildren()) {
       if (subDir.isValid() && subDir.isDirectory()) {
         String name = subDir.getName();
@@ -424,40 +541,162 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
           if (folderConfiguration == null) {
             continue;
           }
-          String qualifiers = getQualifiers(name);
-          if (folderType == VALUES) {
-            scanValueResFolder(subDir, qualifiers, folderConfiguration);
-          }
-          else {
-            scanFileResourceFolder(subDir, folderType, qualifiers, folderConfiguration);
-          }
+          scans.add(new FolderScan(subDir, folderType, getQualifiers(name), folderConfiguration));
         }
       }
     }
+    if (scans.size() > 1) {
+      runInParallel(scans);
+    }
+    else {
+      for (FolderScan scan : scans) {
+        scan.run();
+      }
+    }
+    for (FolderScan scan : scans) {
+      mergeFolderScan(scan);
+    }
+  }
+
+  /**
+   * Runs the given folder scans on the shared, bounded scan executor. The calling thread also picks up scans which
+   * have not been started yet, rather than blocking while the executor drains its queue.
+   */
+  private static void runInParallel(@NotNull List<FolderScan> scans) {
+    List<FutureTask<Void>> tasks = Lists.newArrayListWithCapacity(scans.size());
+    for (FolderScan scan : scans) {
+      FutureTask<Void> task = new FutureTask<>(scan, null);
+      tasks.add(task);
+      ourFolderScanExecutor.execute(task);
+    }
+    for (FutureTask<Void> task : tasks) {
+      // No-op if a pooled thread has already started this task.
+      task.run();
+    }
+    for (FutureTask<Void> task : tasks) {
+      try {
+        Uninterruptibles.getUninterruptibly(task);
+      }
+      catch (ExecutionException e) {
+        Throwables.propagate(e.getCause());
+      }
+    }
   }
 
-  private static String getQualifiers(String dirName) {
+  private void mergeFolderScan(@NotNull FolderScan scan) {
+    for (Map.Entry<ResourceType, ListMultimap<String, ResourceItem>> entry : scan.myItems.entrySet()) {
+      getMap(entry.getKey(), true).putAll(entry.getValue());
+    }
+    myResourceFiles.putAll(scan.myResourceFiles);
+    myInitialScanState.numXml += scan.myNumXml;
+    myInitialScanState.numXmlReparsed += scan.myNumXmlReparsed;
+    myInitialScanState.myPsiFileResourceQueue.addAll(scan.myPsiFileResourceQueue);
+    myInitialScanState.myPsiValueResourceQueue.addAll(scan.myPsiValueResourceQueue);
+  }
+
+  /**
+   * The result of scanning a single resource folder during the initial scan. Scans of different folders share no
+   * mutable state, so they can run concurrently: each has its own {@link ResourceSet} for parsing, and the resource
+   * files restored from the snapshot are only read here.
+   */
+  private final class FolderScan implements Runnable {
+    final VirtualFile myDirectory;
+    final ResourceFolderType myFolderType;
+    final String myQualifiers;
+    final FolderConfiguration myFolderConfiguration;
+    final ResourceSet myResourceSet = createResourceSet();
+    final Map<ResourceType, ListMultimap<String, ResourceItem>> myItems = Maps.newEnumMap(ResourceType.class);
+    final Map<VirtualFile, ResourceFile> myResourceFiles = Maps.newHashMap();
+    final List<PsiFileResourceQueueEntry> myPsiFileResourceQueue = Lists.newArrayList();
+    final List<PsiValueResourceQueueEntry> myPsiValueResourceQueue = Lists.newArrayList();
+    // If not empty, only these files of the folder are scanned.
+    final List<VirtualFile> myRescannedFiles = Lists.newArrayList();
+    int myNumXml;
+    int myNumXmlReparsed;
+
+    FolderScan(@NotNull VirtualFile directory, @NotNull ResourceFolderType folderType, @NotNull String qualifiers,
+               @NotNull FolderConfiguration folderConfiguration) {
+      myDirectory = directory;
+      myFolderType = folderType;
+      myQualifiers = qualifiers;
+      myFolderConfiguration = folderConfiguration;
+    }
+
+    @Override
+    public void run() {
+      if (myFolderType == VALUES) {
+        scanValueResFolder(this);
+      }
+      else {
+        scanFileResourceFolder(this);
+      }
+    }
+
+    @NotNull
+    VirtualFile[] getFiles() {
+      return myRescannedFiles.isEmpty() ? myDirectory.getChildren() : VfsUtilCore.toVirtualFileArray(myRescannedFiles);
+    }
+
+    @NotNull
+    ListMultimap<String, ResourceItem> getMap(@NotNull ResourceType type) {
+      ListMultimap<String, ResourceItem> multimap = myItems.get(type);
+      if (multimap == null) {
+        multimap = ArrayListMultimap.create();
+        myItems.put(type, multimap);
+      }
+      return multimap;
+    }
+
+    /**
+     * Parses a resource XML file without Psi.
+     *
+     * @param file a resource XML file to load and parse
+     * @return the resulting ResourceFile, if there is no parse error.
+     * @throws MergingException
+     */
+    @Nullable
+    ResourceFile loadFile(@NotNull VirtualFile file) throws MergingException {
+      InitialScanState state = myInitialScanState;
+      if (state == null) {
+        // Rescanning the files of a damaged snapshot after the initial scan; see rescanSnapshotFiles.
+        return myResourceSet.loadFile(VfsUtilCore.virtualToIoFile(myResourceDir), VfsUtilCore.virtualToIoFile(file),
+                                      new LogWrapper(LOG));
+      }
+      return myResourceSet.loadFile(state.myResourceDir, VfsUtilCore.virtualToIoFile(file), state.myILogger);
+    }
+
+    boolean isRestoredFromSnapshot(@NotNull VirtualFile file) {
+      return ResourceFolderRepository.this.myResourceFiles.containsKey(file);
+    }
+
+    void countCacheHit() {
+      ++myNumXml;
+    }
+
+    void countCacheMiss() {
+      ++myNumXml;
+      ++myNumXmlReparsed;
+    }
+  }
+
+  static String getQualifiers(String dirName) {
     int index = dirName.indexOf('-');
     return index != -1 ? dirName.substring(index + 1) : "";
   }
 
-  private void scanFileResourceFolder(@NotNull VirtualFile directory,
-                                      ResourceFolderType folderType, String qualifiers,
-                                      FolderConfiguration folderConfiguration) {
-    List<ResourceType> resourceTypes = FolderTypeRelationship.getRelatedResourceTypes(folderType);
-    assert resourceTypes.size() >= 1 : folderType;
+  private void scanFileResourceFolder(@NotNull FolderScan scan) {
+    List<ResourceType> resourceTypes = FolderTypeRelationship.getRelatedResourceTypes(scan.myFolderType);
+    assert resourceTypes.size() >= 1 : scan.myFolderType;
     ResourceType type = resourceTypes.get(0);
 
-    boolean idGeneratingFolder = FolderTypeRelationship.isIdGeneratingFolderType(folderType);
+    boolean idGeneratingFolder = FolderTypeRelationship.isIdGeneratingFolderType(scan.myFolderType);
 
-    ListMultimap<String, ResourceItem> map = getMap(type, true);
-
-    for (VirtualFile file : directory.getChildren()) {
+    for (VirtualFile file : scan.getFiles()) {
       if (file.isValid() && !file.isDirectory()) {
         FileType fileType = file.getFileType();
         boolean idGeneratingFile = idGeneratingFolder && fileType == StdFileTypes.XML;
-        if (PsiProjectListener.isRelevantFileType(fileType) || folderType == ResourceFolderType.RAW) {
-          scanFileResourceFile(qualifiers, folderType, folderConfiguration, type, idGeneratingFile, map, file);
+        if (PsiProjectListener.isRelevantFileType(fileType) || scan.myFolderType == ResourceFolderType.RAW) {
+          scanFileResourceFile(scan, type, idGeneratingFile, file);
         } // TODO: Else warn about files that aren't expected to be found here?
       }
     }
@@ -490,33 +729,28 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     }
   }
 
-  private void scanFileResourceFile(String qualifiers,
-                                    ResourceFolderType folderType,
-                                    FolderConfiguration folderConfiguration,
-                                    ResourceType type,
-                                    boolean idGenerating,
-                                    ListMultimap<String, ResourceItem> map,
-                                    VirtualFile file) {
+  private void scanFileResourceFile(FolderScan scan, ResourceType type, boolean idGenerating, VirtualFile file) {
     ResourceFile resourceFile;
     if (idGenerating) {
-      if (myResourceFiles.containsKey(file)) {
-        myInitialScanState.countCacheHit();
+      if (scan.isRestoredFromSnapshot(file)) {
+        scan.countCacheHit();
         return;
       }
       try {
-        resourceFile = myInitialScanState.loadFile(VfsUtilCore.virtualToIoFile(file));
+        resourceFile = scan.loadFile(file);
         if (resourceFile == null) {
           // The file-based parser failed for some reason. Fall back to Psi in case it is more lax.
           // Don't count Psi items in myInitialScanState.numXml, because they are never cached.
-          myInitialScanState.queuePsiFileResourceScan(
-            new PsiFileResourceQueueEntry(file, qualifiers, folderType, folderConfiguration));
+          scan.myPsiFileResourceQueue.add(
+            new PsiFileResourceQueueEntry(file, scan.myQualifiers, scan.myFolderType, scan.myFolderConfiguration));
           return;
         }
-        ListMultimap<String, ResourceItem> idMap = getMap(ResourceType.ID, true);
-        boolean isDensityBasedResource = folderType == DRAWABLE || folderType == MIPMAP;
+        ListMultimap<String, ResourceItem> idMap = scan.getMap(ResourceType.ID);
+        ListMultimap<String, ResourceItem> map = scan.getMap(type);
+        boolean isDensityBasedResource = scan.myFolderType == DRAWABLE || scan.myFolderType == MIPMAP;
         // We skip caching density-based resources, so don't count those against cache statistics.
         if (!isDensityBasedResource) {
-          myInitialScanState.countCacheMiss();
+          scan.countCacheMiss();
         }
         for (ResourceItem item : resourceFile.getItems()) {
           ListMultimap<String, ResourceItem> itemMap;
@@ -527,9 +761,9 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
             itemMap = map;
           }
           itemMap.put(item.getName(), item);
-          // It's not yet safe to serialize density-based resources items to blob files.
+          // It's not yet safe to serialize density-based resources items to the snapshot.
           // The ResourceValue should be an instance of DensityBasedResourceValue, but no flags are
-          // serialized to the blob to indicate that.
+          // serialized to the snapshot to indicate that.
           if (isDensityBasedResource) {
             item.setIgnoredFromDiskMerge(true);
           }
@@ -537,21 +771,21 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
       }
       catch (MergingException e) {
         // The file-based parser may not be able handle the file if it is a data-binding file.
-        myInitialScanState.queuePsiFileResourceScan(
-          new PsiFileResourceQueueEntry(file, qualifiers, folderType, folderConfiguration));
+        scan.myPsiFileResourceQueue.add(
+          new PsiFileResourceQueueEntry(file, scan.myQualifiers, scan.myFolderType, scan.myFolderConfiguration));
         return;
       }
     }
     else {
       // We create the items without adding it to the resource set / resource merger.
-      // No need to write these out to blob files, as the item is easily reconstructed from the filename.
+      // No need to write these out to the snapshot, as the item is easily reconstructed from the filename.
       String name = ResourceHelper.getResourceName(file);
       ResourceItem item = new ResourceItem(name, type, null, myLibraryName);
-      map.put(name, item);
-      resourceFile = new ResourceFile(VfsUtilCore.virtualToIoFile(file), item, qualifiers, folderConfiguration);
+      scan.getMap(type).put(name, item);
+      resourceFile = new ResourceFile(VfsUtilCore.virtualToIoFile(file), item, scan.myQualifiers, scan.myFolderConfiguration);
       item.setIgnoredFromDiskMerge(true);
     }
-    myResourceFiles.put(file, resourceFile);
+    scan.myResourceFiles.put(file, resourceFile);
   }
 
   @Nullable
@@ -712,6 +946,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   @NonNull
   @Override
   protected Map<ResourceType, ListMultimap<String, ResourceItem>> getMap() {
+    loadAllSnapshotTypes();
     return myItems;
   }
 
@@ -719,8 +954,14 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   @Override
   @Contract("_, true -> !null")
   protected ListMultimap<String, ResourceItem> getMap(ResourceType type, boolean create) {
+    loadSnapshotType(type);
+    return create ? getMapWithoutSnapshot(type) : myItems.get(type);
+  }
+
+  @NotNull
+  private ListMultimap<String, ResourceItem> getMapWithoutSnapshot(@NotNull ResourceType type) {
     ListMultimap<String, ResourceItem> multimap = myItems.get(type);
-    if (multimap == null && create) {
+    if (multimap == null) {
       multimap = ArrayListMultimap.create();
       myItems.put(type, multimap);
     }
@@ -729,6 +970,11 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
   @Override
   public void clear() {
+    ResourceFolderRepositorySnapshot snapshot = mySnapshot;
+    if (snapshot != null) {
+      snapshot.discardPendingTypes();
+      mySnapshot = null;
+    }
     super.clear();
     myResourceFiles.clear();
   }
@@ -770,7 +1016,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
         // the list of pending ids.
         String value = attribute.getValue();
         if (value != null && value.startsWith(NEW_ID_PREFIX) && !ATTR_ID.equals(attribute.getLocalName())) {
-          ListMultimap<String, ResourceItem> map = myItems.get(ResourceType.ID);
+          ListMultimap<String, ResourceItem> map = getMap(ResourceType.ID, false);
           String id = value.substring(NEW_ID_PREFIX.length());
           if (map != null && !map.containsKey(id) && !pendingResourceIds.containsKey(id)) {
             pendingResourceIds.put(id, tag);
@@ -801,13 +1047,13 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     }
   }
 
-  private void scanValueResFolder(@NotNull VirtualFile directory, String qualifiers, FolderConfiguration folderConfiguration) {
+  private void scanValueResFolder(@NotNull FolderScan scan) {
     //noinspection ConstantConditions
-    assert directory.getName().startsWith(FD_RES_VALUES);
+    assert scan.myDirectory.getName().startsWith(FD_RES_VALUES);
 
-    for (VirtualFile file : directory.getChildren()) {
+    for (VirtualFile file : scan.getFiles()) {
       if (file.isValid() && !file.isDirectory()) {
-        scanValueFile(qualifiers, file, folderConfiguration);
+        scanValueFile(scan, file);
       }
     }
   }
@@ -871,31 +1117,30 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     return added;
   }
 
-  private void scanValueFile(String qualifiers, VirtualFile virtualFile, FolderConfiguration folderConfiguration) {
+  private void scanValueFile(FolderScan scan, VirtualFile virtualFile) {
     FileType fileType = virtualFile.getFileType();
     if (fileType == StdFileTypes.XML) {
-      if (myResourceFiles.containsKey(virtualFile)) {
-        myInitialScanState.countCacheHit();
+      if (scan.isRestoredFromSnapshot(virtualFile)) {
+        scan.countCacheHit();
         return;
       }
-      File file = VfsUtilCore.virtualToIoFile(virtualFile);
       try {
-        ResourceFile resourceFile = myInitialScanState.loadFile(file);
+        ResourceFile resourceFile = scan.loadFile(virtualFile);
         if (resourceFile == null) {
           // The file-based parser failed for some reason. Fall back to Psi in case it is more lax.
-          myInitialScanState.queuePsiValueResourceScan(new PsiValueResourceQueueEntry(virtualFile, qualifiers, folderConfiguration));
+          scan.myPsiValueResourceQueue.add(new PsiValueResourceQueueEntry(virtualFile, scan.myQualifiers, scan.myFolderConfiguration));
           return;
         }
         for (ResourceItem item : resourceFile.getItems()) {
-          ListMultimap<String, ResourceItem> map = getMap(item.getType(), true);
+          ListMultimap<String, ResourceItem> map = scan.getMap(item.getType());
           map.put(item.getName(), item);
         }
-        myInitialScanState.countCacheMiss();
-        myResourceFiles.put(virtualFile, resourceFile);
+        scan.countCacheMiss();
+        scan.myResourceFiles.put(virtualFile, resourceFile);
       }
       catch (MergingException e) {
         // The file-based parser failed for some reason. Fall back to Psi in case it is more lax.
-        myInitialScanState.queuePsiValueResourceScan(new PsiValueResourceQueueEntry(virtualFile, qualifiers, folderConfiguration));
+        scan.myPsiValueResourceQueue.add(new PsiValueResourceQueueEntry(virtualFile, scan.myQualifiers, scan.myFolderConfiguration));
       }
     }
   }
@@ -1012,6 +1257,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   }
 
   private void rescanImmediately(@NonNull final PsiFile psiFile, final @NonNull ResourceFolderType folderType) {
+    loadAllSnapshotTypes();
     if (!ApplicationManager.getApplication().isReadAccessAllowed()) {
       ApplicationManager.getApplication().runReadAction(new Runnable() {
         @Override
@@ -1224,6 +1470,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void childAdded(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       PsiFile psiFile = event.getFile();
       if (psiFile == null) {
         // Called when you've added a file
@@ -1278,7 +1525,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
                       map.put(name, item);
                       resourceFile.addItems(Collections.singletonList(item));
                       myGeneration = ourModificationCounter.incrementAndGet();
-                      invalidateItemCaches(type);
+                      invalidateItemCaches(type, Collections.singletonList(name));
                       return;
                     }
                   }
@@ -1370,6 +1617,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       PsiFile psiFile = event.getFile();
       if (psiFile == null) {
         // Called when you've removed a file
@@ -1489,7 +1737,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
                       }
                       if (removeItems(resourceFile, type, name, true)) {
                         myGeneration = ourModificationCounter.incrementAndGet();
-                        invalidateItemCaches(type);
+                        invalidateItemCaches(type, Collections.singletonList(name));
                       }
                     }
                   }
@@ -1605,6 +1853,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       PsiFile psiFile = event.getFile();
       if (psiFile != null) {
         if (isScanPending(psiFile)) {
@@ -1836,7 +2085,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
                           assert false : item;
                         }
                         myGeneration = ourModificationCounter.incrementAndGet();
-                        invalidateItemCaches(type);
+                        invalidateItemCaches(type, Arrays.asList(oldName, newName));
 
                         // Invalidate surrounding declare styleable if any
                         if (type == ResourceType.ATTR) {
@@ -1979,6 +2228,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void childMoved(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       PsiElement child = event.getChild();
       PsiFile psiFile = event.getFile();
       //noinspection StatementWithEmptyBody
@@ -2093,6 +2343,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       PsiElement parent = event.getParent();
       // Called after children have changed. There are typically individual childMoved, childAdded etc
       // calls that we hook into for more specific details. However, there are some events we don't
@@ -2163,6 +2414,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
     @Override
     public void propertyChanged(@NotNull PsiTreeChangeEvent event) {
+      loadAllSnapshotTypes();
       if (PsiTreeChangeEvent.PROP_FILE_NAME == event.getPropertyName() && isResourceFolder(event.getParent())) {
         // This is called when you rename a file (after the file has been renamed)
         PsiElement child = event.getElement();
@@ -2310,6 +2562,8 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   // Returns true if the repositories are roughly equivalent.
   @VisibleForTesting
   boolean equalFilesItems(ResourceFolderRepository other) {
+    loadAllSnapshotTypes();
+    other.loadAllSnapshotTypes();
     File myResourceDirFile = VfsUtilCore.virtualToIoFile(myResourceDir);
     File otherResourceDir = VfsUtilCore.virtualToIoFile(other.myResourceDir);
     if (!FileUtil.filesEqual(myResourceDirFile, otherResourceDir)) {
@@ -2352,7 +2606,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
               return false;
             }
             // #compareTo doesn't check the ResourceValue. At least check that getValue is equivalent (getRawXmlText may be different).
-            // Skip ID type resources, where the ResourceValues are not important and where blob writing doesn't preserve the value.
+            // Skip ID type resources, where the ResourceValues are not important and where the snapshot doesn't preserve the value.
             if (item.getType() != ResourceType.ID) {
               ResourceValue resValue = item.getResourceValue(false);
               ResourceValue otherResValue = resourceItem.getResourceValue(false);
@@ -26,7 +26,7 @@ import java.io.File;
 public interface ResourceFolderRepositoryFileCache {
 
   /**
-   * Returns the blob directory that should be used to read/write the file cache for the given resourceDir.
+   * Returns the directory that should be used to read/write the file cache for the given resourceDir.
    * If cache is invalidated returns null. The caller should avoid reading/writing to the cache in that case.
    *
    * @param project the project containing the resource directory
@@ -49,7 +49,7 @@ class ResourceFolderRepositoryFileCacheImpl implements ResourceFolderRepositoryF
   private static final String CACHE_DIRECTORY = "resource_folder_cache";
   private static final String INVALIDATE_CACHE_STAMP = "invalidate_caches_stamp.dat";
 
-  static final int EXPECTED_CACHE_VERSION = 1;
+  static final int EXPECTED_CACHE_VERSION = 2;
   private static final String CACHE_VERSION_FILENAME = "cache_version";
   // The cache version previously read from the CACHE_VERSION_FILENAME (to avoid re-reading).
   private Integer myCacheVersion = null;
@@ -76,8 +76,8 @@ class ResourceFolderRepositoryFileCacheImpl implements ResourceFolderRepositoryF
       return null;
     }
     // Make up filename with hashCodes. Try to tolerate hash collisions:
-    // The blob file contents will list the original resourceDir as data source, so if there there is a
-    // hash collision we will detect during load and ignore the blob.
+    // The snapshot lists the original resourceDir as data source, so if there there is a
+    // hash collision we will detect during load and ignore the snapshot.
     File projectComponent = getProjectDir(project);
     if (projectComponent == null) {
       return null;
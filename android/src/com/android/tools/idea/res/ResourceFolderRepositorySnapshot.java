@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.res;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ide.common.res2.ResourceFile;
+import com.android.ide.common.res2.ResourceItem;
+import com.android.resources.ResourceType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.IOUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A compact, versioned binary snapshot of the file-based (non-Psi) items of a {@link ResourceFolderRepository}
+ * or {@link FileResourceRepository}.
+ * <p>
+ * The snapshot consists of a file table followed by one section per {@link ResourceType}. The file table records the
+ * path (relative to the res/ directory), timestamp, length and content hash of every file whose items were
+ * parsed without Psi. When a snapshot is loaded, only the file table is read eagerly; each type section is kept as raw
+ * bytes (optionally memory-mapped) and decoded the first time {@link #loadType} is called for that type. Files whose
+ * timestamp and length (or failing that, content hash) no longer match are dropped, and their items are skipped while
+ * decoding, so that the repository re-parses just those files.
+ */
+final class ResourceFolderRepositorySnapshot {
+  private static final Logger LOG = Logger.getInstance(ResourceFolderRepositorySnapshot.class);
+
+  static final String SNAPSHOT_FILE_NAME = "resources.snapshot";
+
+  private static final int MAGIC = 0x52465253; // "RFRS"
+  @VisibleForTesting
+  static final int SNAPSHOT_VERSION = 1;
+
+  // Tags used when encoding the XML value of an item.
+  private static final byte NODE_END = 0;
+  private static final byte NODE_ELEMENT = 1;
+  private static final byte NODE_TEXT = 2;
+  private static final byte NODE_CDATA = 3;
+  private static final byte NODE_COMMENT = 4;
+
+  private static final String NO_NAMESPACE = "";
+
+  /** A file recorded in the snapshot. */
+  static final class FileEntry {
+    @NotNull final String relativePath;
+    final long timestamp;
+    final long length;
+    final long hash;
+    /** The restored file, or null if the file changed on disk and must be re-parsed. */
+    @Nullable ResourceFile resourceFile;
+
+    FileEntry(@NotNull String relativePath, long timestamp, long length, long hash) {
+      this.relativePath = relativePath;
+      this.timestamp = timestamp;
+      this.length = length;
+      this.hash = hash;
+    }
+  }
+
+  /** Source of the per-file metadata (timestamp, length and contents) when writing a snapshot. */
+  interface FileInfo {
+    @NotNull String getRelativePath();
+
+    long getTimestamp();
+
+    long getLength();
+
+    /** Returns the content hash of the file (see {@link #hashContents}), or 0 if the file is never checked by content. */
+    long getContentHash() throws IOException;
+  }
+
+  private final List<FileEntry> myFiles;
+  private final Map<ResourceType, ByteBuffer> myPendingSections;
+  @Nullable private final String myLibraryName;
+  private Document myDocument;
+
+  private ResourceFolderRepositorySnapshot(@NotNull List<FileEntry> files,
+                                           @NotNull Map<ResourceType, ByteBuffer> pendingSections,
+                                           @Nullable String libraryName) {
+    myFiles = files;
+    myPendingSections = pendingSections;
+    myLibraryName = libraryName;
+  }
+
+  @NotNull
+  List<FileEntry> getFiles() {
+    return myFiles;
+  }
+
+  @Nullable
+  String getLibraryName() {
+    return myLibraryName;
+  }
+
+  /** Returns true if there are type sections which have not been decoded yet. */
+  synchronized boolean hasPendingTypes() {
+    return !myPendingSections.isEmpty();
+  }
+
+  /** Returns the types which have not been decoded yet. */
+  @NotNull
+  synchronized Set<ResourceType> getPendingTypes() {
+    return EnumSet.copyOf(myPendingSections.keySet());
+  }
+
+  /**
+   * Computes the hash recorded for a file's contents. Note that this must be stable across IDE restarts, so it
+   * cannot use {@link Hashing#goodFastHash}.
+   */
+  static long hashContents(@NotNull byte[] contents) {
+    return Hashing.murmur3_128().hashBytes(contents).asLong();
+  }
+
+  /**
+   * Decodes the items of the given type, adding them both to their restored {@link ResourceFile} and to the given
+   * consumer. Items belonging to files that were dropped are skipped. Each type is decoded at most once.
+   * <p>
+   * The whole section is decoded before any item is handed out. If it turns out to be damaged, no item of the type
+   * is added and all other pending sections are discarded as well: the files restored from this snapshot are then
+   * missing items, and the caller has to parse them again.
+   *
+   * @return false if the section could not be decoded
+   */
+  synchronized boolean loadType(@NotNull ResourceType type, @NotNull ItemConsumer consumer) {
+    ByteBuffer section = myPendingSections.remove(type);
+    if (section == null) {
+      return true;
+    }
+    List<ResourceItem> items;
+    List<ResourceFile> files;
+    try {
+      DataInputStream in = new DataInputStream(new ByteBufferInputStream(section));
+      int itemCount = in.readInt();
+      items = Lists.newArrayListWithCapacity(itemCount);
+      files = Lists.newArrayListWithCapacity(itemCount);
+      for (int i = 0; i < itemCount; i++) {
+        int fileIndex = in.readInt();
+        String name = IOUtil.readUTF(in);
+        Node value = in.readBoolean() ? readNode(in) : null;
+        ResourceFile file = myFiles.get(fileIndex).resourceFile;
+        if (file != null) {
+          items.add(new ResourceItem(name, type, value, myLibraryName));
+          files.add(file);
+        }
+      }
+    }
+    catch (IOException | IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException | DOMException e) {
+      // The file table and the sections are written together, so this can only happen if the file was damaged
+      // after the header was validated.
+      LOG.warn("Failed to decode " + type + " items from resource snapshot", e);
+      discardPendingTypes();
+      return false;
+    }
+    for (int i = 0; i < items.size(); i++) {
+      ResourceItem item = items.get(i);
+      files.get(i).addItem(item);
+      consumer.consume(item);
+    }
+    if (myPendingSections.isEmpty()) {
+      // No more decoding; let the scratch document go.
+      myDocument = null;
+    }
+    return true;
+  }
+
+  /** Forgets all pending sections without decoding them. */
+  synchronized void discardPendingTypes() {
+    myPendingSections.clear();
+    myDocument = null;
+  }
+
+  interface ItemConsumer {
+    void consume(@NotNull ResourceItem item);
+  }
+
+  /**
+   * Reads the snapshot header and file table from the given file. Type sections are not decoded.
+   *
+   * @param snapshotFile the snapshot file
+   * @param resourceDir the res/ directory the snapshot is expected to describe
+   * @param libraryName the library name to attach to decoded items
+   * @param memoryMap if true, the file is memory-mapped and sections are decoded straight from the mapping. This should
+   *                  only be used for snapshots which are never rewritten in place, since on some platforms a mapped
+   *                  file cannot be replaced until the mapping is garbage collected.
+   * @return the snapshot, or null if it does not exist, has an unexpected version, or describes another directory
+   */
+  @Nullable
+  static ResourceFolderRepositorySnapshot load(@NotNull File snapshotFile, @NotNull File resourceDir, @Nullable String libraryName,
+                                               boolean memoryMap) {
+    if (!snapshotFile.isFile()) {
+      return null;
+    }
+    try {
+      ByteBuffer buffer;
+      RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        if (memoryMap) {
+          buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        else {
+          buffer = ByteBuffer.allocate((int)channel.size());
+          while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Keep reading until the buffer is full.
+          }
+          buffer.flip();
+        }
+      }
+      finally {
+        file.close();
+      }
+
+      DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+      if (in.readInt() != MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        return null;
+      }
+      // Check that the snapshot actually corresponds to this resource directory.
+      // This could happen if there's a hash collision in naming the cache directory.
+      String sourceDir = IOUtil.readUTF(in);
+      if (!FileUtil.filesEqual(new File(sourceDir), resourceDir)) {
+        LOG.warn(String.format("snapshot source %1$s does not match resource dir %2$s", sourceDir, resourceDir));
+        return null;
+      }
+      int fileCount = in.readInt();
+      List<FileEntry> files = Lists.newArrayListWithCapacity(fileCount);
+      for (int i = 0; i < fileCount; i++) {
+        files.add(new FileEntry(IOUtil.readUTF(in), in.readLong(), in.readLong(), in.readLong()));
+      }
+      int typeCount = in.readInt();
+      Map<ResourceType, ByteBuffer> sections = Maps.newEnumMap(ResourceType.class);
+      for (int i = 0; i < typeCount; i++) {
+        ResourceType type = ResourceType.getEnum(IOUtil.readUTF(in));
+        int length = in.readInt();
+        // The stream reads straight from the buffer, so the buffer position is the start of the section.
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+        if (type != null) {
+          sections.put(type, section);
+        }
+      }
+      return new ResourceFolderRepositorySnapshot(files, sections, libraryName);
+    }
+    catch (IOException | IllegalArgumentException | BufferUnderflowException e) {
+      LOG.warn("Failed to load resource snapshot " + snapshotFile, e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes a snapshot for the given files. The snapshot is first written to a temporary file and then renamed, so a
+   * concurrent or interrupted write never leaves a partial snapshot behind.
+   *
+   * @param snapshotFile the file to write
+   * @param resourceDir the res/ directory the files belong to
+   * @param files the resource files to record, keyed by their on-disk metadata
+   */
+  static void write(@NotNull File snapshotFile, @NotNull File resourceDir, @NotNull Map<FileInfo, ResourceFile> files)
+    throws IOException {
+    List<Map.Entry<FileInfo, ResourceFile>> entries = Lists.newArrayList(files.entrySet());
+    // Keep the output (and therefore the order items are restored in) deterministic.
+    Collections.sort(entries, (e1, e2) -> e1.getKey().getRelativePath().compareTo(e2.getKey().getRelativePath()));
+
+    Map<ResourceType, ByteArrayOutputStream> sectionBytes = Maps.newEnumMap(ResourceType.class);
+    Map<ResourceType, DataOutputStream> sectionStreams = Maps.newEnumMap(ResourceType.class);
+    Map<ResourceType, Integer> sectionCounts = Maps.newEnumMap(ResourceType.class);
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(header);
+    out.writeInt(MAGIC);
+    out.writeInt(SNAPSHOT_VERSION);
+    IOUtil.writeUTF(out, resourceDir.getPath());
+    out.writeInt(entries.size());
+    for (int fileIndex = 0; fileIndex < entries.size(); fileIndex++) {
+      FileInfo info = entries.get(fileIndex).getKey();
+      IOUtil.writeUTF(out, info.getRelativePath());
+      out.writeLong(info.getTimestamp());
+      out.writeLong(info.getLength());
+      out.writeLong(info.getContentHash());
+
+      for (ResourceItem item : entries.get(fileIndex).getValue().getItems()) {
+        ResourceType type = item.getType();
+        DataOutputStream section = sectionStreams.get(type);
+        if (section == null) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          sectionBytes.put(type, bytes);
+          section = new DataOutputStream(bytes);
+          sectionStreams.put(type, section);
+          sectionCounts.put(type, 0);
+        }
+        section.writeInt(fileIndex);
+        IOUtil.writeUTF(section, item.getName());
+        Node value = item.getValue();
+        section.writeBoolean(value != null);
+        if (value != null) {
+          writeNode(section, value);
+        }
+        sectionCounts.put(type, sectionCounts.get(type) + 1);
+      }
+    }
+
+    out.writeInt(sectionBytes.size());
+    for (Map.Entry<ResourceType, ByteArrayOutputStream> entry : sectionBytes.entrySet()) {
+      byte[] items = entry.getValue().toByteArray();
+      IOUtil.writeUTF(out, entry.getKey().getName());
+      out.writeInt(items.length + 4);
+      out.writeInt(sectionCounts.get(entry.getKey()));
+      out.write(items);
+    }
+    out.flush();
+
+    FileUtil.ensureExists(snapshotFile.getParentFile());
+    // Each writer gets its own temporary file; several repositories (or IDE instances) may save the same snapshot.
+    File tempFile = FileUtil.createTempFile(snapshotFile.getParentFile(), snapshotFile.getName(), ".tmp", true, false);
+    try {
+      FileOutputStream fileOut = new FileOutputStream(tempFile);
+      try {
+        header.writeTo(fileOut);
+      }
+      finally {
+        fileOut.close();
+      }
+      FileUtil.rename(tempFile, snapshotFile);
+    }
+    finally {
+      // No-op once the rename has succeeded.
+      FileUtil.delete(tempFile);
+    }
+  }
+
+  private static void writeNode(@NotNull DataOutput out, @NotNull Node node) throws IOException {
+    switch (node.getNodeType()) {
+      case Node.ELEMENT_NODE: {
+        out.writeByte(NODE_ELEMENT);
+        writeNullableString(out, node.getNamespaceURI());
+        IOUtil.writeUTF(out, node.getNodeName());
+        NamedNodeMap attributes = node.getAttributes();
+        int attributeCount = attributes != null ? attributes.getLength() : 0;
+        out.writeInt(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+          Node attribute = attributes.item(i);
+          writeNullableString(out, attribute.getNamespaceURI());
+          IOUtil.writeUTF(out, attribute.getNodeName());
+          IOUtil.writeUTF(out, attribute.getNodeValue());
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+          writeNode(out, child);
+        }
+        out.writeByte(NODE_END);
+        break;
+      }
+      case Node.TEXT_NODE:
+        out.writeByte(NODE_TEXT);
+        IOUtil.writeUTF(out, node.getNodeValue());
+        break;
+      case Node.CDATA_SECTION_NODE:
+        out.writeByte(NODE_CDATA);
+        IOUtil.writeUTF(out, node.getNodeValue());
+        break;
+      case Node.COMMENT_NODE:
+        out.writeByte(NODE_COMMENT);
+        IOUtil.writeUTF(out, node.getNodeValue());
+        break;
+      default:
+        // Processing instructions, entity references etc. never carry resource values.
+        break;
+    }
+  }
+
+  @Nullable
+  private Node readNode(@NotNull DataInput in) throws IOException {
+    Document document = getDocument();
+    byte kind = in.readByte();
+    switch (kind) {
+      case NODE_ELEMENT: {
+        String namespace = readNullableString(in);
+        Element element = document.createElementNS(namespace, IOUtil.readUTF(in));
+        int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+          String attributeNamespace = readNullableString(in);
+          String attributeName = IOUtil.readUTF(in);
+          element.setAttributeNS(attributeNamespace, attributeName, IOUtil.readUTF(in));
+        }
+        Node child;
+        while ((child = readNode(in)) != null) {
+          element.appendChild(child);
+        }
+        return element;
+      }
+      case NODE_TEXT:
+        return document.createTextNode(IOUtil.readUTF(in));
+      case NODE_CDATA:
+        return document.createCDATASection(IOUtil.readUTF(in));
+      case NODE_COMMENT:
+        return document.createComment(IOUtil.readUTF(in));
+      case NODE_END:
+        return null;
+      default:
+        throw new IOException("Unexpected node kind " + kind);
+    }
+  }
+
+  private static void writeNullableString(@NotNull DataOutput out, @Nullable String s) throws IOException {
+    IOUtil.writeUTF(out, s != null ? s : NO_NAMESPACE);
+  }
+
+  @Nullable
+  private static String readNullableString(@NotNull DataInput in) throws IOException {
+    String s = IOUtil.readUTF(in);
+    return s.isEmpty() ? null : s;
+  }
+
+  /** An input stream reading from (and advancing) a byte buffer, which may be memory-mapped. */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer myBuffer;
+
+    ByteBufferInputStream(@NotNull ByteBuffer buffer) {
+      myBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] bytes, int offset, int length) {
+      if (!myBuffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, myBuffer.remaining());
+      myBuffer.get(bytes, offset, count);
+      return count;
+    }
+  }
+
+  @NotNull
+  private Document getDocument() throws IOException {
+    if (myDocument == null) {
+      try {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        myDocument = factory.newDocumentBuilder().newDocument();
+      }
+      catch (ParserConfigurationException e) {
+        throw new IOException(e);
+      }
+    }
+    return myDocument;
+  }
+}
@@ -65,10 +65,15 @@ public class ApkInstaller {
     }
 
     String remotePath = "/data/local/tmp/" + packageName;
-    myPrinter.stdout("$ adb push " + localFile + " " + remotePath);
 
     try {
-      device.pushFile(localFile.getPath(), remotePath);
+      // The APK pushed last time stays in the temp dir of the device, so the delta push can usually reuse most of it.
+      if (!myLaunchOptions.isDeltaPush() ||
+          !new DeltaApkPusher(device, myPrinter).push(localFile, remotePath,
+                                                      myInstalledApkCache.getInstalledManifest(device, packageName))) {
+        myPrinter.stdout("$ adb push " + localFile + " " + remotePath);
+        device.pushFile(localFile.getPath(), remotePath);
+      }
       boolean installed = installApp(device, remotePath, packageName, launchStatus);
       if (installed) {
         myInstalledApkCache.setInstalled(device, localFile, packageName);
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.run;
+
+import com.android.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ide.PooledThreadExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * The hashes of the fixed size blocks of an APK, and the CRC of each of its entries.
+ * <p>
+ * Manifests are cached with the size and modification time of the APK, so that asking again for the manifest of an APK
+ * which was not rebuilt does not read it at all. As modification times are coarse, an APK modified shortly before its
+ * manifest was read is read again, since it may have changed since without its modification time changing. When the APK
+ * is read, its blocks are hashed in parallel.
+ * <p>
+ * Comparing the manifest of an APK with the one of an earlier build tells which blocks of the file and which entries of
+ * the APK changed, see {@link #getChangedBlocks(ApkManifest)} and {@link #getChangedEntries(ApkManifest)}.
+ */
+public final class ApkManifest {
+  @VisibleForTesting
+  static final int BLOCK_SIZE = 1024 * 1024;
+
+  /** The same hash as {@code md5sum}, so that the blocks can be compared with the ones of a file on a device. */
+  private static final HashFunction BLOCK_HASH = Hashing.md5();
+
+  /** The granularity of modification times on the coarsest file systems, such as FAT. */
+  @VisibleForTesting
+  static final long MODIFICATION_TIME_GRANULARITY_MS = 2000;
+
+  private static final Cache<String, ApkManifest> ourManifests = CacheBuilder.newBuilder().maximumSize(16).build();
+
+  private final long mySize;
+  private final long myLastModified;
+  /** When the APK was read, before its modification time was. */
+  private final long myReadTime;
+  @NotNull private final HashCode[] myBlocks;
+  @NotNull private final HashCode myHash;
+  /** The CRC of each entry by name, or an empty map if the APK is not a valid zip file. */
+  @NotNull private final Map<String, Long> myEntries;
+
+  private ApkManifest(long size, long lastModified, long readTime, @NotNull HashCode[] blocks, @NotNull Map<String, Long> entries) {
+    mySize = size;
+    myLastModified = lastModified;
+    myReadTime = readTime;
+    myBlocks = blocks;
+    myHash = blocks.length == 0 ? HashCode.fromLong(0) : Hashing.combineOrdered(Arrays.asList(blocks));
+    myEntries = entries;
+  }
+
+  /**
+   * Returns the manifest of the given APK, reading it again if its size or modification time changed, or if it was
+   * modified too shortly before it was last read to tell whether it changed since.
+   */
+  @NotNull
+  public static ApkManifest of(@NotNull File apk) throws IOException {
+    String path = apk.getAbsolutePath();
+    ApkManifest manifest = ourManifests.getIfPresent(path);
+    // Read the modification time first, so that a change while hashing is seen the next time.
+    long readTime = System.currentTimeMillis();
+    long lastModified = apk.lastModified();
+    long size = apk.length();
+    if (manifest != null && manifest.mySize == size && manifest.myLastModified == lastModified &&
+        lastModified < manifest.myReadTime - MODIFICATION_TIME_GRANULARITY_MS) {
+      // Any change after the manifest was read would have given the APK a later modification time.
+      return manifest;
+    }
+
+    manifest = new ApkManifest(size, lastModified, readTime, hashBlocks(apk), readEntries(apk));
+    ourManifests.put(path, manifest);
+    return manifest;
+  }
+
+  /**
+   * Returns a hash of the whole APK.
+   */
+  @NotNull
+  public HashCode getHash() {
+    return myHash;
+  }
+
+  public int getBlockCount() {
+    return myBlocks.length;
+  }
+
+  /**
+   * Returns the md5 of the block at the given index, as printed by {@code md5sum}.
+   */
+  @NotNull
+  public String getBlockHash(int index) {
+    return myBlocks[index].toString();
+  }
+
+  /**
+   * Returns the indices of the blocks of size {@link #BLOCK_SIZE} which differ from the blocks of {@code previous},
+   * including the blocks past the end of the shorter file.
+   */
+  @NotNull
+  public BitSet getChangedBlocks(@NotNull ApkManifest previous) {
+    BitSet changed = new BitSet(myBlocks.length);
+    for (int i = 0; i < Math.max(myBlocks.length, previous.myBlocks.length); i++) {
+      if (i >= myBlocks.length || i >= previous.myBlocks.length || !myBlocks[i].equals(previous.myBlocks[i])) {
+        changed.set(i);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Returns the names of the entries which were added, removed or changed since {@code previous}.
+   */
+  @NotNull
+  public Set<String> getChangedEntries(@NotNull ApkManifest previous) {
+    Set<String> changed = new TreeSet<String>();
+    for (Map.Entry<String, Long> entry : myEntries.entrySet()) {
+      if (!entry.getValue().equals(previous.myEntries.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+      }
+    }
+    for (String name : previous.myEntries.keySet()) {
+      if (!myEntries.containsKey(name)) {
+        changed.add(name);
+      }
+    }
+    return changed;
+  }
+
+  @NotNull
+  private static HashCode[] hashBlocks(@NotNull File apk) throws IOException {
+    FileChannel channel = FileChannel.open(apk.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      final HashCode[] blocks = new HashCode[(int)((size + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+
+      // The calling thread hashes blocks too, so there is no need for more workers than other processors.
+      int workerCount = Math.min(blocks.length, Runtime.getRuntime().availableProcessors()) - 1;
+      AtomicInteger next = new AtomicInteger();
+      List<Future<?>> workers = new ArrayList<Future<?>>(Math.max(workerCount, 0));
+      for (int i = 0; i < workerCount; i++) {
+        workers.add(PooledThreadExecutor.INSTANCE.submit(() -> {
+          hashBlocks(channel, blocks, next);
+          return null;
+        }));
+      }
+
+      try {
+        hashBlocks(channel, blocks, next);
+        for (Future<?> worker : workers) {
+          worker.get();
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      finally {
+        for (Future<?> worker : workers) {
+          worker.cancel(true);
+        }
+      }
+      return blocks;
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Hashes blocks until there are none left. The blocks are read with positional reads, so that several threads can
+   * share the channel.
+   */
+  private static void hashBlocks(@NotNull FileChannel channel, @NotNull HashCode[] blocks, @NotNull AtomicInteger next)
+    throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+    int index;
+    while ((index = next.getAndIncrement()) < blocks.length) {
+      buffer.clear();
+      long position = (long)index * BLOCK_SIZE;
+      while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+      }
+      blocks[index] = BLOCK_HASH.hashBytes(buffer.array(), 0, buffer.position());
+    }
+  }
+
+  @NotNull
+  private static Map<String, Long> readEntries(@NotNull File apk) throws IOException {
+    // Only the central directory is read, the entries themselves are not decompressed.
+    Map<String, Long> entries = new HashMap<String, Long>();
+    ZipFile zip;
+    try {
+      zip = new ZipFile(apk);
+    }
+    catch (ZipException e) {
+      return entries;
+    }
+    try {
+      Enumeration<? extends ZipEntry> enumeration = zip.entries();
+      while (enumeration.hasMoreElements()) {
+        ZipEntry entry = enumeration.nextElement();
+        entries.put(entry.getName(), entry.getCrc());
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return entries;
+  }
+}
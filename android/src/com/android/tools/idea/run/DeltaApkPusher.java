@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.run;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes an APK to a path of the device where an earlier build of it was pushed, sending only the blocks which changed.
+ * <p>
+ * The blocks which changed are found by comparing the {@link ApkManifest} of the APK with the one of the APK last
+ * installed from that path, or, if there is none, with the hashes of the blocks of the file on the device, which the
+ * device computes with {@code dd} and {@code md5sum}. The changed blocks are pushed as one file, and copied over a copy of
+ * the old file with {@code dd}. The blocks of the result which were not checked on the device yet are then checked
+ * against the manifest before the result replaces the old file.
+ * <p>
+ * Whenever this is not possible (no earlier file, shell tools missing on the device, too many changes, or any
+ * failure), {@link #push} returns false and the caller pushes the whole APK as usual.
+ */
+final class DeltaApkPusher {
+  private static final Logger LOG = Logger.getInstance(DeltaApkPusher.class);
+
+  @VisibleForTesting
+  static final int BLOCK_SIZE = ApkManifest.BLOCK_SIZE;
+
+  /** Pushing the whole APK is simpler and about as fast when this much of it changed. */
+  private static final double MAX_CHANGED_FRACTION = 0.5;
+
+  private static final long TIMEOUT_SECONDS = 60;
+
+  /** Printed by the device once the checked file replaced the old one. */
+  private static final String MOVED = "moved";
+
+  @NotNull private final IDevice myDevice;
+  @NotNull private final ConsolePrinter myPrinter;
+
+  DeltaApkPusher(@NotNull IDevice device, @NotNull ConsolePrinter printer) {
+    myDevice = device;
+    myPrinter = printer;
+  }
+
+  /**
+   * Updates {@code remotePath} to the contents of {@code localFile}, and returns whether it did.
+   *
+   * @param previous the manifest of the APK last installed from {@code remotePath}, if known
+   */
+  boolean push(@NotNull File localFile, @NotNull String remotePath, @Nullable ApkManifest previous) {
+    String deltaPath = remotePath + ".delta";
+    String newPath = remotePath + ".new";
+    File delta = null;
+    try {
+      ApkManifest manifest = ApkManifest.of(localFile);
+      int blockCount = manifest.getBlockCount();
+      if (blockCount < 2) {
+        return false;
+      }
+
+      List<Integer> changed = previous != null ? getChangedBlocks(manifest, previous) : getChangedBlocks(manifest, remotePath);
+      if (changed == null) {
+        return false;
+      }
+      long size = localFile.length();
+      long deltaSize = getDeltaSize(changed, blockCount, size);
+      if (deltaSize > size * MAX_CHANGED_FRACTION) {
+        return false;
+      }
+
+      if (!changed.isEmpty()) {
+        delta = FileUtil.createTempFile("apk", ".delta");
+        writeDelta(localFile, changed, delta);
+        myPrinter.stdout("$ adb push " + delta + " " + deltaPath);
+        myDevice.pushFile(delta.getPath(), deltaPath);
+      }
+
+      // The blocks of the old file were not checked if they were compared with the previous manifest.
+      List<Integer> checked = previous != null ? getAllBlocks(blockCount) : changed;
+      String command = getPatchCommand(remotePath, deltaPath, newPath, changed, size);
+      if (!checked.isEmpty()) {
+        command += " && " + getHashCommand(newPath, checked);
+      }
+      String output = shell(command);
+      List<String> hashes = parseHashes(output, checked.size());
+      if (hashes == null || !hashes.equals(getBlockHashes(manifest, checked))) {
+        LOG.info("Unexpected result of applying the changed blocks of " + localFile + ": " + output);
+        return false;
+      }
+
+      output = shell(getMoveCommand(newPath, remotePath));
+      if (!output.trim().equals(MOVED)) {
+        LOG.info("Unable to replace " + remotePath + ": " + output);
+        return false;
+      }
+
+      myPrinter.stdout(String.format("Pushed %1$d changed blocks of %2$s (%3$d of %4$d bytes)", changed.size(), localFile.getName(),
+                                     deltaSize, size));
+      return true;
+    }
+    catch (Exception e) {
+      LOG.info("Unable to push the changed blocks of " + localFile, e);
+      return false;
+    }
+    finally {
+      if (delta != null) {
+        FileUtil.delete(delta);
+      }
+      try {
+        shell("rm -f \"" + deltaPath + "\" \"" + newPath + "\"");
+      }
+      catch (Exception e) {
+        LOG.info(e);
+      }
+    }
+  }
+
+  @NotNull
+  private String shell(@NotNull String command) throws Exception {
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    myDevice.executeShellCommand(command, receiver, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    return receiver.getOutput();
+  }
+
+  /**
+   * Returns the blocks of the APK which differ from the previous one, without the ones past its end.
+   */
+  @NotNull
+  private static List<Integer> getChangedBlocks(@NotNull ApkManifest manifest, @NotNull ApkManifest previous) {
+    BitSet blocks = manifest.getChangedBlocks(previous);
+    List<Integer> changed = new ArrayList<Integer>();
+    for (int i = blocks.nextSetBit(0); i >= 0 && i < manifest.getBlockCount(); i = blocks.nextSetBit(i + 1)) {
+      changed.add(i);
+    }
+    return changed;
+  }
+
+  /**
+   * Returns the blocks of the APK which differ from the ones of the file on the device, or null if they could not be
+   * hashed there.
+   */
+  @Nullable
+  private List<Integer> getChangedBlocks(@NotNull ApkManifest manifest, @NotNull String remotePath) throws Exception {
+    List<Integer> blocks = getAllBlocks(manifest.getBlockCount());
+    List<String> remote = parseHashes(shell(getHashCommand(remotePath, blocks)), blocks.size());
+    if (remote == null) {
+      return null;
+    }
+
+    List<Integer> changed = new ArrayList<Integer>();
+    for (int i = 0; i < remote.size(); i++) {
+      if (!manifest.getBlockHash(i).equals(remote.get(i))) {
+        changed.add(i);
+      }
+    }
+    return changed;
+  }
+
+  @NotNull
+  private static List<Integer> getAllBlocks(int count) {
+    List<Integer> blocks = new ArrayList<Integer>(count);
+    for (int i = 0; i < count; i++) {
+      blocks.add(i);
+    }
+    return blocks;
+  }
+
+  @NotNull
+  private static List<String> getBlockHashes(@NotNull ApkManifest manifest, @NotNull List<Integer> blocks) {
+    List<String> hashes = new ArrayList<String>(blocks.size());
+    for (int block : blocks) {
+      hashes.add(manifest.getBlockHash(block));
+    }
+    return hashes;
+  }
+
+  /**
+   * Returns a command printing the md5 of each of the given blocks of the file, or nothing if there is no such file.
+   * Blocks past the end of the file are hashed as empty.
+   * <p>
+   * {@code md5sum} only hashes whole files or streams, so each block is read by its own {@code dd}.
+   */
+  @VisibleForTesting
+  @NotNull
+  static String getHashCommand(@NotNull String remotePath, @NotNull List<Integer> blocks) {
+    return String.format("[ -f \"%1$s\" ] && for i in %2$s; do dd if=\"%1$s\" bs=%3$d skip=$i count=1 2>/dev/null | md5sum; done",
+                         remotePath, StringUtil.join(blocks, " "), BLOCK_SIZE);
+  }
+
+  /**
+   * Returns the hashes printed by {@link #getHashCommand}, or null if the output is not what was expected, which is the
+   * case if the file or the tools are missing.
+   */
+  @VisibleForTesting
+  @Nullable
+  static List<String> parseHashes(@NotNull String output, int count) {
+    List<String> hashes = new ArrayList<String>(count);
+    for (String line : output.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      String hash = line.split("\\s+")[0];
+      if (!hash.matches("[0-9a-f]{32}")) {
+        return null;
+      }
+      hashes.add(hash);
+    }
+    return hashes.size() == count ? hashes : null;
+  }
+
+  /**
+   * Returns a command copying the old file, writing the changed blocks over the copy, and cutting it to the new size.
+   * Consecutive changed blocks are copied by a single {@code dd}.
+   */
+  @VisibleForTesting
+  @NotNull
+  static String getPatchCommand(@NotNull String remotePath,
+                                @NotNull String deltaPath,
+                                @NotNull String newPath,
+                                @NotNull List<Integer> changed,
+                                long size) {
+    StringBuilder command = new StringBuilder();
+    command.append(String.format("cp \"%1$s\" \"%2$s\"", remotePath, newPath));
+    int start = 0;
+    while (start < changed.size()) {
+      int end = start + 1;
+      while (end < changed.size() && changed.get(end) == changed.get(end - 1) + 1) {
+        end++;
+      }
+      command.append(String.format(" && dd if=\"%1$s\" of=\"%2$s\" bs=%3$d skip=%4$d seek=%5$d count=%6$d conv=notrunc 2>/dev/null",
+                                   deltaPath, newPath, BLOCK_SIZE, start, changed.get(start), end - start));
+      start = end;
+    }
+    command.append(String.format(" && truncate -s %1$d \"%2$s\"", size, newPath));
+    return command.toString();
+  }
+
+  /**
+   * Returns a command replacing the old file with the new one, which prints {@link #MOVED} only if it did.
+   */
+  @VisibleForTesting
+  @NotNull
+  static String getMoveCommand(@NotNull String newPath, @NotNull String remotePath) {
+    return String.format("mv \"%1$s\" \"%2$s\" && echo %3$s", newPath, remotePath, MOVED);
+  }
+
+  /**
+   * Returns the size of the changed blocks, the last block of the file being shorter than the others.
+   */
+  private static long getDeltaSize(@NotNull List<Integer> changed, int blockCount, long size) {
+    long deltaSize = 0;
+    for (int block : changed) {
+      deltaSize += block == blockCount - 1 ? size - (long)block * BLOCK_SIZE : BLOCK_SIZE;
+    }
+    return deltaSize;
+  }
+
+  private static void writeDelta(@NotNull File localFile, @NotNull List<Integer> changed, @NotNull File delta) throws IOException {
+    byte[] buffer = new byte[BLOCK_SIZE];
+    RandomAccessFile in = new RandomAccessFile(localFile, "r");
+    try {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(delta));
+      try {
+        for (int block : changed) {
+          long position = (long)block * BLOCK_SIZE;
+          // Only the last block is shorter, so the blocks stay aligned in the delta file.
+          int length = (int)Math.min(BLOCK_SIZE, in.length() - position);
+          in.seek(position);
+          in.readFully(buffer, 0, length);
+          out.write(buffer, 0, length);
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+}
@@ -19,9 +19,6 @@ import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.*;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Sets;
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
@@ -61,7 +58,7 @@ public class InstalledApkCache implements Disposable {
     InstallState currentState = getInstallState(device, pkgName);
     return currentState != null &&
            state.installState.lastUpdateTime.equals(currentState.lastUpdateTime) &&
-           state.hash.equals(hash(apk)) &&
+           state.manifest.getHash().equals(ApkManifest.of(apk).getHash()) &&
            (userId == null || currentState.users.contains(userId));
   }
 
@@ -80,12 +77,17 @@ public class InstalledApkCache implements Disposable {
       return;
     }
 
-    myCache.put(device, pkgName, new CacheData(installState, hash(apk)));
+    myCache.put(device, pkgName, new CacheData(installState, ApkManifest.of(apk)));
   }
 
-  @NotNull
-  private static HashCode hash(@NotNull File apk) throws IOException {
-    return Files.hash(apk, Hashing.goodFastHash(32));
+  /**
+   * Returns the manifest of the APK last installed through this cache for the given package, or null if none was.
+   * Comparing it with the manifest of the APK to install tells which entries changed since.
+   */
+  @Nullable
+  public ApkManifest getInstalledManifest(@NotNull IDevice device, @NotNull String pkgName) {
+    CacheData state = myCache.get(device, pkgName);
+    return state != null ? state.manifest : null;
   }
 
   @VisibleForTesting
@@ -175,11 +177,11 @@ public class InstalledApkCache implements Disposable {
 
   private static class CacheData {
     @NotNull private final InstallState installState;
-    @NotNull private final HashCode hash;
+    @NotNull private final ApkManifest manifest;
 
-    private CacheData(@NotNull InstallState installState, @NotNull HashCode hash) {
+    private CacheData(@NotNull InstallState installState, @NotNull ApkManifest manifest) {
       this.installState = installState;
-      this.hash = hash;
+      this.manifest = manifest;
     }
   }
 }
@@ -31,6 +31,7 @@ public final class LaunchOptions {
     private boolean myClearLogcatBeforeStart = false;
     private boolean mySkipNoopApkInstallations = true;
     private boolean myForceStopRunningApp = true;
+    private boolean myDeltaPush = Boolean.getBoolean("studio.deploy.delta.push");
 
     private Builder() {
     }
@@ -43,7 +44,8 @@ public final class LaunchOptions {
                                myOpenLogcatAutomatically,
                                myClearLogcatBeforeStart,
                                mySkipNoopApkInstallations,
-                               myForceStopRunningApp);
+                               myForceStopRunningApp,
+                               myDeltaPush);
     }
 
     @NotNull
@@ -87,6 +89,12 @@ public final class LaunchOptions {
       myForceStopRunningApp = forceStopRunningApp;
       return this;
     }
+
+    @NotNull
+    public Builder setDeltaPush(boolean deltaPush) {
+      myDeltaPush = deltaPush;
+      return this;
+    }
   }
 
   @NotNull
@@ -101,6 +109,7 @@ public final class LaunchOptions {
   private final boolean myClearLogcatBeforeStart;
   private final boolean mySkipNoopApkInstallations;
   private final boolean myForceStopRunningApp;
+  private final boolean myDeltaPush;
 
   private LaunchOptions(boolean deploy,
                         @Nullable String pmInstallOptions,
@@ -108,7 +117,8 @@ public final class LaunchOptions {
                         boolean openLogcatAutomatically,
                         boolean clearLogcatBeforeStart,
                         boolean skipNoopApkInstallations,
-                        boolean forceStopRunningApp) {
+                        boolean forceStopRunningApp,
+                        boolean deltaPush) {
     myDeploy = deploy;
     myPmInstallOptions = pmInstallOptions;
     myDebug = debug;
@@ -116,6 +126,7 @@ public final class LaunchOptions {
     myClearLogcatBeforeStart = clearLogcatBeforeStart;
     mySkipNoopApkInstallations = skipNoopApkInstallations;
     myForceStopRunningApp = forceStopRunningApp;
+    myDeltaPush = deltaPush;
   }
 
   public boolean isDeploy() {
@@ -146,4 +157,12 @@ public final class LaunchOptions {
   public boolean isForceStopRunningApp() {
     return myForceStopRunningApp;
   }
+
+  /**
+   * Returns whether only the blocks of the APK which differ from the APK last pushed to the device are pushed, see
+   * {@link DeltaApkPusher}.
+   */
+  public boolean isDeltaPush() {
+    return myDeltaPush;
+  }
 }
@@ -19,6 +19,7 @@ import com.android.ddmlib.IDevice;
 import com.android.sdklib.AndroidVersion;
 import com.android.tools.idea.run.tasks.DebugConnectorTask;
 import com.android.tools.idea.run.tasks.LaunchTask;
+import com.android.tools.idea.run.tasks.LaunchTaskDurations;
 import com.android.tools.idea.run.tasks.LaunchTasksProvider;
 import com.android.tools.idea.run.util.LaunchStatus;
 import com.android.tools.idea.run.util.LaunchUtils;
@@ -26,21 +27,36 @@ import com.android.tools.idea.run.util.ProcessHandlerLaunchStatus;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.notification.NotificationType;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.ide.PooledThreadExecutor;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
 
 public class LaunchTaskRunner extends Task.Backgroundable {
+  private static final Logger LOG = Logger.getInstance(LaunchTaskRunner.class);
+
+  /**
+   * How many devices are launched on at the same time. Launches mostly wait on the adb connection of each device.
+   */
+  private static final int MAX_CONCURRENT_LAUNCHES = 8;
+
+  /**
+   * The weight in the overall progress of a device nothing was launched on yet.
+   */
+  private static final long DEFAULT_WALL_TIME_MS = 10000;
+
   @NotNull private final String myConfigName;
   @NotNull private final LaunchInfo myLaunchInfo;
   @NotNull private final ProcessHandler myProcessHandler;
@@ -89,61 +105,179 @@ public class LaunchTaskRunner extends Task.Backgroundable {
     DateFormat dateFormat = new SimpleDateFormat("MM/dd HH:mm:ss");
     consolePrinter.stdout("\n" + dateFormat.format(new Date()) + ": Launching " + myConfigName);
 
-    for (ListenableFuture<IDevice> deviceFuture : listenableDeviceFutures) {
-      indicator.setText("Waiting for target device to come online");
-      IDevice device = waitForDevice(deviceFuture, indicator, launchStatus);
-      if (device == null) {
+    List<DeviceLaunch> launches = new ArrayList<>(listenableDeviceFutures.size());
+    for (int i = 0; i < listenableDeviceFutures.size(); i++) {
+      launches.add(new DeviceLaunch(listenableDeviceFutures.get(i), myDeviceFutures.getDevices().get(i)));
+    }
+
+    if (launches.size() == 1) {
+      // A failure on the only device ends the launch, as does any failure of a debug session.
+      launch(launches.get(0), launchStatus, consolePrinter, indicator, launches, debugSessionTask);
+      myError = launches.get(0).myError;
+      return;
+    }
+
+    // Each device gets its own launch status and console prefix, so that a failure on one device leaves the others running.
+    BoundedTaskExecutor executor = new BoundedTaskExecutor(PooledThreadExecutor.INSTANCE, MAX_CONCURRENT_LAUNCHES);
+    List<Future<Boolean>> results = new ArrayList<>(launches.size());
+    for (final DeviceLaunch launch : launches) {
+      final LaunchStatus deviceStatus = new DeviceLaunchStatus(launchStatus, launch.myName, consolePrinter);
+      final ConsolePrinter devicePrinter = new DeviceConsolePrinter(consolePrinter, launch.myName);
+      results.add(executor.submit(() -> launch(launch, deviceStatus, devicePrinter, indicator, launches, debugSessionTask)));
+    }
+
+    int failed = 0;
+    List<String> errors = new ArrayList<>();
+    for (int i = 0; i < results.size(); i++) {
+      Boolean launched = waitForLaunch(results.get(i), indicator, launchStatus);
+      if (launched == null) {
+        for (Future<Boolean> result : results) {
+          result.cancel(true);
+        }
         return;
       }
-
-      List<LaunchTask> launchTasks = null;
-      try {
-        launchTasks = myLaunchTasksProvider.getTasks(device, launchStatus, consolePrinter);
+      if (!launched) {
+        failed++;
       }
-      catch (com.intellij.execution.ExecutionException e) {
-        launchStatus.terminateLaunch(e.getMessage());
-        return;
+      if (launches.get(i).myError != null) {
+        errors.add(launches.get(i).myName + ": " + launches.get(i).myError);
       }
+    }
 
-      int totalDuration = listenableDeviceFutures.size() * getTotalDuration(launchTasks, debugSessionTask);
-      int elapsed = 0;
+    if (!errors.isEmpty()) {
+      myError = StringUtil.join(errors, "\n");
+    }
+    if (failed == launches.size()) {
+      launchStatus.terminateLaunch("Launch failed on all devices");
+    }
+  }
 
-      for (LaunchTask task : launchTasks) {
-        // perform each task
-        indicator.setText(task.getDescription());
-        if (!task.perform(device, launchStatus, consolePrinter)) {
-          myError = "Error " + task.getDescription();
-          launchStatus.terminateLaunch("Error while " + task.getDescription());
-          return;
-        }
+  /**
+   * Runs the launch tasks of one device. Returns false if the launch on this device failed or was stopped, in which case
+   * the reason has been passed to {@code launchStatus}.
+   */
+  private boolean launch(@NotNull DeviceLaunch launch,
+                         @NotNull LaunchStatus launchStatus,
+                         @NotNull ConsolePrinter consolePrinter,
+                         @NotNull ProgressIndicator indicator,
+                         @NotNull List<DeviceLaunch> launches,
+                         @Nullable DebugConnectorTask debugSessionTask) {
+    long start = System.currentTimeMillis();
+    updateProgress(indicator, launches, launch, "Waiting for target device to come online", 0);
+    IDevice device = waitForDevice(launch.myFuture, indicator, launchStatus);
+    if (device == null) {
+      return false;
+    }
 
-        // update progress
-        elapsed += task.getDuration();
-        indicator.setFraction((double)elapsed / totalDuration);
+    List<LaunchTask> launchTasks = null;
+    try {
+      launchTasks = myLaunchTasksProvider.getTasks(device, launchStatus, consolePrinter);
+    }
+    catch (com.intellij.execution.ExecutionException e) {
+      launchStatus.terminateLaunch(e.getMessage());
+      return false;
+    }
 
-        // check for cancellation via progress bar
-        if (indicator.isCanceled()) {
-          launchStatus.terminateLaunch("User cancelled launch");
-          return;
-        }
+    int totalDuration = getTotalDuration(launchTasks, debugSessionTask);
+    int elapsed = 0;
 
-        // check for cancellation via stop button
-        if (launchStatus.isLaunchTerminated()) {
-          return;
-        }
+    for (LaunchTask task : launchTasks) {
+      // perform each task
+      updateProgress(indicator, launches, launch, task.getDescription(), (double)elapsed / totalDuration);
+      if (!task.perform(device, launchStatus, consolePrinter)) {
+        launch.myError = "Error " + task.getDescription();
+        launchStatus.terminateLaunch("Error while " + task.getDescription());
+        return false;
       }
 
-      if (debugSessionTask != null) {
-        debugSessionTask
-          .perform(myLaunchInfo, device, (ProcessHandlerLaunchStatus)launchStatus, (ProcessHandlerConsolePrinter)consolePrinter);
+      // update progress
+      elapsed += task.getDuration();
+      updateProgress(indicator, launches, launch, task.getDescription(), (double)elapsed / totalDuration);
+
+      // check for cancellation via progress bar
+      if (indicator.isCanceled()) {
+        launchStatus.terminateLaunch("User cancelled launch");
+        return false;
       }
-      else { // we only need to inform the process handler if certain scenarios
-        if (myLaunchTasksProvider.createsNewProcess() // we are not doing a hot swap (in which case we are creating a new process)
-            && myProcessHandler instanceof AndroidProcessHandler) { // we aren't debugging (in which case its a DebugProcessHandler)
+
+      // check for cancellation via stop button
+      if (launchStatus.isLaunchTerminated()) {
+        return false;
+      }
+    }
+
+    if (debugSessionTask != null) {
+      debugSessionTask
+        .perform(myLaunchInfo, device, (ProcessHandlerLaunchStatus)launchStatus, (ProcessHandlerConsolePrinter)consolePrinter);
+    }
+    else { // we only need to inform the process handler if certain scenarios
+      if (myLaunchTasksProvider.createsNewProcess() // we are not doing a hot swap (in which case we are creating a new process)
+          && myProcessHandler instanceof AndroidProcessHandler) { // we aren't debugging (in which case its a DebugProcessHandler)
+        synchronized (myProcessHandler) {
           ((AndroidProcessHandler)myProcessHandler).addTargetDevice(device);
         }
       }
     }
+
+    LaunchTaskDurations.recordDeviceWallTime(launch.mySerial, System.currentTimeMillis() - start);
+    return true;
+  }
+
+  /**
+   * Shows the progress of a device as the average progress of all devices. Devices are weighted by how long their last
+   * launch took, so that the progress follows the slowest devices.
+   */
+  private static void updateProgress(@NotNull ProgressIndicator indicator,
+                                     @NotNull List<DeviceLaunch> launches,
+                                     @NotNull DeviceLaunch launch,
+                                     @NotNull String text,
+                                     double fraction) {
+    synchronized (launches) {
+      launch.myFraction = fraction;
+      double total = 0;
+      double done = 0;
+      for (DeviceLaunch each : launches) {
+        total += each.myWeight;
+        done += each.myWeight * each.myFraction;
+      }
+      indicator.setText(launches.size() == 1 ? text : launch.myName + ": " + text);
+      indicator.setFraction(done / total);
+    }
+  }
+
+  /**
+   * Waits for the launch on one device and returns whether it succeeded, or null if the whole launch was cancelled or
+   * stopped meanwhile.
+   */
+  @Nullable
+  private static Boolean waitForLaunch(@NotNull Future<Boolean> result,
+                                       @NotNull ProgressIndicator indicator,
+                                       @NotNull LaunchStatus launchStatus) {
+    while (true) {
+      try {
+        return result.get(1, TimeUnit.SECONDS);
+      }
+      catch (TimeoutException ignored) {
+      }
+      catch (InterruptedException e) {
+        launchStatus.terminateLaunch("Interrupted while launching");
+        return null;
+      }
+      catch (ExecutionException e) {
+        // Failures on a device are isolated, the launch on the other devices goes on.
+        LOG.warn("Error while launching", e.getCause());
+        return false;
+      }
+
+      if (indicator.isCanceled()) {
+        launchStatus.terminateLaunch("User cancelled launch");
+        return null;
+      }
+
+      if (launchStatus.isLaunchTerminated()) {
+        return null;
+      }
+    }
   }
 
   @Override
@@ -198,4 +332,78 @@ public class LaunchTaskRunner extends Task.Backgroundable {
 
     return total;
   }
+
+  /**
+   * The state of the launch on one device.
+   */
+  private static final class DeviceLaunch {
+    @NotNull private final ListenableFuture<IDevice> myFuture;
+    @NotNull private final String myName;
+    @NotNull private final String mySerial;
+    /** The weight of this device in the overall progress, see {@link #updateProgress}. */
+    private final double myWeight;
+    /** Guarded by the list of launches. */
+    private double myFraction;
+    /** The error to notify the user of, if a launch task failed. */
+    @Nullable private volatile String myError;
+
+    private DeviceLaunch(@NotNull ListenableFuture<IDevice> future, @NotNull AndroidDevice device) {
+      myFuture = future;
+      myName = device.getName();
+      mySerial = device.getSerial();
+      long wallTime = LaunchTaskDurations.getDeviceWallTime(mySerial);
+      myWeight = wallTime > 0 ? wallTime : DEFAULT_WALL_TIME_MS;
+    }
+  }
+
+  /**
+   * The launch status of one device, among several. Terminating it only stops the launch on that device, while
+   * terminating the whole launch also stops it.
+   */
+  private static final class DeviceLaunchStatus implements LaunchStatus {
+    @NotNull private final LaunchStatus myLaunchStatus;
+    @NotNull private final String myName;
+    @NotNull private final ConsolePrinter myConsolePrinter;
+    private volatile boolean myTerminated;
+
+    private DeviceLaunchStatus(@NotNull LaunchStatus launchStatus, @NotNull String name, @NotNull ConsolePrinter consolePrinter) {
+      myLaunchStatus = launchStatus;
+      myName = name;
+      myConsolePrinter = consolePrinter;
+    }
+
+    @Override
+    public boolean isLaunchTerminated() {
+      return myTerminated || myLaunchStatus.isLaunchTerminated();
+    }
+
+    @Override
+    public void terminateLaunch(@Nullable String reason) {
+      myTerminated = true;
+      myConsolePrinter.stderr(myName + ": " + reason);
+    }
+  }
+
+  /**
+   * Prefixes the output of the tasks of one device with the name of the device.
+   */
+  private static final class DeviceConsolePrinter implements ConsolePrinter {
+    @NotNull private final ConsolePrinter myConsolePrinter;
+    @NotNull private final String myPrefix;
+
+    private DeviceConsolePrinter(@NotNull ConsolePrinter consolePrinter, @NotNull String name) {
+      myConsolePrinter = consolePrinter;
+      myPrefix = "[" + name + "] ";
+    }
+
+    @Override
+    public void stdout(@NotNull String text) {
+      myConsolePrinter.stdout(myPrefix + text);
+    }
+
+    @Override
+    public void stderr(@NotNull String text) {
+      myConsolePrinter.stderr(myPrefix + text);
+    }
+  }
 }
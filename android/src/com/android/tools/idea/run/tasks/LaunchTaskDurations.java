@@ -15,10 +15,37 @@
  */
 package com.android.tools.idea.run.tasks;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The relative durations of the launch tasks, used to report the progress of a launch. The actual time the last launch
+ * took on each device is also recorded, see {@link #recordDeviceWallTime(String, long)}.
+ */
 public class LaunchTaskDurations {
   public static final int ASYNC_TASK = 1;
   public static final int LAUNCH_ACTIVITY = 2;
   public static final int CONNECT_DEBUGGER = 10;
   public static final int DEPLOY_HOTSWAP = 8;
   public static final int DEPLOY_APK = 20;
+
+  /** Wall clock time of the last launch on each device, in milliseconds, by serial number. */
+  private static final Map<String, Long> ourDeviceWallTimes = new ConcurrentHashMap<>();
+
+  /**
+   * Records how long the last launch on the device took, from waiting for the device to the end of its last task.
+   */
+  public static void recordDeviceWallTime(@NotNull String serial, long millis) {
+    ourDeviceWallTimes.put(serial, millis);
+  }
+
+  /**
+   * Returns how long the last launch on the device took in milliseconds, or -1 if nothing was launched on it yet.
+   */
+  public static long getDeviceWallTime(@NotNull String serial) {
+    Long millis = ourDeviceWallTimes.get(serial);
+    return millis != null ? millis : -1;
+  }
 }
@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -67,6 +68,10 @@ public class GraphicsLayoutRenderer {
   private final DynamicHardwareConfig myHardwareConfig;
   private final Object myCredential;
   private final RenderSecurityManager mySecurityManager;
+  /**
+   * The module being rendered, which selects the render worker running the actions of this renderer.
+   */
+  private final Module myModule;
   /**
    * Invalidate the layout in the next render call
    */
@@ -91,8 +96,10 @@ public class GraphicsLayoutRenderer {
                                  @NotNull RenderSecurityManager securityManager,
                                  @NotNull DynamicHardwareConfig hardwareConfig,
                                  @NotNull List<ResourceValue> resourceLookupChain,
-                                 @NotNull Object credential) {
+                                 @NotNull Object credential,
+                                 @NotNull Module module) {
     mySecurityManager = securityManager;
+    myModule = module;
     myHardwareConfig = hardwareConfig;
     myImageFactory = new FakeImageFactory();
     myResourceLookupChain = resourceLookupChain;
@@ -101,7 +108,7 @@ public class GraphicsLayoutRenderer {
     sessionParams.setFlag(RenderParamsFlags.FLAG_KEY_DISABLE_BITMAP_CACHING, Boolean.TRUE);
     sessionParams.setImageFactory(myImageFactory);
 
-    myRenderSession = initRenderSession(layoutLib, sessionParams, mySecurityManager, myCredential);
+    myRenderSession = initRenderSession(layoutLib, sessionParams, mySecurityManager, myCredential, myModule);
   }
 
   @NotNull
@@ -198,7 +205,7 @@ public class GraphicsLayoutRenderer {
     }
 
     RenderSecurityManager mySecurityManager = RenderSecurityManagerFactory.create(module, platform);
-    return new GraphicsLayoutRenderer(layoutLib, params, mySecurityManager, hardwareConfig, resourceLookupChain, credential);
+    return new GraphicsLayoutRenderer(layoutLib, params, mySecurityManager, hardwareConfig, resourceLookupChain, credential, module);
   }
 
   /**
@@ -330,7 +337,7 @@ public class GraphicsLayoutRenderer {
               mySecurityManager.setActive(false, myCredential);
             }
           }
-        });
+        }, myModule, RenderService.RenderPriority.NORMAL);
       }
       catch (Exception e) {
         LOG.warn("Exception running render action", e);
@@ -369,7 +376,8 @@ public class GraphicsLayoutRenderer {
   private static RenderSession initRenderSession(@NotNull final LayoutLibrary layoutLibrary,
                                                  @NotNull final SessionParams sessionParams,
                                                  @NotNull final RenderSecurityManager securityManager,
-                                                 final @NotNull Object credential) {
+                                                 final @NotNull Object credential,
+                                                 @NotNull Module module) {
     try {
       RenderSession session = RenderService.runRenderAction(new Callable<RenderSession>() {
         @Override
@@ -390,7 +398,7 @@ public class GraphicsLayoutRenderer {
             securityManager.setActive(false, credential);
           }
         }
-      });
+      }, module, RenderService.RenderPriority.NORMAL);
 
       if (session == null) {
         LOG.warn("initRenderSession failed (returned null)");
@@ -507,7 +515,7 @@ public class GraphicsLayoutRenderer {
     try {
       if (myRenderSession != null) {
         myImageFactory.setGraphics(null);
-        RenderService.runRenderAction(myRenderSession::dispose);
+        RenderService.runRenderAction(Executors.callable(myRenderSession::dispose), myModule, RenderService.RenderPriority.NORMAL);
         myRenderSession = null;
       }
     }
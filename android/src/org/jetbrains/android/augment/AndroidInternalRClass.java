@@ -86,10 +86,15 @@ public class AndroidInternalRClass extends AndroidLightClassBase {
       super(AndroidInternalRClass.this, name);
     }
 
-    @NotNull
+    @Nullable
     @Override
-    protected PsiField[] doGetFields() {
-      return buildResourceFields(mySystemResourceManager, false, myName, AndroidInternalRClass.this);
+    protected ResourceManager getResourceManager() {
+      return mySystemResourceManager;
+    }
+
+    @Override
+    protected boolean isNonFinal() {
+      return false;
     }
   }
 
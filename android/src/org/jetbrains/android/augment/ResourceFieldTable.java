@@ -0,0 +1,170 @@
+package org.jetbrains.android.augment;
+
+import com.android.resources.ResourceType;
+import com.intellij.psi.*;
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.android.resourceManagers.ResourceManager;
+import org.jetbrains.android.util.AndroidResourceUtil;
+import org.jetbrains.android.util.ResourceEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The fields of a light resource type class (such as {@code R.string}) in compact form: the sorted field names, with
+ * the id and type of each field derived from its index. The {@link AndroidLightField}s themselves are only created for
+ * the names that are actually looked up (or all of them, when the whole field list is requested), and the initializer
+ * expression of each field is only parsed when something asks for it.
+ */
+final class ResourceFieldTable {
+  static final ResourceFieldTable EMPTY = new ResourceFieldTable(ArrayUtil.EMPTY_STRING_ARRAY, null, PsiType.INT, 0, false);
+
+  /** The field names, sorted and without duplicates. */
+  private final String[] myNames;
+  /** For styleables, the indices of the int attribute index fields (the rest are int[] fields); null otherwise. */
+  @Nullable private final BitSet myIntFields;
+  private final PsiType myBasicType;
+  private final int myBaseId;
+  private final boolean myNonFinal;
+  private final AtomicReferenceArray<PsiField> myFields;
+  private volatile PsiField[] myAllFields;
+
+  private ResourceFieldTable(@NotNull String[] names,
+                             @Nullable BitSet intFields,
+                             @NotNull PsiType basicType,
+                             int baseId,
+                             boolean nonFinal) {
+    myNames = names;
+    myIntFields = intFields;
+    myBasicType = basicType;
+    myBaseId = baseId;
+    myNonFinal = nonFinal;
+    myFields = new AtomicReferenceArray<PsiField>(names.length);
+  }
+
+  @NotNull
+  static ResourceFieldTable create(@NotNull ResourceManager manager, boolean nonFinal, @NotNull String resClassName) {
+    ResourceType resourceType = ResourceType.getEnum(resClassName);
+    if (resourceType == null) {
+      return EMPTY;
+    }
+    final boolean styleable = ResourceType.STYLEABLE == resourceType;
+    final PsiType basicType = styleable ? PsiType.INT.createArrayType() : PsiType.INT;
+    final String[] names = toSortedFieldNames(manager.getResourceNames(resourceType));
+    final int baseId = resourceType.ordinal() * 100000;
+    if (!styleable) {
+      return new ResourceFieldTable(names, null, basicType, baseId, nonFinal);
+    }
+
+    Collection<ResourceEntry> attrs = manager.getValueResourceEntries(ResourceType.ATTR);
+    String[] attrNames = new String[attrs.size()];
+    int attrCount = 0;
+    for (ResourceEntry entry : attrs) {
+      final String resContext = entry.getContext();
+      if (resContext.length() > 0) {
+        attrNames[attrCount++] = resContext + '_' + entry.getName();
+      }
+    }
+    attrNames = toSortedFieldNames(Arrays.asList(attrNames).subList(0, attrCount));
+
+    // Merge the two sorted lists, remembering which entries are attribute index (int) fields.
+    String[] merged = new String[names.length + attrNames.length];
+    BitSet intFields = new BitSet(merged.length);
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < names.length || j < attrNames.length) {
+      int cmp = i == names.length ? 1 : j == attrNames.length ? -1 : names[i].compareTo(attrNames[j]);
+      if (cmp < 0) {
+        merged[count++] = names[i++];
+      }
+      else {
+        if (cmp == 0) {
+          i++;
+        }
+        intFields.set(count);
+        merged[count++] = attrNames[j++];
+      }
+    }
+    if (count < merged.length) {
+      merged = Arrays.copyOf(merged, count);
+    }
+    return new ResourceFieldTable(merged, intFields, basicType, baseId, nonFinal);
+  }
+
+  /** Converts resource names to field names, sorted and without duplicates. */
+  @NotNull
+  private static String[] toSortedFieldNames(@NotNull Collection<String> resourceNames) {
+    String[] names = new String[resourceNames.size()];
+    int i = 0;
+    for (String resName : resourceNames) {
+      names[i++] = AndroidResourceUtil.getFieldNameByResourceName(resName);
+    }
+    Arrays.sort(names);
+    int count = 0;
+    for (i = 0; i < names.length; i++) {
+      if (count == 0 || !names[i].equals(names[count - 1])) {
+        names[count++] = names[i];
+      }
+    }
+    return count == names.length ? names : Arrays.copyOf(names, count);
+  }
+
+  @NotNull
+  PsiField[] getFields(@NotNull PsiClass context) {
+    PsiField[] fields = myAllFields;
+    if (fields == null) {
+      fields = new PsiField[myNames.length];
+      for (int i = 0; i < fields.length; i++) {
+        fields[i] = getField(i, context);
+      }
+      myAllFields = fields;
+    }
+    return fields;
+  }
+
+  @Nullable
+  PsiField findField(@NotNull String name, @NotNull PsiClass context) {
+    int index = Arrays.binarySearch(myNames, name);
+    return index >= 0 ? getField(index, context) : null;
+  }
+
+  @NotNull
+  private PsiField getField(int index, @NotNull PsiClass context) {
+    PsiField field = myFields.get(index);
+    if (field == null) {
+      final PsiType type = myIntFields != null && myIntFields.get(index) ? PsiType.INT : myBasicType;
+      final int id = -(myBaseId + index);
+      field = new ResourceLightField(myNames[index], context, type, !myNonFinal, myNonFinal ? null : id, id);
+      if (!myFields.compareAndSet(index, null, field)) {
+        field = myFields.get(index);
+      }
+    }
+    return field;
+  }
+
+  /** A resource field whose initializer is only parsed on request. */
+  private static class ResourceLightField extends AndroidLightField {
+    private final int myId;
+
+    ResourceLightField(@NotNull String name, @NotNull PsiClass context, @NotNull PsiType type, boolean isFinal,
+                       @Nullable Object constantValue, int id) {
+      super(name, context, type, isFinal, constantValue);
+      myId = id;
+    }
+
+    @Override
+    public PsiExpression getInitializer() {
+      PsiExpression initializer = super.getInitializer();
+      if (initializer == null) {
+        initializer = JavaPsiFacade.getElementFactory(getProject()).createExpressionFromText(Integer.toString(myId), this);
+        setInitializer(initializer);
+      }
+      return initializer;
+    }
+  }
+}
@@ -5,7 +5,9 @@ import com.intellij.psi.PsiClass;
 import com.intellij.psi.PsiField;
 import org.jetbrains.android.compiler.AndroidCompileUtil;
 import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.android.resourceManagers.ResourceManager;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
 * @author Eugene.Kudelevsky
@@ -22,14 +24,22 @@ public class ResourceTypeClass extends ResourceTypeClassBase {
   static PsiField[] buildLocalResourceFields(@NotNull AndroidFacet facet,
                                              @NotNull String resClassName,
                                              @NotNull final PsiClass context) {
+    return buildResourceFields(facet.getLocalResourceManager(), generateNonFinalFields(facet), resClassName, context);
+  }
+
+  private static boolean generateNonFinalFields(@NotNull AndroidFacet facet) {
     final Module circularDepLibWithSamePackage = AndroidCompileUtil.findCircularDependencyOnLibraryWithSamePackage(facet);
-    final boolean generateNonFinalFields = facet.isLibraryProject() || circularDepLibWithSamePackage != null;
-    return buildResourceFields(facet.getLocalResourceManager(), generateNonFinalFields, resClassName, context);
+    return facet.isLibraryProject() || circularDepLibWithSamePackage != null;
+  }
+
+  @Nullable
+  @Override
+  protected ResourceManager getResourceManager() {
+    return myFacet.getLocalResourceManager();
   }
 
-  @NotNull
   @Override
-  protected PsiField[] doGetFields() {
-    return buildLocalResourceFields(myFacet, myName, this);
+  protected boolean isNonFinal() {
+    return generateNonFinalFields(myFacet);
   }
 }
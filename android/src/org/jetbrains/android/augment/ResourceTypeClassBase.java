@@ -1,24 +1,21 @@
 package org.jetbrains.android.augment;
 
-import com.android.resources.ResourceType;
+import com.intellij.openapi.roots.ProjectRootModificationTracker;
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.psi.*;
 import com.intellij.psi.util.CachedValue;
 import com.intellij.psi.util.CachedValueProvider;
 import com.intellij.psi.util.CachedValuesManager;
-import com.intellij.psi.util.PsiModificationTracker;
-import com.intellij.util.containers.HashMap;
 import org.jetbrains.android.resourceManagers.ResourceManager;
-import org.jetbrains.android.util.AndroidResourceUtil;
-import org.jetbrains.android.util.ResourceEntry;
+import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
-
-import java.util.Map;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Eugene.Kudelevsky
  */
 public abstract class ResourceTypeClassBase extends AndroidLightClass {
-  private CachedValue<PsiField[]> myFieldsCache;
+  private CachedValue<ResourceFieldTable> myFieldsCache;
 
   public ResourceTypeClassBase(PsiClass context, String name) {
     super(context, name);
@@ -29,54 +26,23 @@ public abstract class ResourceTypeClassBase extends AndroidLightClass {
                                         boolean nonFinal,
                                         @NotNull String resClassName,
                                         @NotNull final PsiClass context) {
-    ResourceType resourceType = ResourceType.getEnum(resClassName);
-    if (resourceType == null) {
-      return PsiField.EMPTY_ARRAY;
-    }
-    final Map<String, PsiType> fieldNames = new HashMap<String, PsiType>();
-    final boolean styleable = ResourceType.STYLEABLE == resourceType;
-    final PsiType basicType = styleable ? PsiType.INT.createArrayType() : PsiType.INT;
-
-    for (String resName : manager.getResourceNames(resourceType)) {
-      fieldNames.put(resName, basicType);
-    }
-
-    if (styleable) {
-      for (ResourceEntry entry : manager.getValueResourceEntries(ResourceType.ATTR)) {
-        final String resName = entry.getName();
-        final String resContext = entry.getContext();
-
-        if (resContext.length() > 0) {
-          fieldNames.put(resContext + '_' + resName, PsiType.INT);
-        }
-      }
-    }
-    final PsiField[] result = new PsiField[fieldNames.size()];
-    final PsiElementFactory factory = JavaPsiFacade.getElementFactory(context.getProject());
-
-    int idIterator = resourceType.ordinal() * 100000;
-    int i = 0;
-
-    for (Map.Entry<String, PsiType> entry : fieldNames.entrySet()) {
-      final String fieldName = AndroidResourceUtil.getFieldNameByResourceName(entry.getKey());
-      final PsiType type = entry.getValue();
-      final int id = -(idIterator++);
-      final AndroidLightField field =
-        new AndroidLightField(fieldName, context, type, !nonFinal, nonFinal ? null : id);
-      field.setInitializer(factory.createExpressionFromText(Integer.toString(id), field));
-      result[i++] = field;
-    }
-    return result;
+    return ResourceFieldTable.create(manager, nonFinal, resClassName).getFields(context);
   }
 
   @NotNull
-  @Override
-  public PsiField[] getFields() {
+  private ResourceFieldTable getFieldTable() {
     if (myFieldsCache == null) {
-      myFieldsCache = CachedValuesManager.getManager(getProject()).createCachedValue(new CachedValueProvider<PsiField[]>() {
+      myFieldsCache = CachedValuesManager.getManager(getProject()).createCachedValue(new CachedValueProvider<ResourceFieldTable>() {
         @Override
-        public Result<PsiField[]> compute() {
-          return Result.create(doGetFields(), PsiModificationTracker.OUT_OF_CODE_BLOCK_MODIFICATION_COUNT);
+        public Result<ResourceFieldTable> compute() {
+          // Only the resources themselves (and, for finality, the module structure) affect the fields, so there is
+          // no need to recompute on every Java edit.
+          ResourceManager manager = getResourceManager();
+          if (manager == null) {
+            return Result.create(ResourceFieldTable.EMPTY, ModificationTracker.EVER_CHANGED);
+          }
+          return Result.create(ResourceFieldTable.create(manager, isNonFinal(), myName), manager.getModificationTracker(),
+                               ProjectRootModificationTracker.getInstance(getProject()));
         }
       });
     }
@@ -84,5 +50,20 @@ public abstract class ResourceTypeClassBase extends AndroidLightClass {
   }
 
   @NotNull
-  protected abstract PsiField[] doGetFields();
+  @Override
+  public PsiField[] getFields() {
+    return getFieldTable().getFields(this);
+  }
+
+  @Override
+  public PsiField findFieldByName(@NonNls String name, boolean checkBases) {
+    return getFieldTable().findField(name, this);
+  }
+
+  /** Returns the resource manager providing the fields of this class, or null if it is not available. */
+  @Nullable
+  protected abstract ResourceManager getResourceManager();
+
+  /** Returns true if the fields of this class should not be final (and therefore not constants). */
+  protected abstract boolean isNonFinal();
 }
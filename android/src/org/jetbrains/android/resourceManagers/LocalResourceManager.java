@@ -21,6 +21,7 @@ import com.android.resources.ResourceType;
 import com.android.tools.idea.res.AppResourceRepository;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.module.Module;
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -59,6 +60,19 @@ public class LocalResourceManager extends ResourceManager {
     return myFacet;
   }
 
+  @Override
+  @NotNull
+  public ModificationTracker getModificationTracker() {
+    // Look up the repository on each check, since the app resources can be replaced (e.g. after a project sync).
+    // Repository generations are unique across repositories, so a replacement is always seen as a change.
+    return new ModificationTracker() {
+      @Override
+      public long getModificationCount() {
+        return AppResourceRepository.getAppResources(myFacet, true).getModificationCount();
+      }
+    };
+  }
+
   /**
    * Gets all resource directories reachable from the facet (modules and libraries).
    * @return resource directories
@@ -24,10 +24,12 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.fileTypes.StdFileTypes;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.psi.xml.XmlAttributeValue;
 import com.intellij.psi.xml.XmlFile;
 import com.intellij.psi.xml.XmlTag;
@@ -63,6 +65,15 @@ public abstract class ResourceManager {
     myProject = project;
   }
 
+  /**
+   * Returns a tracker which changes whenever the resources returned by this manager (such as
+   * {@link #getResourceNames(ResourceType)}) may have changed. Defaults to any structural PSI change.
+   */
+  @NotNull
+  public ModificationTracker getModificationTracker() {
+    return PsiModificationTracker.SERVICE.getInstance(myProject).getOutOfCodeBlockModificationTracker();
+  }
+
   /** Returns all the resource directories for this module <b>and all of its module dependencies</b> */
   @NotNull
   public abstract VirtualFile[] getAllResourceDirs();
@@ -17,6 +17,7 @@ package org.jetbrains.android.resourceManagers;
 
 import com.android.sdklib.IAndroidTarget;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ModificationTracker;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -49,6 +50,13 @@ public class SystemResourceManager extends ResourceManager {
       isResourcePublic(type, name);
   }
 
+  @Override
+  @NotNull
+  public ModificationTracker getModificationTracker() {
+    // The framework resources of a platform do not change.
+    return ModificationTracker.NEVER_CHANGED;
+  }
+
   @Override
   @NotNull
   public VirtualFile[] getAllResourceDirs() {
@@ -15,6 +15,11 @@
  */
 package com.android.tools.idea.apk.viewer;
 
+import com.android.SdkConstants;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -23,7 +28,14 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.*;
 
 public class ApkParserTest extends AndroidTestCase {
   public void testTreeCreation() throws IOException {
@@ -75,6 +87,140 @@ public class ApkParserTest extends AndroidTestCase {
                  dumpTree(treeNode));
   }
 
+  public void testEntriesOfNestedZipResolveToExtractedFiles() throws IOException {
+    VirtualFile virtualFile = myFixture.copyFileToProject("apk/2.apk");
+    VirtualFile apkRoot = ApkFileSystem.getInstance().getRootByLocal(virtualFile);
+    assertNotNull(apkRoot);
+
+    DefaultMutableTreeNode treeNode = ApkParser.createTreeNode(apkRoot);
+    DefaultMutableTreeNode zipNode = (DefaultMutableTreeNode)treeNode.getChildAt(0);
+    ApkEntry zipEntry = ApkEntry.fromNode(zipNode);
+    assertNotNull(zipEntry);
+    assertEquals("instant-run.zip", zipEntry.getName());
+    assertTrue(zipEntry.isDirectory());
+
+    ApkEntry dexEntry = ApkEntry.fromNode(zipNode.getFirstLeaf());
+    assertNotNull(dexEntry);
+    VirtualFile dexFile = dexEntry.getFile();
+    assertEquals("classes1.dex", dexFile.getName());
+    assertEquals(2, dexFile.getLength());
+  }
+
+  public void testDownloadSizeEstimateIsCloseToGzip() throws Exception {
+    VirtualFile virtualFile = myFixture.copyFileToProject("apk/2.apk");
+    File apk = VfsUtilCore.virtualToIoFile(virtualFile);
+
+    DownloadSizeEstimator estimate = DownloadSizeEstimator.estimate(apk);
+    assertNotNull(estimate);
+    assertEquals(ImmutableSet.of("AndroidManifest.xml", "instant-run.zip", "res/", "res/anim/", "res/anim/fade.xml"),
+                 estimate.getCompressedSizes().keySet());
+    assertEquals(getGzipSize(apk), estimate.getDownloadSize(), 4);
+
+    // Estimates of unchanged entries are cached.
+    DownloadSizeEstimator again = DownloadSizeEstimator.estimate(apk);
+    assertNotNull(again);
+    assertEquals(estimate.getDownloadSize(), again.getDownloadSize());
+    assertEquals(estimate.getCompressedSizes(), again.getCompressedSizes());
+  }
+
+  public void testDownloadSizeEstimateOfLargeApk() throws Exception {
+    File apk = FileUtil.createTempFile("large", SdkConstants.DOT_ANDROID_PACKAGE, true);
+    writeLargeApk(apk, 1);
+
+    DownloadSizeEstimator estimate = DownloadSizeEstimator.estimate(apk);
+    assertNotNull(estimate);
+    assertEquals(354, estimate.getCompressedSizes().size());
+    long gzipSize = getGzipSize(apk);
+    assertEquals(gzipSize, estimate.getDownloadSize(), gzipSize * 0.002);
+
+    // Changing a layout changes the context of the entries after it, which are not taken from the cache then.
+    writeLargeApk(apk, 2);
+    DownloadSizeEstimator changed = DownloadSizeEstimator.estimate(apk);
+    assertNotNull(changed);
+    gzipSize = getGzipSize(apk);
+    assertEquals(gzipSize, changed.getDownloadSize(), gzipSize * 0.002);
+  }
+
+  /**
+   * Writes an APK laid out like a real one: a large dex file, many small layouts, a resource table and images stored
+   * without compression, some of which are duplicated, and a native library.
+   */
+  private static void writeLargeApk(@NotNull File apk, int layoutSeed) throws IOException {
+    Random random = new Random(1);
+    List<String> words = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder word = new StringBuilder();
+      for (int j = 3 + random.nextInt(10); j > 0; j--) {
+        word.append((char)('a' + random.nextInt(26)));
+      }
+      words.add(word.toString());
+    }
+
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+      zip.setLevel(Deflater.BEST_COMPRESSION);
+      writeEntry(zip, "AndroidManifest.xml", ZipEntry.DEFLATED, getText(random, words, 2 * 1024));
+      writeEntry(zip, "classes.dex", ZipEntry.DEFLATED, getText(random, words, 2 * 1024 * 1024));
+      writeEntry(zip, "resources.arsc", ZipEntry.STORED, getText(random, words, 256 * 1024));
+      Random layoutRandom = new Random(layoutSeed);
+      for (int i = 0; i < 200; i++) {
+        writeEntry(zip, "res/layout/layout_" + i + ".xml", ZipEntry.DEFLATED,
+                   getText(i == 100 ? layoutRandom : random, words, 1024 + random.nextInt(4 * 1024)));
+      }
+      for (int i = 0; i < 100; i++) {
+        byte[] image = new byte[1024 + random.nextInt(32 * 1024)];
+        random.nextBytes(image);
+        writeEntry(zip, "res/drawable/image_" + i + ".png", ZipEntry.STORED, image);
+      }
+      byte[] raw = getText(random, words, 8 * 1024);
+      for (int i = 0; i < 50; i++) {
+        writeEntry(zip, "res/raw/copy_" + i + ".txt", ZipEntry.STORED, raw);
+      }
+      writeEntry(zip, "lib/armeabi-v7a/libnative.so", ZipEntry.DEFLATED, getText(random, words, 512 * 1024));
+    }
+  }
+
+  @NotNull
+  private static byte[] getText(@NotNull Random random, @NotNull List<String> words, int size) {
+    StringBuilder text = new StringBuilder(size);
+    while (text.length() < size) {
+      // Some words are much more frequent than others, as in real code.
+      text.append(words.get((int)Math.abs(random.nextGaussian() * words.size() / 8) % words.size()));
+      text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+    }
+    return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void writeEntry(@NotNull ZipOutputStream zip, @NotNull String name, int method, @NotNull byte[] data)
+    throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      entry.setCrc(crc.getValue());
+      entry.setSize(data.length);
+      entry.setCompressedSize(data.length);
+    }
+    zip.putNextEntry(entry);
+    zip.write(data);
+    zip.closeEntry();
+  }
+
+  /**
+   * Returns the size of the given file compressed with "gzip -9", as Play serves it.
+   */
+  private static long getGzipSize(@NotNull File file) throws IOException {
+    CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+    try (GZIPOutputStream gzip = new GZIPOutputStream(counter) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      Files.copy(file.toPath(), gzip);
+    }
+    return counter.getCount();
+  }
+
   private static String dumpTree(@NotNull DefaultMutableTreeNode treeNode) {
     StringBuilder sb = new StringBuilder(30);
     dumpTree(sb, treeNode, 0);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.models;
+
+import com.android.tools.idea.editors.gfxtrace.service.atom.Atom;
+import junit.framework.TestCase;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FrameIndexTest extends TestCase {
+  public void testEmptyStream() {
+    FrameIndex frames = FrameIndex.build(new Atom[0]);
+    assertEquals(0, frames.getFrameCount());
+    assertEquals(0, frames.findFrame(0));
+    assertEquals(0, frames.getStartOfFrame(0));
+
+    assertEquals(0, FrameIndex.EMPTY.getFrameCount());
+    assertEquals(0, FrameIndex.EMPTY.findFrame(0));
+  }
+
+  public void testSingleFrame() {
+    FrameIndex frames = FrameIndex.build(atoms("---E"));
+    assertEquals(1, frames.getFrameCount());
+    assertEquals(0, frames.getFrameStart(0));
+    assertEquals(3, frames.getFrameEnd(0));
+    for (int i = 0; i < 4; i++) {
+      assertEquals(0, frames.findFrame(i));
+      assertEquals(0, frames.getStartOfFrame(i));
+      assertEquals(3, frames.getEndOfFrame(i));
+    }
+  }
+
+  public void testNoEndOfFrame() {
+    FrameIndex frames = FrameIndex.build(atoms("---"));
+    assertEquals(0, frames.getFrameCount());
+    assertEquals(0, frames.findFrame(2));
+    assertEquals(0, frames.getStartOfFrame(2));
+    assertEquals(2, frames.getEndOfFrame(0));
+  }
+
+  public void testFrameBoundaries() {
+    FrameIndex frames = FrameIndex.build(atoms("E-E--E--"));
+    assertEquals(3, frames.getFrameCount());
+    assertEquals(0, frames.getFrameStart(0));
+    assertEquals(0, frames.getFrameEnd(0));
+    assertEquals(1, frames.getFrameStart(1));
+    assertEquals(2, frames.getFrameEnd(1));
+    assertEquals(3, frames.getFrameStart(2));
+    assertEquals(5, frames.getFrameEnd(2));
+    // The atoms after the last end of frame.
+    assertEquals(6, frames.getFrameStart(3));
+
+    int[] expectedFrames = {0, 1, 1, 2, 2, 2, 3, 3};
+    int[] expectedStarts = {0, 1, 1, 3, 3, 3, 6, 6};
+    int[] expectedEnds = {0, 2, 2, 5, 5, 5, 7, 7};
+    for (int i = 0; i < expectedFrames.length; i++) {
+      assertEquals(expectedFrames[i], frames.findFrame(i));
+      assertEquals(expectedStarts[i], frames.getStartOfFrame(i));
+      assertEquals(expectedEnds[i], frames.getEndOfFrame(i));
+    }
+  }
+
+  public void testManyFrames() {
+    StringBuilder pattern = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      pattern.append("--E");
+    }
+    FrameIndex frames = FrameIndex.build(atoms(pattern.toString()));
+    assertEquals(100, frames.getFrameCount());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(3 * i, frames.getFrameStart(i));
+      assertEquals(3 * i + 2, frames.getFrameEnd(i));
+      assertEquals(i, frames.findFrame(3 * i + 1));
+    }
+  }
+
+  /**
+   * Returns atoms which end a frame where {@code pattern} has an 'E'.
+   */
+  private static Atom[] atoms(String pattern) {
+    Atom[] atoms = new Atom[pattern.length()];
+    for (int i = 0; i < atoms.length; i++) {
+      atoms[i] = mock(Atom.class);
+      when(atoms[i].isEndOfFrame()).thenReturn(pattern.charAt(i) == 'E');
+    }
+    return atoms;
+  }
+}
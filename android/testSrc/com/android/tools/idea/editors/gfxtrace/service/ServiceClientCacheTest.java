@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.service;
+
+import com.android.tools.idea.editors.gfxtrace.service.atom.Atom;
+import com.android.tools.idea.editors.gfxtrace.service.atom.AtomList;
+import com.android.tools.idea.editors.gfxtrace.service.path.CapturePath;
+import com.android.tools.idea.editors.gfxtrace.service.path.Path;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.mockito.Mockito.*;
+
+public class ServiceClientCacheTest extends TestCase {
+  public void testLargeAtomListIsCached() throws Exception {
+    // Atom lists are not weighed against the metadata budget, however many atoms they have.
+    AtomList atoms = new AtomList().setAtoms(new Atom[1000000]);
+    Path path = new CapturePath().atoms();
+    ServiceClient client = mock(ServiceClient.class);
+    when(client.get(path)).thenReturn(Futures.<Object>immediateFuture(atoms));
+
+    ServiceClientCache cache = new ServiceClientCache(client);
+    assertSame(atoms, cache.get(path).get());
+    assertSame(atoms, cache.get(path).get());
+
+    verify(client, times(1)).get(path);
+    assertEquals(1, cache.getStats().getMissCount());
+    assertEquals(1, cache.getStats().getHitCount());
+  }
+
+  public void testConcurrentRequestsShareOneRpc() throws Exception {
+    final Path path = new CapturePath().atoms();
+    ServiceClient client = mock(ServiceClient.class);
+    SettableFuture<Object> rpc = SettableFuture.create();
+    when(client.get(path)).thenReturn(rpc);
+    final ServiceClientCache cache = new ServiceClientCache(client);
+
+    int threadCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<ListenableFuture<Object>>> requests = new ArrayList<Future<ListenableFuture<Object>>>();
+      for (int i = 0; i < threadCount; i++) {
+        requests.add(executor.submit(new Callable<ListenableFuture<Object>>() {
+          @Override
+          public ListenableFuture<Object> call() throws Exception {
+            start.await();
+            return cache.get(path);
+          }
+        }));
+      }
+      start.countDown();
+      List<ListenableFuture<Object>> results = new ArrayList<ListenableFuture<Object>>();
+      for (Future<ListenableFuture<Object>> request : requests) {
+        results.add(request.get(10, TimeUnit.SECONDS));
+      }
+
+      // All the requests were made while the RPC was in flight.
+      verify(client, times(1)).get(path);
+      assertEquals(1, cache.getStats().getMissCount());
+      assertEquals(threadCount - 1, cache.getStats().getDuplicateCount());
+      for (ListenableFuture<Object> result : results) {
+        assertFalse(result.isDone());
+      }
+
+      // A request which gives up does not cancel the RPC for the others.
+      results.get(0).cancel(true);
+      assertFalse(rpc.isCancelled());
+
+      AtomList atoms = new AtomList().setAtoms(new Atom[10]);
+      rpc.set(atoms);
+      for (ListenableFuture<Object> result : results.subList(1, results.size())) {
+        assertSame(atoms, result.get());
+      }
+      assertSame(atoms, cache.get(path).get());
+      verify(client, times(1)).get(path);
+      assertEquals(1, cache.getStats().getHitCount());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.fd;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.testFramework.PsiTestUtil;
+import org.jetbrains.android.AndroidTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class FileChangeListenerTest extends AndroidTestCase {
+  private VirtualFile myJavaFile;
+  private VirtualFile myResourceFile;
+  private VirtualFile myOtherFile;
+  private FileChangeListener myListener;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myJavaFile = myFixture.addFileToProject("src/p1/A.java", "package p1; class A {}").getVirtualFile();
+    myOtherFile = myFixture.addFileToProject("src/p1/notes.txt", "Notes").getVirtualFile();
+    myResourceFile = myFixture.addFileToProject("res/values/strings.xml", "<resources></resources>").getVirtualFile();
+    // Resource directories are source roots in Gradle projects.
+    PsiTestUtil.addSourceRoot(myModule, myResourceFile.getParent().getParent());
+
+    myListener = new FileChangeListener(getProject(), 3);
+    // Nothing is known of the changes made before the listener was created.
+    assertTrue(myListener.getChangesAndReset().nonSourceChanges);
+  }
+
+  public void testJavaAndResourceChanges() {
+    changed(myJavaFile, myResourceFile, myJavaFile);
+
+    FileChangeListener.Changes changes = myListener.getChangesAndReset();
+    assertFalse(changes.nonSourceChanges);
+    assertTrue(changes.localJavaChanges);
+    assertTrue(changes.localResourceChanges);
+    assertEquals(Collections.singleton(myModule), changes.getModules());
+    assertEquals(Collections.singleton(myJavaFile), changes.getChangedFiles(myModule, FileChangeListener.Kind.JAVA));
+    assertEquals(Collections.singleton(myResourceFile), changes.getChangedFiles(myModule, FileChangeListener.Kind.RESOURCE));
+    assertEquals(2, changes.getChangedFileCount());
+
+    // The journal starts again after each build.
+    changes = myListener.getChangesAndReset();
+    assertFalse(changes.nonSourceChanges);
+    assertFalse(changes.localJavaChanges);
+    assertTrue(changes.getModules().isEmpty());
+    assertEquals(0, changes.getChangedFileCount());
+  }
+
+  public void testOtherChangeStopsJournal() {
+    changed(myJavaFile, myOtherFile);
+    // Later events are not journaled either.
+    changed(myResourceFile);
+
+    FileChangeListener.Changes changes = myListener.getChangesAndReset();
+    assertTrue(changes.nonSourceChanges);
+    assertFalse(changes.localJavaChanges);
+    assertFalse(changes.localResourceChanges);
+    assertTrue(changes.getModules().isEmpty());
+    assertEquals(0, changes.getChangedFileCount());
+  }
+
+  public void testDeletedFileIsNonSourceChange() {
+    changed(myJavaFile);
+    WriteCommandAction.runWriteCommandAction(null, () -> {
+      try {
+        myJavaFile.delete(this);
+      }
+      catch (IOException e) {
+        fail(e.toString());
+      }
+    });
+
+    FileChangeListener.Changes changes = myListener.getChangesAndReset();
+    assertTrue(changes.nonSourceChanges);
+    assertEquals(0, changes.getChangedFileCount());
+  }
+
+  public void testJournalOverCapIsNonSourceChange() {
+    List<VirtualFile> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      files.add(myFixture.addFileToProject("src/p2/A" + i + ".java", "package p2; class A" + i + " {}").getVirtualFile());
+    }
+    // Forget the creation of the files.
+    myListener.getChangesAndReset();
+
+    // Changing the same files again does not count towards the cap.
+    changed(files.get(0), files.get(1), files.get(2), files.get(0));
+    assertFalse(myListener.getChangesAndReset().nonSourceChanges);
+
+    changed(files.toArray(new VirtualFile[files.size()]));
+    FileChangeListener.Changes changes = myListener.getChangesAndReset();
+    assertTrue(changes.nonSourceChanges);
+    assertEquals(0, changes.getChangedFileCount());
+  }
+
+  private void changed(@NotNull VirtualFile... files) {
+    List<VFileEvent> events = new ArrayList<>();
+    for (VirtualFile file : files) {
+      events.add(new VFileContentChangeEvent(this, file, 0, 0, false));
+    }
+    myListener.after(events);
+  }
+}
@@ -17,7 +17,11 @@
 package com.android.tools.idea.logcat;
 
 import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
 import com.intellij.diagnostic.logging.LogFilterModel;
+import com.intellij.openapi.util.Key;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Before;
 import org.junit.Test;
@@ -175,6 +179,73 @@ public class AndroidLogFilterModelTest {
     assertThat(result.isApplicable()).isFalse();
   }
 
+  @Test
+  public void messagesAreShownOnceTheyPassTheFilters() throws Exception {
+    PersistentAndroidLogFilters.FilterData filterData = new PersistentAndroidLogFilters.FilterData();
+    filterData.setLogMessagePattern("line 2");
+    myFilterModel.updateLogcatFilter(DefaultAndroidLogcatFilter.compile(filterData, "(Unused Name)"));
+
+    assertThat(processLine(INFO, "line 1", false)).isEqualTo("");
+    // The lines held back are shown with the line which matched, and the following lines as they come.
+    assertThat(processLine(INFO, "line 2", true)).isEqualTo("01-23 12:34:56.789 1234-5678/? I/DummyTag: line 1\n+ line 2\n");
+    assertThat(processLine(INFO, "line 3", true)).isEqualTo("+ line 3\n");
+    assertThat(processLine(ERROR, "line 1", false)).isEqualTo("");
+  }
+
+  @Test
+  public void customPatternMatchesHeaderOfMessages() throws Exception {
+    myFilterModel.updateCustomPattern(Pattern.compile("^.+ E/DummyTag: "));
+    assertThat(processLine(INFO, "Dummy Message", false)).isEqualTo("");
+    assertThat(processLine(ERROR, "Dummy Message", false)).isEqualTo("01-23 12:34:56.789 1234-5678/? E/DummyTag: Dummy Message\n");
+    assertThat(processLine(ERROR, "at Dummy", true)).isEqualTo("+ at Dummy\n");
+  }
+
+  @Test
+  public void replayShowsMessagesThatPassTheFilters() throws Exception {
+    processLine(INFO, "Dummy Message", false);
+    processLine(ERROR, "Something failed", false);
+    processLine(ERROR, "at Dummy", true);
+    processLine(INFO, "Another Message", false);
+
+    myFilterModel.setMinimumLevel(LogLevel.ERROR);
+    StringBuilder lines = new StringBuilder();
+    myFilterModel.replay(new TextConsumer(lines));
+    assertThat(lines.toString()).isEqualTo("01-23 12:34:56.789 1234-5678/? E/DummyTag: Something failed\n+ at Dummy\n");
+
+    // The filter state carries on from the replayed lines.
+    assertThat(processLine(INFO, "more", true)).isEqualTo("");
+  }
+
+  private static final LogCatHeader INFO =
+    new LogCatHeader(LogLevel.INFO, 1234, 5678, "?", "DummyTag", LogCatTimestamp.fromString("01-23 12:34:56.789"));
+  private static final LogCatHeader ERROR =
+    new LogCatHeader(LogLevel.ERROR, 1234, 5678, "?", "DummyTag", LogCatTimestamp.fromString("01-23 12:34:56.789"));
+
+  /**
+   * Processes a line received as a message, returning the text of the lines to show.
+   */
+  @NotNull
+  private String processLine(@NotNull LogCatHeader header, @NotNull String message, boolean continuation) {
+    StringBuilder lines = new StringBuilder();
+    myFilterModel.processLine(new LogCatMessage(header, message), continuation, new TextConsumer(lines));
+    return lines.toString();
+  }
+
+  private static class TextConsumer implements AndroidLogFilterModel.LineConsumer {
+    private final StringBuilder myLines;
+
+    TextConsumer(@NotNull StringBuilder lines) {
+      myLines = lines;
+    }
+
+    @Override
+    public void accept(@NotNull LogCatMessage line, boolean continuation, @NotNull Key outputType) {
+      myLines.append(continuation
+                     ? AndroidLogcatFormatter.formatContinuation(line.getMessage())
+                     : AndroidLogcatFormatter.formatMessageFull(line.getHeader(), line.getMessage())).append('\n');
+    }
+  }
+
   private static class TestFilterModel extends AndroidLogFilterModel {
 
     @NotNull private LogLevel myMinimumLevel = LogLevel.VERBOSE; // Allow all messages by default
@@ -114,4 +114,36 @@ public class AndroidLogcatFormatterTest {
     assertEquals(expected, formattedMessage);
   }
 
+  @Test
+  public void knownFormatsMatchStringFormat() {
+    LogCatHeader header =
+      new LogCatHeader(LogLevel.WARN, 13, 123, "system_process", "Tag with spaces", LogCatTimestamp.fromString("02-12 14:32:46.526"));
+    for (int i = 0; i < 16; i++) {
+      String format = AndroidLogcatFormatter.createCustomFormat((i & 1) != 0, (i & 2) != 0, (i & 4) != 0, (i & 8) != 0);
+      String expected = String.format(Locale.US, format, header.getTimestamp(), "13-123", "system_process", 'W', "Tag\u00A0with\u00A0spaces",
+                                      "Message");
+      assertEquals(expected, AndroidLogcatFormatter.formatMessage(format, header, "Message"));
+    }
+  }
+
+  @Test
+  public void formatLineMatchesFormattedText() {
+    LogCatHeader header =
+      new LogCatHeader(LogLevel.INFO, 13, 123, "system_process", "Tag", LogCatTimestamp.fromString("02-12 14:32:46.526"));
+    LogCatMessage message = new LogCatMessage(header, "Message");
+    LogCatMessage continuation = new LogCatMessage(header, "Continuation");
+    AndroidLogcatPreferences preferences = new AndroidLogcatPreferences();
+
+    for (String format : new String[]{"", AndroidLogcatFormatter.createCustomFormat(false, true, false, true)}) {
+      preferences.LOGCAT_FORMAT_STRING = format;
+      AndroidLogcatFormatter textFormatter = new AndroidLogcatFormatter(preferences);
+      AndroidLogcatFormatter lineFormatter = new AndroidLogcatFormatter(preferences);
+
+      assertEquals(textFormatter.formatMessage(AndroidLogcatFormatter.formatMessageFull(header, "Message")),
+                   lineFormatter.formatLine(message, false));
+      // Continuation lines are indented to the message of the line before.
+      assertEquals(textFormatter.formatMessage(AndroidLogcatFormatter.formatContinuation("Continuation")),
+                   lineFormatter.formatLine(continuation, true));
+    }
+  }
 }
@@ -46,12 +46,15 @@ public class AndroidLogcatReceiverTest {
 
   @Before
   public void setUp() {
-    myLogLineListener = new FormattedLogLineReceiver() {
+    myLogLineListener = new StructuredLogLineReceiver() {
       private final StringWriter myInnerWriter = new StringWriter();
 
       @Override
-      protected void receiveFormattedLogLine(@NotNull String line) {
-        myInnerWriter.append(line).append('\n');
+      protected void receiveStructuredLogLine(@NotNull LogCatMessage line, boolean continuation) {
+        String text = continuation
+                      ? AndroidLogcatFormatter.formatContinuation(line.getMessage())
+                      : AndroidLogcatFormatter.formatMessageFull(line.getHeader(), line.getMessage());
+        myInnerWriter.append(text).append('\n');
       }
 
       @Override
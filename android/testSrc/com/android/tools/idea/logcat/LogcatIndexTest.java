@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.logcat;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LogcatIndexTest {
+  private static final LogCatTimestamp TIMESTAMP = LogCatTimestamp.fromString("02-12 14:32:46.526");
+  private static final LogCatHeader HEADER1 = new LogCatHeader(LogLevel.INFO, 1, 11, "com.first", "TagA", TIMESTAMP);
+  private static final LogCatHeader HEADER2 = new LogCatHeader(LogLevel.ERROR, 2, 22, "com.second", "TagB", TIMESTAMP);
+  private static final LogCatHeader HEADER3 = new LogCatHeader(LogLevel.DEBUG, 1, 11, "com.first", "TagA", TIMESTAMP);
+
+  private LogcatIndex myIndex;
+  private List<LogCatMessage> myLines;
+  private String myBufferSize;
+
+  @Before
+  public void setUp() {
+    myBufferSize = System.setProperty("idea.cycle.buffer.size", "disabled");
+    myIndex = new LogcatIndex(16);
+    myLines = new ArrayList<>();
+    add(HEADER1, "Hello world", false);
+    add(HEADER2, "Something failed", false);
+    add(HEADER2, "at com.second.Foo", true);
+    add(HEADER3, "Hello again", false);
+  }
+
+  @After
+  public void tearDown() {
+    if (myBufferSize != null) {
+      System.setProperty("idea.cycle.buffer.size", myBufferSize);
+    }
+    else {
+      System.clearProperty("idea.cycle.buffer.size");
+    }
+  }
+
+  private void add(LogCatHeader header, String message, boolean continuation) {
+    LogCatMessage line = new LogCatMessage(header, message);
+    myIndex.add(line, continuation);
+    myLines.add(line);
+  }
+
+  private String replay(LogcatIndex.Replay replay) {
+    StringBuilder accepted = new StringBuilder();
+    for (LogCatMessage line : myLines) {
+      assertTrue(replay.next());
+      assertSame(line, replay.getLine());
+      accepted.append(replay.isAccepted() ? '+' : '-');
+    }
+    assertFalse(replay.next());
+    return accepted.toString();
+  }
+
+  @Test
+  public void selectByLevel() {
+    assertEquals("++++", replay(myIndex.select(null, null, null, null)));
+    assertEquals("-++-", replay(myIndex.select(LogLevel.WARN, null, null, null)));
+    assertEquals("+++-", replay(myIndex.select(LogLevel.INFO, null, null, null)));
+  }
+
+  @Test
+  public void selectByFilter() {
+    AndroidLogcatFilter tagFilter = new DefaultAndroidLogcatFilter.Builder("tag").setTagPattern(Pattern.compile("TagA")).build();
+    assertEquals("+--+", replay(myIndex.select(null, null, tagFilter, null)));
+
+    AndroidLogcatFilter pidFilter = new DefaultAndroidLogcatFilter.Builder("pid").setPid(2).build();
+    assertEquals("-++-", replay(myIndex.select(null, null, pidFilter, null)));
+
+    // A match on a continuation line accepts the whole message.
+    AndroidLogcatFilter messageFilter =
+      new DefaultAndroidLogcatFilter.Builder("message").setMessagePattern(Pattern.compile(Pattern.quote("Foo"))).build();
+    assertEquals("-++-", replay(myIndex.select(null, null, messageFilter, null)));
+  }
+
+  @Test
+  public void selectByCustomPattern() {
+    // The custom pattern also matches the header text.
+    assertEquals("+--+", replay(myIndex.select(null, Pattern.compile("com.first", Pattern.CASE_INSENSITIVE), null, null)));
+    assertEquals("+--+", replay(myIndex.select(null, Pattern.compile("hello", Pattern.CASE_INSENSITIVE), null, null)));
+    assertEquals("+--+", replay(myIndex.select(null, Pattern.compile("H.llo"), null, null)));
+    assertEquals("----", replay(myIndex.select(null, Pattern.compile("nowhere"), null, null)));
+    // As for unindexed lines, continuation lines are matched without their "+ " marker.
+    assertEquals("-++-", replay(myIndex.select(null, Pattern.compile("^at com"), null, null)));
+    assertEquals("----", replay(myIndex.select(null, Pattern.compile("^\\+ at"), null, null)));
+  }
+
+  @Test
+  public void replayStopsBeforeLinesAddedAfterSelection() {
+    LogcatIndex.Replay replay = myIndex.select(LogLevel.WARN, null, null, null);
+    List<LogCatMessage> replayed = new ArrayList<>(myLines);
+    add(HEADER2, "Added while replaying", false);
+
+    myLines = replayed;
+    assertEquals("-++-", replay(replay));
+  }
+
+  @Test
+  public void replaySkipsLinesDroppedWhileReplaying() {
+    LogcatIndex.Replay replay = myIndex.select(LogLevel.WARN, null, null, null);
+    assertTrue(replay.next());
+    assertSame(myLines.get(0), replay.getLine());
+    assertFalse(replay.isContinuation());
+
+    // Drops the first two lines; the continuation line of the second message is still replayed.
+    for (int i = 0; i < 14; i++) {
+      add(HEADER1, "Line " + i, false);
+    }
+    assertTrue(replay.next());
+    assertSame(myLines.get(2), replay.getLine());
+    assertTrue(replay.isContinuation());
+    assertTrue(replay.isAccepted());
+    assertTrue(replay.next());
+    assertSame(myLines.get(3), replay.getLine());
+    assertFalse(replay.next());
+  }
+
+  @Test
+  public void clearEndsReplay() {
+    LogcatIndex.Replay replay = myIndex.select(null, null, null, null);
+    assertTrue(replay.next());
+    myIndex.clear();
+    add(HEADER1, "After clearing", false);
+    add(HEADER1, "Again", false);
+    assertFalse(replay.next());
+  }
+
+  @Test
+  public void oldLinesAreDropped() {
+    for (int i = 0; i < 20; i++) {
+      add(HEADER1, "Line " + i, false);
+    }
+    myLines = myLines.subList(myLines.size() - 16, myLines.size());
+    assertEquals("----------------", replay(myIndex.select(LogLevel.ERROR, null, null, null)));
+  }
+
+  @Test
+  public void getPids() {
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), myIndex.getPids());
+    for (int i = 0; i < 16; i++) {
+      add(HEADER2, "Line " + i, false);
+    }
+    assertEquals(Collections.singleton(2), myIndex.getPids());
+  }
+
+  @Test
+  public void getLiteral() {
+    assertEquals("a.b", LogcatIndex.getLiteral(Pattern.compile(Pattern.quote("a.b"))));
+    assertEquals("hello", LogcatIndex.getLiteral(Pattern.compile("hello")));
+    assertNull(LogcatIndex.getLiteral(Pattern.compile("hel+o")));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.logcat;
+
+import com.android.ddmlib.Log;
+import com.android.ddmlib.logcat.LogCatHeader;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogcatRingBufferTest {
+  private static final LogCatHeader HEADER1 =
+    new LogCatHeader(Log.LogLevel.WARN, 1493, 1595, "com.example", "DummyFirst", LogCatTimestamp.ZERO);
+  private static final LogCatHeader HEADER2 =
+    new LogCatHeader(Log.LogLevel.INFO, 1493, 1596, "com.example", "DummySecond", LogCatTimestamp.ZERO);
+
+  private String myBufferSize;
+
+  @Before
+  public void setUp() {
+    myBufferSize = System.setProperty("idea.cycle.buffer.size", "disabled");
+  }
+
+  @After
+  public void tearDown() {
+    if (myBufferSize != null) {
+      System.setProperty("idea.cycle.buffer.size", myBufferSize);
+    }
+    else {
+      System.clearProperty("idea.cycle.buffer.size");
+    }
+  }
+
+  @Test
+  public void testCursors() {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(8);
+    LogcatRingBuffer.Cursor fromStart = buffer.newCursor(true);
+    buffer.add(new LogCatMessage(HEADER1, "First Line1"));
+    buffer.add(new LogCatMessage(HEADER1, "First Line2"));
+    LogcatRingBuffer.Cursor fromNow = buffer.newCursor(false);
+    buffer.add(new LogCatMessage(HEADER2, "Second Line1"));
+
+    LogCatMessage line1 = fromStart.next();
+    LogCatMessage line2 = fromStart.next();
+    assertNotNull(line1);
+    assertNotNull(line2);
+    assertEquals(new LogCatMessage(HEADER1, "First Line1").toString(), line1.toString());
+    assertEquals(new LogCatMessage(HEADER1, "First Line2").toString(), line2.toString());
+    // Lines of the same message share their header.
+    assertSame(line1.getHeader(), line2.getHeader());
+
+    LogCatMessage line3 = fromStart.next();
+    assertNotNull(line3);
+    assertEquals(new LogCatMessage(HEADER2, "Second Line1").toString(), line3.toString());
+    assertNull(fromStart.next());
+
+    LogCatMessage newLine = fromNow.next();
+    assertNotNull(newLine);
+    assertEquals("Second Line1", newLine.getMessage());
+    assertNull(fromNow.next());
+  }
+
+  @Test
+  public void testSlowCursorSkipsDroppedLines() {
+    LogcatRingBuffer buffer = new LogcatRingBuffer(4);
+    LogcatRingBuffer.Cursor cursor = buffer.newCursor(true);
+    for (int i = 0; i < 10; i++) {
+      buffer.add(new LogCatMessage(HEADER1, "Line" + i));
+    }
+    assertEquals(6, buffer.getStart());
+    assertEquals(10, buffer.getEnd());
+
+    for (int i = 6; i < 10; i++) {
+      LogCatMessage line = cursor.next();
+      assertNotNull(line);
+      assertEquals("Line" + i, line.getMessage());
+    }
+    assertNull(cursor.next());
+  }
+}
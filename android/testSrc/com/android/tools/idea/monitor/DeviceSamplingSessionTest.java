@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.intellij.openapi.util.Pair;
+import junit.framework.TestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class DeviceSamplingSessionTest extends TestCase {
+  private static final Pattern MARKER = Pattern.compile("echo (__sample_[0-9a-f]+_)0;");
+
+  public void testOutputIsSplitAtMarkers() throws Exception {
+    IDevice device = mockDevice(new Output() {
+      @Override
+      public void write(String marker, IShellOutputReceiver receiver) {
+        MultiLineReceiver batch = (MultiLineReceiver)receiver;
+        // The first command's output arrives in two parts, the second command prints nothing, and the third one's
+        // output does not end with a new line, so its marker follows on the same line.
+        batch.processNewLines(new String[]{"a1", "a2"});
+        batch.processNewLines(new String[]{"a3", marker + "0", marker + "1"});
+        batch.processNewLines(new String[]{"c1", "c2" + marker + "2"});
+      }
+    });
+
+    RecordingReceiver a = new RecordingReceiver();
+    RecordingReceiver b = new RecordingReceiver();
+    RecordingReceiver c = new RecordingReceiver();
+    DeviceSamplingSession.getInstance(device).executeShellCommands(
+      "test", Arrays.asList(Pair.create("a", a), Pair.create("b", b), Pair.create("c", c)), 1, TimeUnit.SECONDS);
+
+    assertEquals(Arrays.asList("a1", "a2", "a3"), a.myLines);
+    assertTrue(a.myDone);
+    assertEquals(0, b.myLines.size());
+    assertTrue(b.myDone);
+    assertEquals(Arrays.asList("c1", "c2"), c.myLines);
+    assertTrue(c.myDone);
+  }
+
+  public void testCommandsOfConcurrentSamplersShareABatch() throws Exception {
+    final List<String> commands = new ArrayList<String>();
+    IDevice device = mockDevice(new Output() {
+      @Override
+      public void write(String marker, IShellOutputReceiver receiver) {
+        // Echo each command's name, so that the output matches whichever order the samplers joined the batch in.
+        String command = commands.get(0);
+        MultiLineReceiver batch = (MultiLineReceiver)receiver;
+        for (String part : command.split("; ")) {
+          batch.processNewLines(new String[]{part.startsWith("echo ") ? part.substring("echo ".length()) : part});
+        }
+      }
+    }, commands);
+    final CountDownLatch windowOpen = new CountDownLatch(1);
+    final AtomicReference<DeviceSamplingSession> sessionRef = new AtomicReference<DeviceSamplingSession>();
+    // Rather than for a fixed time, the first sampler waits until the second one has joined its batch.
+    DeviceSamplingSession session = new DeviceSamplingSession(device, new DeviceSamplingSession.BatchWindow() {
+      @Override
+      public void await() throws InterruptedException {
+        windowOpen.countDown();
+        while (sessionRef.get().getOpenBatchSize() < 2) {
+          Thread.sleep(1);
+        }
+      }
+    });
+    sessionRef.set(session);
+
+    AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    RecordingReceiver first = new RecordingReceiver();
+    RecordingReceiver second = new RecordingReceiver();
+    Thread firstThread = startCommand(session, "first", first, failure);
+    windowOpen.await();
+    Thread secondThread = startCommand(session, "second", second, failure);
+    firstThread.join();
+    secondThread.join();
+
+    assertNull(failure.get());
+    assertEquals(1, commands.size());
+    assertTrue(commands.get(0), commands.get(0).startsWith("first; "));
+    assertEquals(Arrays.asList("first"), first.myLines);
+    assertEquals(Arrays.asList("second"), second.myLines);
+  }
+
+  public void testCommandsAfterMissingMarkerFail() throws Exception {
+    IDevice device = mockDevice(new Output() {
+      @Override
+      public void write(String marker, IShellOutputReceiver receiver) {
+        ((MultiLineReceiver)receiver).processNewLines(new String[]{"a1", marker + "0", "b1"});
+      }
+    });
+
+    RecordingReceiver a = new RecordingReceiver();
+    RecordingReceiver b = new RecordingReceiver();
+    try {
+      DeviceSamplingSession.getInstance(device).executeShellCommands(
+        "test", Arrays.asList(Pair.create("a", a), Pair.create("b", b)), 1, TimeUnit.SECONDS);
+      fail();
+    }
+    catch (ShellCommandUnresponsiveException expected) {
+    }
+    assertEquals(Arrays.asList("a1"), a.myLines);
+    assertTrue(a.myDone);
+    assertFalse(b.myDone);
+  }
+
+  private static Thread startCommand(final DeviceSamplingSession session,
+                                     final String command,
+                                     final RecordingReceiver receiver,
+                                     final AtomicReference<Exception> failure) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          session.executeShellCommand(command, command, receiver, 1, TimeUnit.SECONDS);
+        }
+        catch (Exception e) {
+          failure.set(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private static IDevice mockDevice(Output output) throws Exception {
+    return mockDevice(output, new ArrayList<String>());
+  }
+
+  private static IDevice mockDevice(final Output output, final List<String> commands) throws Exception {
+    IDevice device = mock(IDevice.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String command = (String)invocation.getArguments()[0];
+        commands.add(command);
+        Matcher matcher = MARKER.matcher(command);
+        assertTrue(command, matcher.find());
+        IShellOutputReceiver receiver = (IShellOutputReceiver)invocation.getArguments()[1];
+        output.write(matcher.group(1), receiver);
+        receiver.flush();
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), any(IShellOutputReceiver.class), anyLong(), any(TimeUnit.class));
+    return device;
+  }
+
+  private interface Output {
+    void write(String marker, IShellOutputReceiver receiver);
+  }
+
+  private static class RecordingReceiver extends MultiLineReceiver {
+    private final List<String> myLines = new ArrayList<String>();
+    private boolean myDone;
+
+    @Override
+    public void processNewLines(String[] lines) {
+      myLines.addAll(Arrays.asList(lines));
+    }
+
+    @Override
+    public void done() {
+      myDone = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+}
@@ -16,12 +16,15 @@
 package com.android.tools.idea.rendering;
 
 import com.google.common.collect.Lists;
+import com.intellij.openapi.util.io.FileUtil;
 import junit.framework.TestCase;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.org.objectweb.asm.*;
 import org.jetbrains.org.objectweb.asm.tree.ClassNode;
 
+import java.io.File;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -199,6 +202,60 @@ public class ClassConverterTest extends TestCase {
     return cw.toByteArray();
   }
 
+  public void testRewrittenClassCache() throws Exception {
+    File rootDir = FileUtil.createTempDirectory("class_cache", null);
+    try {
+      RewrittenClassCache cache = new RewrittenClassCache(rootDir);
+      byte[] data = dumpTestViewClass();
+      long hits = RewrittenClassCache.getHitCount();
+      long misses = RewrittenClassCache.getMissCount();
+
+      byte[] rewritten = cache.rewriteClass(data, Integer.MAX_VALUE);
+      assertEquals(misses + 1, RewrittenClassCache.getMissCount());
+      assertTrue(Arrays.equals(rewriteClass(data, Integer.MAX_VALUE), rewritten));
+
+      // A new cache over the same directory (e.g. after an IDE restart) should find the entry
+      byte[] cached = new RewrittenClassCache(rootDir).rewriteClass(data, Integer.MAX_VALUE);
+      assertEquals(hits + 1, RewrittenClassCache.getHitCount());
+      assertTrue(Arrays.equals(rewritten, cached));
+
+      // The layoutlib API level is part of the key
+      new RewrittenClassCache(rootDir).rewriteClass(data, 15);
+      assertEquals(misses + 2, RewrittenClassCache.getMissCount());
+    }
+    finally {
+      FileUtil.delete(rootDir);
+    }
+  }
+
+  public void testRewrittenClassCachePrunesLeastRecentlyUsedEntries() throws Exception {
+    File rootDir = FileUtil.createTempDirectory("class_cache", null);
+    try {
+      byte[] data = dumpTestViewClass();
+      int size = rewriteClass(data, Integer.MAX_VALUE).length;
+      // Room for 4 entries; pruning goes down to 3. All the API levels used here rewrite to the same size.
+      RewrittenClassCache cache = new RewrittenClassCache(rootDir, 4 * size);
+      long now = System.currentTimeMillis();
+      for (int api = 16; api <= 25; api++) {
+        cache.rewriteClass(data, api);
+        // Entries of higher API levels were used more recently.
+        assertTrue(cache.getEntryFile(data, api, getCurrentClassVersion()).setLastModified(now - (40 - api) * 60000L));
+      }
+
+      cache.prune();
+      for (int api = 16; api <= 25; api++) {
+        assertEquals(api > 22, cache.getEntryFile(data, api, getCurrentClassVersion()).isFile());
+      }
+
+      // Nothing to do below the limit.
+      cache.prune();
+      assertTrue(cache.getEntryFile(data, 23, getCurrentClassVersion()).isFile());
+    }
+    finally {
+      FileUtil.delete(rootDir);
+    }
+  }
+
   public void testMethodWrapping() throws Exception {
     byte[] data = ClassConverterTest.dumpTestViewClass();
 
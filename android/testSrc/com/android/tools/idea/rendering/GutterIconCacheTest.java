@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+public class GutterIconCacheTest extends TestCase {
+  private final Queue<Runnable> myTasks = new ArrayDeque<>();
+  private boolean myRetina;
+  private int myRepaints;
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("gutter", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testPlaceholderUntilDecoded() throws Exception {
+    GutterIconCache cache = createCache(10, 1000);
+    String path = writeImage("icon.png", 8);
+
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+    // Asking again while the icon is being decoded does not decode it twice.
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+    assertEquals(1, myTasks.size());
+
+    runTasks();
+    Icon icon = cache.getIcon(path);
+    assertEquals(8, icon.getIconWidth());
+    assertEquals(1, myRepaints);
+    assertSame(icon, cache.getIcon(path));
+    assertTrue(myTasks.isEmpty());
+  }
+
+  public void testCacheIsBounded() throws Exception {
+    GutterIconCache cache = createCache(2, 1000);
+    String first = writeImage("first.png", 8);
+    String second = writeImage("second.png", 8);
+    String third = writeImage("third.png", 8);
+
+    cache.getIcon(first);
+    runTasks();
+    cache.getIcon(second);
+    cache.getIcon(third);
+    runTasks();
+
+    assertNotSame(GutterIconCache.PLACEHOLDER, cache.getIcon(second));
+    assertNotSame(GutterIconCache.PLACEHOLDER, cache.getIcon(third));
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(first));
+  }
+
+  public void testChangedFileIsDecodedAgain() throws Exception {
+    GutterIconCache cache = createCache(10, 0);
+    String path = writeImage("icon.png", 8);
+    cache.getIcon(path);
+    runTasks();
+    Icon icon = cache.getIcon(path);
+
+    // An unchanged file is checked in the background, and keeps its icon.
+    runTasks();
+    assertSame(icon, cache.getIcon(path));
+    assertEquals(1, myRepaints);
+
+    writeImage("icon.png", 12);
+    // The previous icon is shown until the new one is decoded.
+    assertSame(icon, cache.getIcon(path));
+    runTasks();
+    assertEquals(12, cache.getIcon(path).getIconWidth());
+    assertEquals(2, myRepaints);
+  }
+
+  public void testIconDecodedBeforeRetinaSwitchIsDropped() throws Exception {
+    GutterIconCache cache = createCache(10, 1000);
+    String path = writeImage("icon.png", 8);
+    cache.getIcon(path);
+
+    // The display switches to Retina while the icon is being decoded.
+    myRetina = true;
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+    runTasks();
+    assertEquals(1, myRepaints);
+
+    // The icon of the previous scale was not kept, so the repaint decodes it again.
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+    runTasks();
+    assertNotSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+  }
+
+  public void testRetinaSwitchInvalidatesIcons() throws Exception {
+    GutterIconCache cache = createCache(10, 1000);
+    String path = writeImage("icon.png", 8);
+    cache.getIcon(path);
+    runTasks();
+    assertNotSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+
+    myRetina = true;
+    assertSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+    runTasks();
+    assertNotSame(GutterIconCache.PLACEHOLDER, cache.getIcon(path));
+  }
+
+  private GutterIconCache createCache(int maxEntries, long checkIntervalMs) {
+    return new GutterIconCache(maxEntries, checkIntervalMs, myTasks::add) {
+      @Override
+      boolean isRetina() {
+        return myRetina;
+      }
+
+      @Override
+      void scheduleRepaint() {
+        myRepaints++;
+      }
+    };
+  }
+
+  private void runTasks() {
+    while (!myTasks.isEmpty()) {
+      myTasks.remove().run();
+    }
+  }
+
+  private String writeImage(String name, int size) throws IOException {
+    File file = new File(myDir, name);
+    assertTrue(ImageIO.write(new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB), "png", file));
+    return file.getPath();
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+
+public class RenderImagePoolTest extends TestCase {
+  public void testOwnedImagesAreNotReused() {
+    RenderImagePool pool = new RenderImagePool();
+    Object result = new Object();
+    BufferedImage first = pool.getImage(100, 200);
+    pool.addOwner(first, result);
+
+    // Drawing into an image which is still shown would flicker.
+    BufferedImage second = pool.getImage(100, 200);
+    assertNotSame(first, second);
+    assertNotSame(first, pool.getImage(100, 200));
+  }
+
+  public void testReleasedImagesAreReused() {
+    RenderImagePool pool = new RenderImagePool();
+    Object inflateResult = new Object();
+    Object renderResult = new Object();
+    BufferedImage image = pool.getImage(100, 200);
+    image.setRGB(10, 10, 0xFFFF0000);
+    pool.addOwner(image, inflateResult);
+    pool.addOwner(image, renderResult);
+
+    // The image is free once neither result shows it.
+    pool.release(image, inflateResult);
+    assertNotSame(image, pool.getImage(100, 200));
+    pool.release(image, renderResult);
+    assertSame(image, pool.getImage(100, 200));
+    // Reused images are cleared
+    assertEquals(0, image.getRGB(10, 10));
+  }
+
+  public void testImagesWithoutOwnerAreReused() {
+    RenderImagePool pool = new RenderImagePool();
+    BufferedImage image = pool.getImage(100, 200);
+    // Nothing took the image, e.g. because the render failed.
+    assertSame(image, pool.getImage(100, 200));
+
+    // Images which were not handed out by the pool are ignored.
+    Object result = new Object();
+    BufferedImage other = new BufferedImage(100, 200, BufferedImage.TYPE_INT_ARGB);
+    pool.addOwner(other, result);
+    pool.release(other, result);
+    assertNotSame(other, pool.getImage(100, 200));
+  }
+
+  public void testResize() {
+    RenderImagePool pool = new RenderImagePool();
+    BufferedImage image = pool.getImage(100, 200);
+    // A different size needs a new image
+    BufferedImage resized = pool.getImage(200, 100);
+    assertNotSame(image, resized);
+    assertEquals(200, resized.getWidth());
+    assertEquals(100, resized.getHeight());
+  }
+}
@@ -16,8 +16,19 @@
 package com.android.tools.idea.rendering;
 
 import com.android.ide.common.rendering.api.ViewInfo;
+import com.android.tools.idea.rendering.RenderService.RenderPriority;
+import com.android.tools.idea.rendering.RenderService.RenderWorker;
+import com.google.common.collect.Lists;
 import junit.framework.TestCase;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class RenderServiceTest extends TestCase {
   public void testGetSafeBounds() {
     ViewInfo valid;
@@ -58,4 +69,72 @@ public class RenderServiceTest extends TestCase {
     invalid = new ViewInfo("", "", 0, 0, 0, +(1 << 27));
     assertNotSame(invalid, RenderService.getSafeBounds(invalid));
   }
-}
\ No newline at end of file
+
+  public void testWorkerRunsQueuedActionsByPriority() throws Exception {
+    RenderWorker worker = new RenderWorker("test", 5000);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      worker.submit(() -> release.await(5, TimeUnit.SECONDS), RenderPriority.NORMAL);
+
+      // Queued while the worker is busy, so they are picked up by priority and then in submission order.
+      List<String> order = Collections.synchronizedList(Lists.newArrayList());
+      List<Future<Boolean>> futures = Lists.newArrayList();
+      futures.add(worker.submit(() -> order.add("low"), RenderPriority.LOW));
+      futures.add(worker.submit(() -> order.add("normal 1"), RenderPriority.NORMAL));
+      futures.add(worker.submit(() -> order.add("high"), RenderPriority.HIGH));
+      futures.add(worker.submit(() -> order.add("normal 2"), RenderPriority.NORMAL));
+      release.countDown();
+      for (Future<Boolean> future : futures) {
+        future.get(5, TimeUnit.SECONDS);
+      }
+      assertEquals(Lists.newArrayList("high", "normal 1", "normal 2", "low"), order);
+    }
+    finally {
+      worker.shutdown();
+    }
+  }
+
+  public void testWorkerSkipsCancelledActions() throws Exception {
+    RenderWorker worker = new RenderWorker("test", 5000);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      worker.submit(() -> release.await(5, TimeUnit.SECONDS), RenderPriority.NORMAL);
+
+      AtomicBoolean ran = new AtomicBoolean();
+      Future<Boolean> cancelled = worker.submit(() -> ran.getAndSet(true), RenderPriority.HIGH);
+      assertTrue(cancelled.cancel(false));
+      release.countDown();
+
+      // The worker goes on with the next action, without running the cancelled one.
+      assertEquals("done", worker.run(() -> "done", RenderPriority.LOW));
+      assertFalse(ran.get());
+    }
+    finally {
+      worker.shutdown();
+    }
+  }
+
+  public void testWorkerStillRunsTimedOutActions() throws Exception {
+    RenderWorker worker = new RenderWorker("test", 100);
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      worker.submit(() -> release.await(5, TimeUnit.SECONDS), RenderPriority.NORMAL);
+
+      AtomicBoolean ran = new AtomicBoolean();
+      try {
+        worker.run(() -> ran.getAndSet(true), RenderPriority.NORMAL);
+        fail("Expected the action to time out behind the blocked one");
+      }
+      catch (TimeoutException expected) {
+      }
+      release.countDown();
+
+      // Timed out actions may be disposing a session, so they are not dropped.
+      worker.submit(() -> null, RenderPriority.LOW).get(5, TimeUnit.SECONDS);
+      assertTrue(ran.get());
+    }
+    finally {
+      worker.shutdown();
+    }
+  }
+}
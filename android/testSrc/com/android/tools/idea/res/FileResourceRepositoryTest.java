@@ -58,6 +58,86 @@ public class FileResourceRepositoryTest extends TestCase {
     }
   }
 
+  public void testSnapshotStore() throws IOException {
+    File rootDir = Files.createTempDir();
+    AarResourceSnapshotStore.setInstance(new AarResourceSnapshotStore(rootDir));
+    try {
+      FileResourceRepository.reset();
+      FileResourceRepository parsed = getTestRepository();
+      File[] snapshots = new File(rootDir, "aar_resource_cache").listFiles();
+      assertNotNull(snapshots);
+      assertEquals(1, snapshots.length);
+      long stamp = snapshots[0].lastModified();
+
+      // A new repository for the same AAR should be restored from the snapshot, without writing a new one.
+      FileResourceRepository.reset();
+      FileResourceRepository restored = getTestRepository();
+      assertNotSame(parsed, restored);
+      assertEquals(stamp, snapshots[0].lastModified());
+      assertEquals(parsed.getItems().keySet(), restored.getItems().keySet());
+      for (ResourceType type : parsed.getItems().keySet()) {
+        assertSameElements(restored.getItemsOfType(type), parsed.getItemsOfType(type));
+      }
+      List<ResourceItem> items = restored.getResourceItem(ResourceType.STRING, "hello");
+      assertNotNull(items);
+      assertEquals(3, items.size());
+      for (ResourceItem item : items) {
+        assertNotNull(item.getResourceValue(false));
+      }
+      assertSameElements(restored.getAllDeclaredIds(), "id1", "id2", "id3");
+    }
+    finally {
+      AarResourceSnapshotStore.setInstance(null);
+      FileResourceRepository.reset();
+      FileUtil.delete(rootDir);
+    }
+  }
+
+  public void testDamagedSnapshotIsReplaced() throws IOException {
+    File rootDir = Files.createTempDir();
+    AarResourceSnapshotStore.setInstance(new AarResourceSnapshotStore(rootDir));
+    try {
+      FileResourceRepository.reset();
+      FileResourceRepository parsed = getTestRepository();
+      File[] snapshots = new File(rootDir, "aar_resource_cache").listFiles();
+      assertNotNull(snapshots);
+      assertEquals(1, snapshots.length);
+      FileUtil.writeToFile(snapshots[0], "damaged");
+
+      // The damaged snapshot is deleted, and written again once the AAR has been parsed.
+      FileResourceRepository.reset();
+      FileResourceRepository restored = getTestRepository();
+      assertEquals(parsed.getItems().keySet(), restored.getItems().keySet());
+      assertTrue(snapshots[0].length() > "damaged".length());
+      assertNotNull(ResourceFolderRepositorySnapshot.load(snapshots[0], restored.getResourceDirectory(), null, false));
+    }
+    finally {
+      AarResourceSnapshotStore.setInstance(null);
+      FileResourceRepository.reset();
+      FileUtil.delete(rootDir);
+    }
+  }
+
+  public void testFingerprintCoversValues() throws IOException {
+    File resourceDir = Files.createTempDir();
+    try {
+      File values = new File(resourceDir, "values" + separatorChar + "strings.xml");
+      FileUtil.writeToFile(values, "<resources><string name=\"a\">x</string></resources>");
+      long stamp = values.lastModified();
+      String fingerprint = AarResourceSnapshotStore.computeFingerprint(resourceDir);
+      assertNotNull(fingerprint);
+      assertEquals(fingerprint, AarResourceSnapshotStore.computeFingerprint(resourceDir));
+
+      // Same length and timestamp, different value.
+      FileUtil.writeToFile(values, "<resources><string name=\"a\">y</string></resources>");
+      assertTrue(values.setLastModified(stamp));
+      assertFalse(fingerprint.equals(AarResourceSnapshotStore.computeFingerprint(resourceDir)));
+    }
+    finally {
+      FileUtil.delete(resourceDir);
+    }
+  }
+
   public void testGetAllDeclaredIds() throws IOException {
     FileResourceRepository repository = getTestRepository();
     assertSameElements(repository.getAllDeclaredIds(), "id1", "id2", "id3");
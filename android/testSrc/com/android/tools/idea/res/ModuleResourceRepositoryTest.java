@@ -21,6 +21,7 @@ import com.android.ide.common.res2.ResourceItem;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.resources.ResourceType;
 import com.android.tools.lint.detector.api.LintUtils;
+import com.google.common.collect.ListMultimap;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.util.Condition;
@@ -225,6 +226,50 @@ public class ModuleResourceRepositoryTest extends AndroidTestCase {
     assertItemIsInDir(res2, layout2);
   }
 
+  public void testOverlayDeltaUpdates() {
+    VirtualFile values1 = myFixture.copyFileToProject(VALUES, "res/values/values.xml");
+    VirtualFile values2 = myFixture.copyFileToProject(VALUES_OVERLAY1, "res2/values/values.xml");
+    VirtualFile res1 = values1.getParent().getParent();
+    VirtualFile res2 = values2.getParent().getParent();
+    ModuleResourceRepository resources = ModuleResourceRepository.createForTest(myFacet, Arrays.asList(res1, res2));
+    PsiFile psiValues2 = PsiManager.getInstance(getProject()).findFile(values2);
+    assertNotNull(psiValues2);
+    assertStringIs(resources, "title_crossfade", "Complex Crossfade"); // Overridden in res2
+
+    final PsiDocumentManager documentManager = PsiDocumentManager.getInstance(getProject());
+    final Document document = documentManager.getDocument(psiValues2);
+    assertNotNull(document);
+    // The first edit converts the file to Psi, which requires a rescan; after that edits are incremental.
+    WriteCommandAction.runWriteCommandAction(null, () -> {
+      int offset = document.getText().indexOf("Complex Crossfade");
+      document.insertString(offset, "Very ");
+      documentManager.commitDocument(document);
+    });
+    UIUtil.dispatchAllInvocationEvents();
+    assertStringIs(resources, "title_crossfade", "Very Complex Crossfade");
+
+    // Renaming the overriding item should only re-merge the old and new names, in the merged map of strings.
+    ListMultimap<String, ResourceItem> strings = resources.getItems().get(ResourceType.STRING);
+    int stringCount = strings.size();
+    long generation = resources.getModificationCount();
+    WriteCommandAction.runWriteCommandAction(null, () -> {
+      int offset = document.getText().indexOf("title_crossfade");
+      document.insertString(offset, "x");
+      documentManager.commitDocument(document);
+    });
+    assertTrue(resources.getModificationCount() > generation);
+    assertSame(strings, resources.getItems().get(ResourceType.STRING));
+    // The base item is visible again, besides the renamed one.
+    assertEquals(stringCount + 1, strings.size());
+    assertEquals(1, strings.get("title_crossfade").size());
+    assertEquals(1, strings.get("xtitle_crossfade").size());
+
+    // The base value is no longer overridden, and the renamed item is visible.
+    assertStringIs(resources, "title_crossfade", "Simple Crossfade");
+    assertStringIs(resources, "xtitle_crossfade", "Very Complex Crossfade");
+    assertStringIs(resources, "title_layout_changes", "Layout Changes");
+  }
+
   public void testOverlayUpdates2() {
     // Like testOverlayUpdates1, but rather than testing changes to layout resources (file-based resource)
     // perform document edits in value-documents
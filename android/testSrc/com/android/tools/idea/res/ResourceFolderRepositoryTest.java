@@ -3823,6 +3823,58 @@ public class ResourceFolderRepositoryTest extends AndroidTestCase {
     assertTrue(fromBlob.equalFilesItems(resources));
   }
 
+  public void testSnapshotReparsesOnlyChangedFiles() throws Exception {
+    myFixture.copyFileToProject(LAYOUT1, "res/layout/layout.xml");
+    myFixture.copyFileToProject(VALUES1, "res/values/myvalues.xml");
+    myFixture.copyFileToProject(STRINGS, "res/values/strings.xml");
+    ResourceFolderRepository resources = createRepository();
+    assertNotNull(resources);
+    assertEquals(3, resources.getInitialScanState().numXmlReparsed);
+    resources.saveStateToFile();
+    ResourceFolderRegistry.reset();
+
+    // Replace the contents of one value file; the other two should still come from the snapshot.
+    myFixture.copyFileToProject(VALUES_EMPTY, "res/values/strings.xml");
+
+    ResourceFolderRepository reloaded = createRepository();
+    assertNotNull(reloaded);
+    assertEquals(3, reloaded.getInitialScanState().numXml);
+    assertEquals(1, reloaded.getInitialScanState().numXmlReparsed);
+    assertEquals(2, reloaded.getInitialScanState().numSnapshotFilesRestored);
+    assertEquals(1, reloaded.getInitialScanState().numSnapshotFilesDiscarded);
+
+    assertTrue(reloaded.hasResourceItem(ResourceType.LAYOUT, "layout"));
+    assertTrue(reloaded.hasResourceItem(ResourceType.ID, "noteArea"));
+    assertTrue(reloaded.hasResourceItem(ResourceType.STRING, "app_name"));
+    assertFalse(reloaded.hasResourceItem(ResourceType.STRING, "hello_world"));
+  }
+
+  public void testDamagedSnapshotSectionIsReparsed() throws Exception {
+    myFixture.copyFileToProject(LAYOUT1, "res/layout/layout.xml");
+    myFixture.copyFileToProject(VALUES1, "res/values/myvalues.xml");
+    myFixture.copyFileToProject(STRINGS, "res/values/strings.xml");
+    ResourceFolderRepository resources = createRepository();
+    assertNotNull(resources);
+    resources.saveStateToFile();
+    ResourceFolderRegistry.reset();
+
+    // Damage the end of the last type section; the header and file table stay valid, so the snapshot still loads.
+    File cacheDir = ResourceFolderRepositoryFileCacheService.get().getResourceDir(getProject(), getResourceDirectory());
+    assertNotNull(cacheDir);
+    File snapshotFile = new File(cacheDir, ResourceFolderRepositorySnapshot.SNAPSHOT_FILE_NAME);
+    byte[] bytes = FileUtil.loadFileBytes(snapshotFile);
+    Arrays.fill(bytes, bytes.length - 16, bytes.length, (byte)0xFF);
+    FileUtil.writeToFile(snapshotFile, bytes);
+
+    ResourceFolderRepository reloaded = createRepository();
+    assertNotNull(reloaded);
+    assertEquals(3, reloaded.getInitialScanState().numSnapshotFilesRestored);
+    // Decoding the damaged section makes the repository parse the restored files again, so no item is lost.
+    assertTrue(reloaded.equalFilesItems(resources));
+    assertTrue(reloaded.hasResourceItem(ResourceType.STRING, "app_name"));
+    assertTrue(reloaded.hasResourceItem(ResourceType.ID, "noteArea"));
+  }
+
   public void testInvalidateCache() throws Exception {
     myFixture.copyFileToProject(LAYOUT1, "res/layout/layout.xml");
     myFixture.copyFileToProject(LAYOUT1, "res/layout-xlarge-land/layout.xml");
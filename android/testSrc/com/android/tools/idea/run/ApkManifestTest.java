@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.run;
+
+import com.google.common.collect.ImmutableSet;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ApkManifestTest extends TestCase {
+  private File myFile;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("test", ".apk");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testUnchangedApkIsNotReadAgain() throws Exception {
+    writeZip("a", "first", "b", "second");
+    assertTrue(myFile.setLastModified(System.currentTimeMillis() - 2 * ApkManifest.MODIFICATION_TIME_GRANULARITY_MS));
+    ApkManifest manifest = ApkManifest.of(myFile);
+    assertSame(manifest, ApkManifest.of(myFile));
+  }
+
+  public void testRecentlyModifiedApkIsReadAgain() throws Exception {
+    writeZip("a", "first", "b", "second");
+    long lastModified = myFile.lastModified();
+    ApkManifest before = ApkManifest.of(myFile);
+
+    // A rebuild within the granularity of modification times, which leaves the size and modification time unchanged.
+    writeZip("a", "first", "b", "change");
+    assertTrue(myFile.setLastModified(lastModified));
+    ApkManifest after = ApkManifest.of(myFile);
+
+    assertNotSame(before, after);
+    assertEquals(ImmutableSet.of("b"), after.getChangedEntries(before));
+    assertFalse(after.getHash().equals(before.getHash()));
+  }
+
+  public void testChangedBlocks() throws Exception {
+    byte[] data = new byte[ApkManifest.BLOCK_SIZE * 2 + 10];
+    FileUtil.writeToFile(myFile, data);
+    ApkManifest before = ApkManifest.of(myFile);
+    assertEquals(3, before.getBlockCount());
+
+    RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      file.seek(ApkManifest.BLOCK_SIZE + 1);
+      file.write(1);
+    }
+    finally {
+      file.close();
+    }
+
+    ApkManifest after = ApkManifest.of(myFile);
+    BitSet expected = new BitSet();
+    expected.set(1);
+    assertEquals(expected, after.getChangedBlocks(before));
+    assertFalse(after.getHash().equals(before.getHash()));
+  }
+
+  public void testChangedEntries() throws Exception {
+    writeZip("a", "first", "b", "second", "c", "third");
+    ApkManifest before = ApkManifest.of(myFile);
+
+    writeZip("a", "first", "b", "changed", "d", "added");
+    ApkManifest after = ApkManifest.of(myFile);
+
+    assertEquals(ImmutableSet.of("b", "c", "d"), after.getChangedEntries(before));
+    assertTrue(after.getChangedEntries(after).isEmpty());
+  }
+
+  private void writeZip(String... namesAndContents) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(myFile));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+        zip.write(namesAndContents[i + 1].getBytes("UTF-8"));
+        zip.closeEntry();
+      }
+    }
+    finally {
+      zip.close();
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.run;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class DeltaApkPusherTest extends TestCase {
+  private static final String HASH1 = "d41d8cd98f00b204e9800998ecf8427e";
+  private static final String HASH2 = "0cc175b9c0f1b6a831c399e269772661";
+
+  private static final int BLOCK_SIZE = DeltaApkPusher.BLOCK_SIZE;
+
+  private File myDeviceDir;
+  private File myLocalFile;
+  private String myRemotePath;
+  private final List<String> myCommands = new ArrayList<String>();
+  private long myPushedBytes;
+  private boolean myMoveFails;
+  private IDevice myDevice;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myDeviceDir = FileUtil.createTempDirectory("device", null);
+    myLocalFile = FileUtil.createTempFile("test", ".apk");
+    myRemotePath = new File(myDeviceDir, "com.foo.bar").getPath();
+    myDevice = createDevice();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDeviceDir);
+    FileUtil.delete(myLocalFile);
+    super.tearDown();
+  }
+
+  public void testParseHashes() {
+    assertEquals(Arrays.asList(HASH1, HASH2), DeltaApkPusher.parseHashes(HASH1 + "  -\n" + HASH2 + "  -\n", 2));
+    // Missing file or missing blocks.
+    assertNull(DeltaApkPusher.parseHashes("", 2));
+    assertNull(DeltaApkPusher.parseHashes(HASH1 + "  -\n", 2));
+    // Missing tools.
+    assertNull(DeltaApkPusher.parseHashes("/system/bin/sh: md5sum: not found\n", 1));
+  }
+
+  public void testHashCommand() {
+    assertEquals("[ -f \"/tmp/a\" ] && for i in 0 2 3; do dd if=\"/tmp/a\" bs=" + BLOCK_SIZE + " skip=$i count=1 2>/dev/null | md5sum; done",
+                 DeltaApkPusher.getHashCommand("/tmp/a", Arrays.asList(0, 2, 3)));
+  }
+
+  public void testPatchCommandMergesConsecutiveBlocks() {
+    String command = DeltaApkPusher.getPatchCommand("/tmp/a", "/tmp/a.delta", "/tmp/a.new", Arrays.asList(1, 2, 5), 12345);
+    int bs = DeltaApkPusher.BLOCK_SIZE;
+    assertEquals("cp \"/tmp/a\" \"/tmp/a.new\"" +
+                 " && dd if=\"/tmp/a.delta\" of=\"/tmp/a.new\" bs=" + bs + " skip=0 seek=1 count=2 conv=notrunc 2>/dev/null" +
+                 " && dd if=\"/tmp/a.delta\" of=\"/tmp/a.new\" bs=" + bs + " skip=2 seek=5 count=1 conv=notrunc 2>/dev/null" +
+                 " && truncate -s 12345 \"/tmp/a.new\"", command);
+  }
+
+  public void testPatchCommandWithoutChanges() {
+    assertEquals("cp \"/tmp/a\" \"/tmp/a.new\" && truncate -s 10 \"/tmp/a.new\"",
+                 DeltaApkPusher.getPatchCommand("/tmp/a", "/tmp/a.delta", "/tmp/a.new", Collections.<Integer>emptyList(), 10));
+  }
+
+  public void testPushChangedBlock() throws Exception {
+    // The fake device runs the commands with the local shell, which needs dd, md5sum and truncate.
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    byte[] old = createContents(4 * BLOCK_SIZE + 100, 1);
+    FileUtil.writeToFile(new File(myRemotePath), old);
+    byte[] contents = old.clone();
+    contents[2 * BLOCK_SIZE + 10]++;
+    FileUtil.writeToFile(myLocalFile, contents);
+
+    assertTrue(push(null));
+    assertEquals(BLOCK_SIZE, myPushedBytes);
+    assertTrue(Arrays.equals(contents, FileUtil.loadFileBytes(new File(myRemotePath))));
+    assertDeviceHasNoTemporaryFiles();
+  }
+
+  public void testPushChangedBlockOfPreviousApk() throws Exception {
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    byte[] old = createContents(4 * BLOCK_SIZE + 100, 1);
+    FileUtil.writeToFile(new File(myRemotePath), old);
+    FileUtil.writeToFile(myLocalFile, old);
+    ApkManifest previous = ApkManifest.of(myLocalFile);
+    byte[] contents = old.clone();
+    contents[4 * BLOCK_SIZE + 10]++;
+    FileUtil.writeToFile(myLocalFile, contents);
+
+    assertTrue(push(previous));
+    // Only the last block changed, and the old file was not hashed before pushing it.
+    assertEquals(100, myPushedBytes);
+    assertEquals(3, myCommands.size());
+    assertTrue(Arrays.equals(contents, FileUtil.loadFileBytes(new File(myRemotePath))));
+    assertDeviceHasNoTemporaryFiles();
+  }
+
+  public void testPushChangedSize() throws Exception {
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    byte[] old = createContents(4 * BLOCK_SIZE + 100, 1);
+    FileUtil.writeToFile(new File(myRemotePath), old);
+    byte[] contents = Arrays.copyOf(old, 5 * BLOCK_SIZE + 200);
+    FileUtil.writeToFile(myLocalFile, contents);
+
+    assertTrue(push(null));
+    assertEquals(BLOCK_SIZE + 200, myPushedBytes);
+    assertTrue(Arrays.equals(contents, FileUtil.loadFileBytes(new File(myRemotePath))));
+
+    contents = Arrays.copyOf(old, 3 * BLOCK_SIZE + 50);
+    FileUtil.writeToFile(myLocalFile, contents);
+    myPushedBytes = 0;
+
+    assertTrue(push(null));
+    assertEquals(50, myPushedBytes);
+    assertTrue(Arrays.equals(contents, FileUtil.loadFileBytes(new File(myRemotePath))));
+    assertDeviceHasNoTemporaryFiles();
+  }
+
+  public void testPushFailsWhenMoveFails() throws Exception {
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    byte[] old = createContents(4 * BLOCK_SIZE, 1);
+    FileUtil.writeToFile(new File(myRemotePath), old);
+    byte[] contents = old.clone();
+    contents[10]++;
+    FileUtil.writeToFile(myLocalFile, contents);
+    myMoveFails = true;
+
+    assertFalse(push(null));
+    assertTrue(Arrays.equals(old, FileUtil.loadFileBytes(new File(myRemotePath))));
+    assertDeviceHasNoTemporaryFiles();
+  }
+
+  public void testPushFailsWhenDeviceFileIsNotThePreviousApk() throws Exception {
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    byte[] old = createContents(4 * BLOCK_SIZE, 1);
+    FileUtil.writeToFile(myLocalFile, old);
+    ApkManifest previous = ApkManifest.of(myLocalFile);
+    byte[] other = createContents(4 * BLOCK_SIZE, 2);
+    FileUtil.writeToFile(new File(myRemotePath), other);
+    byte[] contents = old.clone();
+    contents[10]++;
+    FileUtil.writeToFile(myLocalFile, contents);
+
+    assertFalse(push(previous));
+    assertTrue(Arrays.equals(other, FileUtil.loadFileBytes(new File(myRemotePath))));
+    assertDeviceHasNoTemporaryFiles();
+  }
+
+  public void testPushFailsWithoutEarlierFile() throws Exception {
+    if (!SystemInfo.isLinux) {
+      return;
+    }
+    FileUtil.writeToFile(myLocalFile, createContents(4 * BLOCK_SIZE, 1));
+
+    assertFalse(push(null));
+    assertEquals(0, myPushedBytes);
+    assertFalse(new File(myRemotePath).exists());
+  }
+
+  private boolean push(ApkManifest previous) {
+    myCommands.clear();
+    return new DeltaApkPusher(myDevice, new ConsolePrinter() {
+      @Override
+      public void stdout(@NotNull String message) {
+      }
+
+      @Override
+      public void stderr(@NotNull String message) {
+      }
+    }).push(myLocalFile, myRemotePath, previous);
+  }
+
+  private void assertDeviceHasNoTemporaryFiles() {
+    String[] files = myDeviceDir.list();
+    assertNotNull(files);
+    assertEquals(Collections.singletonList("com.foo.bar"), Arrays.asList(files));
+  }
+
+  @NotNull
+  private static byte[] createContents(int size, int seed) {
+    byte[] contents = new byte[size];
+    new Random(seed).nextBytes(contents);
+    return contents;
+  }
+
+  /**
+   * Returns a device which runs shell commands with the local shell, and whose files are local files.
+   */
+  @NotNull
+  private IDevice createDevice() throws Exception {
+    IDevice device = mock(IDevice.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String command = (String)invocation.getArguments()[0];
+        IShellOutputReceiver receiver = (IShellOutputReceiver)invocation.getArguments()[1];
+        myCommands.add(command);
+        byte[] output = myMoveFails && command.startsWith("mv ")
+                        ? "mv: cannot move: Permission denied\n".getBytes()
+                        : run(command);
+        receiver.addOutput(output, 0, output.length);
+        receiver.flush();
+        return null;
+      }
+    }).when(device).executeShellCommand(anyString(), any(IShellOutputReceiver.class), anyLong(), any(TimeUnit.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        File local = new File((String)invocation.getArguments()[0]);
+        myPushedBytes += local.length();
+        FileUtil.copy(local, new File((String)invocation.getArguments()[1]));
+        return null;
+      }
+    }).when(device).pushFile(anyString(), anyString());
+    return device;
+  }
+
+  @NotNull
+  private static byte[] run(@NotNull String command) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder("/bin/sh", "-c", command).redirectErrorStream(true).start();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InputStream in = process.getInputStream();
+    try {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        output.write(buffer, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+    process.waitFor();
+    return output.toByteArray();
+  }
+}
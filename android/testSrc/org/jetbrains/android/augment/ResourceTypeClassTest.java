@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.augment;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.android.AndroidTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResourceTypeClassTest extends AndroidTestCase {
+  private static final String LAYOUT = "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"/>";
+
+  public void testFieldsFollowResources() {
+    myFixture.addFileToProject("res/layout/first.xml", LAYOUT);
+    PsiFile second = myFixture.addFileToProject("res/layout/second.xml", LAYOUT);
+    PsiClass rClass = myFixture.addClass("package p1.p2; public class R {}");
+    ResourceTypeClass layoutClass = new ResourceTypeClass(myFacet, "layout", rClass);
+
+    PsiField[] fields = layoutClass.getFields();
+    assertEquals(Arrays.asList("first", "second"), getNames(fields));
+    PsiField first = layoutClass.findFieldByName("first", false);
+    assertNotNull(first);
+    assertNull(layoutClass.findFieldByName("third", false));
+
+    // Changes which do not touch the resources keep the fields.
+    myFixture.addClass("package p1.p2; public class Other {}");
+    assertSame(fields, layoutClass.getFields());
+    assertSame(first, layoutClass.findFieldByName("first", false));
+
+    myFixture.addFileToProject("res/layout/third.xml", LAYOUT);
+    assertEquals(Arrays.asList("first", "second", "third"), getNames(layoutClass.getFields()));
+    assertNotNull(layoutClass.findFieldByName("third", false));
+
+    WriteCommandAction.runWriteCommandAction(null, () -> second.delete());
+    assertEquals(Arrays.asList("first", "third"), getNames(layoutClass.getFields()));
+    assertNull(layoutClass.findFieldByName("second", false));
+  }
+
+  @NotNull
+  private static List<String> getNames(@NotNull PsiField[] fields) {
+    List<String> names = new ArrayList<String>();
+    for (PsiField field : fields) {
+      names.add(field.getName());
+    }
+    return names;
+  }
+}
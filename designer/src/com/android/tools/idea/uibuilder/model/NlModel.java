@@ -344,6 +344,8 @@ public class NlModel implements Disposable, ResourceChangeListener, Modification
       }
       myRenderTask = renderService.createTask(myFile, configuration, logger, mySurface);
       if (myRenderTask != null) {
+        // This is the layout shown in the editor; render it ahead of queued background renders.
+        myRenderTask.setPriority(RenderService.RenderPriority.HIGH);
         if (!isRenderViewPort()) {
           myRenderTask.useDesignMode(myFile);
         }
@@ -368,6 +368,7 @@ public class IconPreviewFactory {
       task.setDecorations(false);
       task.setRenderingMode(SessionParams.RenderingMode.V_SCROLL);
       task.setFolderType(ResourceFolderType.LAYOUT);
+      task.setPriority(RenderService.RenderPriority.LOW);
       result = task.render();
       task.dispose();
     }